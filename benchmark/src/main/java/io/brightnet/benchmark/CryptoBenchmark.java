@@ -0,0 +1,111 @@
+/*
+ * This file is part of BrightNet.
+ *
+ * BrightNet is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * BrightNet is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with BrightNet. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.brightnet.benchmark;
+
+import io.brightnet.common.crypto.CryptoException;
+import io.brightnet.common.crypto.Encryption;
+import io.brightnet.common.crypto.Hash;
+import io.brightnet.common.crypto.Sig;
+import io.brightnet.common.crypto.SignatureScheme;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.openjdk.jmh.annotations.*;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.security.*;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the crypto operations using the cached primitives with creating the primitive at each call, like it was
+ * done before. The *GetInstance methods show the costs we save.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CryptoBenchmark {
+    private byte[] data;
+    private KeyPair signatureKeyPair;
+    private byte[] signature;
+    private KeyPair ed25519KeyPair;
+    private byte[] ed25519Signature;
+    private SecretKey secretKey;
+
+    @Setup
+    public void setup() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+        data = new byte[1024];
+        new Random(1).nextBytes(data);
+        signatureKeyPair = Sig.generateKeyPair();
+        signature = Sig.sign(signatureKeyPair.getPrivate(), data);
+        ed25519KeyPair = Sig.generateKeyPair(SignatureScheme.ED25519);
+        ed25519Signature = Sig.sign(ed25519KeyPair.getPrivate(), data);
+        KeyGenerator keyGenerator = KeyGenerator.getInstance(Encryption.SYM_KEY_ALGO, "BC");
+        keyGenerator.init(256);
+        secretKey = keyGenerator.generateKey();
+    }
+
+    @Benchmark
+    public byte[] hash() {
+        return Hash.getHash(data);
+    }
+
+    @Benchmark
+    public byte[] hashGetInstance() throws Exception {
+        return MessageDigest.getInstance("SHA-256", "BC").digest(data);
+    }
+
+    @Benchmark
+    public boolean verify() throws CryptoException {
+        return Sig.verify(signatureKeyPair.getPublic(), data, signature);
+    }
+
+    @Benchmark
+    public boolean verifyGetInstance() throws Exception {
+        Signature sig = Signature.getInstance(Sig.ALGO, "BC");
+        sig.initVerify(signatureKeyPair.getPublic());
+        sig.update(data);
+        return sig.verify(signature);
+    }
+
+    @Benchmark
+    public boolean verifyEd25519() throws CryptoException {
+        return Sig.verify(ed25519KeyPair.getPublic(), data, ed25519Signature);
+    }
+
+    @Benchmark
+    public byte[] encrypt() throws CryptoException {
+        return Encryption.encrypt(data, secretKey);
+    }
+
+    @Benchmark
+    public byte[] encryptGetInstance() throws Exception {
+        Cipher cipher = Cipher.getInstance(Encryption.SYM_CIPHER, "BC");
+        cipher.init(Cipher.ENCRYPT_MODE, secretKey);
+        return cipher.doFinal(data);
+    }
+
+    @Benchmark
+    public byte[] encryptPayloadWithHmac() throws CryptoException {
+        return Encryption.encryptPayloadWithHmac(data, secretKey);
+    }
+}
@@ -26,11 +26,53 @@ import ch.qos.logback.core.rolling.RollingFileAppender;
 import ch.qos.logback.core.rolling.SizeBasedTriggeringPolicy;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Logging setup and call tracing.
+ * <p>
+ * Tracing is gated by a static flag, so a disabled trace costs a volatile read and no allocation. Call sites in hot
+ * code use a static CallSite constant and pass their arguments unformatted; the message is only built if the trace
+ * gets written. With a sample rate n > 1 only every n-th call of a call site is traced.
+ */
 public class Log {
     public static boolean PRINT_TRACE_METHOD = true;
     private static SizeBasedTriggeringPolicy triggeringPolicy;
     private static Logger logbackLogger;
 
+    private static volatile boolean traceEnabled = LoggerFactory.getLogger(Log.class).isTraceEnabled();
+    private static volatile int traceSampleRate = 1;
+    // Used for the sampling of the traceCall methods without a CallSite
+    private static final AtomicLong traceCounter = new AtomicLong();
+
+    /**
+     * Static identifier of a traced method. Create it once per method as a static final field.
+     */
+    public static final class CallSite {
+        private final org.slf4j.Logger logger;
+        private final String methodName;
+        private final AtomicLong counter = new AtomicLong();
+
+        private CallSite(Class<?> clazz, String methodName) {
+            this.logger = LoggerFactory.getLogger(clazz);
+            this.methodName = methodName;
+        }
+
+        private boolean isTraced() {
+            return logger.isTraceEnabled() && isSampled(counter);
+        }
+
+        @Override
+        public String toString() {
+            return logger.getName() + "." + methodName;
+        }
+    }
+
+    public static CallSite callSite(Class<?> clazz, String methodName) {
+        return new CallSite(clazz, methodName);
+    }
+
     public static void setup(String fileName, boolean useDetailedLogging) {
         Log.PRINT_TRACE_METHOD = useDetailedLogging;
         LoggerContext loggerContext = (LoggerContext) LoggerFactory.getILoggerFactory();
@@ -62,14 +104,60 @@ public class Log {
         appender.start();
 
         logbackLogger = loggerContext.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME);
-        //TODO for now use always trace 
-        logbackLogger.setLevel(useDetailedLogging ? Level.TRACE : Level.TRACE);
-        // logbackLogger.setLevel(useDetailedLogging ? Level.TRACE : Level.DEBUG);
+        logbackLogger.setLevel(useDetailedLogging ? Level.TRACE : Level.DEBUG);
         logbackLogger.addAppender(appender);
+        setTraceEnabled(useDetailedLogging);
+    }
+
+    // Needs to be set if the level of the loggers gets changed to or from TRACE by other means than setup
+    public static void setTraceEnabled(boolean traceEnabled) {
+        Log.traceEnabled = traceEnabled;
+    }
+
+    public static boolean isTraceEnabled() {
+        return traceEnabled;
     }
 
+    // Trace only every traceSampleRate-th call of a call site. 1 traces all calls.
+    public static void setTraceSampleRate(int traceSampleRate) {
+        if (traceSampleRate < 1)
+            throw new IllegalArgumentException("traceSampleRate must be at least 1");
+        Log.traceSampleRate = traceSampleRate;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Trace with call site
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    public static void traceCall(CallSite callSite) {
+        if (traceEnabled && callSite.isTraced())
+            callSite.logger.trace("Called: {}", callSite.methodName);
+    }
+
+    // The argument gets only converted to a string if the trace is written
+    public static void traceCall(CallSite callSite, Object arg) {
+        if (traceEnabled && callSite.isTraced())
+            callSite.logger.trace("Called: {} [{}]", callSite.methodName, arg);
+    }
+
+    public static void traceCall(CallSite callSite, String format, Object arg1, Object arg2) {
+        if (traceEnabled && callSite.isTraced())
+            callSite.logger.trace("Called: " + callSite.methodName + " [" + format + "]", arg1, arg2);
+    }
+
+    public static void traceCall(CallSite callSite, Supplier<String> messageSupplier) {
+        if (traceEnabled && callSite.isTraced())
+            callSite.logger.trace("Called: {} [{}]", callSite.methodName, messageSupplier.get());
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Trace without call site, the caller is looked up from the stack if the trace is written
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
     public static void traceCall() {
-        if (LoggerFactory.getLogger(Log.class).isTraceEnabled()) {
+        if (traceEnabled && isSampled(traceCounter)) {
             StackTraceElement stackTraceElement = new Throwable().getStackTrace()[1];
             String methodName = stackTraceElement.getMethodName();
             if (methodName.equals("<init>"))
@@ -80,7 +168,7 @@ public class Log {
     }
 
     public static void traceCall(String message) {
-        if (LoggerFactory.getLogger(Log.class).isTraceEnabled()) {
+        if (traceEnabled && isSampled(traceCounter)) {
             StackTraceElement stackTraceElement = new Throwable().getStackTrace()[1];
             String methodName = stackTraceElement.getMethodName();
             if (methodName.equals("<init>"))
@@ -89,4 +177,9 @@ public class Log {
             LoggerFactory.getLogger(className).trace("Called: {} [{}]", methodName, message);
         }
     }
+
+    private static boolean isSampled(AtomicLong counter) {
+        int sampleRate = traceSampleRate;
+        return sampleRate == 1 || counter.getAndIncrement() % sampleRate == 0;
+    }
 }
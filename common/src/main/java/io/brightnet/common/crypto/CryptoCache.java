@@ -0,0 +1,136 @@
+/*
+ * This file is part of BrightNet.
+ *
+ * BrightNet is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * BrightNet is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with BrightNet. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.brightnet.common.crypto;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.brightnet.common.ByteArray;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import java.security.*;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * The lookup of the BC provider at getInstance is expensive, so we keep one instance of each primitive per thread.
+ * The instances are not thread safe but get initialized again at every use, so they can be reused within a thread.
+ * <p>
+ * Parsed public keys are cached by their encoded bytes, as we get the same keys from our peers again and again.
+ */
+final class CryptoCache {
+    private static final int MAX_CACHED_PUBLIC_KEYS = 10_000;
+
+    private static final ThreadLocal<MessageDigest> SHA_256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256", "BC");
+        } catch (NoSuchAlgorithmException | NoSuchProviderException e) {
+            throw new RuntimeException("Could not create MessageDigest for hash. " + e.getMessage(), e);
+        }
+    });
+
+    // Keyed by algorithm or transformation
+    private static final ThreadLocal<Map<String, Signature>> SIGNATURES = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<Map<String, Cipher>> CIPHERS = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<Map<String, Mac>> MACS = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<Map<String, KeyAgreement>> KEY_AGREEMENTS = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<Map<String, KeyFactory>> KEY_FACTORIES = ThreadLocal.withInitial(HashMap::new);
+
+    private static final Cache<ByteArray, PublicKey> PUBLIC_KEYS = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHED_PUBLIC_KEYS)
+            .build();
+
+    private CryptoCache() {
+    }
+
+    // The digest is reset
+    static MessageDigest getSha256() {
+        MessageDigest digest = SHA_256.get();
+        digest.reset();
+        return digest;
+    }
+
+    // Needs to be initialized with initSign or initVerify
+    static Signature getSignature(String algorithm) throws NoSuchAlgorithmException, NoSuchProviderException {
+        Signature signature = SIGNATURES.get().get(algorithm);
+        if (signature == null) {
+            signature = Signature.getInstance(algorithm, "BC");
+            SIGNATURES.get().put(algorithm, signature);
+        }
+        return signature;
+    }
+
+    // Needs to be initialized with init
+    static Cipher getCipher(String transformation) throws GeneralSecurityException {
+        Cipher cipher = CIPHERS.get().get(transformation);
+        if (cipher == null) {
+            cipher = Cipher.getInstance(transformation, "BC");
+            CIPHERS.get().put(transformation, cipher);
+        }
+        return cipher;
+    }
+
+    // Needs to be initialized with init
+    static Mac getMac(String algorithm) throws NoSuchAlgorithmException, NoSuchProviderException {
+        Mac mac = MACS.get().get(algorithm);
+        if (mac == null) {
+            mac = Mac.getInstance(algorithm, "BC");
+            MACS.get().put(algorithm, mac);
+        }
+        return mac;
+    }
+
+    // Needs to be initialized with init
+    static KeyAgreement getKeyAgreement(String algorithm) throws NoSuchAlgorithmException, NoSuchProviderException {
+        KeyAgreement keyAgreement = KEY_AGREEMENTS.get().get(algorithm);
+        if (keyAgreement == null) {
+            keyAgreement = KeyAgreement.getInstance(algorithm, "BC");
+            KEY_AGREEMENTS.get().put(algorithm, keyAgreement);
+        }
+        return keyAgreement;
+    }
+
+    // For keys which are used only once, e.g. ephemeral keys, so they should not be kept in the cache
+    static KeyFactory getKeyFactory(String algorithm) throws NoSuchAlgorithmException, NoSuchProviderException {
+        KeyFactory keyFactory = KEY_FACTORIES.get().get(algorithm);
+        if (keyFactory == null) {
+            keyFactory = KeyFactory.getInstance(algorithm, "BC");
+            KEY_FACTORIES.get().put(algorithm, keyFactory);
+        }
+        return keyFactory;
+    }
+
+    static PublicKey getPublicKey(String algorithm, byte[] encoded) throws InvalidKeySpecException {
+        try {
+            PublicKey publicKey = PUBLIC_KEYS.get(new ByteArray(encoded), () ->
+                    KeyFactory.getInstance(algorithm, "BC").generatePublic(new X509EncodedKeySpec(encoded)));
+            // The algorithm is part of the encoding, but we don't want to return a key of another type than requested
+            if (!publicKey.getAlgorithm().equals(algorithm))
+                throw new InvalidKeySpecException("Key is of algorithm " + publicKey.getAlgorithm() + " instead of " + algorithm);
+            return publicKey;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof InvalidKeySpecException)
+                throw (InvalidKeySpecException) e.getCause();
+            throw new InvalidKeySpecException(e.getCause());
+        }
+    }
+}
@@ -17,20 +17,21 @@
 
 package io.brightnet.common.crypto;
 
+import com.google.common.base.Charsets;
 import io.brightnet.common.util.Utilities;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.generators.HKDFBytesGenerator;
+import org.bouncycastle.crypto.params.HKDFParameters;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.spongycastle.util.encoders.Hex;
 
-import javax.crypto.Cipher;
-import javax.crypto.KeyGenerator;
-import javax.crypto.Mac;
-import javax.crypto.SecretKey;
+import javax.crypto.*;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.security.*;
+import java.security.spec.X509EncodedKeySpec;
 import java.util.Arrays;
 
 // TODO: which counter modes and paddings should we use?
@@ -45,6 +46,17 @@ public class Encryption {
     public static final String SYM_CIPHER = "AES";
 
     public static final String HMAC = "HmacSHA256";
+    // Length of the hmac appended to the payload
+    private static final int HMAC_LENGTH = 32;
+
+    // Sealed box: X25519 key agreement with an ephemeral key, HKDF-SHA256 and AES-256-GCM
+    public static final String SEALED_BOX_KEY_ALGO = "X25519";
+    private static final String SEALED_BOX_CIPHER = "AES/GCM/NoPadding";
+    private static final int SEALED_BOX_KEY_LENGTH = 32;
+    private static final int GCM_NONCE_LENGTH = 12;
+    private static final int GCM_TAG_LENGTH = 128;
+    private static final byte[] SEALED_BOX_KDF_INFO = "BrightNet sealed box 1".getBytes(Charsets.UTF_8);
+    private static final SecureRandom SECURE_RANDOM = new SecureRandom();
 
     public static KeyPair generateKeyPair() {
         long ts = System.currentTimeMillis();
@@ -67,7 +79,7 @@ public class Encryption {
 
     public static byte[] encrypt(byte[] payload, SecretKey secretKey) throws CryptoException {
         try {
-            Cipher cipher = Cipher.getInstance(SYM_CIPHER, "BC");
+            Cipher cipher = CryptoCache.getCipher(SYM_CIPHER);
             cipher.init(Cipher.ENCRYPT_MODE, secretKey);
             return cipher.doFinal(payload);
         } catch (Throwable e) {
@@ -78,7 +90,7 @@ public class Encryption {
 
     public static byte[] decrypt(byte[] encryptedPayload, SecretKey secretKey) throws CryptoException {
         try {
-            Cipher cipher = Cipher.getInstance(SYM_CIPHER, "BC");
+            Cipher cipher = CryptoCache.getCipher(SYM_CIPHER);
             cipher.init(Cipher.DECRYPT_MODE, secretKey);
             return cipher.doFinal(encryptedPayload);
         } catch (Throwable e) {
@@ -91,51 +103,39 @@ public class Encryption {
     // Hmac
     ///////////////////////////////////////////////////////////////////////////////////////////
 
+    // Returns the payload with the hmac appended, written directly into the result array
     private static byte[] getPayloadWithHmac(byte[] payload, SecretKey secretKey) {
-        byte[] payloadWithHmac;
         try {
-
-            ByteArrayOutputStream outputStream = null;
-            try {
-                byte[] hmac = getHmac(payload, secretKey);
-                outputStream = new ByteArrayOutputStream();
-                outputStream.write(payload);
-                outputStream.write(hmac);
-                outputStream.flush();
-                payloadWithHmac = outputStream.toByteArray().clone();
-            } catch (IOException | NoSuchProviderException e) {
-                e.printStackTrace();
-                throw new RuntimeException("Could not create hmac");
-            } finally {
-                if (outputStream != null) {
-                    try {
-                        outputStream.close();
-                    } catch (IOException ignored) {
-                    }
-                }
-            }
+            byte[] payloadWithHmac = Arrays.copyOf(payload, payload.length + HMAC_LENGTH);
+            Mac mac = getMac(secretKey);
+            mac.update(payload);
+            mac.doFinal(payloadWithHmac, payload.length);
+            return payloadWithHmac;
         } catch (Throwable e) {
             e.printStackTrace();
             throw new RuntimeException("Could not create hmac");
         }
-        return payloadWithHmac;
     }
 
-
-    private static boolean verifyHmac(byte[] message, byte[] hmac, SecretKey secretKey) throws CryptoException {
+    // Verifies the hmac at the end of payloadWithHmac against the part before, without copying the payload.
+    // The comparison takes constant time so it does not leak how many bytes match.
+    private static boolean verifyHmac(byte[] payloadWithHmac, SecretKey secretKey) {
         try {
-            byte[] hmacTest = getHmac(message, secretKey);
-            return Arrays.equals(hmacTest, hmac);
+            int payloadLength = payloadWithHmac.length - HMAC_LENGTH;
+            Mac mac = getMac(secretKey);
+            mac.update(payloadWithHmac, 0, payloadLength);
+            byte[] hmacTest = mac.doFinal();
+            return MessageDigest.isEqual(hmacTest, Arrays.copyOfRange(payloadWithHmac, payloadLength, payloadWithHmac.length));
         } catch (Throwable e) {
             e.printStackTrace();
             throw new RuntimeException("Could not create cipher");
         }
     }
 
-    private static byte[] getHmac(byte[] payload, SecretKey secretKey) throws NoSuchAlgorithmException, InvalidKeyException, NoSuchProviderException {
-        Mac mac = Mac.getInstance(HMAC, "BC");
+    private static Mac getMac(SecretKey secretKey) throws NoSuchAlgorithmException, InvalidKeyException, NoSuchProviderException {
+        Mac mac = CryptoCache.getMac(HMAC);
         mac.init(secretKey);
-        return mac.doFinal(payload);
+        return mac;
     }
 
 
@@ -152,19 +152,18 @@ public class Encryption {
     }
 
     public static byte[] decryptPayloadWithHmac(byte[] encryptedPayloadWithHmac, SecretKey secretKey) throws CryptoException {
+        byte[] payloadWithHmac = decryptAndVerifyHmac(encryptedPayloadWithHmac, secretKey);
+        return Arrays.copyOf(payloadWithHmac, payloadWithHmac.length - HMAC_LENGTH);
+    }
+
+    // Returns the decrypted payload with the verified hmac still appended, so the caller can read the payload in place
+    private static byte[] decryptAndVerifyHmac(byte[] encryptedPayloadWithHmac, SecretKey secretKey) throws CryptoException {
+        // first part is raw message, last 32 bytes is hmac
         byte[] payloadWithHmac = decrypt(encryptedPayloadWithHmac, secretKey);
-        String payloadWithHmacAsHex = Hex.toHexString(payloadWithHmac);
-        // first part is raw message
-        int length = payloadWithHmacAsHex.length();
-        int sep = length - 64;
-        String payloadAsHex = payloadWithHmacAsHex.substring(0, sep);
-        // last 64 bytes is hmac
-        String hmacAsHex = payloadWithHmacAsHex.substring(sep, length);
-        if (verifyHmac(Hex.decode(payloadAsHex), Hex.decode(hmacAsHex), secretKey)) {
-            return Hex.decode(payloadAsHex);
-        } else {
+        if (payloadWithHmac.length < HMAC_LENGTH || !verifyHmac(payloadWithHmac, secretKey))
             throw new CryptoException("Hmac does not match.");
-        }
+
+        return payloadWithHmac;
     }
 
 
@@ -174,7 +173,7 @@ public class Encryption {
 
     public static byte[] encrypt(byte[] payload, PublicKey publicKey) throws CryptoException {
         try {
-            Cipher cipher = Cipher.getInstance(ASYM_CIPHER, "BC");
+            Cipher cipher = CryptoCache.getCipher(ASYM_CIPHER);
             cipher.init(Cipher.ENCRYPT_MODE, publicKey);
             return cipher.doFinal(payload);
         } catch (Throwable e) {
@@ -185,7 +184,7 @@ public class Encryption {
 
     public static byte[] decrypt(byte[] encryptedPayload, PrivateKey privateKey) throws CryptoException {
         try {
-            Cipher cipher = Cipher.getInstance(ASYM_CIPHER, "BC");
+            Cipher cipher = CryptoCache.getCipher(ASYM_CIPHER);
             cipher.init(Cipher.DECRYPT_MODE, privateKey);
             return cipher.doFinal(encryptedPayload);
         } catch (Throwable e) {
@@ -240,7 +239,109 @@ public class Encryption {
         if (!isValid)
             throw new CryptoException("Signature verification failed.");
 
-        Serializable decryptedPayload = Utilities.deserialize(decryptPayloadWithHmac(sealedAndSigned.encryptedPayloadWithHmac, secretKey));
+        byte[] payloadWithHmac = decryptAndVerifyHmac(sealedAndSigned.encryptedPayloadWithHmac, secretKey);
+        Serializable decryptedPayload = Utilities.deserialize(payloadWithHmac, 0, payloadWithHmac.length - HMAC_LENGTH);
+        return new DecryptedPayloadWithPubKey(decryptedPayload, sealedAndSigned.sigPublicKey);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Sealed box with signature of asymmetric key
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    public static KeyPair generateSealedBoxKeyPair() {
+        try {
+            return KeyPairGenerator.getInstance(SEALED_BOX_KEY_ALGO, "BC").generateKeyPair();
+        } catch (Throwable e) {
+            e.printStackTrace();
+            throw new RuntimeException("Could not create key.");
+        }
+    }
+
+    /**
+     * Much cheaper than encryptHybridWithSignature, but the receiver needs a version supporting
+     * SealedAndSigned.VERSION_SEALED_BOX.
+     *
+     * @param payload            The data to encrypt.
+     * @param signatureKeyPair   The key pair for signing.
+     * @param sealedBoxPublicKey The X25519 public key of the receiver.
+     * @return A SealedAndSigned object.
+     * @throws CryptoException
+     */
+    public static SealedAndSigned encryptSealedBoxWithSignature(Serializable payload, KeyPair signatureKeyPair,
+                                                                PublicKey sealedBoxPublicKey)
+            throws CryptoException {
+        // We use a new key pair for each message, so only the receiver can derive the secret key
+        KeyPair ephemeralKeyPair = generateSealedBoxKeyPair();
+        byte[] ephemeralPublicKey = ephemeralKeyPair.getPublic().getEncoded();
+        SecretKey secretKey = getSealedBoxSecretKey(ephemeralKeyPair.getPrivate(), sealedBoxPublicKey,
+                ephemeralPublicKey, sealedBoxPublicKey.getEncoded());
+
+        byte[] nonce = new byte[GCM_NONCE_LENGTH];
+        SECURE_RANDOM.nextBytes(nonce);
+        byte[] encryptedPayload;
+        try {
+            Cipher cipher = CryptoCache.getCipher(SEALED_BOX_CIPHER);
+            cipher.init(Cipher.ENCRYPT_MODE, secretKey, new GCMParameterSpec(GCM_TAG_LENGTH, nonce));
+            byte[] serializedPayload = Utilities.serialize(payload);
+            encryptedPayload = new byte[GCM_NONCE_LENGTH + cipher.getOutputSize(serializedPayload.length)];
+            System.arraycopy(nonce, 0, encryptedPayload, 0, GCM_NONCE_LENGTH);
+            cipher.doFinal(serializedPayload, 0, serializedPayload.length, encryptedPayload, GCM_NONCE_LENGTH);
+        } catch (GeneralSecurityException e) {
+            e.printStackTrace();
+            throw new CryptoException(e);
+        }
+
+        byte[] signature = Sig.sign(signatureKeyPair.getPrivate(),
+                getSealedBoxHash(ephemeralPublicKey, encryptedPayload));
+        return new SealedAndSigned(SealedAndSigned.VERSION_SEALED_BOX, ephemeralPublicKey, encryptedPayload,
+                signature, signatureKeyPair.getPublic());
+    }
+
+    /**
+     * @param sealedAndSigned  The sealedAndSigned object of version SealedAndSigned.VERSION_SEALED_BOX.
+     * @param sealedBoxKeyPair The X25519 key pair for decryption.
+     * @return A DecryptedPayloadWithPubKey object.
+     * @throws CryptoException
+     */
+    public static DecryptedPayloadWithPubKey decryptSealedBoxWithSignature(SealedAndSigned sealedAndSigned,
+                                                                         KeyPair sealedBoxKeyPair)
+            throws CryptoException {
+        if (sealedAndSigned.version != SealedAndSigned.VERSION_SEALED_BOX)
+            throw new CryptoException("Unexpected version " + sealedAndSigned.version);
+        byte[] encryptedPayload = sealedAndSigned.encryptedPayloadWithHmac;
+        if (encryptedPayload.length < GCM_NONCE_LENGTH)
+            throw new CryptoException("Encrypted payload too short.");
+
+        PublicKey ephemeralPublicKey;
+        try {
+            ephemeralPublicKey = CryptoCache.getKeyFactory(SEALED_BOX_KEY_ALGO)
+                    .generatePublic(new X509EncodedKeySpec(sealedAndSigned.encryptedSecretKey));
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            throw new CryptoException(e);
+        }
+        SecretKey secretKey = getSealedBoxSecretKey(sealedBoxKeyPair.getPrivate(), ephemeralPublicKey,
+                sealedAndSigned.encryptedSecretKey, sealedBoxKeyPair.getPublic().getEncoded());
+
+        // Fails if the message is not intended for us
+        byte[] serializedPayload;
+        try {
+            Cipher cipher = CryptoCache.getCipher(SEALED_BOX_CIPHER);
+            cipher.init(Cipher.DECRYPT_MODE, secretKey, new GCMParameterSpec(GCM_TAG_LENGTH, encryptedPayload, 0,
+                    GCM_NONCE_LENGTH));
+            serializedPayload = cipher.doFinal(encryptedPayload, GCM_NONCE_LENGTH,
+                    encryptedPayload.length - GCM_NONCE_LENGTH);
+        } catch (GeneralSecurityException e) {
+            throw new CryptoException(e);
+        }
+
+        boolean isValid = Sig.verify(sealedAndSigned.sigPublicKey,
+                getSealedBoxHash(sealedAndSigned.encryptedSecretKey, encryptedPayload),
+                sealedAndSigned.signature);
+        if (!isValid)
+            throw new CryptoException("Signature verification failed.");
+
+        Serializable decryptedPayload = Utilities.deserialize(serializedPayload);
         return new DecryptedPayloadWithPubKey(decryptedPayload, sealedAndSigned.sigPublicKey);
     }
 
@@ -249,6 +350,38 @@ public class Encryption {
     // Private
     ///////////////////////////////////////////////////////////////////////////////////////////
 
+    // Derives the AES key from the X25519 shared secret. Both public keys are used as salt to bind the key to them.
+    private static SecretKey getSealedBoxSecretKey(PrivateKey privateKey, PublicKey publicKey,
+                                                   byte[] ephemeralPublicKey, byte[] receiverPublicKey)
+            throws CryptoException {
+        try {
+            KeyAgreement keyAgreement = CryptoCache.getKeyAgreement(SEALED_BOX_KEY_ALGO);
+            keyAgreement.init(privateKey);
+            keyAgreement.doPhase(publicKey, true);
+            byte[] sharedSecret = keyAgreement.generateSecret();
+
+            byte[] salt = ByteBuffer.allocate(ephemeralPublicKey.length + receiverPublicKey.length)
+                    .put(ephemeralPublicKey)
+                    .put(receiverPublicKey)
+                    .array();
+            HKDFBytesGenerator hkdf = new HKDFBytesGenerator(new SHA256Digest());
+            hkdf.init(new HKDFParameters(sharedSecret, salt, SEALED_BOX_KDF_INFO));
+            byte[] key = new byte[SEALED_BOX_KEY_LENGTH];
+            hkdf.generateBytes(key, 0, key.length);
+            return new SecretKeySpec(key, SYM_KEY_ALGO);
+        } catch (GeneralSecurityException | IllegalStateException e) {
+            throw new CryptoException(e);
+        }
+    }
+
+    // The signature covers the ephemeral key as well, so it cannot be replaced
+    private static byte[] getSealedBoxHash(byte[] ephemeralPublicKey, byte[] encryptedPayload) {
+        return Hash.getHash(ByteBuffer.allocate(ephemeralPublicKey.length + encryptedPayload.length)
+                .put(ephemeralPublicKey)
+                .put(encryptedPayload)
+                .array());
+    }
+
     private static SecretKey getSecretKeyFromBytes(byte[] encodedKey) {
         return new SecretKeySpec(encodedKey, SYM_KEY_ALGO);
     }
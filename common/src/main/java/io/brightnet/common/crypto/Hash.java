@@ -26,8 +26,6 @@ import org.spongycastle.util.encoders.Hex;
 import java.io.Serializable;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
 
 public class Hash {
     private static final Logger log = LoggerFactory.getLogger(Hash.class);
@@ -37,13 +35,7 @@ public class Hash {
      * @return Hash of data
      */
     public static byte[] getHash(byte[] data) {
-        MessageDigest digest;
-        try {
-            digest = MessageDigest.getInstance("SHA-256", "BC");
-        } catch (NoSuchAlgorithmException | NoSuchProviderException e) {
-            log.error("Could not create MessageDigest for hash. " + e.getMessage());
-            throw new RuntimeException(e);
-        }
+        MessageDigest digest = CryptoCache.getSha256();
         digest.update(data, 0, data.length);
         return digest.digest();
     }
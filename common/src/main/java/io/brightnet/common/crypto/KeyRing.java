@@ -23,21 +23,36 @@ import java.security.KeyPair;
 public class KeyRing {
     private final KeyPair signatureKeyPair;
     private final KeyPair encryptionKeyPair;
+    private final KeyPair sealedBoxKeyPair;
     private final PubKeyRing pubKeyRing;
 
     @Inject
     public KeyRing(KeyStorage keyStorage) {
-        if (keyStorage.allKeyFilesExist()) {
+        boolean allKeyFilesExist = keyStorage.allKeyFilesExist();
+        if (allKeyFilesExist) {
             signatureKeyPair = keyStorage.loadKeyPair(KeyStorage.KeyEntry.MSG_SIGNATURE);
             encryptionKeyPair = keyStorage.loadKeyPair(KeyStorage.KeyEntry.MSG_ENCRYPTION);
         } else {
             // First time we create key pairs
             signatureKeyPair = Sig.generateKeyPair();
             encryptionKeyPair = Encryption.generateKeyPair();
-            keyStorage.saveKeyRing(this);
         }
 
-        pubKeyRing = new PubKeyRing(signatureKeyPair.getPublic(), encryptionKeyPair.getPublic());
+        // The sealed box key was added later, so we create it for existing key storages as well
+        if (allKeyFilesExist && keyStorage.fileExists(KeyStorage.KeyEntry.MSG_SEALED_BOX)) {
+            sealedBoxKeyPair = keyStorage.loadKeyPair(KeyStorage.KeyEntry.MSG_SEALED_BOX);
+        } else {
+            sealedBoxKeyPair = Encryption.generateSealedBoxKeyPair();
+            if (allKeyFilesExist)
+                keyStorage.savePrivateKey(sealedBoxKeyPair.getPrivate(),
+                        KeyStorage.KeyEntry.MSG_SEALED_BOX.getFileName());
+        }
+
+        if (!allKeyFilesExist)
+            keyStorage.saveKeyRing(this);
+
+        pubKeyRing = new PubKeyRing(signatureKeyPair.getPublic(), encryptionKeyPair.getPublic(),
+                sealedBoxKeyPair.getPublic());
     }
 
     public KeyPair getSignatureKeyPair() {
@@ -48,6 +63,10 @@ public class KeyRing {
         return encryptionKeyPair;
     }
 
+    public KeyPair getSealedBoxKeyPair() {
+        return sealedBoxKeyPair;
+    }
+
     public PubKeyRing getPubKeyRing() {
         return pubKeyRing;
     }
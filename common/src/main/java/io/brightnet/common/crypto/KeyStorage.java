@@ -18,6 +18,8 @@
 package io.brightnet.common.crypto;
 
 import com.google.inject.Inject;
+import org.bouncycastle.jcajce.interfaces.EdDSAPrivateKey;
+import org.bouncycastle.jcajce.interfaces.XDHPrivateKey;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,7 +44,8 @@ public class KeyStorage {
 
     public enum KeyEntry {
         MSG_SIGNATURE("sig", Sig.KEY_ALGO),
-        MSG_ENCRYPTION("enc", Encryption.ASYM_KEY_ALGO);
+        MSG_ENCRYPTION("enc", Encryption.ASYM_KEY_ALGO),
+        MSG_SEALED_BOX("sealedBox", Encryption.SEALED_BOX_KEY_ALGO);
 
         private final String fileName;
         private final String algorithm;
@@ -81,14 +84,14 @@ public class KeyStorage {
         return fileExists(KeyEntry.MSG_SIGNATURE) && fileExists(KeyEntry.MSG_ENCRYPTION);
     }
 
-    private boolean fileExists(KeyEntry keyEntry) {
+    public boolean fileExists(KeyEntry keyEntry) {
         return new File(storageDir + "/" + keyEntry.getFileName() + ".key").exists();
     }
 
     public KeyPair loadKeyPair(KeyEntry keyEntry) {
         // long now = System.currentTimeMillis();
         try {
-            KeyFactory keyFactory = KeyFactory.getInstance(keyEntry.getAlgorithm(), "BC");
+            KeyFactory keyFactory;
             PublicKey publicKey;
             PrivateKey privateKey;
 
@@ -97,6 +100,11 @@ public class KeyStorage {
                 byte[] encodedPrivateKey = new byte[(int) filePrivateKey.length()];
                 fis.read(encodedPrivateKey);
 
+                // The signature key can be of any SignatureScheme
+                String algorithm = keyEntry == KeyEntry.MSG_SIGNATURE ?
+                        SignatureScheme.forEncodedPrivateKey(encodedPrivateKey).keyAlgorithm :
+                        keyEntry.getAlgorithm();
+                keyFactory = KeyFactory.getInstance(algorithm, "BC");
                 PKCS8EncodedKeySpec privateKeySpec = new PKCS8EncodedKeySpec(encodedPrivateKey);
                 privateKey = keyFactory.generatePrivate(privateKeySpec);
             } catch (InvalidKeySpecException | IOException e) {
@@ -118,6 +126,10 @@ public class KeyStorage {
                 BigInteger y = g.modPow(dsaPrivateKey.getX(), p);
                 KeySpec publicKeySpec = new DSAPublicKeySpec(y, p, q, g);
                 publicKey = keyFactory.generatePublic(publicKeySpec);
+            } else if (privateKey instanceof EdDSAPrivateKey) {
+                publicKey = ((EdDSAPrivateKey) privateKey).getPublicKey();
+            } else if (privateKey instanceof XDHPrivateKey) {
+                publicKey = ((XDHPrivateKey) privateKey).getPublicKey();
             } else {
                 throw new RuntimeException("Unsupported key algo" + keyEntry.getAlgorithm());
             }
@@ -134,6 +146,7 @@ public class KeyStorage {
     public void saveKeyRing(KeyRing keyRing) {
         savePrivateKey(keyRing.getSignatureKeyPair().getPrivate(), KeyEntry.MSG_SIGNATURE.getFileName());
         savePrivateKey(keyRing.getEncryptionKeyPair().getPrivate(), KeyEntry.MSG_ENCRYPTION.getFileName());
+        savePrivateKey(keyRing.getSealedBoxKeyPair().getPrivate(), KeyEntry.MSG_SEALED_BOX.getFileName());
     }
 
     public void savePrivateKey(PrivateKey privateKey, String name) {
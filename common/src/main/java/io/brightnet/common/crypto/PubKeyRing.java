@@ -21,12 +21,10 @@ import io.brightnet.app.Version;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.Serializable;
-import java.security.KeyFactory;
-import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
 import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
@@ -43,24 +41,39 @@ public class PubKeyRing implements Serializable {
 
     private final byte[] signaturePubKeyBytes;
     private final byte[] encryptionPubKeyBytes;
+    // Null if the peer uses an older version which does not support the sealed box encryption
+    @Nullable
+    private final byte[] sealedBoxPubKeyBytes;
 
     transient private PublicKey signaturePubKey;
     transient private PublicKey encryptionPubKey;
+    @Nullable
+    transient private PublicKey sealedBoxPubKey;
 
     public PubKeyRing(PublicKey signaturePubKey, PublicKey encryptionPubKey) {
+        this(signaturePubKey, encryptionPubKey, null);
+    }
+
+    public PubKeyRing(PublicKey signaturePubKey, PublicKey encryptionPubKey, @Nullable PublicKey sealedBoxPubKey) {
         this.signaturePubKey = signaturePubKey;
         this.encryptionPubKey = encryptionPubKey;
+        this.sealedBoxPubKey = sealedBoxPubKey;
 
         this.signaturePubKeyBytes = new X509EncodedKeySpec(signaturePubKey.getEncoded()).getEncoded();
         this.encryptionPubKeyBytes = new X509EncodedKeySpec(encryptionPubKey.getEncoded()).getEncoded();
+        this.sealedBoxPubKeyBytes = sealedBoxPubKey != null ?
+                new X509EncodedKeySpec(sealedBoxPubKey.getEncoded()).getEncoded() : null;
     }
 
     private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
         try {
             in.defaultReadObject();
-            signaturePubKey = KeyFactory.getInstance(Sig.KEY_ALGO, "BC").generatePublic(new X509EncodedKeySpec(signaturePubKeyBytes));
-            encryptionPubKey = KeyFactory.getInstance(Encryption.ASYM_KEY_ALGO, "BC").generatePublic(new X509EncodedKeySpec(encryptionPubKeyBytes));
-        } catch (InvalidKeySpecException | NoSuchAlgorithmException | NoSuchProviderException e) {
+            signaturePubKey = CryptoCache.getPublicKey(
+                    SignatureScheme.forEncodedPublicKey(signaturePubKeyBytes).keyAlgorithm, signaturePubKeyBytes);
+            encryptionPubKey = CryptoCache.getPublicKey(Encryption.ASYM_KEY_ALGO, encryptionPubKeyBytes);
+            if (sealedBoxPubKeyBytes != null)
+                sealedBoxPubKey = CryptoCache.getPublicKey(Encryption.SEALED_BOX_KEY_ALGO, sealedBoxPubKeyBytes);
+        } catch (InvalidKeySpecException e) {
             e.printStackTrace();
             log.error(e.getMessage());
         } catch (Throwable t) {
@@ -76,6 +89,11 @@ public class PubKeyRing implements Serializable {
         return encryptionPubKey;
     }
 
+    @Nullable
+    public PublicKey getSealedBoxPubKey() {
+        return sealedBoxPubKey;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -27,12 +27,26 @@ public final class SealedAndSigned implements Serializable {
     // That object is sent over the wire, so we need to take care of version compatibility.
     private static final long serialVersionUID = Version.NETWORK_PROTOCOL_VERSION;
 
+    // AES key encrypted with RSA, AES payload with appended hmac. Older versions don't send the version field, so
+    // their objects get that version.
+    public static final int VERSION_RSA = 0;
+    // encryptedSecretKey holds the senders ephemeral X25519 public key, encryptedPayloadWithHmac the nonce and the
+    // AES-GCM encrypted payload including the authentication tag
+    public static final int VERSION_SEALED_BOX = 1;
+
+    public final int version;
     public final byte[] encryptedSecretKey;
     public final byte[] encryptedPayloadWithHmac;
     public final byte[] signature;
     public final PublicKey sigPublicKey;
 
     public SealedAndSigned(byte[] encryptedSecretKey, byte[] encryptedPayloadWithHmac, byte[] signature, PublicKey sigPublicKey) {
+        this(VERSION_RSA, encryptedSecretKey, encryptedPayloadWithHmac, signature, sigPublicKey);
+    }
+
+    public SealedAndSigned(int version, byte[] encryptedSecretKey, byte[] encryptedPayloadWithHmac, byte[] signature,
+                           PublicKey sigPublicKey) {
+        this.version = version;
         this.encryptedSecretKey = encryptedSecretKey;
         this.encryptedPayloadWithHmac = encryptedPayloadWithHmac;
         this.signature = signature;
@@ -46,6 +60,7 @@ public final class SealedAndSigned implements Serializable {
 
         SealedAndSigned that = (SealedAndSigned) o;
 
+        if (version != that.version) return false;
         if (!Arrays.equals(encryptedSecretKey, that.encryptedSecretKey)) return false;
         if (!Arrays.equals(encryptedPayloadWithHmac, that.encryptedPayloadWithHmac)) return false;
         if (!Arrays.equals(signature, that.signature)) return false;
@@ -55,7 +70,8 @@ public final class SealedAndSigned implements Serializable {
 
     @Override
     public int hashCode() {
-        int result = encryptedSecretKey != null ? Arrays.hashCode(encryptedSecretKey) : 0;
+        int result = version;
+        result = 31 * result + (encryptedSecretKey != null ? Arrays.hashCode(encryptedSecretKey) : 0);
         result = 31 * result + (encryptedPayloadWithHmac != null ? Arrays.hashCode(encryptedPayloadWithHmac) : 0);
         result = 31 * result + (signature != null ? Arrays.hashCode(signature) : 0);
         result = 31 * result + (sigPublicKey != null ? sigPublicKey.hashCode() : 0);
@@ -65,7 +81,8 @@ public final class SealedAndSigned implements Serializable {
     @Override
     public String toString() {
         return "SealedAndSigned{" +
-                "encryptedSecretKey.hashCode()=" + Arrays.toString(encryptedSecretKey).hashCode() +
+                "version=" + version +
+                ", encryptedSecretKey.hashCode()=" + Arrays.toString(encryptedSecretKey).hashCode() +
                 ", encryptedPayloadWithHmac.hashCode()=" + Arrays.toString(encryptedPayloadWithHmac).hashCode() +
                 ", signature.hashCode()=" + Arrays.toString(signature).hashCode() +
                 ", sigPublicKey.hashCode()=" + sigPublicKey.hashCode() +
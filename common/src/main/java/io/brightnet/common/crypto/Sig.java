@@ -24,6 +24,8 @@ import org.slf4j.LoggerFactory;
 
 import java.security.*;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+
 /**
  * StorageSignatureKeyPair/STORAGE_SIGN_KEY_ALGO: That is used for signing the data to be stored to the P2P network (by flooding).
  * The algo is selected because it originated from the TomP2P version which used DSA.
@@ -31,6 +33,9 @@ import java.security.*;
  * <p>
  * MsgSignatureKeyPair/MSG_SIGN_KEY_ALGO/MSG_SIGN_ALGO: That is used when sending a message to a peer which is encrypted and signed.
  * Changing to EC keys might be considered.
+ * <p>
+ * Sign and verify use the SignatureScheme of the given key, so Ed25519 keys can be used as well. New keys use the
+ * default scheme which is DSA as long as peers with older versions need to verify our signatures.
  */
 public class Sig {
     private static final Logger log = LoggerFactory.getLogger(Sig.class);
@@ -38,16 +43,24 @@ public class Sig {
     public static final String KEY_ALGO = "DSA";
     public static final String ALGO = "SHA256withDSA";
 
+    // Set at startup, but key pairs might get generated in other threads
+    private static volatile SignatureScheme defaultScheme = SignatureScheme.DSA;
+
+    public static void setDefaultScheme(SignatureScheme defaultScheme) {
+        Sig.defaultScheme = checkNotNull(defaultScheme, "defaultScheme must not be null");
+    }
 
     /**
      * @return keyPair
      */
     public static KeyPair generateKeyPair() {
+        return generateKeyPair(defaultScheme);
+    }
+
+    public static KeyPair generateKeyPair(SignatureScheme scheme) {
         long ts = System.currentTimeMillis();
         try {
-            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(KEY_ALGO, "BC");
-            keyPairGenerator.initialize(1024);
-            KeyPair keyPair = keyPairGenerator.genKeyPair();
+            KeyPair keyPair = scheme.generateKeyPair();
             log.trace("Generate msgSignatureKeyPair needed {} ms", System.currentTimeMillis() - ts);
             return keyPair;
         } catch (NoSuchAlgorithmException | NoSuchProviderException e) {
@@ -67,7 +80,7 @@ public class Sig {
      */
     public static byte[] sign(PrivateKey privateKey, byte[] data) throws CryptoException {
         try {
-            Signature sig = Signature.getInstance(ALGO, "BC");
+            Signature sig = CryptoCache.getSignature(SignatureScheme.forKey(privateKey).signatureAlgorithm);
             sig.initSign(privateKey);
             sig.update(data);
             return sig.sign();
@@ -99,9 +112,8 @@ public class Sig {
      * @throws SignatureException
      */
     public static boolean verify(PublicKey publicKey, byte[] data, byte[] signature) throws CryptoException {
-        byte[] sigAsBytes = new byte[0];
         try {
-            Signature sig = Signature.getInstance(ALGO, "BC");
+            Signature sig = CryptoCache.getSignature(SignatureScheme.forKey(publicKey).signatureAlgorithm);
             sig.initVerify(publicKey);
             sig.update(data);
             return sig.verify(signature);
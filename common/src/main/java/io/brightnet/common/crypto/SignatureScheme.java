@@ -0,0 +1,91 @@
+/*
+ * This file is part of BrightNet.
+ *
+ * BrightNet is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * BrightNet is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with BrightNet. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.brightnet.common.crypto;
+
+import org.bouncycastle.asn1.pkcs.PrivateKeyInfo;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+
+import java.security.*;
+import java.security.spec.InvalidKeySpecException;
+
+/**
+ * The supported signature algorithms. Keys carry their algorithm, so the verifying side selects the scheme by the key
+ * of the signer and peers using different schemes can verify each other.
+ * <p>
+ * DSA is the default for new keys as older versions can verify only DSA signatures. Ed25519 is much faster at
+ * verification and has smaller keys and signatures.
+ */
+public enum SignatureScheme {
+    DSA("DSA", "SHA256withDSA", "1.2.840.10040.4.1", 1024),
+    ED25519("Ed25519", "Ed25519", "1.3.101.112", 0);
+
+    public final String keyAlgorithm;
+    public final String signatureAlgorithm;
+    // Object identifier of the key algorithm in the X.509 and PKCS#8 encodings
+    private final String oid;
+    // 0 if the key size is given by the algorithm
+    private final int keySize;
+
+    SignatureScheme(String keyAlgorithm, String signatureAlgorithm, String oid, int keySize) {
+        this.keyAlgorithm = keyAlgorithm;
+        this.signatureAlgorithm = signatureAlgorithm;
+        this.oid = oid;
+        this.keySize = keySize;
+    }
+
+    public KeyPair generateKeyPair() throws NoSuchAlgorithmException, NoSuchProviderException {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(keyAlgorithm, "BC");
+        if (keySize > 0)
+            keyPairGenerator.initialize(keySize);
+        return keyPairGenerator.genKeyPair();
+    }
+
+    public static SignatureScheme forKey(Key key) throws CryptoException {
+        for (SignatureScheme scheme : values()) {
+            if (scheme.keyAlgorithm.equalsIgnoreCase(key.getAlgorithm()))
+                return scheme;
+        }
+        throw new CryptoException("Unsupported signature key algorithm " + key.getAlgorithm());
+    }
+
+    // encodedPublicKey is X.509 encoded
+    public static SignatureScheme forEncodedPublicKey(byte[] encodedPublicKey) throws InvalidKeySpecException {
+        try {
+            return forOid(SubjectPublicKeyInfo.getInstance(encodedPublicKey).getAlgorithm().getAlgorithm().getId());
+        } catch (IllegalArgumentException e) {
+            throw new InvalidKeySpecException(e);
+        }
+    }
+
+    // encodedPrivateKey is PKCS#8 encoded
+    public static SignatureScheme forEncodedPrivateKey(byte[] encodedPrivateKey) throws InvalidKeySpecException {
+        try {
+            return forOid(PrivateKeyInfo.getInstance(encodedPrivateKey).getPrivateKeyAlgorithm().getAlgorithm().getId());
+        } catch (IllegalArgumentException e) {
+            throw new InvalidKeySpecException(e);
+        }
+    }
+
+    private static SignatureScheme forOid(String oid) throws InvalidKeySpecException {
+        for (SignatureScheme scheme : values()) {
+            if (scheme.oid.equals(oid))
+                return scheme;
+        }
+        throw new InvalidKeySpecException("Unsupported signature key algorithm " + oid);
+    }
+}
@@ -24,6 +24,7 @@ import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import javafx.scene.input.Clipboard;
 import javafx.scene.input.ClipboardContent;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -66,6 +67,28 @@ public class Utilities {
         return executor;
     }
 
+    /**
+     * Executor which starts a new virtual thread for each task. Virtual threads need Java 21, as we compile for
+     * Java 8 we look them up by reflection.
+     *
+     * @return null if the JVM does not support virtual threads
+     */
+    @Nullable
+    public static ListeningExecutorService getVirtualThreadExecutorService(String name) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+            ThreadFactory threadFactory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            ExecutorService executorService = (ExecutorService) Executors.class
+                    .getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, threadFactory);
+            return MoreExecutors.listeningDecorator(executorService);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.debug("Virtual threads are not supported. " + e.toString());
+            return null;
+        }
+    }
 
     public static ScheduledThreadPoolExecutor getScheduledThreadPoolExecutor(String name,
                                                                              int corePoolSize,
@@ -214,7 +237,12 @@ public class Utilities {
     }*/
 
     public static <T extends Serializable> T deserialize(byte[] data) {
-        ByteArrayInputStream bis = new ByteArrayInputStream(data);
+        return deserialize(data, 0, data.length);
+    }
+
+    // Deserializes from a part of the array without copying it
+    public static <T extends Serializable> T deserialize(byte[] data, int offset, int length) {
+        ByteArrayInputStream bis = new ByteArrayInputStream(data, offset, length);
         ObjectInput in = null;
         Object result = null;
         try {
@@ -35,6 +35,7 @@
 package io.brightnet.storage;
 
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.io.Files;
 import io.brightnet.common.UserThread;
 import io.brightnet.common.util.Utilities;
@@ -42,13 +43,19 @@ import org.bitcoinj.core.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.*;
 import java.nio.file.Paths;
 import java.util.Random;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 /**
  * Borrowed from BitcoinJ WalletFiles
@@ -59,6 +66,9 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 public class FileManager<T> {
     private static final Logger log = LoggerFactory.getLogger(FileManager.class);
+    // Max. time in ms we wait for UserThread to take the snapshot
+    @VisibleForTesting
+    static long SNAPSHOT_TIMEOUT = 5000;
 
     private final File dir;
     private final File storageFile;
@@ -66,7 +76,14 @@ public class FileManager<T> {
     private final AtomicBoolean savePending;
     private final long delay;
     private final Callable<Void> saveFileTask;
-    private T serializable;
+    private volatile T serializable;
+    @Nullable
+    private volatile Supplier<T> snapshotSupplier;
+
+    // Metrics
+    private final AtomicLong numSaves = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private volatile long lastSaveDuration;
 
 
     ///////////////////////////////////////////////////////////////////////////////////////////
@@ -90,7 +107,16 @@ public class FileManager<T> {
                 // Some other scheduled request already beat us to it.
                 return null;
             }
-            saveNowInternal(serializable);
+            Supplier<T> supplier = snapshotSupplier;
+            if (supplier != null) {
+                // The snapshot is taken in UserThread, where the state gets changed. We wait for it, so the save is
+                // done in our thread and shutDown waits for it as well.
+                T snapshot = takeSnapshot(supplier);
+                if (snapshot != null)
+                    saveNowInternal(snapshot);
+            } else {
+                saveNowInternal(serializable);
+            }
             return null;
         };
 
@@ -127,12 +153,40 @@ public class FileManager<T> {
 
     public void saveLater(T serializable, long delayInMilli) {
         this.serializable = serializable;
+        this.snapshotSupplier = null;
 
         if (savePending.getAndSet(true))
             return;   // Already pending.
         executor.schedule(saveFileTask, delayInMilli, TimeUnit.MILLISECONDS);
     }
 
+    /**
+     * Queues up a save of a snapshot in the background. The snapshotSupplier is called in UserThread when the save is
+     * due, so many changes cost only one copy. It has to return an object which does not get changed anymore, so
+     * the serialization cannot race with the changes of the caller. The save thread waits for the snapshot, so a
+     * save which is running at shutDown gets completed.
+     */
+    public void saveSnapshotLater(Supplier<T> snapshotSupplier, long delayInMilli) {
+        this.snapshotSupplier = snapshotSupplier;
+
+        if (savePending.getAndSet(true))
+            return;   // Already pending.
+        executor.schedule(saveFileTask, delayInMilli, TimeUnit.MILLISECONDS);
+    }
+
+    public long getNumSaves() {
+        return numSaves.get();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    // Duration in ms of the last save including the fsync
+    public long getLastSaveDuration() {
+        return lastSaveDuration;
+    }
+
     public synchronized T read(File file) {
         log.debug("read" + file);
         try (final FileInputStream fileInputStream = new FileInputStream(file);
@@ -199,13 +253,50 @@ public class FileManager<T> {
     // Private
     ///////////////////////////////////////////////////////////////////////////////////////////
 
+    // Runs the supplier in UserThread and waits for the result. Returns null if UserThread did not run it in time,
+    // e.g. because it is busy, blocked in shutDown or not running anymore at the JVM shutdown. In that case the save
+    // is scheduled again, so the latest state gets written once UserThread takes the snapshot.
+    @Nullable
+    private T takeSnapshot(Supplier<T> supplier) {
+        CompletableFuture<T> snapshot = new CompletableFuture<>();
+        UserThread.execute(() -> {
+            // We gave up waiting, the next save takes a new snapshot
+            if (snapshot.isDone())
+                return;
+            try {
+                snapshot.complete(supplier.get());
+            } catch (Throwable t) {
+                snapshot.completeExceptionally(t);
+            }
+        });
+        try {
+            return snapshot.get(SNAPSHOT_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.error("Taking the snapshot of " + storageFile + " failed. " + e.toString());
+        } catch (TimeoutException e) {
+            snapshot.cancel(false);
+            log.warn("UserThread did not take the snapshot of {} within {} ms. We try to save it again later.",
+                    storageFile, SNAPSHOT_TIMEOUT);
+            if (!executor.isShutdown() && !savePending.getAndSet(true))
+                executor.schedule(saveFileTask, delay, TimeUnit.MILLISECONDS);
+        }
+        return null;
+    }
+
     private void saveNowInternal(T serializable) {
         long now = System.currentTimeMillis();
-        saveToFile(serializable, dir, storageFile);
-        UserThread.execute(() -> log.trace("Save {} completed in {}msec", storageFile, System.currentTimeMillis() - now));
+        long size = saveToFile(serializable, dir, storageFile);
+        long duration = System.currentTimeMillis() - now;
+        lastSaveDuration = duration;
+        numSaves.incrementAndGet();
+        bytesWritten.addAndGet(size);
+        UserThread.execute(() -> log.trace("Save {} completed in {}msec, {} bytes written", storageFile, duration, size));
     }
 
-    private synchronized void saveToFile(T serializable, File dir, File storageFile) {
+    // Returns the number of bytes written
+    private synchronized long saveToFile(T serializable, File dir, File storageFile) {
         File tempFile = null;
         FileOutputStream fileOutputStream = null;
         ObjectOutputStream objectOutputStream = null;
@@ -222,7 +313,8 @@ public class FileManager<T> {
             fileOutputStream = new FileOutputStream(tempFile);
             objectOutputStream = new ObjectOutputStream(fileOutputStream);
 
-            // TODO ConcurrentModificationException happens sometimes at that line
+            // Use saveSnapshotLater for objects which get changed while we save, otherwise we can get a
+            // ConcurrentModificationException here
             objectOutputStream.writeObject(serializable);
             // Attempt to force the bits to hit the disk. In reality the OS or hard disk itself may still decide
             // to not write through to physical media for at least a few seconds, but this is the best we can do.
@@ -234,7 +326,9 @@ public class FileManager<T> {
             fileOutputStream.close();
             objectOutputStream.close();
 
+            long size = tempFile.length();
             renameTempFileToFile(tempFile, storageFile);
+            return size;
         } catch (Throwable t) {
             log.debug("storageFile " + storageFile.toString());
             t.printStackTrace();
@@ -257,6 +351,7 @@ public class FileManager<T> {
                 log.error("Cannot close resources." + e.getMessage());
             }
         }
+        return 0;
     }
 
     private synchronized void renameTempFileToFile(File tempFile, File file) throws IOException {
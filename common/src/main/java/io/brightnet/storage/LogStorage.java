@@ -0,0 +1,383 @@
+/*
+ * This file is part of BrightNet.
+ *
+ * BrightNet is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * BrightNet is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with BrightNet. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.brightnet.storage;
+
+import io.brightnet.common.ByteArray;
+import io.brightnet.common.util.Utilities;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * Persists a map as an append-only log of put and remove records. In contrast to Storage a change writes only the
+ * changed entry and not the whole object.
+ * <p>
+ * Each record is written as [length][crc32][type][key length][key][value], key and value are Java serialized.
+ * Records get serialized in the calling thread, so the caller can keep changing its map without any
+ * synchronisation. They are written delayed and in batches on a background thread followed by a fsync.
+ * <p>
+ * At startup the log is replayed. A record with a wrong checksum or an incomplete record at the end (e.g. from a
+ * crash while writing) ends the replay and the log is truncated at that position.
+ * <p>
+ * If a write fails the log is truncated to the end of the last complete record and the records get written again
+ * later, so a failed write does not hide the records after it from the replay.
+ * <p>
+ * If the log holds much more records than entries it gets compacted: the current entries are written to a temp file
+ * which replaces the log by an atomic move.
+ */
+public class LogStorage<K extends Serializable, V extends Serializable> {
+    private static final Logger log = LoggerFactory.getLogger(LogStorage.class);
+
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    // crc, type, key length
+    private static final int MIN_RECORD_LENGTH = 4 + 1 + 4;
+    // Max. size of a single record, larger lengths can only come from a corrupted file
+    private static final int MAX_RECORD_SIZE = 10 * 1024 * 1024;
+    // We compact if the log has more records than COMPACTION_FACTOR * entries and at least MIN_RECORDS_FOR_COMPACTION
+    private static final int COMPACTION_FACTOR = 4;
+    private static final int MIN_RECORDS_FOR_COMPACTION = 1000;
+    // Min. delay in ms until we write again after a failed write
+    private static final long RETRY_DELAY = 1000;
+
+    private final File dir;
+    private File logFile;
+    private long delay = 1000;
+    private ScheduledThreadPoolExecutor executor;
+    private final ConcurrentLinkedQueue<byte[]> pendingRecords = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean writePending = new AtomicBoolean();
+    // False if the log could not be opened, then changes are not persisted
+    private volatile boolean open;
+
+    // Only accessed from the executor thread after init
+    private FileChannel fileChannel;
+    // Serialized state of the entries, used for the compaction so we don't need to access the map of the caller
+    private final Map<ByteArray, byte[]> entries = new HashMap<>();
+    private long numRecords;
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Constructor
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    @Inject
+    public LogStorage(@Named(Storage.DIR_KEY) File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Replays the log and opens it for appending.
+     *
+     * @return The persisted entries, empty if there is no log yet.
+     */
+    public Map<K, V> initAndGetPersisted(String fileName) {
+        logFile = new File(dir, fileName);
+        executor = Utilities.getScheduledThreadPoolExecutor("LogStorage-" + fileName, 1, 1, 5);
+        Map<K, V> map = new HashMap<>();
+        try {
+            if (!dir.exists() && !dir.mkdirs())
+                log.warn("make dir failed");
+
+            long ts = System.currentTimeMillis();
+            long validLength = replay(map);
+            fileChannel = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            if (validLength < fileChannel.size()) {
+                log.warn("Log {} has a corrupted or incomplete record at position {}. We truncate the log at that " +
+                        "position.", logFile, validLength);
+                fileChannel.truncate(validLength);
+            }
+            fileChannel.position(validLength);
+            open = true;
+            log.info("Replayed {} records with {} entries of {} in {} ms", numRecords, map.size(), logFile,
+                    System.currentTimeMillis() - ts);
+        } catch (IOException e) {
+            e.printStackTrace();
+            log.error("Could not open log " + logFile + ". Changes will not be persisted. " + e.getMessage());
+        }
+        return map;
+    }
+
+    // Delay in ms for the background write, changes within that time get written together
+    public void setDelay(long delay) {
+        this.delay = delay;
+    }
+
+    public void put(K key, V value) {
+        byte[] keyBytes = Utilities.serialize(key);
+        byte[] valueBytes = Utilities.serialize(value);
+        queueUp(createRecord(PUT, keyBytes, valueBytes));
+    }
+
+    public void remove(K key) {
+        queueUp(createRecord(REMOVE, Utilities.serialize(key), new byte[0]));
+    }
+
+    // Writes the pending records and blocks until they are on disk
+    public void flush() {
+        if (executor != null && !executor.isShutdown()) {
+            try {
+                executor.submit(this::writePendingRecords).get();
+            } catch (Exception e) {
+                log.error("Flush of " + logFile + " failed. " + e.getMessage());
+            }
+        }
+    }
+
+    // Must be called at shutdown (we don't register a shutdown hook), otherwise the pending records get lost
+    public synchronized void shutDown() {
+        if (executor != null && !executor.isShutdown()) {
+            flush();
+            executor.shutdown();
+            try {
+                executor.awaitTermination(5, TimeUnit.SECONDS);
+                if (fileChannel != null)
+                    fileChannel.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                log.error("Could not close " + logFile + ". " + e.getMessage());
+            }
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    // Synchronized with shutDown, so no record gets queued after the last flush
+    private synchronized void queueUp(byte[] record) {
+        if (executor == null)
+            throw new IllegalStateException("initAndGetPersisted must be called before changing the log.");
+
+        if (executor.isShutdown()) {
+            log.warn("Log {} is shut down already. The change does not get persisted.", logFile);
+            return;
+        }
+        // The error got logged when opening failed
+        if (!open)
+            return;
+
+        pendingRecords.add(record);
+        scheduleWrite(delay);
+    }
+
+    private void scheduleWrite(long delay) {
+        if (!writePending.getAndSet(true) && !executor.isShutdown())
+            executor.schedule(this::writePendingRecords, delay, TimeUnit.MILLISECONDS);
+    }
+
+    // Runs in executor thread
+    private void writePendingRecords() {
+        writePending.set(false);
+        if (fileChannel == null) {
+            // Records which got queued before we failed to open the log again
+            pendingRecords.clear();
+            return;
+        }
+        if (pendingRecords.isEmpty())
+            return;
+
+        try {
+            byte[] record;
+            // We remove the record only after it got written completely
+            while ((record = pendingRecords.peek()) != null) {
+                writeRecord(record);
+                pendingRecords.poll();
+                apply(record);
+            }
+            fileChannel.force(false);
+
+            if (numRecords >= MIN_RECORDS_FOR_COMPACTION && numRecords > COMPACTION_FACTOR * entries.size())
+                compact();
+        } catch (IOException e) {
+            e.printStackTrace();
+            log.error("Writing to " + logFile + " failed. We try again later. " + e.getMessage());
+            if (fileChannel != null && !pendingRecords.isEmpty())
+                scheduleWrite(Math.max(delay, RETRY_DELAY));
+        }
+    }
+
+    // Writes the record completely or truncates the log to the position before it
+    private void writeRecord(byte[] record) throws IOException {
+        long position = fileChannel.position();
+        try {
+            write(fileChannel, ByteBuffer.wrap(record));
+        } catch (IOException e) {
+            fileChannel.truncate(position);
+            fileChannel.position(position);
+            throw e;
+        }
+    }
+
+    // Package private for tests which simulate a failed write
+    void write(FileChannel fileChannel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            fileChannel.write(buffer);
+    }
+
+    // Writes the current entries to a new log which replaces the old one
+    private void compact() throws IOException {
+        long ts = System.currentTimeMillis();
+        long oldNumRecords = numRecords;
+        // A temp file of an earlier failed compaction gets replaced
+        File tempFile = new File(dir, logFile.getName() + ".compact");
+        try (FileOutputStream fileOutputStream = new FileOutputStream(tempFile);
+             BufferedOutputStream outputStream = new BufferedOutputStream(fileOutputStream)) {
+            for (Map.Entry<ByteArray, byte[]> entry : entries.entrySet())
+                outputStream.write(createRecord(PUT, entry.getKey().bytes, entry.getValue()));
+            outputStream.flush();
+            fileOutputStream.getFD().sync();
+        } catch (IOException e) {
+            if (!tempFile.delete())
+                log.error("Cannot delete temp file.");
+            throw e;
+        }
+
+        // If the move fails the old log is untouched and we keep appending to it. We keep the temp file as well.
+        fileChannel.close();
+        fileChannel = null;
+        try {
+            Files.move(tempFile.toPath(), logFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            try {
+                fileChannel = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                open = false;
+                log.error("Could not open log " + logFile + " again. Changes will not be persisted. " +
+                        e.getMessage());
+            }
+        }
+        numRecords = entries.size();
+        log.info("Compacted {} from {} to {} records in {} ms", logFile, oldNumRecords, numRecords,
+                System.currentTimeMillis() - ts);
+    }
+
+    // Returns the length of the valid part of the log
+    private long replay(Map<K, V> map) throws IOException {
+        if (!logFile.exists())
+            return 0;
+
+        long validLength = 0;
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)))) {
+            while (true) {
+                int length;
+                try {
+                    length = inputStream.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length < MIN_RECORD_LENGTH || length > MAX_RECORD_SIZE)
+                    break;
+
+                byte[] record = new byte[4 + length];
+                ByteBuffer.wrap(record).putInt(length);
+                try {
+                    inputStream.readFully(record, 4, length);
+                } catch (EOFException e) {
+                    break;
+                }
+                if (!isChecksumValid(record))
+                    break;
+
+                validLength += record.length;
+                ByteArray keyBytes = apply(record);
+                // Utilities.deserialize returns null if the class is not compatible anymore, we skip such records
+                K key = Utilities.deserialize(keyBytes.bytes);
+                if (key == null) {
+                    log.warn("Skipped a record of {} with a key which cannot be deserialized.", logFile);
+                    entries.remove(keyBytes);
+                    continue;
+                }
+                byte[] valueBytes = entries.get(keyBytes);
+                if (valueBytes == null) {
+                    map.remove(key);
+                    continue;
+                }
+                V value = Utilities.deserialize(valueBytes);
+                if (value != null) {
+                    map.put(key, value);
+                } else {
+                    log.warn("Skipped a record of {} with a value which cannot be deserialized.", logFile);
+                    map.remove(key);
+                    entries.remove(keyBytes);
+                }
+            }
+        }
+        return validLength;
+    }
+
+    // Updates the serialized entries and returns the key of the record
+    private ByteArray apply(byte[] record) {
+        ByteBuffer buffer = ByteBuffer.wrap(record, 8, record.length - 8);
+        byte type = buffer.get();
+        byte[] keyBytes = new byte[buffer.getInt()];
+        buffer.get(keyBytes);
+        ByteArray key = new ByteArray(keyBytes);
+        if (type == PUT) {
+            byte[] valueBytes = new byte[buffer.remaining()];
+            buffer.get(valueBytes);
+            entries.put(key, valueBytes);
+        } else {
+            entries.remove(key);
+        }
+        numRecords++;
+        return key;
+    }
+
+    private static byte[] createRecord(byte type, byte[] keyBytes, byte[] valueBytes) {
+        int length = 4 + 1 + 4 + keyBytes.length + valueBytes.length;
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+        buffer.putInt(length);
+        buffer.putInt(0);
+        buffer.put(type);
+        buffer.putInt(keyBytes.length);
+        buffer.put(keyBytes);
+        buffer.put(valueBytes);
+        byte[] record = buffer.array();
+        ByteBuffer.wrap(record).putInt(4, getChecksum(record));
+        return record;
+    }
+
+    private static boolean isChecksumValid(byte[] record) {
+        return ByteBuffer.wrap(record).getInt(4) == getChecksum(record);
+    }
+
+    // CRC32 over type, key length, key and value
+    private static int getChecksum(byte[] record) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(record, 8, record.length - 8);
+        return (int) crc32.getValue();
+    }
+}
@@ -27,6 +27,7 @@ import javax.inject.Named;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.function.Supplier;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -46,6 +47,8 @@ import static com.google.common.base.Preconditions.checkNotNull;
  * As the data are small and it is just one read access the performance penalty is small and might be even worse to create and setup a thread for it.
  * <p>
  * The write operation used a background thread and supports a delayed write to avoid too many repeated write operations.
+ * Objects which get changed while the save is pending should be saved with queueUpSnapshotForSave, so the background
+ * thread serializes a copy which is not changed anymore.
  */
 public class Storage<T extends Serializable> {
     private static final Logger log = LoggerFactory.getLogger(Storage.class);
@@ -132,6 +135,25 @@ public class Storage<T extends Serializable> {
         }
     }
 
+    // Save a snapshot delayed and on a background thread. The snapshotSupplier gets called in UserThread.
+    public void queueUpSnapshotForSave(Supplier<T> snapshotSupplier, long delayInMilli) {
+        log.trace("save " + fileName);
+        checkNotNull(storageFile, "storageFile = null. Call setupFileStorage before using read/write.");
+
+        fileManager.saveSnapshotLater(snapshotSupplier, delayInMilli);
+    }
+
+    public long getNumSaves() {
+        return fileManager != null ? fileManager.getNumSaves() : 0;
+    }
+
+    public long getBytesWritten() {
+        return fileManager != null ? fileManager.getBytesWritten() : 0;
+    }
+
+    public long getLastSaveDuration() {
+        return fileManager != null ? fileManager.getLastSaveDuration() : 0;
+    }
 
     public void remove(String fileName) {
         fileManager.removeFile(fileName);
@@ -0,0 +1,103 @@
+package io.brightnet.storage;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import io.brightnet.common.UserThread;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class FileManagerTest {
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private ExecutorService userThread;
+
+    @Before
+    public void setup() {
+        userThread = Executors.newSingleThreadExecutor();
+        UserThread.setExecutor(userThread);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        userThread.shutdownNow();
+        userThread.awaitTermination(1, TimeUnit.SECONDS);
+        UserThread.setExecutor(MoreExecutors.directExecutor());
+        FileManager.SNAPSHOT_TIMEOUT = 5000;
+    }
+
+    @Test
+    public void testShutDownWaitsForSnapshotSave() throws Exception {
+        File dir = tempFolder.newFolder();
+        File storageFile = new File(dir, "list");
+        FileManager<ArrayList<String>> fileManager = new FileManager<>(dir, storageFile, 0);
+        ArrayList<String> list = new ArrayList<>();
+        list.add("a");
+        CountDownLatch snapshotStarted = new CountDownLatch(1);
+        fileManager.saveSnapshotLater(() -> {
+            snapshotStarted.countDown();
+            // A slow copy in UserThread
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new ArrayList<>(list);
+        }, 0);
+
+        assertTrue(snapshotStarted.await(1, TimeUnit.SECONDS));
+        fileManager.shutDown();
+
+        assertEquals(1, fileManager.getNumSaves());
+        assertEquals(list, fileManager.read(storageFile));
+    }
+
+    // A busy UserThread must not make us drop the save
+    @Test
+    public void testSaveIsRetriedIfSnapshotTimesOut() throws Exception {
+        FileManager.SNAPSHOT_TIMEOUT = 100;
+        File dir = tempFolder.newFolder();
+        File storageFile = new File(dir, "list");
+        FileManager<ArrayList<String>> fileManager = new FileManager<>(dir, storageFile, 0);
+        ArrayList<String> list = new ArrayList<>();
+        list.add("a");
+        CountDownLatch releaseUserThread = new CountDownLatch(1);
+        UserThread.execute(() -> {
+            try {
+                releaseUserThread.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        AtomicInteger numSnapshots = new AtomicInteger();
+        fileManager.saveSnapshotLater(() -> {
+            numSnapshots.incrementAndGet();
+            return new ArrayList<>(list);
+        }, 0);
+
+        Thread.sleep(300);
+        assertEquals(0, fileManager.getNumSaves());
+        releaseUserThread.countDown();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (fileManager.getNumSaves() == 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        fileManager.shutDown();
+        assertEquals(1, fileManager.getNumSaves());
+        // The snapshots we gave up waiting for are not taken anymore
+        assertEquals(1, numSnapshots.get());
+        assertEquals(list, fileManager.read(storageFile));
+    }
+}
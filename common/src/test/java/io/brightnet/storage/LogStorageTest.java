@@ -0,0 +1,243 @@
+package io.brightnet.storage;
+
+import io.brightnet.common.util.Utilities;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+public class LogStorageTest {
+    private static final String FILE_NAME = "test.log";
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private File dir;
+    private final List<LogStorage<String, Integer>> storages = new ArrayList<>();
+
+    @Before
+    public void setup() throws IOException {
+        dir = tempFolder.newFolder();
+    }
+
+    @After
+    public void tearDown() {
+        storages.stream().forEach(LogStorage::shutDown);
+    }
+
+    @Test
+    public void testReplay() {
+        LogStorage<String, Integer> storage = createStorage();
+        assertTrue(storage.initAndGetPersisted(FILE_NAME).isEmpty());
+        storage.put("a", 1);
+        storage.put("b", 2);
+        storage.put("a", 3);
+        storage.remove("b");
+        storage.put("c", 4);
+        storage.shutDown();
+
+        Map<String, Integer> persisted = createStorage().initAndGetPersisted(FILE_NAME);
+        assertEquals(2, persisted.size());
+        assertEquals(Integer.valueOf(3), persisted.get("a"));
+        assertEquals(Integer.valueOf(4), persisted.get("c"));
+    }
+
+    @Test
+    public void testTruncatesIncompleteRecord() throws IOException {
+        LogStorage<String, Integer> storage = createStorage();
+        storage.initAndGetPersisted(FILE_NAME);
+        storage.put("a", 1);
+        storage.shutDown();
+        File logFile = new File(dir, FILE_NAME);
+        long validLength = logFile.length();
+
+        // A crash while writing the next record
+        try (RandomAccessFile file = new RandomAccessFile(logFile, "rw")) {
+            file.seek(validLength);
+            file.writeInt(100);
+            file.write(new byte[10]);
+        }
+
+        storage = createStorage();
+        Map<String, Integer> persisted = storage.initAndGetPersisted(FILE_NAME);
+        assertEquals(1, persisted.size());
+        assertEquals(validLength, logFile.length());
+
+        // We append after the valid part
+        storage.put("b", 2);
+        storage.shutDown();
+        persisted = createStorage().initAndGetPersisted(FILE_NAME);
+        assertEquals(2, persisted.size());
+        assertEquals(Integer.valueOf(2), persisted.get("b"));
+    }
+
+    @Test
+    public void testTruncatesRecordWithWrongChecksum() throws IOException {
+        LogStorage<String, Integer> storage = createStorage();
+        storage.initAndGetPersisted(FILE_NAME);
+        storage.put("a", 1);
+        storage.flush();
+        File logFile = new File(dir, FILE_NAME);
+        long validLength = logFile.length();
+        storage.put("b", 2);
+        storage.put("c", 3);
+        storage.shutDown();
+
+        // Corrupt the last byte of the record of "b", "c" gets dropped as well
+        try (RandomAccessFile file = new RandomAccessFile(logFile, "rw")) {
+            file.seek(validLength);
+            int length = file.readInt();
+            file.seek(validLength + 4 + length - 1);
+            int lastByte = file.read();
+            file.seek(validLength + 4 + length - 1);
+            file.write(lastByte ^ 0xff);
+        }
+
+        Map<String, Integer> persisted = createStorage().initAndGetPersisted(FILE_NAME);
+        assertEquals(1, persisted.size());
+        assertEquals(Integer.valueOf(1), persisted.get("a"));
+        assertEquals(validLength, logFile.length());
+    }
+
+    @Test
+    public void testSkipsRecordsWhichCannotBeDeserialized() throws IOException {
+        LogStorage<String, Integer> storage = createStorage();
+        storage.initAndGetPersisted(FILE_NAME);
+        storage.put("a", 1);
+        storage.shutDown();
+
+        // A valid record, but the value is no serialized object (e.g. an incompatible class)
+        File logFile = new File(dir, FILE_NAME);
+        try (RandomAccessFile file = new RandomAccessFile(logFile, "rw")) {
+            file.seek(file.length());
+            file.write(createPutRecord(Utilities.serialize("b"), new byte[]{1, 2, 3}));
+        }
+
+        storage = createStorage();
+        Map<String, Integer> persisted = storage.initAndGetPersisted(FILE_NAME);
+        assertEquals(1, persisted.size());
+        assertFalse(persisted.containsKey("b"));
+        assertFalse(persisted.containsValue(null));
+
+        // Records after the skipped one are still valid
+        storage.put("c", 3);
+        storage.shutDown();
+        persisted = createStorage().initAndGetPersisted(FILE_NAME);
+        assertEquals(2, persisted.size());
+        assertEquals(Integer.valueOf(3), persisted.get("c"));
+    }
+
+    @Test
+    public void testCompaction() {
+        LogStorage<String, Integer> storage = createStorage();
+        storage.initAndGetPersisted(FILE_NAME);
+        storage.put("a", 0);
+        storage.flush();
+        File logFile = new File(dir, FILE_NAME);
+        long singleRecordLength = logFile.length();
+
+        for (int i = 1; i < 1000; i++)
+            storage.put("b", i);
+        storage.flush();
+        // Only the records of the current entries are left
+        assertTrue(logFile.length() < 3 * singleRecordLength);
+        assertEquals(1, dir.listFiles().length);
+
+        // The compacted log is still used for appending
+        storage.remove("a");
+        storage.shutDown();
+        Map<String, Integer> persisted = createStorage().initAndGetPersisted(FILE_NAME);
+        assertEquals(1, persisted.size());
+        assertEquals(Integer.valueOf(999), persisted.get("b"));
+    }
+
+    // A write which fails in the middle of a record must not hide the later records from the replay
+    @Test
+    public void testFailedWriteIsTruncatedAndRetried() {
+        AtomicBoolean failNextWrite = new AtomicBoolean();
+        LogStorage<String, Integer> storage = new LogStorage<String, Integer>(dir) {
+            @Override
+            void write(FileChannel fileChannel, ByteBuffer buffer) throws IOException {
+                if (failNextWrite.getAndSet(false)) {
+                    buffer.limit(buffer.limit() / 2);
+                    super.write(fileChannel, buffer);
+                    throw new IOException("Simulated failure");
+                }
+                super.write(fileChannel, buffer);
+            }
+        };
+        storage.setDelay(60 * 1000);
+        storages.add(storage);
+        storage.initAndGetPersisted(FILE_NAME);
+        storage.put("a", 1);
+        storage.flush();
+        File logFile = new File(dir, FILE_NAME);
+        long validLength = logFile.length();
+
+        failNextWrite.set(true);
+        storage.put("b", 2);
+        storage.flush();
+        assertEquals(validLength, logFile.length());
+
+        storage.put("c", 3);
+        storage.shutDown();
+        Map<String, Integer> persisted = createStorage().initAndGetPersisted(FILE_NAME);
+        assertEquals(3, persisted.size());
+        assertEquals(Integer.valueOf(2), persisted.get("b"));
+        assertEquals(Integer.valueOf(3), persisted.get("c"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testPutBeforeInit() {
+        createStorage().put("a", 1);
+    }
+
+    @Test
+    public void testPutAfterShutDown() {
+        LogStorage<String, Integer> storage = createStorage();
+        storage.initAndGetPersisted(FILE_NAME);
+        storage.put("a", 1);
+        storage.shutDown();
+        storage.put("b", 2);
+
+        Map<String, Integer> persisted = createStorage().initAndGetPersisted(FILE_NAME);
+        assertEquals(1, persisted.size());
+    }
+
+    private LogStorage<String, Integer> createStorage() {
+        LogStorage<String, Integer> storage = new LogStorage<>(dir);
+        storage.setDelay(0);
+        storages.add(storage);
+        return storage;
+    }
+
+    // [length][crc32][type][key length][key][value], see LogStorage
+    private static byte[] createPutRecord(byte[] keyBytes, byte[] valueBytes) {
+        int length = 4 + 1 + 4 + keyBytes.length + valueBytes.length;
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+        buffer.putInt(length);
+        buffer.putInt(0);
+        buffer.put((byte) 1);
+        buffer.putInt(keyBytes.length);
+        buffer.put(keyBytes);
+        buffer.put(valueBytes);
+        CRC32 crc32 = new CRC32();
+        crc32.update(buffer.array(), 8, length - 4);
+        buffer.putInt(4, (int) crc32.getValue());
+        return buffer.array();
+    }
+}
@@ -1,6 +1,7 @@
 package com.runjva.sourceforge.jsocks.main;
 
 import com.runjva.sourceforge.jsocks.protocol.InetRange;
+import com.runjva.sourceforge.jsocks.protocol.NioProxyServer;
 import com.runjva.sourceforge.jsocks.protocol.ProxyServer;
 import com.runjva.sourceforge.jsocks.protocol.SocksProxyBase;
 import com.runjva.sourceforge.jsocks.server.IdentAuthenticator;
@@ -32,6 +33,7 @@ public class SOCKS {
         int port = DEFAULT_LISTENING_PORT;
         String logFile = null;
         String host = null;
+        boolean nio = false;
 
         final IdentAuthenticator auth = new IdentAuthenticator();
 
@@ -76,6 +78,7 @@ public class SOCKS {
                 serverInit(pr);
                 logFile = (String) pr.get("log");
                 host = (String) pr.get("host");
+                nio = readInt(pr, "nio") == 1;
             }
 
             // inform("Props:"+pr);
@@ -94,8 +97,14 @@ public class SOCKS {
         }
 
         inform("Using Ident Authentication scheme: " + auth);
-        final ProxyServer server = new ProxyServer(auth);
-        server.start(port, 5, localIP);
+        if (nio) {
+            inform("Using NIO event loop");
+            final NioProxyServer server = new NioProxyServer(auth);
+            server.start(port, 5, localIP);
+        } else {
+            final ProxyServer server = new ProxyServer(auth);
+            server.start(port, 5, localIP);
+        }
     }
 
     static Properties loadProperties(String file_name) {
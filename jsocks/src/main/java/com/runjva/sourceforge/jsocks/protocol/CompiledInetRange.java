@@ -0,0 +1,225 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.*;
+
+/**
+ * Immutable lookup structure for the entries of an InetRange.
+ * <p>
+ * IPv4 and IPv6 ranges are merged into sorted, non overlapping intervals which
+ * are searched binary. Host endings (.myhost.com) are stored in a trie of the
+ * reversed labels (com, myhost), so a lookup only walks the labels of the host
+ * instead of comparing with every ending. Host names are kept in a set.
+ * <p>
+ * InetRange builds a new instance on each change, so lookups need no lock.
+ */
+final class CompiledInetRange {
+
+    static final CompiledInetRange EMPTY = new CompiledInetRange(
+            new ArrayList<Object[]>(), new ArrayList<String>(),
+            new HashSet<String>());
+
+    private final boolean empty;
+    private final Set<String> hostNames;
+    private final LabelNode endings = new LabelNode();
+
+    // Merged IPv4 intervals, starts are sorted ascending
+    private final long[] v4Starts;
+    private final long[] v4Ends;
+
+    // Merged IPv6 intervals, each address is split in a high and low part
+    // which are compared unsigned
+    private final long[] v6StartsHi, v6StartsLo;
+    private final long[] v6EndsHi, v6EndsLo;
+
+    /**
+     * @param entries   Entries as stored in InetRange: {name, ip, from, to}.
+     *                  from and to are either Longs for IPv4 or InetAddresses
+     *                  for IPv6, or null if not resolved (yet).
+     * @param endNames  Host endings like .myhost.com
+     * @param hostNames Host names which are in the range
+     */
+    CompiledInetRange(final Collection<Object[]> entries,
+                      final Collection<String> endNames,
+                      final Set<String> hostNames) {
+        this.empty = entries.isEmpty();
+        this.hostNames = new HashSet<String>(hostNames);
+        for (final String ending : endNames) {
+            addEnding(ending);
+        }
+
+        final List<long[]> v4 = new ArrayList<long[]>();
+        final List<long[]> v6 = new ArrayList<long[]>();
+        for (final Object[] entry : entries) {
+            final Object from = entry[2];
+            final Object to = entry[3];
+            if (from instanceof Long && to instanceof Long) {
+                v4.add(new long[]{(Long) from, (Long) to});
+            } else if (from instanceof Inet6Address && to instanceof Inet6Address) {
+                final long[] f = split((InetAddress) from);
+                final long[] t = split((InetAddress) to);
+                v6.add(new long[]{f[0], f[1], t[0], t[1]});
+            }
+        }
+
+        // IPv4 values are unsigned ints, so a signed compare is fine
+        Collections.sort(v4, (o1, o2) -> Long.compare(o1[0], o2[0]));
+        final List<long[]> mergedV4 = new ArrayList<long[]>();
+        for (final long[] interval : v4) {
+            final long[] last = mergedV4.isEmpty() ? null : mergedV4.get(mergedV4.size() - 1);
+            if (last != null && interval[0] <= last[1] + 1) {
+                last[1] = Math.max(last[1], interval[1]);
+            } else {
+                mergedV4.add(new long[]{interval[0], interval[1]});
+            }
+        }
+        v4Starts = new long[mergedV4.size()];
+        v4Ends = new long[mergedV4.size()];
+        for (int i = 0; i < mergedV4.size(); i++) {
+            v4Starts[i] = mergedV4.get(i)[0];
+            v4Ends[i] = mergedV4.get(i)[1];
+        }
+
+        Collections.sort(v6, (o1, o2) -> compare(o1[0], o1[1], o2[0], o2[1]));
+        final List<long[]> mergedV6 = new ArrayList<long[]>();
+        for (final long[] interval : v6) {
+            final long[] last = mergedV6.isEmpty() ? null : mergedV6.get(mergedV6.size() - 1);
+            if (last != null && compare(interval[0], interval[1], last[2], last[3]) <= 0) {
+                if (compare(interval[2], interval[3], last[2], last[3]) > 0) {
+                    last[2] = interval[2];
+                    last[3] = interval[3];
+                }
+            } else {
+                mergedV6.add(interval.clone());
+            }
+        }
+        final int n = mergedV6.size();
+        v6StartsHi = new long[n];
+        v6StartsLo = new long[n];
+        v6EndsHi = new long[n];
+        v6EndsLo = new long[n];
+        for (int i = 0; i < n; i++) {
+            final long[] interval = mergedV6.get(i);
+            v6StartsHi[i] = interval[0];
+            v6StartsLo[i] = interval[1];
+            v6EndsHi[i] = interval[2];
+            v6EndsLo[i] = interval[3];
+        }
+    }
+
+    boolean isEmpty() {
+        return empty;
+    }
+
+    boolean containsHost(final String host) {
+        return hostNames.contains(host);
+    }
+
+    /**
+     * Same as host.endsWith(ending) for any of the endings.
+     */
+    boolean containsHostEnding(final String host) {
+        LabelNode node = endings;
+        int end = host.length();
+        while (end >= 0) {
+            final int dot = host.lastIndexOf('.', end - 1);
+            if (dot < 0) {
+                // First label of the host, an ending needs a dot before it
+                return false;
+            }
+            node = node.children.get(host.substring(dot + 1, end));
+            if (node == null) {
+                return false;
+            }
+            if (node.isEnding) {
+                return true;
+            }
+            end = dot;
+        }
+        return false;
+    }
+
+    boolean contains(final long ipv4) {
+        final int index = floorIndex(ipv4);
+        return index >= 0 && ipv4 <= v4Ends[index];
+    }
+
+    boolean contains(final InetAddress ip) {
+        if (ip instanceof Inet6Address) {
+            final long[] address = split(ip);
+            final int index = floorIndexV6(address[0], address[1]);
+            return index >= 0
+                    && compare(address[0], address[1], v6EndsHi[index], v6EndsLo[index]) <= 0;
+        }
+        return contains(InetRange.ip2long(ip));
+    }
+
+    // Private methods
+    // ///////////////
+
+    private void addEnding(final String ending) {
+        // .myhost.com -> com, myhost
+        final String[] labels = ending.split("\\.", -1);
+        LabelNode node = endings;
+        for (int i = labels.length - 1; i >= 1; i--) {
+            LabelNode child = node.children.get(labels[i]);
+            if (child == null) {
+                child = new LabelNode();
+                node.children.put(labels[i], child);
+            }
+            node = child;
+        }
+        node.isEnding = true;
+    }
+
+    // Index of the last interval starting at or before ip, -1 if none
+    private int floorIndex(final long ip) {
+        int low = 0;
+        int high = v4Starts.length - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (v4Starts[mid] <= ip) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    private int floorIndexV6(final long hi, final long lo) {
+        int low = 0;
+        int high = v6StartsHi.length - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (compare(v6StartsHi[mid], v6StartsLo[mid], hi, lo) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    private static int compare(final long hi1, final long lo1,
+                               final long hi2, final long lo2) {
+        final int result = Long.compareUnsigned(hi1, hi2);
+        return result != 0 ? result : Long.compareUnsigned(lo1, lo2);
+    }
+
+    private static long[] split(final InetAddress ip) {
+        final byte[] addr = ip.getAddress();
+        long hi = 0, lo = 0;
+        for (int i = 0; i < 8; i++) {
+            hi = (hi << 8) | (addr[i] & 0xFF);
+            lo = (lo << 8) | (addr[i + 8] & 0xFF);
+        }
+        return new long[]{hi, lo};
+    }
+
+    private static final class LabelNode {
+        final Map<String, LabelNode> children = new HashMap<String, LabelNode>();
+        boolean isEnding;
+    }
+}
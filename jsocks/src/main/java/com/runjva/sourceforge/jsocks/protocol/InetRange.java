@@ -17,6 +17,9 @@ import java.util.Vector;
  * someones local network). It also provides methods for checking wether given
  * address is in this range. Any number of ranges and standalone addresses can
  * be added to the range.
+ * <p>
+ * Lookups don't lock. They use an immutable CompiledInetRange which is rebuilt
+ * whenever the range changes or a host name of an entry got resolved.
  */
 public class InetRange implements Cloneable {
 
@@ -26,6 +29,8 @@ public class InetRange implements Cloneable {
 
     boolean useSeparateThread = true;
 
+    volatile CompiledInetRange compiled = CompiledInetRange.EMPTY;
+
     /**
      * Creates the empty range.
      */
@@ -110,6 +115,7 @@ public class InetRange implements Cloneable {
 
         }
 
+        compile();
         return true;
     }
 
@@ -119,10 +125,9 @@ public class InetRange implements Cloneable {
      * @param ip IP os the host which should be added to this range.
      */
     public synchronized void add(final InetAddress ip) {
-        long from, to;
-        from = to = ip2long(ip);
-        all.addElement(new Object[]{ip.getHostName(), ip, new Long(from),
-                new Long(to)});
+        final Object address = toRangeValue(ip);
+        all.addElement(new Object[]{ip.getHostName(), ip, address, address});
+        compile();
     }
 
     /**
@@ -136,7 +141,8 @@ public class InetRange implements Cloneable {
     public synchronized void add(final InetAddress from, final InetAddress to) {
         all.addElement(new Object[]{
                 from.getHostAddress() + ":" + to.getHostAddress(), null,
-                new Long(ip2long(from)), new Long(ip2long(to))});
+                toRangeValue(from), toRangeValue(to)});
+        compile();
     }
 
     /**
@@ -147,7 +153,7 @@ public class InetRange implements Cloneable {
      * @return true If host is in the range, false otherwise.
      * @see InetRange#contains(String, boolean)
      */
-    public synchronized boolean contains(final String host) {
+    public boolean contains(final String host) {
         return contains(host, true);
     }
 
@@ -173,9 +179,9 @@ public class InetRange implements Cloneable {
      *                       required.
      * @return true If host is in the range, false otherwise.
      */
-    public synchronized boolean contains(final String host0,
-                                         final boolean attemptResolve) {
-        if (all.size() == 0) {
+    public boolean contains(final String host0, final boolean attemptResolve) {
+        final CompiledInetRange compiled = this.compiled;
+        if (compiled.isEmpty()) {
             return false; // Empty range
         }
 
@@ -184,16 +190,16 @@ public class InetRange implements Cloneable {
             return false;
         }
 
-        if (checkHost(host)) {
+        if (compiled.containsHost(host)) {
             return true;
         }
-        if (checkHostEnding(host)) {
+        if (compiled.containsHostEnding(host)) {
             return true;
         }
 
         final long l = host2long(host);
         if (l >= 0) {
-            return contains(l);
+            return compiled.contains(l);
         }
 
         if (!attemptResolve) {
@@ -216,14 +222,15 @@ public class InetRange implements Cloneable {
      * @param ip Address of the host to check.
      * @return true If host is in the range, false otherwise.
      */
-    public synchronized boolean contains(final InetAddress ip) {
-        if (checkHostEnding(ip.getHostName())) {
-            return true;
-        }
-        if (checkHost(ip.getHostName())) {
+    public boolean contains(final InetAddress ip) {
+        final CompiledInetRange compiled = this.compiled;
+        // The address is checked first as getHostName might do a reverse lookup
+        if (compiled.contains(ip)) {
             return true;
         }
-        return contains(ip2long(ip));
+        final String hostName = ip.getHostName();
+        return compiled.containsHostEnding(hostName)
+                || compiled.containsHost(hostName);
     }
 
     /**
@@ -260,6 +267,7 @@ public class InetRange implements Cloneable {
                 all.removeElement(entry);
                 end_names.removeElement(s);
                 host_names.remove(s);
+                compile();
                 return true;
             }
         }
@@ -283,15 +291,34 @@ public class InetRange implements Cloneable {
     }
 
     /**
-     * Creates a clone of this Object
+     * Creates a clone of this Object. The entries are copied, entries which
+     * are not resolved yet get resolved again for the clone.
      */
 
     @SuppressWarnings("unchecked")
-    public Object clone() {
+    public synchronized Object clone() {
         final InetRange new_range = new InetRange();
-        new_range.all = (Vector<Object[]>) all.clone();
+        new_range.useSeparateThread = useSeparateThread;
         new_range.end_names = (Vector<String>) end_names.clone();
-        new_range.host_names = (Hashtable<String, Object[]>) host_names.clone();
+        final Vector<Object[]> pending = new Vector<Object[]>();
+        final Enumeration<Object[]> enumx = all.elements();
+        while (enumx.hasMoreElements()) {
+            final Object[] entry = enumx.nextElement();
+            final Object[] copy = entry.clone();
+            new_range.all.addElement(copy);
+            if (host_names.get(entry[0]) == entry) {
+                new_range.host_names.put((String) copy[0], copy);
+            }
+            // A resolver of this range might still be running, it only
+            // recompiles this range. to is set last.
+            if (copy[3] == null && !((String) copy[0]).startsWith(".")) {
+                pending.addElement(copy);
+            }
+        }
+        new_range.compile();
+        for (final Object[] entry : pending) {
+            new_range.resolvePending(entry);
+        }
         return new_range;
     }
 
@@ -299,36 +326,20 @@ public class InetRange implements Cloneable {
     // ///////////////
 
     /**
-     * Same as previous but used internally, to avoid unnecessary convertion of
-     * IPs, when checking subranges
+     * Rebuilds the lookup structure, called after each change of the entries.
      */
-    private synchronized boolean contains(final long ip) {
-        final Enumeration<Object[]> enumx = all.elements();
-        while (enumx.hasMoreElements()) {
-            final Object[] obj = enumx.nextElement();
-            final Long from = obj[2] == null ? null : (Long) obj[2];
-            final Long to = obj[3] == null ? null : (Long) obj[3];
-            if ((from != null) && (from.longValue() <= ip)
-                    && (to.longValue() >= ip)) {
-                return true;
-            }
-
-        }
-        return false;
+    synchronized void compile() {
+        compiled = new CompiledInetRange(all, end_names, host_names.keySet());
     }
 
-    private boolean checkHost(final String host) {
-        return host_names.containsKey(host);
-    }
-
-    private boolean checkHostEnding(final String host) {
-        final Enumeration<String> enumx = end_names.elements();
-        while (enumx.hasMoreElements()) {
-            if (host.endsWith(enumx.nextElement())) {
-                return true;
-            }
+    private void resolvePending(final Object[] entry) {
+        final StringTokenizer tokens = new StringTokenizer((String) entry[0],
+                " \t\r\n\f:");
+        if (tokens.countTokens() > 1) {
+            resolve(entry, tokens.nextToken(), tokens.nextToken());
+        } else {
+            resolve(entry);
         }
-        return false;
     }
 
     private void resolve(final Object[] entry) {
@@ -337,7 +348,7 @@ public class InetRange implements Cloneable {
         if (ip >= 0) {
             entry[2] = entry[3] = new Long(ip);
         } else {
-            final InetRangeResolver res = new InetRangeResolver(entry);
+            final InetRangeResolver res = new InetRangeResolver(this, entry);
             res.resolve(useSeparateThread);
         }
     }
@@ -349,7 +360,8 @@ public class InetRange implements Cloneable {
             entry[2] = new Long(f);
             entry[3] = new Long(t);
         } else {
-            final InetRangeResolver res = new InetRangeResolver(entry, from, to);
+            final InetRangeResolver res = new InetRangeResolver(this, entry, from,
+                    to);
             res.resolve(useSeparateThread);
         }
     }
@@ -357,6 +369,11 @@ public class InetRange implements Cloneable {
     // Class methods
     // /////////////
 
+    // IPv4 ranges are stored as Long, IPv6 ranges as the address itself
+    static Object toRangeValue(final InetAddress ip) {
+        return ip.getAddress().length == 4 ? (Object) new Long(ip2long(ip)) : ip;
+    }
+
     // Converts ipv4 to long value(unsigned int)
     // /////////////////////////////////////////
     static long ip2long(final InetAddress ip) {
@@ -435,18 +452,22 @@ public class InetRange implements Cloneable {
 
 class InetRangeResolver implements Runnable {
 
+    InetRange range;
     Object[] entry;
 
     String from;
     String to;
 
-    InetRangeResolver(final Object[] entry) {
+    InetRangeResolver(final InetRange range, final Object[] entry) {
+        this.range = range;
         this.entry = entry;
         from = null;
         to = null;
     }
 
-    InetRangeResolver(final Object[] entry, final String from, final String to) {
+    InetRangeResolver(final InetRange range, final Object[] entry,
+                      final String from, final String to) {
+        this.range = range;
         this.entry = entry;
         this.from = from;
         this.to = to;
@@ -471,16 +492,17 @@ class InetRangeResolver implements Runnable {
             if (from == null) {
                 final InetAddress ip = InetAddress.getByName((String) entry[0]);
                 entry[1] = ip;
-                final Long l = new Long(InetRange.ip2long(ip));
-                entry[2] = l;
-                entry[3] = l;
+                final Object address = InetRange.toRangeValue(ip);
+                entry[2] = address;
+                entry[3] = address;
             } else {
                 final InetAddress f = InetAddress.getByName(from);
                 final InetAddress t = InetAddress.getByName(to);
-                entry[2] = new Long(InetRange.ip2long(f));
-                entry[3] = new Long(InetRange.ip2long(t));
+                entry[2] = InetRange.toRangeValue(f);
+                entry[3] = InetRange.toRangeValue(t);
 
             }
+            range.compile();
         } catch (final UnknownHostException uhe) {
             // System.err.println("Resolve failed for "+from+','+to+','+entry[0]);
         }
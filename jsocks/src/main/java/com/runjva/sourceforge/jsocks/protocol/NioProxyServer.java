@@ -0,0 +1,694 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import com.runjva.sourceforge.jsocks.server.ServerAuthenticator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * SOCKS4 and SOCKS5 proxy like ProxyServer, but relays the data of all
+ * connections in a single selector thread instead of two threads per
+ * connection.
+ * <p>
+ * Authentication and the request are read with the blocking streams of the
+ * ServerAuthenticator in handshake threads, which are reused but not bounded
+ * in number, so slow clients or pending BIND requests don't hold up new
+ * sessions. Once the request is handled the channels are switched to
+ * non-blocking mode and handed to the event loop. The connect to the remote host of a CONNECT request is done in
+ * the event loop as well, so are the datagrams of UDP associations (see
+ * NioUDPRelay). Data is relayed through pooled direct buffers, a
+ * buffer is only held by a connection while the receiving side can't take all
+ * of the data.
+ * <p>
+ * Uses the timeouts set in ProxyServer. If a proxy is set with
+ * ProxyServer.setProxy the connections are handled by ProxyServer, as chained
+ * proxies only work on streams.
+ *
+ * @see ProxyServer
+ */
+public class NioProxyServer {
+
+    static Logger log = LoggerFactory.getLogger(NioProxyServer.class);
+
+    static int maxPooledBuffers = 256;
+
+    ServerAuthenticator auth;
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private ExecutorService handshakeExecutor;
+    private volatile boolean stopped;
+
+    // Tasks from the handshake threads and host lookups which need to run in
+    // the event loop
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    // Only accessed from the event loop
+    private final Set<Session> sessions = new HashSet<Session>();
+    private final Deque<ByteBuffer> bufferPool = new ArrayDeque<ByteBuffer>();
+    // Shared by all UDP associations, a datagram is relayed before the next
+    // one is received
+    private ByteBuffer datagramBuffer;
+
+    // Public Constructors
+    // ///////////////////
+
+    /**
+     * Creates a proxy server with given Authentication scheme.
+     *
+     * @param auth Authentication scheme to be used.
+     */
+    public NioProxyServer(final ServerAuthenticator auth) {
+        this.auth = auth;
+    }
+
+    // Public methods
+    // ///////////////
+
+    /**
+     * Sets how many free relay buffers are kept for reuse. Buffers above that
+     * number are allocated when needed and dropped afterwards.<br>
+     * Default is 256.
+     */
+    public static void setMaxPooledBuffers(final int maxBuffers) {
+        maxPooledBuffers = maxBuffers;
+    }
+
+    /**
+     * Start the Proxy server at given port.<br>
+     * This methods blocks.
+     */
+    public void start(final int port) {
+        start(port, 5, null);
+    }
+
+    /**
+     * Create a server with the specified port, listen backlog, and local IP
+     * address to bind to. If localIP is null, it will default accepting
+     * connections on any/all local addresses.<br>
+     * This methods blocks, it runs the event loop until stop is called.
+     */
+    public void start(final int port, final int backlog,
+                      final InetAddress localIP) {
+        try {
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().bind(new InetSocketAddress(localIP, port),
+                    backlog);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            datagramBuffer = ByteBuffer.allocate(NioUDPRelay.RESERVED
+                    + UDPRelayServer.datagramSize);
+
+            // Like ProxyServer one thread per handshake, a handshake blocks
+            // until the client sent its request or a BIND got its connection
+            handshakeExecutor = Executors.newCachedThreadPool(r -> {
+                        final Thread thread = new Thread(r, "NioProxyServer-handshake");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+
+            final ServerSocket ss = serverChannel.socket();
+            log.info("Starting SOCKS Proxy (NIO) on: {}:{}",
+                    ss.getInetAddress().getHostAddress(), ss.getLocalPort());
+
+            runEventLoop();
+        } catch (final IOException ioe) {
+            ioe.printStackTrace();
+        } finally {
+            shutDown();
+        }
+    }
+
+    /**
+     * Stop server operation. Closes all connections.
+     */
+    public void stop() {
+        stopped = true;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    // Event loop
+    // ///////////
+
+    private void runEventLoop() throws IOException {
+        long lastTimeoutCheck = System.currentTimeMillis();
+        while (!stopped) {
+            selector.select(1000);
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+
+            final Iterator<SelectionKey> iterator = selector.selectedKeys()
+                    .iterator();
+            while (iterator.hasNext()) {
+                final SelectionKey key = iterator.next();
+                iterator.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept();
+                } else {
+                    final Session session = (Session) key.attachment();
+                    try {
+                        session.handle(key);
+                    } catch (final IOException ioe) {
+                        log.debug("Relay stopped: {}", ioe.toString());
+                        closeSession(session);
+                    } catch (final RuntimeException e) {
+                        log.warn("Relay failed", e);
+                        closeSession(session);
+                    }
+                }
+            }
+
+            final long now = System.currentTimeMillis();
+            if (now - lastTimeoutCheck >= 1000) {
+                lastTimeoutCheck = now;
+                closeTimedOutSessions(now);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel client;
+        while ((client = serverChannel.accept()) != null) {
+            final Socket s = client.socket();
+            log.debug("Accepted from:{}:{}", s.getInetAddress(), s.getPort());
+
+            if (ProxyServer.proxy != null) {
+                new Thread(new ProxyServer(auth, s)).start();
+            } else {
+                final SocketChannel channel = client;
+                handshakeExecutor.execute(() -> handshake(channel));
+            }
+        }
+    }
+
+    private void execute(final Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    private void closeTimedOutSessions(final long now) {
+        final List<Session> timedOut = new ArrayList<Session>();
+        for (final Session session : sessions) {
+            if (!session.client.isOpen()) {
+                // UDP relay server closes the control connection on timeout
+                timedOut.add(session);
+            } else if (session.udpRelay != null) {
+                if (UDPRelayServer.iddleTimeout != 0
+                        && now - session.udpRelay.lastActivity >= UDPRelayServer.iddleTimeout) {
+                    log.debug("UDP timeout for {}", session.client.socket());
+                    timedOut.add(session);
+                }
+            } else if (ProxyServer.iddleTimeout != 0
+                    && session.relayServer == null
+                    && now - session.lastActivity >= ProxyServer.iddleTimeout) {
+                log.debug("Iddle timeout for {}", session.client.socket());
+                timedOut.add(session);
+            }
+        }
+        for (final Session session : timedOut) {
+            closeSession(session);
+        }
+    }
+
+    private void closeSession(final Session session) {
+        sessions.remove(session);
+        if (session.toRemote != null) {
+            releaseBuffer(session.toRemote.pending);
+            session.toRemote.pending = null;
+        }
+        if (session.toClient != null) {
+            releaseBuffer(session.toClient.pending);
+            session.toClient.pending = null;
+        }
+        session.close();
+    }
+
+    private void shutDown() {
+        stopped = true;
+        if (handshakeExecutor != null) {
+            handshakeExecutor.shutdownNow();
+        }
+        for (final Session session : new ArrayList<Session>(sessions)) {
+            closeSession(session);
+        }
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+            if (selector != null) {
+                selector.close();
+            }
+        } catch (final IOException ioe) {
+        }
+        log.info("SOCKS Proxy (NIO) stopped");
+    }
+
+    private ByteBuffer borrowBuffer() {
+        final ByteBuffer buffer = bufferPool.poll();
+        return buffer != null ? buffer : ByteBuffer
+                .allocateDirect(ProxyServer.BUF_SIZE);
+    }
+
+    private void releaseBuffer(final ByteBuffer buffer) {
+        // Wrapped reply messages are not pooled
+        if (buffer != null && buffer.isDirect()
+                && bufferPool.size() < maxPooledBuffers) {
+            buffer.clear();
+            bufferPool.push(buffer);
+        }
+    }
+
+    // Handshake, runs in handshake threads
+    // /////////////////////////////////////
+
+    private void handshake(final SocketChannel client) {
+        final Session session = new Session(client);
+        try {
+            final Socket sock = client.socket();
+            sock.setSoTimeout(ProxyServer.iddleTimeout);
+
+            try {
+                session.auth = auth.startSession(sock);
+            } catch (final IOException | RuntimeException e) {
+                log.warn("Auth throwed exception:", e);
+                session.close();
+                return;
+            }
+            if (session.auth == null) {
+                log.info("Authentication failed");
+                session.close();
+                return;
+            }
+
+            session.out = session.auth.getOutputStream();
+            final ProxyMessage msg = ProxyServer.readMsg(session.auth
+                    .getInputStream());
+            session.msg = msg;
+
+            if (!session.auth.checkRequest(msg)) {
+                throw new SocksException(SocksProxyBase.SOCKS_FAILURE);
+            }
+            if (msg.ip == null) {
+                if (msg instanceof Socks5Message) {
+                    msg.ip = InetAddress.getByName(msg.host);
+                } else {
+                    throw new SocksException(SocksProxyBase.SOCKS_FAILURE);
+                }
+            }
+            ProxyServer.log(msg);
+
+            switch (msg.command) {
+                case SocksProxyBase.SOCKS_CMD_CONNECT:
+                    onConnect(session);
+                    break;
+                case SocksProxyBase.SOCKS_CMD_BIND:
+                    onBind(session);
+                    break;
+                case SocksProxyBase.SOCKS_CMD_UDP_ASSOCIATE:
+                    onUDP(session);
+                    break;
+                default:
+                    throw new SocksException(
+                            SocksProxyBase.SOCKS_CMD_NOT_SUPPORTED);
+            }
+        } catch (final IOException ioe) {
+            if (session.msg != null && client.isBlocking()) {
+                try {
+                    ProxyServer.createErrorMessage(session.msg,
+                            ProxyServer.getErrorCode(ioe)).write(session.out);
+                } catch (final IOException e) {
+                }
+            }
+            session.close();
+        } catch (final RuntimeException e) {
+            log.warn("Handshake failed", e);
+            session.close();
+        }
+    }
+
+    private void onConnect(final Session session) throws IOException {
+        final ProxyMessage msg = session.msg;
+        final SocketChannel remote = SocketChannel.open();
+        session.remote = remote;
+        remote.configureBlocking(false);
+        final boolean connected = remote.connect(new InetSocketAddress(msg.ip,
+                msg.port));
+        session.client.configureBlocking(false);
+
+        execute(() -> {
+            if (stopped) {
+                session.close();
+                return;
+            }
+            try {
+                session.register(connected ? 0 : SelectionKey.OP_CONNECT);
+                if (connected) {
+                    session.onConnected();
+                }
+            } catch (final IOException | RuntimeException e) {
+                closeSession(session);
+            }
+        });
+    }
+
+    private void onBind(final Session session) throws IOException {
+        final ProxyMessage msg = session.msg;
+        session.bindChannel = ServerSocketChannel.open();
+        final ServerSocket ss = session.bindChannel.socket();
+        ss.bind(new InetSocketAddress(0));
+        ss.setSoTimeout(ProxyServer.acceptTimeout);
+
+        // A channel listens on the IPv6 wildcard, which SOCKS4 can't carry and
+        // clients can't connect to. We reply with the address the client
+        // reached us on.
+        final InetAddress inetAddress = ss.getInetAddress().isAnyLocalAddress()
+                ? session.client.socket().getLocalAddress()
+                : ss.getInetAddress();
+        final int localPort = ss.getLocalPort();
+        log.info("Trying accept on {}:{}", inetAddress, localPort);
+        createSuccessMessage(msg, inetAddress, localPort).write(session.out);
+
+        final long startTime = System.currentTimeMillis();
+        Socket s;
+        while (true) {
+            s = ss.accept();
+            if (s.getInetAddress().equals(msg.ip)) {
+                // got the connection from the right host
+                ss.close();
+                break;
+            }
+            if (ProxyServer.acceptTimeout != 0) {
+                final long passed = System.currentTimeMillis() - startTime;
+                final int newTimeout = ProxyServer.acceptTimeout - (int) passed;
+                if (newTimeout <= 0) {
+                    s.close();
+                    throw new InterruptedIOException("newTimeout <= 0");
+                }
+                ss.setSoTimeout(newTimeout);
+            }
+            s.close(); // Drop all connections from other hosts
+        }
+
+        session.remote = s.getChannel();
+        log.info("Accepted from {}:{}", s.getInetAddress(), s.getPort());
+        createSuccessMessage(msg, s.getInetAddress(), s.getPort()).write(
+                session.out);
+
+        session.remote.configureBlocking(false);
+        session.client.configureBlocking(false);
+        execute(() -> {
+            if (stopped) {
+                session.close();
+                return;
+            }
+            try {
+                session.register(0);
+                session.startRelay();
+            } catch (final IOException | RuntimeException e) {
+                closeSession(session);
+            }
+        });
+    }
+
+    private void onUDP(final Session session) throws IOException {
+        final ProxyMessage msg = session.msg;
+        final Socket sock = session.client.socket();
+        if (msg.ip.getHostAddress().equals("0.0.0.0")) {
+            msg.ip = sock.getInetAddress();
+        }
+        log.info("Creating UDP relay server for {}:{}", msg.ip, msg.port);
+
+        if (session.auth.getUdpEncapsulation() == null) {
+            session.udpRelay = new NioUDPRelay(msg.ip, msg.port,
+                    sock.getLocalAddress(), session.auth, handshakeExecutor,
+                    this::execute);
+            new Socks5Message(SocksProxyBase.SOCKS_SUCCESS,
+                    session.udpRelay.getRelayIP(),
+                    session.udpRelay.getRelayPort()).write(session.out);
+        } else {
+            // The control connection gets closed by the relay server when it
+            // stops, the event loop watches the control connection.
+            session.relayServer = new UDPRelayServer(msg.ip, msg.port, null,
+                    sock, session.auth);
+            new Socks5Message(SocksProxyBase.SOCKS_SUCCESS,
+                    session.relayServer.relayIP, session.relayServer.relayPort)
+                    .write(session.out);
+            session.relayServer.start();
+        }
+
+        session.client.configureBlocking(false);
+        execute(() -> {
+            if (stopped) {
+                session.close();
+                return;
+            }
+            try {
+                session.register(0);
+                session.clientKey.interestOps(SelectionKey.OP_READ);
+                if (session.udpRelay != null) {
+                    session.udpRelay.register(selector, session);
+                }
+            } catch (final IOException | RuntimeException e) {
+                closeSession(session);
+            }
+        });
+    }
+
+    static ProxyMessage createSuccessMessage(final ProxyMessage msg,
+                                             final InetAddress ip,
+                                             final int port) {
+        if (msg.version == 5) {
+            return new Socks5Message(SocksProxyBase.SOCKS_SUCCESS, ip, port);
+        } else {
+            return new Socks4Message(Socks4Message.REPLY_OK, ip, port);
+        }
+    }
+
+    static ByteBuffer toBuffer(final ProxyMessage msg) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        msg.write(out);
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    // Inner classes
+    // //////////////
+
+    /**
+     * One direction of a relayed connection.
+     */
+    private static final class Direction {
+        final SocketChannel source;
+        final SocketChannel sink;
+        // Data read from source which sink couldn't take yet
+        ByteBuffer pending;
+        boolean eof;
+
+        Direction(final SocketChannel source, final SocketChannel sink) {
+            this.source = source;
+            this.sink = sink;
+        }
+
+        boolean isReadable() {
+            return !eof && pending == null;
+        }
+    }
+
+    /**
+     * State of a client connection. Created in a handshake thread, after
+     * register is called it is only accessed from the event loop.
+     */
+    private final class Session {
+        final SocketChannel client;
+        SocketChannel remote;
+        ServerSocketChannel bindChannel;
+        UDPRelayServer relayServer;
+        NioUDPRelay udpRelay;
+        ServerAuthenticator auth;
+        ProxyMessage msg;
+        OutputStream out;
+
+        SelectionKey clientKey, remoteKey;
+        Direction toRemote, toClient;
+        long lastActivity;
+        private boolean closed;
+
+        Session(final SocketChannel client) {
+            this.client = client;
+        }
+
+        void register(final int remoteOps) throws IOException {
+            sessions.add(this);
+            lastActivity = System.currentTimeMillis();
+            clientKey = client.register(selector, 0, this);
+            if (remote != null) {
+                remoteKey = remote.register(selector, remoteOps, this);
+            }
+        }
+
+        void handle(final SelectionKey key) throws IOException {
+            if (key.isConnectable()) {
+                onConnected();
+            } else if (udpRelay != null && udpRelay.isRelayChannel(key)) {
+                udpRelay.relay(key, datagramBuffer);
+            } else if (relayServer != null || udpRelay != null) {
+                readControlConnection();
+            } else {
+                final boolean fromClient = key == clientKey;
+                if (key.isWritable()) {
+                    flush(fromClient ? toClient : toRemote);
+                }
+                if (key.isValid() && key.isReadable()) {
+                    relay(fromClient ? toRemote : toClient);
+                }
+            }
+        }
+
+        // Connect of a CONNECT request completed
+        void onConnected() throws IOException {
+            try {
+                remote.finishConnect();
+            } catch (final IOException ioe) {
+                try {
+                    client.write(toBuffer(ProxyServer.createErrorMessage(msg,
+                            ProxyServer.getErrorCode(ioe))));
+                } catch (final IOException e) {
+                }
+                throw ioe;
+            }
+
+            final Socket s = remote.socket();
+            log.debug("Connected to {}:{}", s.getInetAddress(), s.getPort());
+            startRelay();
+            // The reply is the first data sent to the client
+            toClient.pending = toBuffer(createSuccessMessage(msg,
+                    s.getLocalAddress(), s.getLocalPort()));
+            flush(toClient);
+        }
+
+        void startRelay() throws IOException {
+            toRemote = new Direction(client, remote);
+            toClient = new Direction(remote, client);
+            updateInterestOps();
+        }
+
+        void relay(final Direction direction) throws IOException {
+            final ByteBuffer buffer = borrowBuffer();
+            final int len;
+            try {
+                len = direction.source.read(buffer);
+            } catch (final IOException ioe) {
+                releaseBuffer(buffer);
+                throw ioe;
+            }
+
+            if (len < 0) {
+                releaseBuffer(buffer);
+                direction.eof = true;
+                if (toRemote.eof && toClient.eof) {
+                    closeSession(this);
+                    return;
+                }
+                direction.sink.socket().shutdownOutput();
+            } else if (len == 0) {
+                releaseBuffer(buffer);
+            } else {
+                lastActivity = System.currentTimeMillis();
+                buffer.flip();
+                direction.pending = buffer;
+                write(direction);
+            }
+            updateInterestOps();
+        }
+
+        void flush(final Direction direction) throws IOException {
+            write(direction);
+            updateInterestOps();
+        }
+
+        private void write(final Direction direction) throws IOException {
+            direction.sink.write(direction.pending);
+            if (!direction.pending.hasRemaining()) {
+                releaseBuffer(direction.pending);
+                direction.pending = null;
+            }
+        }
+
+        private void updateInterestOps() {
+            if (!clientKey.isValid() || !remoteKey.isValid()) {
+                return;
+            }
+            clientKey.interestOps((toRemote.isReadable() ? SelectionKey.OP_READ : 0)
+                    | (toClient.pending != null ? SelectionKey.OP_WRITE : 0));
+            remoteKey.interestOps((toClient.isReadable() ? SelectionKey.OP_READ : 0)
+                    | (toRemote.pending != null ? SelectionKey.OP_WRITE : 0));
+        }
+
+        // The client must keep the control connection of an UDP association
+        // open, data sent on it is ignored
+        private void readControlConnection() throws IOException {
+            final ByteBuffer buffer = borrowBuffer();
+            try {
+                if (client.read(buffer) < 0) {
+                    closeSession(this);
+                }
+            } finally {
+                releaseBuffer(buffer);
+            }
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            log.debug("Closing connection from {}", client.socket()
+                    .getRemoteSocketAddress());
+            try {
+                client.close();
+            } catch (final IOException ioe) {
+            }
+            try {
+                if (remote != null) {
+                    remote.close();
+                }
+                if (bindChannel != null) {
+                    bindChannel.close();
+                }
+            } catch (final IOException ioe) {
+            }
+            if (relayServer != null) {
+                relayServer.stop();
+            }
+            if (udpRelay != null) {
+                udpRelay.close();
+            }
+            if (auth != null) {
+                auth.endSession();
+            }
+        }
+    }
+}
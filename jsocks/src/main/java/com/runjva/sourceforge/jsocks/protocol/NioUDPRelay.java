@@ -0,0 +1,440 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import com.runjva.sourceforge.jsocks.server.ServerAuthenticator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * UDP association of NioProxyServer, replaces the two threads of
+ * UDPRelayServer. The channels are registered with the selector of the
+ * NioProxyServer and all associations share one receive buffer.
+ * <p>
+ * The SOCKS5 UDP header is parsed and written in place: datagrams from the
+ * remote side are received behind room for the header, which is then written
+ * in front of the data, datagrams from the client are sent from behind their
+ * header. The destination of the last datagram from the client and the header
+ * of the last datagram from the remote side are kept, so a flow with one peer
+ * does not resolve or encode the address again for each datagram.
+ * <p>
+ * Host names of DOMAINNAME datagrams are resolved by the blocking executor,
+ * so a slow lookup does not hold up the event loop. The datagrams wait for
+ * the lookup and are sent from the event loop when it is done. Results are
+ * cached for a while.
+ * <p>
+ * Only used if the authentication has no UDPEncapsulation, as that works on
+ * byte arrays.
+ */
+final class NioUDPRelay {
+
+    static Logger log = LoggerFactory.getLogger(NioUDPRelay.class);
+
+    // RSV(2) FRAG(1) ATYP(1) + address + port(2)
+    static final int MAX_HEADER_LENGTH = 4 + 1 + 255 + 2;
+    // Room for the header in front of a datagram from the remote side
+    static final int RESERVED = 4 + Socks5Message.SOCKS_IPV6_LENGTH + 2;
+    static final int MAX_DATAGRAMS_PER_RELAY = 64;
+    // Datagrams waiting for the lookup of their host, further ones are dropped
+    static final int MAX_PENDING_DATAGRAMS = 16;
+    static final int MAX_CACHED_HOSTS = 64;
+    static final long HOST_TTL = 60 * 1000;
+    static final long UNKNOWN_HOST_TTL = 10 * 1000;
+
+    private final DatagramChannel clientChannel;
+    private final DatagramChannel remoteChannel;
+    private final ServerAuthenticator auth;
+    private final InetAddress clientIP;
+    private final InetAddress relayIP;
+    private final int relayPort;
+    private final Executor blockingExecutor;
+    private final Executor eventLoop;
+
+    // Reused for ServerAuthenticator.checkRequest
+    private final DatagramPacket checkPacket = new DatagramPacket(new byte[0], 0);
+
+    // Last destination of the client
+    private final byte[] lastDestinationHeader = new byte[MAX_HEADER_LENGTH];
+    private int lastDestinationHeaderLength;
+    private InetSocketAddress lastDestination;
+
+    // Header of the last datagram from the remote side
+    private final byte[] lastSourceHeader = new byte[RESERVED];
+    private int lastSourceHeaderLength;
+    private InetSocketAddress lastSource;
+
+    // Resolved host names, an unknown host has no address
+    private final Map<String, HostEntry> hosts = new LinkedHashMap<String, HostEntry>(
+            16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, HostEntry> eldest) {
+            return size() > MAX_CACHED_HOSTS;
+        }
+    };
+    // Datagrams by the host they wait for
+    private final Map<String, List<PendingDatagram>> pendingDatagrams = new HashMap<String, List<PendingDatagram>>();
+
+    long lastActivity = System.currentTimeMillis();
+
+    /**
+     * @param clientIP   Address of the client.
+     * @param clientPort Port of the client, if 0 the port of the first
+     *                   datagram from clientIP is used.
+     * @param localIP    Local address on which the client can reach us.
+     * @param blockingExecutor Runs the lookups of host names.
+     * @param eventLoop  Runs tasks in the thread which calls relay.
+     */
+    NioUDPRelay(final InetAddress clientIP, final int clientPort,
+                final InetAddress localIP, final ServerAuthenticator auth,
+                final Executor blockingExecutor, final Executor eventLoop)
+            throws IOException {
+        this.clientIP = clientIP;
+        this.auth = auth;
+        this.blockingExecutor = blockingExecutor;
+        this.eventLoop = eventLoop;
+
+        clientChannel = DatagramChannel.open();
+        remoteChannel = DatagramChannel.open();
+        try {
+            clientChannel.bind(new InetSocketAddress(localIP, 0));
+            remoteChannel.bind(null);
+            clientChannel.configureBlocking(false);
+            remoteChannel.configureBlocking(false);
+            if (clientPort != 0) {
+                // Only datagrams from the client get through
+                clientChannel.connect(new InetSocketAddress(clientIP,
+                        clientPort));
+            }
+        } catch (final IOException ioe) {
+            close();
+            throw ioe;
+        }
+
+        final InetSocketAddress localAddress = (InetSocketAddress) clientChannel
+                .getLocalAddress();
+        relayIP = localAddress.getAddress();
+        relayPort = localAddress.getPort();
+        log.info("Starting UDP relay on {}:{}", relayIP, relayPort);
+    }
+
+    InetAddress getRelayIP() {
+        return relayIP;
+    }
+
+    int getRelayPort() {
+        return relayPort;
+    }
+
+    void register(final Selector selector, final Object attachment)
+            throws IOException {
+        clientChannel.register(selector, SelectionKey.OP_READ, attachment);
+        remoteChannel.register(selector, SelectionKey.OP_READ, attachment);
+    }
+
+    boolean isRelayChannel(final SelectionKey key) {
+        return key.channel() == clientChannel
+                || key.channel() == remoteChannel;
+    }
+
+    /**
+     * Relays the datagrams waiting on the channel of the key.
+     *
+     * @param buffer Heap buffer with room for the largest datagram plus
+     *               RESERVED.
+     */
+    void relay(final SelectionKey key, final ByteBuffer buffer)
+            throws IOException {
+        final boolean fromClient = key.channel() == clientChannel;
+        // Limited so a busy association can't hold up the others
+        for (int i = 0; i < MAX_DATAGRAMS_PER_RELAY; i++) {
+            if (!(fromClient ? fromClient(buffer) : fromRemote(buffer))) {
+                break;
+            }
+            lastActivity = System.currentTimeMillis();
+        }
+    }
+
+    void close() {
+        try {
+            clientChannel.close();
+        } catch (final IOException ioe) {
+        }
+        try {
+            remoteChannel.close();
+        } catch (final IOException ioe) {
+        }
+        log.info("UDP relay on {}:{} stopped", relayIP, relayPort);
+    }
+
+    // Private methods
+    // ///////////////
+
+    // Returns false if there was no datagram
+    private boolean fromClient(final ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        if (clientChannel.isConnected()) {
+            try {
+                if (clientChannel.read(buffer) <= 0) {
+                    return false;
+                }
+            } catch (final PortUnreachableException pue) {
+                // A datagram to the client could not be delivered
+                log.debug("Client {} unreachable", clientChannel.getRemoteAddress());
+                return true;
+            }
+        } else {
+            final InetSocketAddress from = (InetSocketAddress) clientChannel
+                    .receive(buffer);
+            if (from == null) {
+                return false;
+            }
+            if (!clientIP.equals(from.getAddress())) {
+                return true; // Drop datagrams from other hosts
+            }
+            clientChannel.connect(from);
+        }
+        buffer.flip();
+
+        final byte[] data = buffer.array();
+        final int offset = buffer.arrayOffset();
+        final int length = buffer.limit();
+        // Fragmentation is not supported, fragments are dropped
+        if (length < 5 || data[offset + 2] != 0) {
+            return true;
+        }
+
+        final int headerLength;
+        switch (data[offset + 3]) {
+            case Socks5Message.SOCKS_ATYP_IPV4:
+                headerLength = 4 + 4 + 2;
+                break;
+            case Socks5Message.SOCKS_ATYP_IPV6:
+                headerLength = 4 + Socks5Message.SOCKS_IPV6_LENGTH + 2;
+                break;
+            case Socks5Message.SOCKS_ATYP_DOMAINNAME:
+                headerLength = 4 + 1 + (data[offset + 4] & 0xFF) + 2;
+                break;
+            default:
+                return true;
+        }
+        if (length < headerLength) {
+            return true;
+        }
+
+        buffer.position(headerLength);
+        final InetSocketAddress destination = getDestination(data, offset,
+                headerLength, buffer);
+        if (destination != null) {
+            send(destination, buffer);
+        }
+        return true;
+    }
+
+    private void send(final InetSocketAddress destination, final ByteBuffer buffer) {
+        if (checkRequest(destination.getAddress(), destination.getPort(),
+                buffer, true)) {
+            try {
+                remoteChannel.send(buffer, destination);
+            } catch (final IOException ioe) {
+                // Unreachable destination, only drop the datagram
+                log.debug("Sending datagram to {} failed: {}", destination,
+                        ioe.toString());
+            }
+        }
+    }
+
+    private boolean fromRemote(final ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        buffer.position(RESERVED);
+        final InetSocketAddress from = (InetSocketAddress) remoteChannel
+                .receive(buffer);
+        if (from == null) {
+            return false;
+        }
+        buffer.flip();
+        buffer.position(RESERVED);
+
+        if (!clientChannel.isConnected()
+                || !checkRequest(from.getAddress(), from.getPort(), buffer, false)) {
+            return true;
+        }
+
+        if (!from.equals(lastSource)) {
+            lastSourceHeaderLength = writeHeader(lastSourceHeader, from);
+            lastSource = from;
+        }
+        final int start = RESERVED - lastSourceHeaderLength;
+        System.arraycopy(lastSourceHeader, 0, buffer.array(),
+                buffer.arrayOffset() + start, lastSourceHeaderLength);
+        buffer.position(start);
+        try {
+            clientChannel.write(buffer);
+        } catch (final PortUnreachableException pue) {
+            // Reported for an earlier datagram, only drop this one
+            log.debug("Client {} unreachable", clientChannel.getRemoteAddress());
+        }
+        return true;
+    }
+
+    // Address and port of the header, resolved once for the same header.
+    // Returns null if the datagram is dropped or waits for the lookup of its
+    // host name.
+    private InetSocketAddress getDestination(final byte[] data,
+                                             final int offset,
+                                             final int headerLength,
+                                             final ByteBuffer payload)
+            throws IOException {
+        if (headerLength == lastDestinationHeaderLength && isSameHeader(data,
+                offset, headerLength)) {
+            return lastDestination;
+        }
+
+        final int addressOffset = offset + 4;
+        final int portOffset = offset + headerLength - 2;
+        final int port = ((data[portOffset] & 0xFF) << 8)
+                | (data[portOffset + 1] & 0xFF);
+        final InetAddress address;
+        if (data[offset + 3] == Socks5Message.SOCKS_ATYP_DOMAINNAME) {
+            final String host = new String(data, addressOffset + 1,
+                    data[addressOffset] & 0xFF, "ISO-8859-1");
+            final HostEntry entry = hosts.get(host);
+            if (entry == null || entry.expires < System.currentTimeMillis()) {
+                lookUp(host, port, payload);
+                return null;
+            }
+            if (entry.address == null) {
+                log.debug("Dropping datagram for unknown host {}", host);
+                return null;
+            }
+            address = entry.address;
+        } else {
+            final byte[] addr = new byte[portOffset - addressOffset];
+            System.arraycopy(data, addressOffset, addr, 0, addr.length);
+            address = InetAddress.getByAddress(addr);
+        }
+        lastDestination = new InetSocketAddress(address, port);
+        System.arraycopy(data, offset, lastDestinationHeader, 0, headerLength);
+        lastDestinationHeaderLength = headerLength;
+        return lastDestination;
+    }
+
+    // Keeps a copy of the datagram until the host is resolved
+    private void lookUp(final String host, final int port,
+                        final ByteBuffer payload) {
+        List<PendingDatagram> pending = pendingDatagrams.get(host);
+        if (pending == null) {
+            pending = new ArrayList<PendingDatagram>();
+            pendingDatagrams.put(host, pending);
+            try {
+                blockingExecutor.execute(() -> {
+                    InetAddress address;
+                    try {
+                        address = InetAddress.getByName(host);
+                    } catch (final UnknownHostException e) {
+                        address = null;
+                    }
+                    final InetAddress resolved = address;
+                    eventLoop.execute(() -> onResolved(host, resolved));
+                });
+            } catch (final RejectedExecutionException e) {
+                // Shutting down
+                pendingDatagrams.remove(host);
+                return;
+            }
+        }
+        if (pending.size() < MAX_PENDING_DATAGRAMS) {
+            final byte[] data = new byte[payload.remaining()];
+            payload.get(data);
+            pending.add(new PendingDatagram(port, data));
+        }
+    }
+
+    // Runs in the event loop
+    private void onResolved(final String host, final InetAddress address) {
+        final long now = System.currentTimeMillis();
+        hosts.put(host, new HostEntry(address, now
+                + (address != null ? HOST_TTL : UNKNOWN_HOST_TTL)));
+        final List<PendingDatagram> pending = pendingDatagrams.remove(host);
+        if (pending == null || !remoteChannel.isOpen()) {
+            return;
+        }
+        if (address == null) {
+            log.info("Dropping {} datagrams for unknown host {}",
+                    pending.size(), host);
+            return;
+        }
+        lastActivity = now;
+        for (final PendingDatagram datagram : pending) {
+            send(new InetSocketAddress(address, datagram.port),
+                    ByteBuffer.wrap(datagram.data));
+        }
+    }
+
+    private boolean isSameHeader(final byte[] data, final int offset,
+                                 final int headerLength) {
+        // RSV and FRAG are not part of the destination
+        for (int i = 3; i < headerLength; i++) {
+            if (data[offset + i] != lastDestinationHeader[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int writeHeader(final byte[] header,
+                                   final InetSocketAddress address) {
+        final byte[] addr = address.getAddress().getAddress();
+        header[0] = 0;
+        header[1] = 0;
+        header[2] = 0;
+        header[3] = (byte) (addr.length == 4 ? Socks5Message.SOCKS_ATYP_IPV4
+                : Socks5Message.SOCKS_ATYP_IPV6);
+        System.arraycopy(addr, 0, header, 4, addr.length);
+        header[4 + addr.length] = (byte) (address.getPort() >> 8);
+        header[5 + addr.length] = (byte) address.getPort();
+        return 4 + addr.length + 2;
+    }
+
+    private boolean checkRequest(final InetAddress address, final int port,
+                                 final ByteBuffer buffer, final boolean out) {
+        checkPacket.setData(buffer.array(),
+                buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        checkPacket.setAddress(address);
+        checkPacket.setPort(port);
+        return auth.checkRequest(checkPacket, out);
+    }
+
+    private static final class HostEntry {
+        final InetAddress address;
+        final long expires;
+
+        HostEntry(final InetAddress address, final long expires) {
+            this.address = address;
+            this.expires = expires;
+        }
+    }
+
+    private static final class PendingDatagram {
+        final int port;
+        final byte[] data;
+
+        PendingDatagram(final int port, final byte[] data) {
+            this.port = port;
+            this.data = data;
+        }
+    }
+}
@@ -307,6 +307,10 @@ public class ProxyServer implements Runnable {
             return;
         }
 
+        sendErrorMessage(getErrorCode(ioe));
+    }
+
+    static int getErrorCode(final IOException ioe) {
         int error_code = SocksProxyBase.SOCKS_FAILURE;
 
         if (ioe instanceof SocksException) {
@@ -323,8 +327,7 @@ public class ProxyServer implements Runnable {
                 || (error_code < 0)) {
             error_code = SocksProxyBase.SOCKS_FAILURE;
         }
-
-        sendErrorMessage(error_code);
+        return error_code;
     }
 
     private void onConnect(final ProxyMessage msg) throws IOException {
@@ -508,7 +511,7 @@ public class ProxyServer implements Runnable {
         response.write(out);
     }
 
-    private ProxyMessage readMsg(final InputStream in) throws IOException {
+    static ProxyMessage readMsg(final InputStream in) throws IOException {
         PushbackInputStream push_in;
         if (in instanceof PushbackInputStream) {
             push_in = (PushbackInputStream) in;
@@ -546,18 +549,21 @@ public class ProxyServer implements Runnable {
     }
 
     private void sendErrorMessage(final int error_code) {
-        ProxyMessage err_msg;
-        if (msg instanceof Socks4Message) {
-            err_msg = new Socks4Message(Socks4Message.REPLY_REJECTED);
-        } else {
-            err_msg = new Socks5Message(error_code);
-        }
         try {
-            err_msg.write(out);
+            createErrorMessage(msg, error_code).write(out);
         } catch (final IOException ioe) {
         }
     }
 
+    static ProxyMessage createErrorMessage(final ProxyMessage msg,
+                                           final int error_code) {
+        if (msg instanceof Socks4Message) {
+            return new Socks4Message(Socks4Message.REPLY_REJECTED);
+        } else {
+            return new Socks5Message(error_code);
+        }
+    }
+
     private synchronized void abort() {
         if (mode == ABORT_MODE) {
             return;
@@ -305,6 +305,13 @@ public class SocksSocket extends Socket {
         return proxy.proxySocket.getSoTimeout();
     }
 
+    /**
+     * Same as socket.
+     */
+    public int getSoTimeout() throws SocketException {
+        return proxy.proxySocket.getSoTimeout();
+    }
+
     /**
      * Same as socket.
      */
@@ -8,6 +8,8 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.InterruptedIOException;
 import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.StringTokenizer;
 
@@ -97,13 +99,31 @@ public class Ident {
      * @param s Socket whose ownership on remote end should be obtained.
      */
     public Ident(Socket s) {
-        Socket sock = null;
+        this(s.getInetAddress(), s.getPort(), s.getLocalPort());
+    }
+
+    /**
+     * Same as Ident(Socket), for the connection from remotePort on the remote
+     * host to localPort on this host.
+     *
+     * @see IdentResolver
+     */
+    public Ident(InetAddress remoteIP, int remotePort, int localPort) {
+        this(new Socket(), remoteIP, remotePort, localPort);
+    }
+
+    /**
+     * Same as Ident(InetAddress, int, int), but uses the given unconnected
+     * socket to contact identd. Closing it from another thread aborts the
+     * lookup.
+     */
+    Ident(Socket sock, InetAddress remoteIP, int remotePort, int localPort) {
         successful = false; // We are pessimistic
 
         try {
-            sock = new Socket(s.getInetAddress(), 113);
+            sock.connect(new InetSocketAddress(remoteIP, 113), connectionTimeout);
             sock.setSoTimeout(connectionTimeout);
-            final byte[] request = ("" + s.getPort() + " , " + s.getLocalPort() + "\r\n")
+            final byte[] request = ("" + remotePort + " , " + localPort + "\r\n")
                     .getBytes();
 
             sock.getOutputStream().write(request);
@@ -5,12 +5,18 @@ import com.runjva.sourceforge.jsocks.protocol.ProxyMessage;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Vector;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * An implementation of socks.ServerAuthentication which provides simple
@@ -20,6 +26,9 @@ import java.util.Vector;
  * <p>
  * It can also be used to provide authentication based only on the contacting
  * host address.
+ * <p>
+ * The identd lookup is done by an IdentResolver and runs while the SOCKS
+ * authentication is read from the client.
  */
 
 public class IdentAuthenticator extends ServerAuthenticatorBase {
@@ -35,12 +44,23 @@ public class IdentAuthenticator extends ServerAuthenticatorBase {
 
     String user;
 
+    IdentResolver identResolver;
+
     /**
      * Constructs empty IdentAuthenticator.
      */
     public IdentAuthenticator() {
+        this(new IdentResolver());
+    }
+
+    /**
+     * Constructs empty IdentAuthenticator which uses the given resolver for
+     * identd lookups.
+     */
+    public IdentAuthenticator(IdentResolver identResolver) {
         hosts = new Vector<InetRange>();
         users = new Vector<Hashtable<?, ?>>();
+        this.identResolver = identResolver;
     }
 
     /**
@@ -87,6 +107,12 @@ public class IdentAuthenticator extends ServerAuthenticatorBase {
             return null; // Host is not on the list.
         }
 
+        final Hashtable<?, ?> user_names = users.elementAt(ind);
+
+        // Start the lookup before the negotiation, so both run in parallel
+        final Future<Ident> identLookup = user_names != null ? identResolver
+                .resolve(s) : null;
+
         final ServerAuthenticator serverAuthenticator = super.startSession(s);
         final ServerAuthenticatorBase auth = (ServerAuthenticatorBase) serverAuthenticator;
 
@@ -97,13 +123,10 @@ public class IdentAuthenticator extends ServerAuthenticatorBase {
 
         // do the authentication
 
-        final Hashtable<?, ?> user_names = users.elementAt(ind);
-
         if (user_names != null) { // If need to do authentication
-            Ident ident;
-            ident = new Ident(s);
+            final Ident ident = getIdent(identLookup);
             // If can't obtain user name, fail
-            if (!ident.successful) {
+            if (ident == null || !ident.successful) {
                 return null;
             }
             // If user name is not listed for this address, fail
@@ -149,6 +172,28 @@ public class IdentAuthenticator extends ServerAuthenticatorBase {
 
     // Private Methods
     // ////////////////
+
+    // Waits for the lookup, returns null if it did not finish in time. The
+    // connect to identd and reading its answer are bounded by
+    // Ident.connectionTimeout each. The lookup is not queued, so it runs
+    // during the whole wait. If we give up, the lookup gets cancelled, so it
+    // does not keep a thread of the resolver busy.
+    private Ident getIdent(Future<Ident> identLookup) throws IOException {
+        try {
+            return identLookup.get(2L * Ident.connectionTimeout,
+                    TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException ie) {
+            identLookup.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Ident lookup interrupted");
+        } catch (final TimeoutException e) {
+            identLookup.cancel(true);
+            return null;
+        } catch (final ExecutionException | CancellationException e) {
+            return null;
+        }
+    }
+
     private int getRangeIndex(InetAddress ip) {
         int index = 0;
         final Enumeration<InetRange> enumx = hosts.elements();
@@ -0,0 +1,259 @@
+package com.runjva.sourceforge.jsocks.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs Ident lookups on a bounded pool of threads.
+ * <p>
+ * Lookups are not queued, so the time a caller waits for a lookup is the
+ * time of the lookup itself. If all threads are busy, the lookup fails right
+ * away. Cancelling a lookup closes its connection to identd.
+ * <p>
+ * Lookups for the same connection, the client address and the port pair,
+ * which are still running are shared. Answers of identd are not cached, as
+ * another user can connect from the same port pair once the connection is
+ * closed.
+ * <p>
+ * If identd of a host can't be contacted or times out, the host is remembered
+ * for a while and further lookups for it fail right away with the same error,
+ * instead of blocking a thread for the whole timeout again. That cache is
+ * bounded, the least recently used entries are dropped first.
+ */
+public class IdentResolver {
+
+    static Logger log = LoggerFactory.getLogger(IdentResolver.class);
+
+    static final int DEFAULT_MAX_THREADS = 64;
+    // Idle threads are stopped after that time
+    static final long KEEP_ALIVE_TIME = 60 * 1000;
+    static final long DEFAULT_NEGATIVE_TTL = 5 * 60 * 1000;
+    static final int DEFAULT_MAX_ENTRIES = 1024;
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private final ThreadPoolExecutor executor;
+    private final long negativeTtl;
+
+    // Both guarded by this
+    private final Map<String, Entry> runningLookups = new HashMap<String, Entry>();
+    private final Map<InetAddress, Entry> hostsWithoutIdentd;
+
+    /**
+     * Creates resolver with default settings.
+     */
+    public IdentResolver() {
+        this(DEFAULT_MAX_THREADS, DEFAULT_NEGATIVE_TTL, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param maxThreads  Maximum number of lookups running at the same time,
+     *                    further lookups fail right away.
+     * @param negativeTtl Time in ms a host whose identd could not be contacted
+     *                    is not asked again.
+     * @param maxEntries  Maximum number of hosts without identd which are
+     *                    remembered.
+     */
+    public IdentResolver(final int maxThreads, final long negativeTtl,
+                         final int maxEntries) {
+        this.negativeTtl = negativeTtl;
+        this.hostsWithoutIdentd = createCache(maxEntries);
+        this.executor = new ThreadPoolExecutor(0, maxThreads, KEEP_ALIVE_TIME,
+                TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>(), r -> {
+            final Thread thread = new Thread(r, "IdentResolver-"
+                    + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Public methods
+    // ///////////////
+
+    /**
+     * Starts the lookup of the owner of the given socket, or returns the
+     * running lookup for it. Does not block. The returned future fails with a
+     * RejectedExecutionException if too many lookups are running. A caller
+     * which does not wait for the result anymore should cancel it.
+     */
+    public Future<Ident> resolve(final Socket s) {
+        return resolve(s.getInetAddress(), s.getPort(), s.getLocalPort());
+    }
+
+    /**
+     * Same as resolve(Socket), for the connection from remotePort on the
+     * remote host to localPort on this host.
+     */
+    public Future<Ident> resolve(final InetAddress remoteIP,
+                                 final int remotePort, final int localPort) {
+        final String key = remoteIP.getHostAddress() + ":" + remotePort + ":"
+                + localPort;
+        final Entry entry;
+        synchronized (this) {
+            final long now = System.currentTimeMillis();
+            final Entry noIdentd = hostsWithoutIdentd.get(remoteIP);
+            if (noIdentd != null) {
+                if (noIdentd.expires > now) {
+                    return noIdentd.ident;
+                }
+                hostsWithoutIdentd.remove(remoteIP);
+            }
+
+            final Entry running = runningLookups.get(key);
+            if (running != null) {
+                return running.ident;
+            }
+            entry = new Entry(new Lookup(key));
+            runningLookups.put(key, entry);
+        }
+
+        try {
+            entry.ident.task = executor.submit(() -> lookup(entry, key,
+                    remoteIP, remotePort, localPort));
+        } catch (final RejectedExecutionException e) {
+            synchronized (this) {
+                runningLookups.remove(key);
+            }
+            log.warn("Too many running ident lookups, lookup for {} failed",
+                    key);
+            entry.ident.completeExceptionally(e);
+        }
+        return entry.ident;
+    }
+
+    /**
+     * Stops the threads, running lookups are cancelled.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        final List<Entry> running;
+        synchronized (this) {
+            running = new ArrayList<Entry>(runningLookups.values());
+        }
+        for (final Entry entry : running) {
+            entry.ident.cancel(true);
+        }
+    }
+
+    // Package methods
+    // ///////////////
+
+    // Contacts identd with the given unconnected socket, blocks
+    Ident lookUpIdent(final Socket sock, final InetAddress remoteIP,
+                      final int remotePort, final int localPort) {
+        return new Ident(sock, remoteIP, remotePort, localPort);
+    }
+
+    // Private methods
+    // ///////////////
+
+    private void lookup(final Entry entry, final String key,
+                        final InetAddress remoteIP, final int remotePort,
+                        final int localPort) {
+        final Ident ident;
+        try {
+            ident = lookUpIdent(entry.ident.socket, remoteIP, remotePort,
+                    localPort);
+        } catch (final RuntimeException e) {
+            synchronized (this) {
+                removeRunning(entry);
+            }
+            entry.ident.completeExceptionally(e);
+            return;
+        }
+        synchronized (this) {
+            removeRunning(entry);
+            // A cancelled lookup fails as we closed its socket
+            if (!entry.ident.isCancelled()
+                    && (ident.errorCode == Ident.ERR_NO_CONNECT
+                    || ident.errorCode == Ident.ERR_TIMEOUT)) {
+                log.debug("No identd on {}: {}", remoteIP,
+                        ident.errorMessage);
+                entry.expires = System.currentTimeMillis() + negativeTtl;
+                hostsWithoutIdentd.put(remoteIP, entry);
+            }
+        }
+        entry.ident.complete(ident);
+    }
+
+    // Must hold the lock. A lookup for the same key might have been started
+    // after this one got cancelled.
+    private void removeRunning(final Entry entry) {
+        if (runningLookups.get(entry.ident.key) == entry) {
+            runningLookups.remove(entry.ident.key);
+        }
+    }
+
+    private static <K> Map<K, Entry> createCache(final int maxEntries) {
+        return new LinkedHashMap<K, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<K, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    private static final class Entry {
+        final Lookup ident;
+        // Only used for hosts without identd
+        long expires = Long.MAX_VALUE;
+
+        Entry(final Lookup ident) {
+            this.ident = ident;
+        }
+    }
+
+    private final class Lookup extends CompletableFuture<Ident> {
+        final String key;
+        final Socket socket = new Socket();
+        volatile Future<?> task;
+
+        Lookup(final String key) {
+            this.key = key;
+        }
+
+        // A blocking connect or read does not react to an interrupt, so we
+        // close the socket as well
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            final boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (!cancelled) {
+                return false;
+            }
+            synchronized (IdentResolver.this) {
+                final Entry running = runningLookups.get(key);
+                if (running != null && running.ident == this) {
+                    runningLookups.remove(key);
+                }
+            }
+            try {
+                socket.close();
+            } catch (final IOException e) {
+                log.debug("Could not close ident socket", e);
+            }
+            final Future<?> lookupTask = task;
+            if (lookupTask != null) {
+                lookupTask.cancel(mayInterruptIfRunning);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+
+import static org.junit.Assert.*;
+
+public class InetRangeTest {
+
+    @Test
+    public void testIpv4Ranges() throws Exception {
+        final InetRange range = new InetRange();
+        range.add("10.0.0.");
+        range.add("10.0.1.5:10.0.1.9");
+        range.add(InetAddress.getByName("10.0.3.1"));
+
+        assertTrue(range.contains("10.0.0.0", false));
+        assertTrue(range.contains("10.0.0.255", false));
+        assertTrue(range.contains("10.0.1.5", false));
+        assertTrue(range.contains("10.0.1.9", false));
+        assertTrue(range.contains(InetAddress.getByName("10.0.3.1")));
+        assertFalse(range.contains("10.0.1.4", false));
+        assertFalse(range.contains("10.0.1.10", false));
+        assertFalse(range.contains("10.0.2.1", false));
+        assertFalse(range.contains("9.255.255.255", false));
+    }
+
+    // Overlapping, adjacent and nested intervals get merged
+    @Test
+    public void testMergedIpv4Intervals() {
+        final InetRange range = new InetRange();
+        range.add("192.168.0.50:192.168.0.200");
+        range.add("192.168.0.0:192.168.0.100");
+        range.add("192.168.0.201:192.168.0.210");
+        range.add("172.16.0.0:172.16.255.255");
+        range.add("172.16.5.0:172.16.5.10");
+
+        assertTrue(range.contains("192.168.0.0", false));
+        assertTrue(range.contains("192.168.0.150", false));
+        assertTrue(range.contains("192.168.0.205", false));
+        assertFalse(range.contains("192.168.0.211", false));
+        assertTrue(range.contains("172.16.200.1", false));
+        assertFalse(range.contains("172.17.0.0", false));
+    }
+
+    @Test
+    public void testIpv6Ranges() throws Exception {
+        final InetRange range = new InetRange();
+        range.add(InetAddress.getByName("2001:db8::10"), InetAddress.getByName("2001:db8::20"));
+        range.add(InetAddress.getByName("2001:db8::18"), InetAddress.getByName("2001:db8::30"));
+        // The high bit is set, the parts are compared unsigned
+        range.add(InetAddress.getByName("ff00::1"), InetAddress.getByName("ff00::ff"));
+
+        assertTrue(range.contains(InetAddress.getByName("2001:db8::10")));
+        assertTrue(range.contains(InetAddress.getByName("2001:db8::25")));
+        assertTrue(range.contains(InetAddress.getByName("2001:db8::30")));
+        assertFalse(range.contains(InetAddress.getByName("2001:db8::31")));
+        assertFalse(range.contains(InetAddress.getByName("2001:db8::f")));
+        assertTrue(range.contains(InetAddress.getByName("ff00::10")));
+        assertFalse(range.contains(InetAddress.getByName("ff00::100")));
+        assertFalse(range.contains(InetAddress.getByName("::1")));
+    }
+
+    @Test
+    public void testHostEndings() {
+        final InetRange range = new InetRange();
+        range.add(".myhost.com");
+        range.add(".a.b.org");
+        range.add(".b.org");
+
+        assertTrue(range.contains("athena.myhost.com", false));
+        assertTrue(range.contains("x.y.myhost.com", false));
+        assertTrue(range.contains("x.b.org", false));
+        assertTrue(range.contains("x.a.b.org", false));
+        // An ending needs the dot before it
+        assertFalse(range.contains("myhost.com", false));
+        assertFalse(range.contains("amyhost.com", false));
+        assertFalse(range.contains("athena.myhost.com.evil", false));
+        assertFalse(range.contains("x.c.org", false));
+    }
+
+    @Test
+    public void testHostNames() {
+        final InetRange range = new InetRange();
+        range.useSeparateThread = false;
+        range.add("athena.invalid");
+
+        assertTrue(range.contains("athena.invalid", false));
+        assertFalse(range.contains("hermes.invalid", false));
+    }
+
+    @Test
+    public void testRemove() {
+        final InetRange range = new InetRange();
+        range.add("10.0.0.");
+        range.add(".myhost.com");
+        assertTrue(range.remove("10.0.0."));
+        assertTrue(range.remove(".myhost.com"));
+
+        assertFalse(range.contains("10.0.0.1", false));
+        assertFalse(range.contains("athena.myhost.com", false));
+        assertEquals(0, range.getAll().length);
+    }
+
+    // The resolver of the original only updates and recompiles the original
+    @Test
+    public void testCloneResolvesPendingEntries() {
+        final InetRange range = new InetRange();
+        range.useSeparateThread = false;
+        // As if the resolver of the entry is still running
+        final Object[] entry = new Object[]{"127.0.0.1:localhost", null, null, null};
+        range.all.addElement(entry);
+        range.compile();
+
+        final InetRange clone = (InetRange) range.clone();
+        assertNotSame(entry, clone.all.elementAt(0));
+        assertTrue(clone.contains("127.0.0.1", false));
+        assertFalse(range.contains("127.0.0.1", false));
+
+        new InetRangeResolver(range, entry, "127.0.0.1", "localhost").run();
+        assertTrue(range.contains("127.0.0.1", false));
+    }
+
+    @Test
+    public void testCloneIsIndependent() {
+        final InetRange range = new InetRange();
+        range.add("10.0.0.");
+        range.add(".myhost.com");
+        final InetRange clone = (InetRange) range.clone();
+        range.remove("10.0.0.");
+        clone.add("10.0.1.");
+
+        assertTrue(clone.contains("10.0.0.1", false));
+        assertTrue(clone.contains("athena.myhost.com", false));
+        assertFalse(range.contains("10.0.0.1", false));
+        assertFalse(range.contains("10.0.1.1", false));
+    }
+}
@@ -0,0 +1,282 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import com.runjva.sourceforge.jsocks.server.ServerAuthenticator;
+import com.runjva.sourceforge.jsocks.server.ServerAuthenticatorNone;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.*;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class NioProxyServerTest {
+    private static final int TIMEOUT = 5000;
+
+    private final List<Socket> sockets = new ArrayList<Socket>();
+    private ServerSocket echoServer;
+    private DatagramSocket udpEchoServer;
+    private NioProxyServer server;
+    private Thread serverThread;
+    private int port;
+    private Socks5Proxy proxy;
+
+    @Before
+    public void setup() throws Exception {
+        echoServer = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        startThread(() -> {
+            try {
+                while (true) {
+                    final Socket socket = echoServer.accept();
+                    startThread(() -> echo(socket));
+                }
+            } catch (final IOException ignore) {
+            }
+        });
+        udpEchoServer = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        startThread(() -> {
+            try {
+                final byte[] buffer = new byte[1024];
+                while (true) {
+                    final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    udpEchoServer.receive(packet);
+                    udpEchoServer.send(packet);
+                }
+            } catch (final IOException ignore) {
+            }
+        });
+        startServer(new ServerAuthenticatorNone(null, null));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (final Socket socket : sockets) {
+            socket.close();
+        }
+        server.stop();
+        serverThread.join(TIMEOUT);
+        echoServer.close();
+        udpEchoServer.close();
+    }
+
+    @Test
+    public void testConnect() throws IOException {
+        final Socket socket = track(new SocksSocket(proxy, "127.0.0.1", echoServer.getLocalPort()));
+        assertEcho(socket, "hello");
+        assertEcho(socket, "world");
+    }
+
+    @Test
+    public void testConnectRefused() throws IOException {
+        final ServerSocket closed = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        final int closedPort = closed.getLocalPort();
+        closed.close();
+        try {
+            track(new SocksSocket(proxy, "127.0.0.1", closedPort));
+            fail("Expected SocksException");
+        } catch (final SocksException e) {
+            assertEquals(SocksProxyBase.SOCKS_CONNECTION_REFUSED, e.getErrorCode());
+        }
+    }
+
+    @Test
+    public void testUdpAssociate() throws IOException {
+        final Socks5DatagramSocket datagramSocket = new Socks5DatagramSocket(proxy, 0, null);
+        try {
+            datagramSocket.setSoTimeout(TIMEOUT);
+            for (int i = 0; i < 10; i++) {
+                final byte[] data = ("hello " + i).getBytes();
+                datagramSocket.send(new DatagramPacket(data, data.length, InetAddress.getLoopbackAddress(),
+                        udpEchoServer.getLocalPort()));
+                final DatagramPacket packet = new DatagramPacket(new byte[100], 100);
+                datagramSocket.receive(packet);
+                assertEquals("hello " + i, new String(packet.getData(), 0, packet.getLength()));
+                assertEquals(udpEchoServer.getLocalPort(), packet.getPort());
+            }
+        } finally {
+            datagramSocket.close();
+        }
+    }
+
+    @Test
+    public void testUdpAssociateWithHostName() throws IOException {
+        final Socks5DatagramSocket datagramSocket = new Socks5DatagramSocket(proxy, 0, null);
+        try {
+            datagramSocket.setSoTimeout(TIMEOUT);
+            // The first datagrams wait for the lookup, later ones use the cached address
+            for (int i = 0; i < 3; i++) {
+                final byte[] data = ("hello " + i).getBytes();
+                final DatagramPacket packet = new DatagramPacket(data, data.length);
+                packet.setPort(udpEchoServer.getLocalPort());
+                datagramSocket.send(packet, "localhost");
+            }
+            for (int i = 0; i < 3; i++) {
+                final DatagramPacket packet = new DatagramPacket(new byte[100], 100);
+                datagramSocket.receive(packet);
+                assertEquals("hello " + i, new String(packet.getData(), 0, packet.getLength()));
+            }
+        } finally {
+            datagramSocket.close();
+        }
+    }
+
+    // A datagram which can't be delivered to the client must not end the association
+    @Test
+    public void testUdpAssociateSurvivesUnreachableClient() throws Exception {
+        DatagramSocket client = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        final int clientPort = client.getLocalPort();
+        final Socket control = track(new Socket(InetAddress.getLoopbackAddress(), port));
+        control.setSoTimeout(TIMEOUT);
+        final OutputStream out = control.getOutputStream();
+        out.write(new byte[]{5, 1, 0});
+        final DataInputStream in = new DataInputStream(control.getInputStream());
+        in.readFully(new byte[2]);
+        new Socks5Message(SocksProxyBase.SOCKS_CMD_UDP_ASSOCIATE, InetAddress.getLoopbackAddress(), clientPort)
+                .write(out);
+        final Socks5Message reply = new Socks5Message(in, true);
+        final InetSocketAddress relay = new InetSocketAddress(reply.ip, reply.port);
+
+        final DatagramSocket peer = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        try {
+            peer.setSoTimeout(TIMEOUT);
+            client.send(toRelay("first", peer, relay));
+            final DatagramPacket packet = new DatagramPacket(new byte[100], 100);
+            peer.receive(packet);
+
+            // The client is gone while the peer answers
+            client.close();
+            peer.send(new DatagramPacket(new byte[]{1}, 1, packet.getSocketAddress()));
+            peer.send(new DatagramPacket(new byte[]{2}, 1, packet.getSocketAddress()));
+            // Gives the relay time to run into the ICMP error
+            Thread.sleep(200);
+
+            client = new DatagramSocket(clientPort, InetAddress.getLoopbackAddress());
+            client.send(toRelay("second", peer, relay));
+            peer.receive(packet);
+            assertEquals("second", new String(packet.getData(), 0, packet.getLength()));
+        } finally {
+            peer.close();
+            client.close();
+        }
+    }
+
+    @Test
+    public void testBind() throws Exception {
+        final SocksServerSocket serverSocket = new SocksServerSocket(proxy, InetAddress.getLoopbackAddress(), 0);
+        serverSocket.setSoTimeout(TIMEOUT);
+        final Socket remote = track(new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort()));
+        final Socket accepted = track(serverSocket.accept());
+
+        remote.getOutputStream().write("ping".getBytes());
+        assertEquals("ping", read(accepted, 4));
+        accepted.getOutputStream().write("pong".getBytes());
+        assertEquals("pong", read(remote, 4));
+    }
+
+    // Clients which never send their request must not hold up other sessions
+    @Test
+    public void testIdleClientsDontBlockNewSessions() throws IOException {
+        for (int i = 0; i < 16; i++) {
+            track(new Socket(InetAddress.getLoopbackAddress(), port));
+        }
+        final Socket socket = track(new SocksSocket(proxy, "127.0.0.1", echoServer.getLocalPort()));
+        assertEcho(socket, "hello");
+    }
+
+    @Test
+    public void testRuntimeExceptionInHandshakeClosesConnection() throws Exception {
+        server.stop();
+        serverThread.join(TIMEOUT);
+        startServer(new ServerAuthenticatorNone(null, null) {
+            @Override
+            public ServerAuthenticator startSession(final Socket s) {
+                throw new IllegalStateException("test");
+            }
+        });
+
+        final Socket socket = track(new Socket(InetAddress.getLoopbackAddress(), port));
+        socket.setSoTimeout(TIMEOUT);
+        assertEquals(-1, socket.getInputStream().read());
+    }
+
+    private void startServer(final ServerAuthenticator auth) throws Exception {
+        final ServerSocket tmp = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        port = tmp.getLocalPort();
+        tmp.close();
+        server = new NioProxyServer(auth);
+        serverThread = startThread(() -> server.start(port, 50, InetAddress.getLoopbackAddress()));
+        proxy = new Socks5Proxy(InetAddress.getLoopbackAddress(), port);
+
+        // Wait until the server accepts connections
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (true) {
+            try {
+                new Socket(InetAddress.getLoopbackAddress(), port).close();
+                return;
+            } catch (final ConnectException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    // Datagram to the peer with the SOCKS5 UDP header
+    private static DatagramPacket toRelay(final String message, final DatagramSocket peer,
+                                          final InetSocketAddress relay) {
+        final byte[] data = message.getBytes();
+        final byte[] datagram = new byte[10 + data.length];
+        datagram[3] = Socks5Message.SOCKS_ATYP_IPV4;
+        System.arraycopy(InetAddress.getLoopbackAddress().getAddress(), 0, datagram, 4, 4);
+        datagram[8] = (byte) (peer.getLocalPort() >> 8);
+        datagram[9] = (byte) peer.getLocalPort();
+        System.arraycopy(data, 0, datagram, 10, data.length);
+        return new DatagramPacket(datagram, datagram.length, relay);
+    }
+
+    private Socket track(final Socket socket) {
+        sockets.add(socket);
+        return socket;
+    }
+
+    private static void assertEcho(final Socket socket, final String message) throws IOException {
+        socket.setSoTimeout(TIMEOUT);
+        socket.getOutputStream().write(message.getBytes());
+        assertEquals(message, read(socket, message.length()));
+    }
+
+    private static String read(final Socket socket, final int length) throws IOException {
+        socket.setSoTimeout(TIMEOUT);
+        final byte[] data = new byte[length];
+        new DataInputStream(socket.getInputStream()).readFully(data);
+        return new String(data);
+    }
+
+    private static void echo(final Socket socket) {
+        try {
+            final InputStream in = socket.getInputStream();
+            final OutputStream out = socket.getOutputStream();
+            final byte[] buffer = new byte[1024];
+            int len;
+            while ((len = in.read(buffer)) > 0) {
+                out.write(buffer, 0, len);
+            }
+            socket.close();
+        } catch (final IOException ignore) {
+        }
+    }
+
+    private static Thread startThread(final Runnable runnable) {
+        final Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+}
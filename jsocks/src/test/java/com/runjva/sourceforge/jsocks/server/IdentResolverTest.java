@@ -0,0 +1,134 @@
+package com.runjva.sourceforge.jsocks.server;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class IdentResolverTest {
+    private static final InetAddress HOST = InetAddress.getLoopbackAddress();
+
+    private final AtomicInteger numLookups = new AtomicInteger();
+    private final CountDownLatch lookupStarted = new CountDownLatch(1);
+    private final CountDownLatch releaseLookup = new CountDownLatch(1);
+    private final CountDownLatch lookupInterrupted = new CountDownLatch(1);
+    private IdentResolver resolver;
+
+    @After
+    public void tearDown() {
+        releaseLookup.countDown();
+        resolver.shutdown();
+    }
+
+    // Another user may connect from the same port pair later
+    @Test
+    public void testAnswersAreNotCached() throws Exception {
+        resolver = createResolver("alice", 0, false);
+        assertEquals("alice", get(resolver.resolve(HOST, 1000, 1080)).userName);
+        assertEquals("alice", get(resolver.resolve(HOST, 1000, 1080)).userName);
+        assertEquals(2, numLookups.get());
+    }
+
+    @Test
+    public void testRunningLookupIsShared() throws Exception {
+        resolver = createResolver("alice", 0, true);
+        final Future<Ident> first = resolver.resolve(HOST, 1000, 1080);
+        assertTrue(lookupStarted.await(5, TimeUnit.SECONDS));
+        final Future<Ident> second = resolver.resolve(HOST, 1000, 1080);
+        final Future<Ident> otherConnection = resolver.resolve(HOST, 1001, 1080);
+        releaseLookup.countDown();
+
+        assertSame(get(first), get(second));
+        assertNotSame(get(first), get(otherConnection));
+        assertEquals(2, numLookups.get());
+    }
+
+    @Test
+    public void testHostWithoutIdentdFailsFast() throws Exception {
+        resolver = createResolver(null, Ident.ERR_NO_CONNECT, false);
+        assertEquals(Ident.ERR_NO_CONNECT, get(resolver.resolve(HOST, 1000, 1080)).errorCode);
+        assertEquals(Ident.ERR_NO_CONNECT, get(resolver.resolve(HOST, 1001, 1080)).errorCode);
+        assertEquals(1, numLookups.get());
+    }
+
+    @Test
+    public void testProtocolErrorIsNotCached() throws Exception {
+        resolver = createResolver(null, Ident.ERR_PROTOCOL, false);
+        assertFalse(get(resolver.resolve(HOST, 1000, 1080)).successful);
+        assertFalse(get(resolver.resolve(HOST, 1000, 1080)).successful);
+        assertEquals(2, numLookups.get());
+    }
+
+    // A lookup which is not waited for anymore must not keep its thread
+    @Test
+    public void testCancelStopsLookup() throws Exception {
+        resolver = createResolver("alice", 0, true);
+        final Future<Ident> lookup = resolver.resolve(HOST, 1000, 1080);
+        assertTrue(lookupStarted.await(5, TimeUnit.SECONDS));
+        assertTrue(lookup.cancel(true));
+        assertTrue(lookupInterrupted.await(5, TimeUnit.SECONDS));
+
+        // A new lookup for the same connection is started
+        final Future<Ident> next = resolver.resolve(HOST, 1000, 1080);
+        assertNotSame(lookup, next);
+        releaseLookup.countDown();
+        assertEquals("alice", get(next).userName);
+        assertEquals(2, numLookups.get());
+    }
+
+    // Lookups are not queued behind blocked ones
+    @Test
+    public void testTooManyLookupsFailRightAway() throws Exception {
+        resolver = createResolver("alice", 0, true);
+        resolver.resolve(HOST, 1000, 1080);
+        resolver.resolve(HOST, 1001, 1080);
+        try {
+            resolver.resolve(HOST, 1002, 1080).get(1, TimeUnit.SECONDS);
+            fail("Expected ExecutionException");
+        } catch (final ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+    }
+
+    private IdentResolver createResolver(final String userName,
+                                         final int errorCode,
+                                         final boolean block) {
+        return new IdentResolver(2, 60 * 1000, 16) {
+            @Override
+            Ident lookUpIdent(final Socket sock, final InetAddress remoteIP,
+                              final int remotePort, final int localPort) {
+                numLookups.incrementAndGet();
+                lookupStarted.countDown();
+                if (block) {
+                    try {
+                        releaseLookup.await();
+                    } catch (final InterruptedException e) {
+                        lookupInterrupted.countDown();
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                // Only tries port 113 of the loopback address, we overwrite
+                // the result
+                final Ident ident = new Ident(sock, remoteIP, remotePort,
+                        localPort);
+                ident.successful = userName != null;
+                ident.userName = userName;
+                ident.errorCode = errorCode;
+                return ident;
+            }
+        };
+    }
+
+    private static Ident get(final Future<Ident> future) throws Exception {
+        return future.get(5, TimeUnit.SECONDS);
+    }
+}
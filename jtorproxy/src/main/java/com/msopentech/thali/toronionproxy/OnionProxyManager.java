@@ -270,6 +270,22 @@ public abstract class OnionProxyManager {
         return false;
     }
 
+    /**
+     * Asks Tor to fetch the descriptor of the hidden service, so a later
+     * connect to it does not have to wait for the descriptor. Requires Tor
+     * 0.2.7 or later.
+     *
+     * @param onionUrl Address of the hidden service in the form X.onion
+     * @throws java.io.IOException - If Tor is not running or rejects HSFETCH
+     */
+    public synchronized void fetchHiddenServiceDescriptor(String onionUrl) throws IOException {
+        if (controlConnection == null) {
+            throw new IOException("Tor is not running!");
+        }
+        int dot = onionUrl.indexOf(".");
+        controlConnection.isHSAvailable(dot < 0 ? onionUrl : onionUrl.substring(0, dot));
+    }
+
     /**
      * Kills the Tor OP Process. Once you have called this method nothing is
      * going to work until you either call startWithRepeat or
@@ -2,6 +2,7 @@ package io.nucleo.net;
 
 import java.io.IOException;
 import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
 
 public abstract class ServiceDescriptor {
 
@@ -12,7 +13,8 @@ public abstract class ServiceDescriptor {
     public ServiceDescriptor(String hostname, int servicePort) throws IOException {
         this.hostname = hostname;
         this.servicePort = servicePort;
-        this.serverSocket = new ServerSocket();
+        // Backed by a channel so the server socket can also be used with a selector
+        this.serverSocket = ServerSocketChannel.open().socket();
     }
 
     public String getHostname() {
@@ -0,0 +1,342 @@
+package io.nucleo.net;
+
+import com.msopentech.thali.toronionproxy.OnionProxyManager;
+import com.runjva.sourceforge.jsocks.protocol.Socks5Proxy;
+import com.runjva.sourceforge.jsocks.protocol.SocksException;
+import com.runjva.sourceforge.jsocks.protocol.SocksProxyBase;
+import com.runjva.sourceforge.jsocks.protocol.SocksSocket;
+import net.freehaven.tor.control.TorControlError;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the outbound connections of a TorNode.
+ * <p>
+ * Tor answers a connect to a hidden service which is not reachable yet, e.g. as its descriptor is not fetched yet,
+ * with "host unreachable". Such connects are retried with growing delays which are timed by a scheduler, so no
+ * thread sleeps between the tries.
+ * <p>
+ * Descriptors of known peers can be fetched in advance with HSFETCH (Tor 0.2.7 and above), so the first connect to
+ * them does not wait for the descriptor.
+ * <p>
+ * If enabled with setKeepSpareConnections, a spare connection is kept open to addresses which are contacted
+ * frequently, which also keeps the circuit to the hidden service alive. Spare connections which are not used within
+ * WARM_IDLE_TIMEOUT get closed. That is off by default, as to the peer a spare connection looks like an idle
+ * inbound connection which never authenticates.
+ */
+public class TorConnectManager {
+    private static final Logger log = LoggerFactory.getLogger(TorConnectManager.class);
+
+    static final int DEFAULT_NUM_TRIES = 5;
+    private static final long INITIAL_RETRY_DELAY = 500;
+    private static final long MAX_RETRY_DELAY = 8000;
+    // Must be well below the socket timeout of the peer
+    private static final long WARM_IDLE_TIMEOUT = 60 * 1000;
+    private static final int MAX_WARM_SOCKETS = 8;
+    // An address is contacted frequently if we connected MIN_CONTACTS times to it within CONTACT_WINDOW
+    private static final long CONTACT_WINDOW = 10 * 60 * 1000;
+    private static final int MIN_CONTACTS = 3;
+    // We don't fetch the descriptor of an address again within that time
+    private static final long PREFETCH_INTERVAL = 10 * 60 * 1000;
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private final Socks5Proxy proxy;
+    private final OnionProxyManager tor;
+    private final ScheduledExecutorService scheduler;
+    // Opening a SocksSocket blocks, so the tries run in their own threads
+    private final ExecutorService connectExecutor;
+
+    // All guarded by this
+    private final Map<String, WarmSocket> warmSockets = new HashMap<>();
+    private final Map<String, Deque<Long>> contacts = new HashMap<>();
+    private final Map<String, Long> prefetched = new HashMap<>();
+    private boolean prefetchSupported = true;
+    private boolean keepSpareConnections;
+    private boolean shutDown;
+
+    public TorConnectManager(Socks5Proxy proxy, OnionProxyManager tor) {
+        this.proxy = proxy;
+        this.tor = tor;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> newDaemonThread(r, "TorConnectManager-scheduler"));
+        connectExecutor = Executors.newCachedThreadPool(r -> newDaemonThread(r,
+                "TorConnectManager-" + threadCount.incrementAndGet()));
+        scheduler.scheduleWithFixedDelay(this::evict, WARM_IDLE_TIMEOUT / 2, WARM_IDLE_TIMEOUT / 2,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Connects to the hidden service. A spare connection is used if there is one, otherwise a new one is created,
+     * which is tried up to numTries times if the hidden service is not reachable yet.
+     *
+     * @return Future which completes with the socket, or with an IOException if all tries failed.
+     */
+    public CompletableFuture<Socket> connect(String onionUrl, int port, int numTries) {
+        CompletableFuture<Socket> result = new CompletableFuture<>();
+        String key = onionUrl + ":" + port;
+        boolean frequent;
+        WarmSocket warmSocket;
+        synchronized (this) {
+            if (shutDown) {
+                result.completeExceptionally(new IOException("Cannot connect to hidden service. We are shut down."));
+                return result;
+            }
+            frequent = addContact(key) && keepSpareConnections;
+            warmSocket = warmSockets.remove(key);
+        }
+
+        long startTime = System.currentTimeMillis();
+        execute(result, () -> {
+            if (warmSocket != null) {
+                if (isAlive(warmSocket.socket)) {
+                    log.debug("Using spare connection to {}", key);
+                    result.complete(warmSocket.socket);
+                    if (frequent)
+                        openWarmSocket(onionUrl, port);
+                    return;
+                }
+                closeQuietly(warmSocket.socket);
+            }
+            tryConnect(onionUrl, port, numTries, 1, INITIAL_RETRY_DELAY, startTime, frequent, result);
+        });
+        return result;
+    }
+
+    /**
+     * Asks Tor to fetch the descriptor of the hidden service, if that was not done recently. Does not block.
+     */
+    public void prefetch(String onionUrl) {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (shutDown || !prefetchSupported)
+                return;
+            Long last = prefetched.get(onionUrl);
+            if (last != null && now - last < PREFETCH_INTERVAL)
+                return;
+            prefetched.put(onionUrl, now);
+        }
+
+        try {
+            connectExecutor.execute(() -> {
+                try {
+                    tor.fetchHiddenServiceDescriptor(onionUrl);
+                    log.trace("Fetching descriptor of {}", onionUrl);
+                } catch (TorControlError e) {
+                    if (e.getMessage() != null && e.getMessage().contains("Unrecognized command")) {
+                        synchronized (TorConnectManager.this) {
+                            prefetchSupported = false;
+                        }
+                        log.info("Tor does not support HSFETCH, we don't prefetch descriptors.");
+                    } else {
+                        log.debug("Fetching descriptor of {} failed. {}", onionUrl, e.getMessage());
+                    }
+                } catch (IOException | RuntimeException e) {
+                    log.debug("Fetching descriptor of {} failed. {}", onionUrl, e.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException ignore) {
+            // shut down
+        }
+    }
+
+    /**
+     * Only enable it if the peers accept idle connections, e.g. our own seed nodes. Disabling it closes the spare
+     * connections.
+     */
+    public void setKeepSpareConnections(boolean keepSpareConnections) {
+        List<WarmSocket> toClose;
+        synchronized (this) {
+            this.keepSpareConnections = keepSpareConnections;
+            if (keepSpareConnections)
+                return;
+            toClose = new ArrayList<>(warmSockets.values());
+            warmSockets.clear();
+        }
+        toClose.forEach(warmSocket -> closeQuietly(warmSocket.socket));
+    }
+
+    synchronized int getNumSpareConnections() {
+        return warmSockets.size();
+    }
+
+    public void shutdown() {
+        List<WarmSocket> toClose;
+        synchronized (this) {
+            shutDown = true;
+            toClose = new ArrayList<>(warmSockets.values());
+            warmSockets.clear();
+        }
+        scheduler.shutdownNow();
+        connectExecutor.shutdownNow();
+        toClose.forEach(warmSocket -> closeQuietly(warmSocket.socket));
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    // Runs in connectExecutor
+    private void tryConnect(String onionUrl, int port, int numTries, int tryNr, long retryDelay, long startTime,
+                            boolean frequent, CompletableFuture<Socket> result) {
+        try {
+            Socket socket = openSocket(onionUrl, port);
+            log.info("Took {} milliseconds to connect to {}:{}", System.currentTimeMillis() - startTime, onionUrl,
+                    port);
+            result.complete(socket);
+            if (frequent)
+                openWarmSocket(onionUrl, port);
+        } catch (IOException e) {
+            if (!isRetryable(e)) {
+                result.completeExceptionally(new IOException("Cannot connect to hidden service", e));
+                return;
+            }
+            if (tryNr >= numTries || isShutDown()) {
+                result.completeExceptionally(new IOException("Cannot connect to hidden service"));
+                return;
+            }
+            log.debug("Try {} connecting to {}:{} failed. Retrying in {} ms.", tryNr, onionUrl, port, retryDelay);
+            long nextRetryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+            try {
+                scheduler.schedule(() -> execute(result, () -> tryConnect(onionUrl, port, numTries, tryNr + 1,
+                        nextRetryDelay, startTime, frequent, result)), retryDelay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException ree) {
+                result.completeExceptionally(new IOException("Cannot connect to hidden service. We are shut down."));
+            }
+        } catch (RuntimeException e) {
+            result.completeExceptionally(new IOException("Cannot connect to hidden service", e));
+        }
+    }
+
+    private static boolean isRetryable(IOException e) {
+        return e instanceof UnknownHostException || (e instanceof SocksException
+                && ((SocksException) e).getErrorCode() == SocksProxyBase.SOCKS_HOST_UNREACHABLE);
+    }
+
+    // Runs in connectExecutor
+    private void openWarmSocket(String onionUrl, int port) {
+        String key = onionUrl + ":" + port;
+        synchronized (this) {
+            if (shutDown || !keepSpareConnections || warmSockets.containsKey(key)
+                    || warmSockets.size() >= MAX_WARM_SOCKETS)
+                return;
+        }
+
+        Socket socket;
+        try {
+            socket = openSocket(onionUrl, port);
+        } catch (Exception e) {
+            log.debug("Opening spare connection to {} failed. {}", key, e.getMessage());
+            return;
+        }
+        synchronized (this) {
+            if (!shutDown && keepSpareConnections && !warmSockets.containsKey(key)
+                    && warmSockets.size() < MAX_WARM_SOCKETS) {
+                warmSockets.put(key, new WarmSocket(socket));
+                return;
+            }
+        }
+        closeQuietly(socket);
+    }
+
+    private Socket openSocket(String onionUrl, int port) throws IOException {
+        SocksSocket ssock = new SocksSocket(proxy, onionUrl, port);
+        ssock.setTcpNoDelay(true);
+        return ssock;
+    }
+
+    // Returns true if the address is contacted frequently
+    private boolean addContact(String key) {
+        long now = System.currentTimeMillis();
+        Deque<Long> times = contacts.get(key);
+        if (times == null) {
+            times = new ArrayDeque<>();
+            contacts.put(key, times);
+        }
+        times.addLast(now);
+        while (times.size() > MIN_CONTACTS || now - times.peekFirst() > CONTACT_WINDOW)
+            times.removeFirst();
+        return times.size() >= MIN_CONTACTS;
+    }
+
+    // Runs in scheduler
+    private void evict() {
+        long now = System.currentTimeMillis();
+        List<WarmSocket> toClose = new ArrayList<>();
+        synchronized (this) {
+            for (Iterator<WarmSocket> iterator = warmSockets.values().iterator(); iterator.hasNext(); ) {
+                WarmSocket warmSocket = iterator.next();
+                if (now - warmSocket.created > WARM_IDLE_TIMEOUT) {
+                    iterator.remove();
+                    toClose.add(warmSocket);
+                }
+            }
+            contacts.values().removeIf(times -> now - times.peekLast() > CONTACT_WINDOW);
+            prefetched.values().removeIf(time -> now - time > PREFETCH_INTERVAL);
+        }
+        if (!toClose.isEmpty())
+            log.debug("Closing {} unused spare connections", toClose.size());
+        toClose.forEach(warmSocket -> closeQuietly(warmSocket.socket));
+    }
+
+    private void execute(CompletableFuture<Socket> result, Runnable task) {
+        try {
+            connectExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(new IOException("Cannot connect to hidden service. We are shut down."));
+        }
+    }
+
+    private synchronized boolean isShutDown() {
+        return shutDown;
+    }
+
+    // The peer never sends before we do, so on a usable connection the read times out. If the peer or Tor closed
+    // the connection in the meantime we read the end of the stream.
+    static boolean isAlive(Socket socket) {
+        try {
+            int soTimeout = socket.getSoTimeout();
+            socket.setSoTimeout(1);
+            try {
+                socket.getInputStream().read();
+                return false;
+            } catch (SocketTimeoutException e) {
+                return true;
+            } finally {
+                socket.setSoTimeout(soTimeout);
+            }
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException | RuntimeException ignore) {
+        }
+    }
+
+    private static Thread newDaemonThread(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private static final class WarmSocket {
+        final Socket socket;
+        final long created = System.currentTimeMillis();
+
+        WarmSocket(Socket socket) {
+            this.socket = socket;
+        }
+    }
+}
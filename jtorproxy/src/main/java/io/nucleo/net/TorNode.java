@@ -3,20 +3,19 @@ package io.nucleo.net;
 import com.msopentech.thali.toronionproxy.OnionProxyContext;
 import com.msopentech.thali.toronionproxy.OnionProxyManager;
 import com.runjva.sourceforge.jsocks.protocol.Socks5Proxy;
-import com.runjva.sourceforge.jsocks.protocol.SocksSocket;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.Socket;
 import java.net.UnknownHostException;
-import java.util.GregorianCalendar;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 public abstract class TorNode<M extends OnionProxyManager, C extends OnionProxyContext> {
 
     static final String PROXY_LOCALHOST = "127.0.0.1";
 
-    private static final int RETRY_SLEEP = 500;
     private static final int TOTAL_SEC_PER_STARTUP = 4 * 60;
     private static final int TRIES_PER_STARTUP = 5;
 
@@ -24,6 +23,7 @@ public abstract class TorNode<M extends OnionProxyManager, C extends OnionProxyC
 
     private final OnionProxyManager tor;
     private final Socks5Proxy proxy;
+    private final TorConnectManager connectManager;
 
     public TorNode(M mgr) throws IOException {
         OnionProxyContext ctx = mgr.getOnionProxyContext();
@@ -32,6 +32,7 @@ public abstract class TorNode<M extends OnionProxyManager, C extends OnionProxyC
         int proxyPort = tor.getIPv4LocalHostSocksPort();
         log.info("TorSocks running on port " + proxyPort);
         this.proxy = setupSocksProxy(proxyPort);
+        this.connectManager = new TorConnectManager(proxy, tor);
     }
 
     private Socks5Proxy setupSocksProxy(int proxyPort) throws UnknownHostException {
@@ -41,37 +42,45 @@ public abstract class TorNode<M extends OnionProxyManager, C extends OnionProxyC
     }
 
     public Socket connectToHiddenService(String onionUrl, int port) throws IOException {
-        return connectToHiddenService(onionUrl, port, 5);
+        return connectToHiddenService(onionUrl, port, TorConnectManager.DEFAULT_NUM_TRIES);
     }
 
     public Socket connectToHiddenService(String onionUrl, int port, int numTries) throws IOException {
-        return connectToHiddenService(onionUrl, port, numTries, true);
+        try {
+            return connectToHiddenServiceAsync(onionUrl, port, numTries).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException("Cannot connect to hidden service", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while connecting to hidden service");
+        }
     }
 
-    private Socket connectToHiddenService(String onionUrl, int port, int numTries, boolean debug) throws IOException {
-        long before = GregorianCalendar.getInstance().getTimeInMillis();
-        for (int i = 0; i < numTries; ++i) {
-            try {
-                SocksSocket ssock = new SocksSocket(proxy, onionUrl, port);
-                if (debug)
-                    log.info("Took " + (GregorianCalendar.getInstance().getTimeInMillis() - before)
-                            + " milliseconds to connect to " + onionUrl + ":" + port);
-                ssock.setTcpNoDelay(true);
-                return ssock;
-            } catch (UnknownHostException exx) {
-                try {
-                    if (debug)
-                        log.debug(
-                                "Try " + (i + 1) + " connecting to " + onionUrl + ":" + port + " failed. retrying...");
-                    Thread.sleep(RETRY_SLEEP);
-                    continue;
-                } catch (InterruptedException e) {
-                }
-            } catch (Exception e) {
-                throw new IOException("Cannot connect to hidden service");
-            }
-        }
-        throw new IOException("Cannot connect to hidden service");
+    /**
+     * Same as connectToHiddenService but does not block, the tries are done by the TorConnectManager.
+     */
+    public CompletableFuture<Socket> connectToHiddenServiceAsync(String onionUrl, int port) {
+        return connectToHiddenServiceAsync(onionUrl, port, TorConnectManager.DEFAULT_NUM_TRIES);
+    }
+
+    public CompletableFuture<Socket> connectToHiddenServiceAsync(String onionUrl, int port, int numTries) {
+        return connectManager.connect(onionUrl, port, numTries);
+    }
+
+    /**
+     * Lets Tor fetch the descriptor of the hidden service in the background.
+     */
+    public void prefetchHiddenService(String onionUrl) {
+        connectManager.prefetch(onionUrl);
+    }
+
+    /**
+     * Keeps a spare connection open to frequently contacted hidden services. Off by default, see TorConnectManager.
+     */
+    public void setKeepSpareConnections(boolean keepSpareConnections) {
+        connectManager.setKeepSpareConnections(keepSpareConnections);
     }
 
     public void addHiddenServiceReadyListener(HiddenServiceDescriptor hiddenServiceDescriptor,
@@ -100,6 +109,7 @@ public abstract class TorNode<M extends OnionProxyManager, C extends OnionProxyC
     }
 
     public void shutdown() throws IOException {
+        connectManager.shutdown();
         tor.stop();
     }
 
@@ -0,0 +1,194 @@
+package io.nucleo.net;
+
+import com.runjva.sourceforge.jsocks.protocol.NioProxyServer;
+import com.runjva.sourceforge.jsocks.protocol.Socks5Proxy;
+import com.runjva.sourceforge.jsocks.protocol.SocksSocket;
+import com.runjva.sourceforge.jsocks.server.ServerAuthenticatorNone;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+// Connects through a local SOCKS proxy instead of Tor
+public class TorConnectManagerTest {
+    private static final int TIMEOUT = 5000;
+    private static final String HOST = "127.0.0.1";
+
+    private final List<Socket> sockets = new ArrayList<>();
+    private final AtomicInteger numAccepted = new AtomicInteger();
+    private ServerSocket peer;
+    private NioProxyServer proxyServer;
+    private Thread proxyServerThread;
+    private TorConnectManager connectManager;
+
+    @Before
+    public void setup() throws Exception {
+        peer = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread peerThread = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket socket = peer.accept();
+                    synchronized (sockets) {
+                        sockets.add(socket);
+                    }
+                    numAccepted.incrementAndGet();
+                }
+            } catch (IOException ignore) {
+            }
+        });
+        peerThread.setDaemon(true);
+        peerThread.start();
+
+        ServerSocket tmp = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        int proxyPort = tmp.getLocalPort();
+        tmp.close();
+        proxyServer = new NioProxyServer(new ServerAuthenticatorNone(null, null));
+        proxyServerThread = new Thread(() -> proxyServer.start(proxyPort, 50, InetAddress.getLoopbackAddress()));
+        proxyServerThread.setDaemon(true);
+        proxyServerThread.start();
+        awaitListening(proxyPort);
+
+        Socks5Proxy proxy = new Socks5Proxy(InetAddress.getLoopbackAddress(), proxyPort);
+        proxy.resolveAddrLocally(false);
+        // Tor is only used for prefetching
+        connectManager = new TorConnectManager(proxy, null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        connectManager.shutdown();
+        synchronized (sockets) {
+            for (Socket socket : sockets)
+                socket.close();
+        }
+        proxyServer.stop();
+        proxyServerThread.join(TIMEOUT);
+        peer.close();
+    }
+
+    @Test
+    public void testConnect() throws Exception {
+        Socket socket = connect();
+        socket.getOutputStream().write(1);
+        awaitNumAccepted(1);
+    }
+
+    // Spare connections look like idle unauthenticated connections to the peer
+    @Test
+    public void testNoSpareConnectionsByDefault() throws Exception {
+        for (int i = 0; i < 4; i++)
+            connect();
+        awaitNumAccepted(4);
+        Thread.sleep(200);
+        assertEquals(4, numAccepted.get());
+        assertEquals(0, connectManager.getNumSpareConnections());
+    }
+
+    @Test
+    public void testSpareConnectionIsUsed() throws Exception {
+        connectManager.setKeepSpareConnections(true);
+        for (int i = 0; i < 3; i++)
+            connect();
+        // The third contact within the window opens a spare connection
+        awaitNumSpareConnections(1);
+        awaitNumAccepted(4);
+
+        // The spare connection gets used and a new one is opened
+        connect();
+        awaitNumSpareConnections(1);
+        awaitNumAccepted(5);
+        Thread.sleep(200);
+        assertEquals(5, numAccepted.get());
+
+        connectManager.setKeepSpareConnections(false);
+        assertEquals(0, connectManager.getNumSpareConnections());
+    }
+
+    @Test
+    public void testConnectionRefusedIsNotRetried() throws Exception {
+        ServerSocket closed = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        int closedPort = closed.getLocalPort();
+        closed.close();
+        long startTime = System.currentTimeMillis();
+        try {
+            connectManager.connect(HOST, closedPort, 5).get(TIMEOUT, TimeUnit.MILLISECONDS);
+            fail("Expected IOException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        // The first retry would wait 500 ms
+        assertTrue(System.currentTimeMillis() - startTime < 500);
+    }
+
+    @Test
+    public void testIsAliveRestoresSoTimeout() throws Exception {
+        Socket socket = connect();
+        assertTrue(socket instanceof SocksSocket);
+        socket.setSoTimeout(1234);
+        assertTrue(TorConnectManager.isAlive(socket));
+        assertEquals(1234, socket.getSoTimeout());
+
+        awaitNumAccepted(1);
+        synchronized (sockets) {
+            sockets.get(0).close();
+        }
+        socket.setSoTimeout(0);
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (TorConnectManager.isAlive(socket)) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        assertEquals(0, socket.getSoTimeout());
+    }
+
+    private Socket connect() throws Exception {
+        Socket socket = connectManager.connect(HOST, peer.getLocalPort(), 1).get(TIMEOUT, TimeUnit.MILLISECONDS);
+        synchronized (sockets) {
+            sockets.add(socket);
+        }
+        return socket;
+    }
+
+    private void awaitNumAccepted(int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (numAccepted.get() < expected) {
+            assertTrue("Timeout waiting for " + expected + " connections", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private void awaitNumSpareConnections(int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (connectManager.getNumSpareConnections() != expected) {
+            assertTrue("Timeout waiting for " + expected + " spare connections",
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static void awaitListening(int port) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (true) {
+            try {
+                new Socket(InetAddress.getLoopbackAddress(), port).close();
+                return;
+            } catch (ConnectException e) {
+                if (System.currentTimeMillis() > deadline)
+                    throw e;
+                Thread.sleep(10);
+            }
+        }
+    }
+}
@@ -36,14 +36,23 @@ public class EncryptionService {
         this.keyRing = keyRing;
     }
 
+    // We use the sealed box if the receiver supports it, otherwise RSA
     public SealedAndSigned encryptAndSign(PubKeyRing pubKeyRing, Message message) throws CryptoException {
         KeyPair signatureKeyPair = keyRing.getSignatureKeyPair();
-        return Encryption.encryptHybridWithSignature(message, signatureKeyPair, pubKeyRing.getEncryptionPubKey());
+        if (pubKeyRing.getSealedBoxPubKey() != null)
+            return Encryption.encryptSealedBoxWithSignature(message, signatureKeyPair, pubKeyRing.getSealedBoxPubKey());
+        else
+            return Encryption.encryptHybridWithSignature(message, signatureKeyPair, pubKeyRing.getEncryptionPubKey());
     }
 
     public DecryptedMsgWithPubKey decryptAndVerify(SealedAndSigned sealedAndSigned) throws CryptoException {
-        DecryptedPayloadWithPubKey decryptedPayloadWithPubKey = Encryption.decryptHybridWithSignature(sealedAndSigned,
-                keyRing.getEncryptionKeyPair().getPrivate());
+        DecryptedPayloadWithPubKey decryptedPayloadWithPubKey;
+        if (sealedAndSigned.version == SealedAndSigned.VERSION_SEALED_BOX)
+            decryptedPayloadWithPubKey = Encryption.decryptSealedBoxWithSignature(sealedAndSigned,
+                    keyRing.getSealedBoxKeyPair());
+        else
+            decryptedPayloadWithPubKey = Encryption.decryptHybridWithSignature(sealedAndSigned,
+                    keyRing.getEncryptionKeyPair().getPrivate());
         if (decryptedPayloadWithPubKey.payload instanceof Message) {
             return new DecryptedMsgWithPubKey((Message) decryptedPayloadWithPubKey.payload,
                     decryptedPayloadWithPubKey.sigPublicKey);
@@ -0,0 +1,153 @@
+package io.brightnet.p2p;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Deflate and inflate with pooled Deflater and Inflater instances. They are reset between uses, so the native zlib
+ * memory is not allocated per message. Instances not fitting into the pool get released with end().
+ * We use pools and not thread locals as with virtual threads a thread might only live for a single task.
+ */
+public class Compression {
+    public static final int NO_COMPRESSION = Deflater.NO_COMPRESSION;
+
+    private static final int MAX_POOL_SIZE = 2 * Runtime.getRuntime().availableProcessors();
+    private static final int CHUNK_SIZE = 8192;
+    // Size of the sample we compress to detect incompressible data like encrypted payloads
+    private static final int SAMPLE_SIZE = 4096;
+    private static final int MIN_SIZE_FOR_SAMPLING = 8 * SAMPLE_SIZE;
+
+    private static final Queue<Deflater> deflaterPool = new ConcurrentLinkedQueue<>();
+    private static final Queue<Inflater> inflaterPool = new ConcurrentLinkedQueue<>();
+    private static final Queue<byte[]> chunkPool = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Writes the compressed data to the outputStream.
+     */
+    public static void deflate(byte[] input, int offset, int length, int level, OutputStream outputStream)
+            throws IOException {
+        Deflater deflater = borrowDeflater(level);
+        byte[] chunk = borrowChunk();
+        try {
+            deflater.setInput(input, offset, length);
+            deflater.finish();
+            while (!deflater.finished()) {
+                int count = deflater.deflate(chunk);
+                outputStream.write(chunk, 0, count);
+            }
+        } finally {
+            release(deflater);
+            release(chunk);
+        }
+    }
+
+    /**
+     * Writes the decompressed data to the outputStream.
+     *
+     * @throws SizeLimitExceededException if the decompressed data would exceed maxSize. Protects against
+     *                                    compression bombs.
+     */
+    public static void inflate(byte[] input, int offset, int length, int maxSize, OutputStream outputStream)
+            throws IOException {
+        Inflater inflater = borrowInflater();
+        byte[] chunk = borrowChunk();
+        try {
+            inflater.setInput(input, offset, length);
+            long size = 0;
+            while (!inflater.finished()) {
+                int count = inflater.inflate(chunk);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new ZipException("Incomplete compressed data");
+
+                size += count;
+                if (size > maxSize)
+                    throw new SizeLimitExceededException(maxSize);
+                outputStream.write(chunk, 0, count);
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException(e.getMessage());
+        } finally {
+            release(inflater);
+            release(chunk);
+        }
+    }
+
+    /**
+     * Cheap check for data which would not get smaller by compression (encrypted or already compressed data).
+     * We compress a sample from the middle of the data, as java serialization has compressible class descriptors
+     * at the start.
+     */
+    public static boolean isLikelyIncompressible(byte[] input, int offset, int length) {
+        if (length < MIN_SIZE_FOR_SAMPLING)
+            return false;
+
+        Deflater deflater = borrowDeflater(Deflater.BEST_SPEED);
+        byte[] chunk = borrowChunk();
+        try {
+            deflater.setInput(input, offset + (length - SAMPLE_SIZE) / 2, SAMPLE_SIZE);
+            deflater.finish();
+            int compressedSize = 0;
+            while (!deflater.finished())
+                compressedSize += deflater.deflate(chunk);
+            return compressedSize > SAMPLE_SIZE * 95 / 100;
+        } finally {
+            release(deflater);
+            release(chunk);
+        }
+    }
+
+    private static Deflater borrowDeflater(int level) {
+        Deflater deflater = deflaterPool.poll();
+        if (deflater == null)
+            deflater = new Deflater(level);
+        else
+            deflater.setLevel(level);
+        return deflater;
+    }
+
+    private static Inflater borrowInflater() {
+        Inflater inflater = inflaterPool.poll();
+        return inflater != null ? inflater : new Inflater();
+    }
+
+    private static byte[] borrowChunk() {
+        byte[] chunk = chunkPool.poll();
+        return chunk != null ? chunk : new byte[CHUNK_SIZE];
+    }
+
+    private static void release(Deflater deflater) {
+        deflater.reset();
+        // size() is not exact for a concurrent queue but good enough to bound the pool
+        if (deflaterPool.size() < MAX_POOL_SIZE)
+            deflaterPool.offer(deflater);
+        else
+            deflater.end();
+    }
+
+    private static void release(Inflater inflater) {
+        inflater.reset();
+        if (inflaterPool.size() < MAX_POOL_SIZE)
+            inflaterPool.offer(inflater);
+        else
+            inflater.end();
+    }
+
+    private static void release(byte[] chunk) {
+        if (chunkPool.size() < MAX_POOL_SIZE)
+            chunkPool.offer(chunk);
+    }
+
+    public static class SizeLimitExceededException extends ZipException {
+        private static final long serialVersionUID = 1L;
+
+        public SizeLimitExceededException(int maxSize) {
+            super("Decompressed data exceeds max. size of " + maxSize + " bytes");
+        }
+    }
+}
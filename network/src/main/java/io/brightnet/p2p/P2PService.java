@@ -43,6 +43,8 @@ import static com.google.common.base.Preconditions.checkNotNull;
 
 public class P2PService implements SetupListener, MessageListener, ConnectionListener, HashMapChangedListener, AuthenticationListener {
     private static final Logger log = LoggerFactory.getLogger(P2PService.class);
+    private static final Log.CallSite TRACE_ON_MESSAGE = Log.callSite(P2PService.class, "onMessage");
+    private static final Log.CallSite TRACE_SEND_ENCRYPTED_MAILBOX_MESSAGE = Log.callSite(P2PService.class, "sendEncryptedMailboxMessage");
 
     private final SeedNodesRepository seedNodesRepository;
     private final int port;
@@ -61,6 +63,8 @@ public class P2PService implements SetupListener, MessageListener, ConnectionLis
     private final CopyOnWriteArraySet<DecryptedMailboxListener> decryptedMailboxListeners = new CopyOnWriteArraySet<>();
     protected final CopyOnWriteArraySet<P2PServiceListener> p2pServiceListeners = new CopyOnWriteArraySet<>();
     private final Map<DecryptedMsgWithPubKey, ProtectedMailboxData> mailboxMap = new HashMap<>();
+    // Hashes of the mailbox data we have tried to decrypt already, so we don't decrypt again at a republish
+    private final Set<ByteArray> processedMailboxDataHashes = new HashSet<>();
     private final Set<NodeAddress> authenticatedPeerNodeAddresses = new HashSet<>();
     private final CopyOnWriteArraySet<Runnable> shutDownResultHandlers = new CopyOnWriteArraySet<>();
     protected final BooleanProperty hiddenServicePublished = new SimpleBooleanProperty();
@@ -325,7 +329,7 @@ public class P2PService implements SetupListener, MessageListener, ConnectionLis
     @Override
     public void onMessage(Message message, Connection connection) {
         if (message instanceof SealedAndSignedMessage) {
-            Log.traceCall(message.toString());
+            Log.traceCall(TRACE_ON_MESSAGE, message);
             // Seed nodes don't have set the encryptionService
             if (optionalEncryptionService.isPresent()) {
                 try {
@@ -369,6 +373,8 @@ public class P2PService implements SetupListener, MessageListener, ConnectionLis
 
     @Override
     public void onRemoved(ProtectedData entry) {
+        if (entry instanceof ProtectedMailboxData)
+            processedMailboxDataHashes.remove(entry.getHashOfPayload());
     }
 
 
@@ -436,7 +442,15 @@ public class P2PService implements SetupListener, MessageListener, ConnectionLis
             if (expirablePayload instanceof ExpirableMailboxPayload) {
                 ExpirableMailboxPayload expirableMailboxPayload = (ExpirableMailboxPayload) expirablePayload;
                 SealedAndSignedMessage sealedAndSignedMessage = expirableMailboxPayload.sealedAndSignedMessage;
-                if (verifyAddressPrefixHash(sealedAndSignedMessage)) {
+                // The receivers storage key is public anyway as it is needed for the removal. Comparing it
+                // is much cheaper than the decryption and rules out all the data not intended for us.
+                if (!isReceiver(expirableMailboxPayload)) {
+                    log.trace("Mailbox data is not intended for us.");
+                } else if (!verifyAddressPrefixHash(sealedAndSignedMessage)) {
+                    log.info("Wrong blurredAddressHash. The message is not intended for us.");
+                } else if (!processedMailboxDataHashes.add(mailboxData.getHashOfPayload())) {
+                    log.trace("Mailbox data has been processed already.");
+                } else {
                     try {
                         DecryptedMsgWithPubKey decryptedMsgWithPubKey = optionalEncryptionService.get().decryptAndVerify(
                                 sealedAndSignedMessage.sealedAndSigned);
@@ -458,8 +472,6 @@ public class P2PService implements SetupListener, MessageListener, ConnectionLis
                         log.trace("Decryption of SealedAndSignedMessage failed. " +
                                 "That is expected if the message is not intended for us. " + e.getMessage());
                     }
-                } else {
-                    log.info("Wrong blurredAddressHash. The message is not intended for us.");
                 }
             }
         }
@@ -467,7 +479,7 @@ public class P2PService implements SetupListener, MessageListener, ConnectionLis
 
     public void sendEncryptedMailboxMessage(NodeAddress peerNodeAddress, PubKeyRing peersPubKeyRing,
                                             MailboxMessage message, SendMailboxMessageListener sendMailboxMessageListener) {
-        Log.traceCall("message " + message);
+        Log.traceCall(TRACE_SEND_ENCRYPTED_MAILBOX_MESSAGE, message);
         checkNotNull(peerNodeAddress, "PeerAddress must not be null (sendEncryptedMailboxMessage)");
         checkArgument(optionalKeyRing.isPresent(), "keyRing not set. Seems that is called on a seed node which must not happen.");
         checkArgument(!optionalKeyRing.get().getPubKeyRing().equals(peersPubKeyRing), "We got own keyring instead of that from peer");
@@ -708,6 +720,12 @@ public class P2PService implements SetupListener, MessageListener, ConnectionLis
     // Private
     ///////////////////////////////////////////////////////////////////////////////////////////
 
+    private boolean isReceiver(ExpirableMailboxPayload expirableMailboxPayload) {
+        return optionalKeyRing.isPresent() &&
+                optionalKeyRing.get().getPubKeyRing().getSignaturePubKey().equals(
+                        expirableMailboxPayload.receiverStoragePublicKey);
+    }
+
     private boolean verifyAddressPrefixHash(SealedAndSignedMessage sealedAndSignedMessage) {
         if (myOnionNodeAddress != null) {
             byte[] blurredAddressHash = myOnionNodeAddress.getAddressPrefixHash();
@@ -9,9 +9,7 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.net.ServerSocket;
 import java.util.Random;
-import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
-import java.util.zip.Inflater;
 
 public class Utils {
     private static final Logger log = LoggerFactory.getLogger(Utils.class);
@@ -32,39 +30,20 @@ public class Utils {
     }
 
     private static byte[] compress(byte[] input) {
-        Deflater compressor = new Deflater();
-        compressor.setLevel(Deflater.BEST_SPEED);
-        compressor.setInput(input);
-        compressor.finish();
-        ByteArrayOutputStream bos = new ByteArrayOutputStream(input.length);
-        byte[] buf = new byte[8192];
-        while (!compressor.finished()) {
-            int count = compressor.deflate(buf);
-            bos.write(buf, 0, count);
-        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(input.length / 2 + 64);
         try {
-            bos.close();
-        } catch (IOException ignored) {
+            Compression.deflate(input, 0, input.length, Deflater.BEST_SPEED, bos);
+        } catch (IOException e) {
+            // ByteArrayOutputStream does not throw
+            throw new RuntimeException(e);
         }
         return bos.toByteArray();
     }
 
     private static byte[] decompress(byte[] compressedData, int offset, int length) {
-        Inflater inflater = new Inflater();
-        inflater.setInput(compressedData, offset, length);
-        ByteArrayOutputStream bos = new ByteArrayOutputStream(length);
-        byte[] buf = new byte[8192];
-        while (!inflater.finished()) {
-            try {
-                int count = inflater.inflate(buf);
-                bos.write(buf, 0, count);
-            } catch (DataFormatException e) {
-                e.printStackTrace();
-                throw new RuntimeException(e);
-            }
-        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(length * 2);
         try {
-            bos.close();
+            Compression.inflate(compressedData, offset, length, Integer.MAX_VALUE, bos);
         } catch (IOException e) {
             e.printStackTrace();
             throw new RuntimeException(e);
@@ -4,11 +4,11 @@ import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.Uninterruptibles;
 import io.brightnet.app.Log;
 import io.brightnet.app.Version;
-import io.brightnet.common.ByteArrayUtils;
 import io.brightnet.common.UserThread;
+import io.brightnet.common.util.Utilities;
+import io.brightnet.p2p.Compression;
 import io.brightnet.p2p.Message;
 import io.brightnet.p2p.NodeAddress;
-import io.brightnet.p2p.Utils;
 import io.brightnet.p2p.network.messages.CloseConnectionMessage;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
@@ -18,10 +18,17 @@ import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
 import java.util.Date;
 import java.util.Optional;
+import java.util.Queue;
 import java.util.UUID;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.ZipException;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -32,38 +39,58 @@ import static com.google.common.base.Preconditions.checkNotNull;
  */
 public class Connection implements MessageListener {
     private static final Logger log = LoggerFactory.getLogger(Connection.class);
-    private static final int MAX_MSG_SIZE = 5 * 1024 * 1024;         // 5 MB of compressed data
+    private static final Log.CallSite TRACE_SHUT_DOWN = Log.callSite(Connection.class, "shutDown");
+    private static final Log.CallSite TRACE_HANDLE_CONNECTION_EXCEPTION = Log.callSite(Connection.class, "handleConnectionException");
+    private static final int MAX_MSG_SIZE = 5 * 1024 * 1024;         // 5 MB, applies to the frame and the decompressed data
     //timeout on blocking Socket operations like ServerSocket.accept() or SocketInputStream.read()
     private static final int SOCKET_TIMEOUT = 10 * 60 * 1000;        // 10 min.
     private ConnectionPriority connectionPriority;
 
+    private static MessageCodec messageCodec = new JavaSerializationCodec();
+    // Off by default, it costs CPU time and pays off only for large messages. Every peer using the frame format
+    // (NETWORK_PROTOCOL_VERSION 2) can read compressed frames, peers of version 1 cannot read frames at all.
+    private static int compressionLevel = Compression.NO_COMPRESSION;
+
     public static int getMaxMsgSize() {
         return MAX_MSG_SIZE;
     }
 
+    // Need to be set before any connection is created
+    public static void setMessageCodec(MessageCodec messageCodec) {
+        Connection.messageCodec = messageCodec;
+    }
+
+    // Deflater level 1-9 to compress outgoing messages, Compression.NO_COMPRESSION to disable it again
+    public static void setCompressionLevel(int compressionLevel) {
+        Connection.compressionLevel = compressionLevel;
+    }
+
     private final Socket socket;
     private final MessageListener messageListener;
     private final ConnectionListener connectionListener;
 
     private final String portInfo;
     private final String uid = UUID.randomUUID().toString();
-    private final ExecutorService singleThreadExecutor = Executors.newSingleThreadExecutor();
+    @Nullable
+    private final NioEventLoop eventLoop;
     // holder of state shared between InputHandler and Connection
     private final SharedSpace sharedSpace;
 
-    // set in init
+    // set in init, either the blocking InputHandler or the NioHandler is used
     private InputHandler inputHandler;
-    private ObjectOutputStream objectOutputStream;
+    private ExecutorService singleThreadExecutor;
+    private OutputStream outputStream;
+    // Not synchronized(outputStream) as a virtual thread blocking inside a monitor would pin its carrier thread
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private NioHandler nioHandler;
 
     // mutable data, set from other threads but not changed internally.
     private Optional<NodeAddress> peerAddressOptional = Optional.empty();
     private volatile boolean isAuthenticated;
     private volatile boolean stopped;
-
-    //TODO got java.util.zip.DataFormatException: invalid distance too far back
-    // java.util.zip.DataFormatException: invalid literal/lengths set
-    // use GZIPInputStream but problems with blocking
-    private final boolean useCompression = false;
+    // set by the registry of the NetworkNode, gets notified about peer address and priority changes
+    @Nullable
+    private volatile ConnectionRegistry connectionRegistry;
 
 
     ///////////////////////////////////////////////////////////////////////////////////////////
@@ -71,7 +98,14 @@ public class Connection implements MessageListener {
     ///////////////////////////////////////////////////////////////////////////////////////////
 
     public Connection(Socket socket, MessageListener messageListener, ConnectionListener connectionListener) {
+        this(socket, messageListener, connectionListener, null);
+    }
+
+    // If an eventLoop is passed and the socket has a channel the connection is driven by the eventLoop
+    Connection(Socket socket, MessageListener messageListener, ConnectionListener connectionListener,
+               @Nullable NioEventLoop eventLoop) {
         this.socket = socket;
+        this.eventLoop = eventLoop;
         this.messageListener = messageListener;
         this.connectionListener = connectionListener;
 
@@ -90,26 +124,32 @@ public class Connection implements MessageListener {
         Log.traceCall();
 
         try {
-            socket.setSoTimeout(SOCKET_TIMEOUT);
-            // Need to access first the ObjectOutputStream otherwise the ObjectInputStream would block
-            // See: https://stackoverflow.com/questions/5658089/java-creating-a-new-objectinputstream-blocks/5658109#5658109
-            // When you construct an ObjectInputStream, in the constructor the class attempts to read a header that 
-            // the associated ObjectOutputStream on the other end of the connection has written.
-            // It will not return until that header has been read. 
-            objectOutputStream = new ObjectOutputStream(socket.getOutputStream());
-            ObjectInputStream objectInputStream = new ObjectInputStream(socket.getInputStream());
-
-
-            // We create a thread for handling inputStream data
-            inputHandler = new InputHandler(sharedSpace, objectInputStream, portInfo, this, useCompression);
-            singleThreadExecutor.submit(inputHandler);
+            SocketChannel channel = socket.getChannel();
+            if (eventLoop != null && channel != null) {
+                // No thread per connection, the eventLoop handles reads, writes and the idle timeout
+                channel.configureBlocking(false);
+                nioHandler = new NioHandler(sharedSpace, channel, eventLoop, messageCodec, this);
+                nioHandler.start();
+            } else {
+                socket.setSoTimeout(SOCKET_TIMEOUT);
+                outputStream = new BufferedOutputStream(socket.getOutputStream());
+                FrameReader frameReader = new FrameReader(new BufferedInputStream(socket.getInputStream()), MAX_MSG_SIZE);
+
+                // We create a thread for handling inputStream data
+                inputHandler = new InputHandler(sharedSpace, frameReader, messageCodec, portInfo, this);
+                if (NetworkNode.getTransportMode() == TransportMode.VIRTUAL_THREADS)
+                    singleThreadExecutor = Utilities.getVirtualThreadExecutorService("InputHandler-" + portInfo);
+                if (singleThreadExecutor == null)
+                    singleThreadExecutor = Executors.newSingleThreadExecutor();
+                singleThreadExecutor.submit(inputHandler);
+            }
         } catch (IOException e) {
             sharedSpace.handleConnectionException(e);
         }
 
         sharedSpace.updateLastActivityDate();
 
-        log.trace("\nNew connection created " + this.toString());
+        log.trace("\nNew connection created {}", this);
         UserThread.execute(() -> connectionListener.onConnection(this));
     }
 
@@ -125,7 +165,15 @@ public class Connection implements MessageListener {
     }
 
     public void setConnectionPriority(ConnectionPriority connectionPriority) {
-        this.connectionPriority = connectionPriority;
+        ConnectionPriority oldConnectionPriority;
+        synchronized (this) {
+            oldConnectionPriority = this.connectionPriority;
+            this.connectionPriority = connectionPriority;
+        }
+        // The registry is called outside of the lock as it reads the state of other connections
+        ConnectionRegistry connectionRegistry = this.connectionRegistry;
+        if (connectionRegistry != null && connectionPriority != oldConnectionPriority)
+            connectionRegistry.onPriorityChanged(this, oldConnectionPriority, connectionPriority);
     }
 
     // Called form various threads
@@ -133,29 +181,55 @@ public class Connection implements MessageListener {
         Log.traceCall();
         if (!stopped) {
             try {
-                String peerAddress = peerAddressOptional.isPresent() ? peerAddressOptional.get().toString() : "null";
-                log.info("\n\n>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>\n" +
+                // Called for each message, the arguments get only formatted if trace is enabled
+                log.trace("\n\n>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>\n" +
                         "Write object to outputStream to peer: {} (uid={})\nmessage={}"
-                        + "\n>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>\n", peerAddress, uid, message);
-
-                Object objectToWrite;
-                if (useCompression) {
-                    byte[] messageAsBytes = ByteArrayUtils.objectToByteArray(message);
-                    // log.trace("Write object uncompressed data size: " + messageAsBytes.length);
-                    byte[] compressed = Utils.compress(message);
-                    //log.trace("Write object compressed data size: " + compressed.length);
-                    objectToWrite = compressed;
-                } else {
-                    // log.trace("Write object data size: " + ByteArrayUtils.objectToByteArray(message).length);
-                    objectToWrite = message;
-                }
-                if (!stopped) {
-                    synchronized (objectOutputStream) {
-                        objectOutputStream.writeObject(objectToWrite);
-                        objectOutputStream.flush();
+                        + "\n>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>\n", peerAddressOptional.orElse(null), uid, message);
+
+                // Encoding happens outside the lock, only the write of the ready frame is synchronized
+                FrameWriter.EncodeBuffer frame = FrameWriter.encode(messageCodec, message, compressionLevel);
+                try {
+                    // The peer checks the size after decompression as well
+                    if (frame.getMessageSize() > MAX_MSG_SIZE) {
+                        log.warn("Message exceeds max. size and will not be sent. messageSize={}, message={}",
+                                frame.getMessageSize(), message);
+                        return;
+                    }
+                    if (!stopped) {
+                        if (nioHandler != null)
+                            nioHandler.send(frame.copyFrame());
+                        else
+                            writeToStream(frame::writeFrameTo);
+                        sharedSpace.updateLastActivityDate();
                     }
-                    sharedSpace.updateLastActivityDate();
+                } finally {
+                    FrameWriter.release(frame);
+                }
+            } catch (IOException e) {
+                // an exception lead to a shutdown
+                sharedSpace.handleConnectionException(e);
+            }
+        } else {
+            log.debug("called sendMessage but was already stopped");
+        }
+    }
+
+    // Called form various threads. The frame is shared with other connections, so nothing gets serialized here.
+    public void sendMessage(EncodedMessage encodedMessage) {
+        if (!stopped) {
+            log.trace("Write encoded message to peer: {} (uid={}), frameLength={}",
+                    peerAddressOptional.orElse(null), uid, encodedMessage.getFrameLength());
+            try {
+                if (encodedMessage.getMessageSize() > MAX_MSG_SIZE) {
+                    log.warn("Message exceeds max. size and will not be sent. messageSize={}, message={}",
+                            encodedMessage.getMessageSize(), encodedMessage.getMessage());
+                    return;
                 }
+                if (nioHandler != null)
+                    nioHandler.send(encodedMessage.getFrame());
+                else
+                    writeToStream(encodedMessage::writeTo);
+                sharedSpace.updateLastActivityDate();
             } catch (IOException e) {
                 // an exception lead to a shutdown
                 sharedSpace.handleConnectionException(e);
@@ -165,15 +239,52 @@ public class Connection implements MessageListener {
         }
     }
 
+    /**
+     * Encodes the message once, so it can be sent to multiple connections with sendMessage(EncodedMessage).
+     */
+    public static EncodedMessage encode(Message message) throws IOException {
+        FrameWriter.EncodeBuffer frame = FrameWriter.encode(messageCodec, message, compressionLevel);
+        try {
+            return new EncodedMessage(message, frame.toFrameByteArray(), frame.getMessageSize());
+        } finally {
+            FrameWriter.release(frame);
+        }
+    }
+
+    private void writeToStream(FrameSource frameSource) throws IOException {
+        writeLock.lock();
+        try {
+            frameSource.writeTo(outputStream);
+            outputStream.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private interface FrameSource {
+        void writeTo(OutputStream outputStream) throws IOException;
+    }
+
     public void reportIllegalRequest(IllegalRequest illegalRequest) {
         Log.traceCall();
         sharedSpace.reportIllegalRequest(illegalRequest);
     }
 
-    public synchronized void setPeerAddress(NodeAddress peerNodeAddress) {
+    public void setPeerAddress(NodeAddress peerNodeAddress) {
         Log.traceCall();
         checkNotNull(peerNodeAddress, "peerAddress must not be null");
-        peerAddressOptional = Optional.of(peerNodeAddress);
+        NodeAddress oldPeerNodeAddress;
+        synchronized (this) {
+            oldPeerNodeAddress = peerAddressOptional.orElse(null);
+            peerAddressOptional = Optional.of(peerNodeAddress);
+        }
+        ConnectionRegistry connectionRegistry = this.connectionRegistry;
+        if (connectionRegistry != null)
+            connectionRegistry.onPeerAddressChanged(this, oldPeerNodeAddress, peerNodeAddress);
+    }
+
+    void setConnectionRegistry(ConnectionRegistry connectionRegistry) {
+        this.connectionRegistry = connectionRegistry;
     }
 
 
@@ -217,7 +328,7 @@ public class Connection implements MessageListener {
         return stopped;
     }
 
-    public ConnectionPriority getConnectionPriority() {
+    public synchronized ConnectionPriority getConnectionPriority() {
         return connectionPriority;
     }
 
@@ -239,19 +350,21 @@ public class Connection implements MessageListener {
     }
 
     private void shutDown(boolean sendCloseConnectionMessage, @Nullable Runnable shutDownCompleteHandler) {
-        Log.traceCall(this.toString());
+        Log.traceCall(TRACE_SHUT_DOWN, this);
         if (!stopped) {
-            String peerAddress = peerAddressOptional.isPresent() ? peerAddressOptional.get().toString() : "null";
-            log.info("\n\n%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%\n" +
-                    "ShutDown connection:"
-                    + "\npeerAddress=" + peerAddress
-                    + "\nlocalPort/port=" + sharedSpace.getSocket().getLocalPort()
-                    + "/" + sharedSpace.getSocket().getPort()
-                    + "\nuid=" + uid
-                    + "\nisAuthenticated=" + isAuthenticated
-                    + "\n%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%\n");
-
-            log.trace("ShutDown connection requested. Connection=" + this.toString());
+            if (log.isDebugEnabled()) {
+                String peerAddress = peerAddressOptional.isPresent() ? peerAddressOptional.get().toString() : "null";
+                log.debug("\n\n%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%\n" +
+                        "ShutDown connection:"
+                        + "\npeerAddress=" + peerAddress
+                        + "\nlocalPort/port=" + sharedSpace.getSocket().getLocalPort()
+                        + "/" + sharedSpace.getSocket().getPort()
+                        + "\nuid=" + uid
+                        + "\nisAuthenticated=" + isAuthenticated
+                        + "\n%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%\n");
+            }
+
+            log.trace("ShutDown connection requested. Connection={}", this);
 
             if (sendCloseConnectionMessage) {
                 new Thread(() -> {
@@ -294,16 +407,20 @@ public class Connection implements MessageListener {
         UserThread.execute(() -> connectionListener.onDisconnect(finalShutDownReason, this));
 
         try {
-            sharedSpace.getSocket().close();
+            if (nioHandler != null)
+                nioHandler.close();
+            else
+                sharedSpace.getSocket().close();
         } catch (SocketException e) {
             log.trace("SocketException at shutdown might be expected " + e.getMessage());
         } catch (IOException e) {
             log.error("Exception at shutdown. " + e.getMessage());
             e.printStackTrace();
         } finally {
-            MoreExecutors.shutdownAndAwaitTermination(singleThreadExecutor, 500, TimeUnit.MILLISECONDS);
+            if (singleThreadExecutor != null)
+                MoreExecutors.shutdownAndAwaitTermination(singleThreadExecutor, 500, TimeUnit.MILLISECONDS);
 
-            log.debug("Connection shutdown complete " + this.toString());
+            log.debug("Connection shutdown complete {}", this);
             // keep UserThread.execute as its not clear if that is called from a non-UserThread
 
             if (shutDownCompleteHandler != null)
@@ -343,7 +460,7 @@ public class Connection implements MessageListener {
                 ", stopped=" + stopped +
                 ", stopped=" + stopped +
                 ", connectionType=" + connectionPriority +
-                ", useCompression=" + useCompression +
+                ", nio=" + (nioHandler != null) +
                 '}';
     }
 
@@ -387,7 +504,7 @@ public class Connection implements MessageListener {
         public void reportIllegalRequest(IllegalRequest illegalRequest) {
             Log.traceCall();
             log.warn("We got reported an illegal request " + illegalRequest);
-            log.debug("connection={}" + this);
+            log.debug("connection={}", this);
             int violations;
             if (illegalRequests.contains(illegalRequest))
                 violations = illegalRequests.get(illegalRequest);
@@ -402,7 +519,7 @@ public class Connection implements MessageListener {
                         "violations={}\n" +
                         "illegalRequest={}\n" +
                         "illegalRequests={}", violations, illegalRequest, illegalRequests.toString());
-                log.debug("connection={}" + this);
+                log.debug("connection={}", this);
                 shutDown(false);
             } else {
                 illegalRequests.put(illegalRequest, ++violations);
@@ -410,7 +527,7 @@ public class Connection implements MessageListener {
         }
 
         public void handleConnectionException(Throwable e) {
-            Log.traceCall(e.toString());
+            Log.traceCall(TRACE_HANDLE_CONNECTION_EXCEPTION, e);
             if (e instanceof SocketException) {
                 if (socket.isClosed())
                     shutDownReason = ConnectionListener.Reason.SOCKET_CLOSED;
@@ -419,7 +536,7 @@ public class Connection implements MessageListener {
             } else if (e instanceof SocketTimeoutException || e instanceof TimeoutException) {
                 shutDownReason = ConnectionListener.Reason.TIMEOUT;
                 log.warn("TimeoutException at socket " + socket.toString());
-                log.debug("connection={}" + this);
+                log.debug("connection={}", this);
             } else if (e instanceof EOFException) {
                 shutDownReason = ConnectionListener.Reason.PEER_DISCONNECTED;
             } else if (e instanceof NoClassDefFoundError || e instanceof ClassNotFoundException) {
@@ -427,7 +544,7 @@ public class Connection implements MessageListener {
             } else {
                 shutDownReason = ConnectionListener.Reason.UNKNOWN;
                 log.warn("Exception at socket " + socket.toString());
-                log.debug("connection={}" + this);
+                log.debug("connection={}", this);
                 e.printStackTrace();
             }
 
@@ -471,6 +588,71 @@ public class Connection implements MessageListener {
     }
 
 
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Frame handling, shared by InputHandler and NioHandler
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    // Returns false if no further data should be read from that connection
+    private static boolean processFrame(SharedSpace sharedSpace, MessageCodec messageCodec, MessageListener messageListener,
+                                        byte typeTag, byte[] buffer, int offset, int length)
+            throws IOException, ClassNotFoundException {
+        if ((byte) (typeTag & ~FrameWriter.COMPRESSED_FLAG) != messageCodec.getTypeTag()) {
+            sharedSpace.reportIllegalRequest(IllegalRequest.InvalidDataType);
+            return true;
+        }
+
+        FrameReader.InflateBuffer inflated = null;
+        if ((typeTag & FrameWriter.COMPRESSED_FLAG) != 0) {
+            try {
+                inflated = FrameReader.inflate(buffer, offset, length, MAX_MSG_SIZE);
+            } catch (Compression.SizeLimitExceededException e) {
+                log.warn(e.getMessage());
+                sharedSpace.reportIllegalRequest(IllegalRequest.MaxSizeExceeded);
+                return false;
+            } catch (ZipException e) {
+                log.warn("Invalid compressed data. " + e.getMessage());
+                sharedSpace.reportIllegalRequest(IllegalRequest.InvalidDataType);
+                return false;
+            }
+            buffer = inflated.array();
+            offset = 0;
+            length = inflated.size();
+        }
+
+        Object rawInputObject;
+        try {
+            rawInputObject = messageCodec.decode(buffer, offset, length);
+        } finally {
+            if (inflated != null)
+                FrameReader.release(inflated);
+        }
+        log.trace("\n\n<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<\n" +
+                "New data arrived at inputHandler.\nReceived object={}"
+                + "\n<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<\n", rawInputObject);
+
+        if (!(rawInputObject instanceof Message)) {
+            sharedSpace.reportIllegalRequest(IllegalRequest.InvalidDataType);
+            return false;
+        }
+
+        Message message = (Message) rawInputObject;
+        if (message.networkId() != Version.getNetworkId()) {
+            sharedSpace.reportIllegalRequest(IllegalRequest.WrongNetworkId);
+            return false;
+        }
+
+        sharedSpace.updateLastActivityDate();
+        if (message instanceof CloseConnectionMessage) {
+            log.info("CloseConnectionMessage received on connection {}", sharedSpace.connection);
+            sharedSpace.shutDown(false);
+            return false;
+        } else {
+            messageListener.onMessage(message, null);
+            return true;
+        }
+    }
+
+
     ///////////////////////////////////////////////////////////////////////////////////////////
     // InputHandler
     ///////////////////////////////////////////////////////////////////////////////////////////
@@ -480,18 +662,19 @@ public class Connection implements MessageListener {
         private static final Logger log = LoggerFactory.getLogger(InputHandler.class);
 
         private final SharedSpace sharedSpace;
-        private final ObjectInputStream objectInputStream;
+        private final FrameReader frameReader;
+        private final MessageCodec messageCodec;
         private final String portInfo;
         private final MessageListener messageListener;
-        private final boolean useCompression;
 
         private volatile boolean stopped;
 
-        public InputHandler(SharedSpace sharedSpace, ObjectInputStream objectInputStream, String portInfo, MessageListener messageListener, boolean useCompression) {
-            this.useCompression = useCompression;
+        public InputHandler(SharedSpace sharedSpace, FrameReader frameReader, MessageCodec messageCodec, String portInfo,
+                            MessageListener messageListener) {
             Log.traceCall();
             this.sharedSpace = sharedSpace;
-            this.objectInputStream = objectInputStream;
+            this.frameReader = frameReader;
+            this.messageCodec = messageCodec;
             this.portInfo = portInfo;
             this.messageListener = messageListener;
         }
@@ -508,62 +691,24 @@ public class Connection implements MessageListener {
                 Thread.currentThread().setName("InputHandler-" + portInfo);
                 while (!stopped && !Thread.currentThread().isInterrupted()) {
                     try {
-                        log.trace("InputHandler waiting for incoming messages connection=" + sharedSpace.getConnectionInfo());
-                        Object rawInputObject = objectInputStream.readObject();
-                        log.trace("New data arrived at inputHandler.Connection=" + sharedSpace.getConnectionInfo());
-
-                        log.info("\n\n<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<\n" +
-                                "New data arrived at inputHandler.\nReceived object={}"
-                                + "\n<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<\n", rawInputObject);
-
-                        int size = ByteArrayUtils.objectToByteArray(rawInputObject).length;
-                        if (size > getMaxMsgSize()) {
-                            sharedSpace.reportIllegalRequest(IllegalRequest.MaxSizeExceeded);
-                            return;
-                        }
-
-                        Serializable serializable = null;
-                        if (useCompression) {
-                            if (rawInputObject instanceof byte[]) {
-                                byte[] compressedObjectAsBytes = (byte[]) rawInputObject;
-                                size = compressedObjectAsBytes.length;
-                                //log.trace("Read object compressed data size: " + size);
-                                serializable = Utils.decompress(compressedObjectAsBytes);
-                            } else {
-                                sharedSpace.reportIllegalRequest(IllegalRequest.InvalidDataType);
-                            }
-                        } else {
-                            if (rawInputObject instanceof Serializable) {
-                                serializable = (Serializable) rawInputObject;
-                            } else {
-                                sharedSpace.reportIllegalRequest(IllegalRequest.InvalidDataType);
-                            }
-                        }
-                        //log.trace("Read object decompressed data size: " + ByteArrayUtils.objectToByteArray(serializable).length);
-
-                        // compressed size might be bigger theoretically so we check again after decompression
-                        if (size > getMaxMsgSize()) {
+                        if (log.isTraceEnabled())
+                            log.trace("InputHandler waiting for incoming messages connection={}", sharedSpace.getConnectionInfo());
+                        try {
+                            // The size is checked by the frameReader before the payload is read
+                            frameReader.readFrame();
+                        } catch (FrameReader.FrameTooLargeException e) {
+                            log.warn(e.getMessage());
+                            stopped = true;
                             sharedSpace.reportIllegalRequest(IllegalRequest.MaxSizeExceeded);
                             return;
                         }
-                        if (!(serializable instanceof Message)) {
-                            sharedSpace.reportIllegalRequest(IllegalRequest.InvalidDataType);
-                            return;
-                        }
-
-                        Message message = (Message) serializable;
-                        if (message.networkId() != Version.getNetworkId()) {
-                            sharedSpace.reportIllegalRequest(IllegalRequest.WrongNetworkId);
-                            return;
-                        }
+                        if (log.isTraceEnabled())
+                            log.trace("New data arrived at inputHandler.Connection={}", sharedSpace.getConnectionInfo());
 
-                        sharedSpace.updateLastActivityDate();
-                        if (message instanceof CloseConnectionMessage) {
-                            log.info("CloseConnectionMessage received on connection {}", sharedSpace.connection);
+                        if (!stopped && !processFrame(sharedSpace, messageCodec, messageListener, frameReader.getTypeTag(),
+                                frameReader.getBuffer(), 0, frameReader.getLength())) {
                             stopped = true;
-                            sharedSpace.shutDown(false);
-                        } else if (!stopped) {
-                            messageListener.onMessage(message, null);
+                            return;
                         }
                     } catch (IOException | ClassNotFoundException | NoClassDefFoundError e) {
                         stopped = true;
@@ -586,4 +731,217 @@ public class Connection implements MessageListener {
                     '}';
         }
     }
-}
\ No newline at end of file
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // NioHandler
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    // Read side runs in the eventLoop thread, send is called from various threads
+    private static class NioHandler implements NioEventLoop.Handler {
+        private static final Logger log = LoggerFactory.getLogger(NioHandler.class);
+
+        private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+        private static final int MAX_RETAINED_BUFFER_SIZE = 256 * 1024;
+        // Senders have to wait if that many bytes are queued, like they would block at a socket stream
+        private static final int MAX_QUEUED_BYTES = 4 * MAX_MSG_SIZE;
+        // If a peer does not read for that long we close the connection
+        private static final long WRITE_TIMEOUT_SEC = 120;
+
+        private final SharedSpace sharedSpace;
+        private final SocketChannel channel;
+        private final NioEventLoop eventLoop;
+        private final MessageCodec messageCodec;
+        private final MessageListener messageListener;
+
+        private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+        private final Semaphore writePermits = new Semaphore(MAX_QUEUED_BYTES, true);
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private volatile boolean closed;
+
+        // only accessed from the eventLoop thread
+        private SelectionKey key;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        private long lastReadTime = System.currentTimeMillis();
+        private boolean stopped;
+
+        public NioHandler(SharedSpace sharedSpace, SocketChannel channel, NioEventLoop eventLoop,
+                          MessageCodec messageCodec, MessageListener messageListener) {
+            this.sharedSpace = sharedSpace;
+            this.channel = channel;
+            this.eventLoop = eventLoop;
+            this.messageCodec = messageCodec;
+            this.messageListener = messageListener;
+        }
+
+        public void start() {
+            eventLoop.register(channel, SelectionKey.OP_READ, this);
+        }
+
+        public void send(ByteBuffer frame) throws IOException {
+            int size = frame.remaining();
+            try {
+                // The eventLoop thread must never wait as it is the one draining the queue
+                boolean acquired = eventLoop.inEventLoop() ?
+                        writePermits.tryAcquire(size) :
+                        writePermits.tryAcquire(size, WRITE_TIMEOUT_SEC, TimeUnit.SECONDS);
+                if (!acquired)
+                    throw new SocketTimeoutException("Peer does not read our data. queuedBytes=" + getQueuedBytes());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the write queue");
+            }
+            if (closed)
+                throw new SocketException("Socket closed");
+
+            writeQueue.add(frame);
+            if (flushScheduled.compareAndSet(false, true)) {
+                eventLoop.execute(() -> {
+                    flushScheduled.set(false);
+                    try {
+                        flush();
+                    } catch (Throwable t) {
+                        onError(t);
+                    }
+                });
+            }
+        }
+
+        // We write what is still queued (e.g. the CloseConnectionMessage) before we close the channel
+        public void close() {
+            closed = true;
+            // Wake up senders waiting for the write queue
+            writePermits.release(MAX_QUEUED_BYTES);
+            eventLoop.execute(() -> {
+                stopped = true;
+                try {
+                    flush();
+                } catch (IOException ignore) {
+                }
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    log.trace("Exception at closing channel might be expected " + e.getMessage());
+                }
+            });
+        }
+
+        @Override
+        public void onRegistered(SelectionKey key) {
+            this.key = key;
+        }
+
+        @Override
+        public void onSelected(SelectionKey key) throws IOException {
+            if (key.isReadable())
+                read();
+            if (key.isValid() && key.isWritable())
+                flush();
+        }
+
+        @Override
+        public void onTick(long now) {
+            if (!stopped && now - lastReadTime > SOCKET_TIMEOUT)
+                onError(new SocketTimeoutException("No data received for " + (now - lastReadTime) / 1000 + " sec."));
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            if (!stopped) {
+                stopped = true;
+                if (throwable instanceof ClassNotFoundException || throwable instanceof IOException
+                        || throwable instanceof NoClassDefFoundError)
+                    sharedSpace.handleConnectionException(throwable);
+                else
+                    sharedSpace.handleConnectionException(new Exception(throwable));
+            }
+        }
+
+        private void read() throws IOException {
+            if (channel.read(readBuffer) < 0)
+                throw new EOFException();
+
+            lastReadTime = System.currentTimeMillis();
+            readBuffer.flip();
+            try {
+                while (!stopped) {
+                    int frameStart = readBuffer.position();
+                    int payloadLength;
+                    try {
+                        payloadLength = FrameReader.readPayloadLength(readBuffer, MAX_MSG_SIZE);
+                    } catch (FrameReader.FrameTooLargeException e) {
+                        log.warn(e.getMessage());
+                        stopped = true;
+                        sharedSpace.reportIllegalRequest(IllegalRequest.MaxSizeExceeded);
+                        return;
+                    }
+                    if (payloadLength < 0)
+                        break;
+
+                    // type tag and payload
+                    if (readBuffer.remaining() < 1 + payloadLength) {
+                        readBuffer.position(frameStart);
+                        ensureCapacity(FrameWriter.varIntSize(payloadLength) + 1 + payloadLength);
+                        break;
+                    }
+
+                    byte typeTag = readBuffer.get();
+                    int payloadOffset = readBuffer.arrayOffset() + readBuffer.position();
+                    readBuffer.position(readBuffer.position() + payloadLength);
+                    if (!processFrame(sharedSpace, messageCodec, messageListener, typeTag, readBuffer.array(),
+                            payloadOffset, payloadLength)) {
+                        stopped = true;
+                        return;
+                    }
+                }
+            } catch (ClassNotFoundException e) {
+                throw new IOException(e);
+            } finally {
+                readBuffer.compact();
+            }
+
+            if (readBuffer.position() == 0 && readBuffer.capacity() > MAX_RETAINED_BUFFER_SIZE)
+                readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        }
+
+        // Called with the buffer in read mode, positioned at the start of the incomplete frame
+        private void ensureCapacity(int frameSize) {
+            if (readBuffer.capacity() < frameSize) {
+                ByteBuffer newBuffer = ByteBuffer.allocate(Math.max(frameSize, Math.min(readBuffer.capacity() * 2,
+                        MAX_MSG_SIZE + FrameWriter.MAX_HEADER_SIZE)));
+                newBuffer.put(readBuffer);
+                newBuffer.flip();
+                readBuffer = newBuffer;
+            }
+        }
+
+        private int getQueuedBytes() {
+            return Math.max(0, MAX_QUEUED_BYTES - writePermits.availablePermits());
+        }
+
+        private void flush() throws IOException {
+            ByteBuffer frame;
+            while ((frame = writeQueue.peek()) != null) {
+                channel.write(frame);
+                if (frame.hasRemaining()) {
+                    if (key != null && key.isValid())
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                writeQueue.poll();
+                writePermits.release(frame.limit());
+            }
+            if (key != null && key.isValid())
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+
+        @Override
+        public String toString() {
+            return "NioHandler{" +
+                    "sharedSpace=" + sharedSpace +
+                    ", queuedBytes=" + getQueuedBytes() +
+                    ", stopped=" + stopped +
+                    '}';
+        }
+    }
+}
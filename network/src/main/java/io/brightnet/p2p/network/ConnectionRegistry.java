@@ -0,0 +1,180 @@
+package io.brightnet.p2p.network;
+
+import io.brightnet.p2p.NodeAddress;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds the connections of a NetworkNode, indexed by uid, peer address and priority.
+ * Lookups are O(1) and the views are live and unmodifiable, so iterating them does not copy.
+ * Connection reports changes of its peer address and priority so the indexes stay up to date.
+ * Accessed from different threads.
+ */
+final class ConnectionRegistry {
+
+    private final Map<String, Connection> allConnections = new ConcurrentHashMap<>();
+    private final Map<String, Connection> inBoundConnections = new ConcurrentHashMap<>();
+    private final Map<String, Connection> outBoundConnections = new ConcurrentHashMap<>();
+    private final Map<NodeAddress, Connection> inBoundByAddress = new ConcurrentHashMap<>();
+    private final Map<NodeAddress, Connection> outBoundByAddress = new ConcurrentHashMap<>();
+    private final Map<ConnectionPriority, Map<String, Connection>> byPriority = new EnumMap<>(ConnectionPriority.class);
+
+    // A set view of allConnections. Membership is by uid, as the hashCode of Connection changes with its peer address.
+    private final Set<Connection> allConnectionsView = Collections.unmodifiableSet(new AbstractSet<Connection>() {
+        @Override
+        public Iterator<Connection> iterator() {
+            return allConnections.values().iterator();
+        }
+
+        @Override
+        public int size() {
+            return allConnections.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return o instanceof Connection && allConnections.get(((Connection) o).getUid()) == o;
+        }
+    });
+
+    ConnectionRegistry() {
+        for (ConnectionPriority priority : ConnectionPriority.values())
+            byPriority.put(priority, new ConcurrentHashMap<>());
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Add, remove
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    void addInBoundConnection(Connection connection) {
+        add(connection, inBoundConnections, inBoundByAddress);
+    }
+
+    void addOutBoundConnection(Connection connection) {
+        add(connection, outBoundConnections, outBoundByAddress);
+    }
+
+    void remove(Connection connection) {
+        String uid = connection.getUid();
+        if (allConnections.remove(uid) == null)
+            return;
+
+        inBoundConnections.remove(uid);
+        outBoundConnections.remove(uid);
+        NodeAddress peerAddress = connection.getPeerAddress();
+        if (peerAddress != null) {
+            removeAddress(peerAddress, connection, inBoundConnections, inBoundByAddress);
+            removeAddress(peerAddress, connection, outBoundConnections, outBoundByAddress);
+        }
+        ConnectionPriority priority = connection.getConnectionPriority();
+        if (priority != null)
+            byPriority.get(priority).remove(uid);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Called by Connection
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    void onPeerAddressChanged(Connection connection, @Nullable NodeAddress oldPeerAddress, NodeAddress newPeerAddress) {
+        String uid = connection.getUid();
+        if (oldPeerAddress != null && !oldPeerAddress.equals(newPeerAddress)) {
+            removeAddress(oldPeerAddress, connection, inBoundConnections, inBoundByAddress);
+            removeAddress(oldPeerAddress, connection, outBoundConnections, outBoundByAddress);
+        }
+        if (inBoundConnections.containsKey(uid))
+            inBoundByAddress.put(newPeerAddress, connection);
+        else if (outBoundConnections.containsKey(uid))
+            outBoundByAddress.put(newPeerAddress, connection);
+    }
+
+    void onPriorityChanged(Connection connection, @Nullable ConnectionPriority oldPriority, ConnectionPriority newPriority) {
+        String uid = connection.getUid();
+        if (oldPriority != null)
+            byPriority.get(oldPriority).remove(uid);
+        if (allConnections.containsKey(uid))
+            byPriority.get(newPriority).put(uid, connection);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Lookup
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    Optional<Connection> lookupInBoundConnection(NodeAddress peerNodeAddress) {
+        return lookup(peerNodeAddress, inBoundByAddress);
+    }
+
+    Optional<Connection> lookupOutBoundConnection(NodeAddress peerNodeAddress) {
+        return lookup(peerNodeAddress, outBoundByAddress);
+    }
+
+    Optional<Connection> getConnection(String uid) {
+        return Optional.ofNullable(allConnections.get(uid));
+    }
+
+    Set<Connection> getAllConnections() {
+        return allConnectionsView;
+    }
+
+    Collection<Connection> getInBoundConnections() {
+        return Collections.unmodifiableCollection(inBoundConnections.values());
+    }
+
+    Collection<Connection> getOutBoundConnections() {
+        return Collections.unmodifiableCollection(outBoundConnections.values());
+    }
+
+    Collection<Connection> getConnections(ConnectionPriority priority) {
+        return Collections.unmodifiableCollection(byPriority.get(priority).values());
+    }
+
+    int size() {
+        return allConnections.size();
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    private void add(Connection connection, Map<String, Connection> connections, Map<NodeAddress, Connection> byAddress) {
+        String uid = connection.getUid();
+        allConnections.put(uid, connection);
+        connections.put(uid, connection);
+        connection.setConnectionRegistry(this);
+
+        // Peer address and priority might have been set before the connection was added
+        NodeAddress peerAddress = connection.getPeerAddress();
+        if (peerAddress != null)
+            byAddress.put(peerAddress, connection);
+        ConnectionPriority priority = connection.getConnectionPriority();
+        if (priority != null)
+            byPriority.get(priority).put(uid, connection);
+    }
+
+    private void removeAddress(NodeAddress peerAddress, Connection connection, Map<String, Connection> connections,
+                               Map<NodeAddress, Connection> byAddress) {
+        if (byAddress.remove(peerAddress, connection)) {
+            // In rare cases we have multiple connections to the same peer, we index the next one
+            connections.values().stream()
+                    .filter(e -> peerAddress.equals(e.getPeerAddress()))
+                    .findAny()
+                    .ifPresent(e -> byAddress.putIfAbsent(peerAddress, e));
+        }
+    }
+
+    private Optional<Connection> lookup(NodeAddress peerNodeAddress, Map<NodeAddress, Connection> byAddress) {
+        Connection connection = byAddress.get(peerNodeAddress);
+        // An index update might have raced with a remove or another update
+        if (connection != null && (!allConnections.containsKey(connection.getUid())
+                || !peerNodeAddress.equals(connection.getPeerAddress()))) {
+            byAddress.remove(peerNodeAddress, connection);
+            connection = null;
+        }
+        return Optional.ofNullable(connection);
+    }
+}
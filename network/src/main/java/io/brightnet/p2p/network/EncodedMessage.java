@@ -0,0 +1,54 @@
+package io.brightnet.p2p.network;
+
+import io.brightnet.p2p.Message;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A message encoded (and compressed) once into an immutable frame which can be written to any number of
+ * connections. Used for broadcasts so the message is not serialized again for each peer.
+ * Created by Connection.encode().
+ */
+public final class EncodedMessage {
+    private final Message message;
+    private final byte[] frame;
+    private final int messageSize;
+
+    EncodedMessage(Message message, byte[] frame, int messageSize) {
+        this.message = message;
+        this.frame = frame;
+        this.messageSize = messageSize;
+    }
+
+    public Message getMessage() {
+        return message;
+    }
+
+    public int getFrameLength() {
+        return frame.length;
+    }
+
+    // Size of the uncompressed payload
+    int getMessageSize() {
+        return messageSize;
+    }
+
+    void writeTo(OutputStream outputStream) throws IOException {
+        outputStream.write(frame);
+    }
+
+    // Each call returns its own buffer position and limit, the content is shared
+    ByteBuffer getFrame() {
+        return ByteBuffer.wrap(frame).asReadOnlyBuffer();
+    }
+
+    @Override
+    public String toString() {
+        return "EncodedMessage{" +
+                "message=" + message +
+                ", frameLength=" + frame.length +
+                '}';
+    }
+}
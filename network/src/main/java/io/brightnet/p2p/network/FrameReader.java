@@ -0,0 +1,171 @@
+package io.brightnet.p2p.network;
+
+import io.brightnet.p2p.Compression;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Reads frames written by FrameWriter into a reusable buffer. The length prefix is checked against the max. size
+ * before any payload byte is read.
+ * Not thread safe, used only by the InputHandler of a connection.
+ */
+final class FrameReader {
+    private static final int INITIAL_BUFFER_SIZE = 4 * 1024;
+    private static final int MAX_RETAINED_BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_POOL_SIZE = 2 * Runtime.getRuntime().availableProcessors();
+
+    // A pool and not a thread local, as with virtual threads a thread might only live for a single connection
+    private static final Queue<InflateBuffer> inflateBufferPool = new ConcurrentLinkedQueue<>();
+
+    private final InputStream inputStream;
+    private final int maxPayloadSize;
+
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    private int length;
+    private byte typeTag;
+
+    FrameReader(InputStream inputStream, int maxPayloadSize) {
+        this.inputStream = inputStream;
+        this.maxPayloadSize = maxPayloadSize;
+    }
+
+    /**
+     * Blocks until a complete frame has been read.
+     *
+     * @throws EOFException           if the stream ends, also if it ends between 2 frames
+     * @throws FrameTooLargeException if the announced payload length exceeds the max. size. The stream is not
+     *                                usable anymore after that.
+     */
+    void readFrame() throws IOException {
+        if (buffer.length > MAX_RETAINED_BUFFER_SIZE)
+            buffer = new byte[INITIAL_BUFFER_SIZE];
+
+        int payloadLength = readVarInt();
+        if (payloadLength > maxPayloadSize)
+            throw new FrameTooLargeException(payloadLength, maxPayloadSize);
+
+        typeTag = (byte) readByte();
+        if (buffer.length < payloadLength)
+            buffer = new byte[Math.max(payloadLength, Math.min(buffer.length * 2, maxPayloadSize))];
+
+        int read = 0;
+        while (read < payloadLength) {
+            int n = inputStream.read(buffer, read, payloadLength - read);
+            if (n < 0)
+                throw new EOFException("Stream ended within a frame");
+            read += n;
+        }
+        length = payloadLength;
+    }
+
+    byte getTypeTag() {
+        return typeTag;
+    }
+
+    byte[] getBuffer() {
+        return buffer;
+    }
+
+    int getLength() {
+        return length;
+    }
+
+    /**
+     * Non-blocking variant of the length prefix parsing used by the NIO transport.
+     * The position of the buffer is only advanced if the length prefix is complete.
+     *
+     * @return the payload length or -1 if the buffer does not contain the complete length prefix yet
+     */
+    static int readPayloadLength(ByteBuffer buffer, int maxPayloadSize) throws FrameTooLargeException {
+        int value = 0;
+        int position = buffer.position();
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (position >= buffer.limit())
+                return -1;
+            int b = buffer.get(position++);
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0 || value > maxPayloadSize)
+                    throw new FrameTooLargeException(value, maxPayloadSize);
+                buffer.position(position);
+                return value;
+            }
+        }
+        throw new FrameTooLargeException(-1, maxPayloadSize);
+    }
+
+    private int readVarInt() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0)
+                    throw new FrameTooLargeException(value, maxPayloadSize);
+                return value;
+            }
+        }
+        throw new FrameTooLargeException(-1, maxPayloadSize);
+    }
+
+    private int readByte() throws IOException {
+        int b = inputStream.read();
+        if (b < 0)
+            throw new EOFException();
+        return b;
+    }
+
+    /**
+     * Decompresses a payload into a pooled buffer. The returned buffer must be released with release() after the
+     * payload has been decoded and must not be used after that.
+     *
+     * @throws Compression.SizeLimitExceededException if the decompressed payload exceeds maxSize
+     */
+    static InflateBuffer inflate(byte[] buffer, int offset, int length, int maxSize) throws IOException {
+        InflateBuffer inflated = inflateBufferPool.poll();
+        if (inflated == null)
+            inflated = new InflateBuffer();
+        inflated.reset();
+        try {
+            Compression.inflate(buffer, offset, length, maxSize, inflated);
+        } catch (IOException | RuntimeException e) {
+            release(inflated);
+            throw e;
+        }
+        return inflated;
+    }
+
+    static void release(InflateBuffer inflated) {
+        // size() is not exact for a concurrent queue but good enough to bound the pool
+        if (inflated.capacity() <= MAX_RETAINED_BUFFER_SIZE && inflateBufferPool.size() < MAX_POOL_SIZE)
+            inflateBufferPool.offer(inflated);
+    }
+
+    static final class InflateBuffer extends ByteArrayOutputStream {
+        InflateBuffer() {
+            super(INITIAL_BUFFER_SIZE);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+    }
+
+    static class FrameTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        FrameTooLargeException(int payloadLength, int maxPayloadSize) {
+            super("Frame exceeds max. size. payloadLength=" + payloadLength + ", maxPayloadSize=" + maxPayloadSize);
+        }
+    }
+}
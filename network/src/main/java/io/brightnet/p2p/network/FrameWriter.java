@@ -0,0 +1,176 @@
+package io.brightnet.p2p.network;
+
+import io.brightnet.p2p.Compression;
+import io.brightnet.p2p.Message;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Writes frames in the format: varint payload length | type tag | payload
+ * The payload is encoded into a pooled buffer so it can be done outside of the lock on the socket stream and the
+ * length is known before anything gets written. We use a pool and not thread locals, as with virtual threads a
+ * thread might only live for a single message.
+ * If compression is enabled the payload gets deflated into a second pooled buffer and the COMPRESSED_FLAG is set in
+ * the type tag.
+ * The frame format is not compatible with peers of NETWORK_PROTOCOL_VERSION 1, which use a plain object stream.
+ */
+final class FrameWriter {
+    // 5 bytes for the varint of an int and 1 byte for the type tag
+    static final int MAX_HEADER_SIZE = 6;
+    // Set in the type tag if the payload is compressed
+    static final byte COMPRESSED_FLAG = (byte) 0x80;
+    // Smaller payloads are not worth the overhead
+    static final int MIN_SIZE_FOR_COMPRESSION = 256;
+    // We don't keep buffers grown by exceptionally large messages
+    private static final int MAX_RETAINED_BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_POOL_SIZE = 2 * Runtime.getRuntime().availableProcessors();
+
+    private static final Queue<EncodeBuffer> bufferPool = new ConcurrentLinkedQueue<>();
+
+    private FrameWriter() {
+    }
+
+    /**
+     * Encodes the message into a pooled buffer. The returned buffer must be released with release() after it has
+     * been written and must not be used after that.
+     */
+    static EncodeBuffer encode(MessageCodec codec, Message message) throws IOException {
+        return encode(codec, message, Compression.NO_COMPRESSION);
+    }
+
+    static EncodeBuffer encode(MessageCodec codec, Message message, int compressionLevel) throws IOException {
+        EncodeBuffer buffer = borrowBuffer();
+        try {
+            buffer.startFrame();
+            codec.encode(message, buffer);
+        } catch (IOException | RuntimeException e) {
+            release(buffer);
+            throw e;
+        }
+        int messageSize = buffer.size() - MAX_HEADER_SIZE;
+
+        if (compressionLevel != Compression.NO_COMPRESSION
+                && messageSize >= MIN_SIZE_FOR_COMPRESSION
+                && !Compression.isLikelyIncompressible(buffer.array(), MAX_HEADER_SIZE, messageSize)) {
+            EncodeBuffer compressed = borrowBuffer();
+            try {
+                compressed.startFrame();
+                Compression.deflate(buffer.array(), MAX_HEADER_SIZE, messageSize, compressionLevel, compressed);
+            } catch (IOException | RuntimeException e) {
+                release(compressed);
+                release(buffer);
+                throw e;
+            }
+            // We use the compressed payload only if it saves at least 5%
+            if (compressed.size() - MAX_HEADER_SIZE < messageSize * 95L / 100) {
+                release(buffer);
+                compressed.finishFrame((byte) (codec.getTypeTag() | COMPRESSED_FLAG), messageSize);
+                return compressed;
+            }
+            release(compressed);
+        }
+
+        buffer.finishFrame(codec.getTypeTag(), messageSize);
+        return buffer;
+    }
+
+    static void release(EncodeBuffer buffer) {
+        // size() is not exact for a concurrent queue but good enough to bound the pool
+        if (buffer.capacity() <= MAX_RETAINED_BUFFER_SIZE && bufferPool.size() < MAX_POOL_SIZE)
+            bufferPool.offer(buffer);
+    }
+
+    private static EncodeBuffer borrowBuffer() {
+        EncodeBuffer buffer = bufferPool.poll();
+        return buffer != null ? buffer : new EncodeBuffer();
+    }
+
+    static int writeVarInt(int value, byte[] target, int offset) {
+        int position = offset;
+        while ((value & ~0x7F) != 0) {
+            target[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        target[position++] = (byte) value;
+        return position - offset;
+    }
+
+    static int varIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            size++;
+            value >>>= 7;
+        }
+        return size;
+    }
+
+    /**
+     * Reserves room for the header in front of the payload. When the payload is complete the header is written
+     * right before it, so the whole frame can be written with a single call.
+     */
+    static final class EncodeBuffer extends ByteArrayOutputStream {
+        private int frameStart;
+        private int payloadLength;
+        private int messageSize;
+
+        EncodeBuffer() {
+            super(1024);
+        }
+
+        private void startFrame() {
+            reset();
+            count = MAX_HEADER_SIZE;
+            if (buf.length < count)
+                buf = new byte[1024];
+        }
+
+        private void finishFrame(byte typeTag, int messageSize) {
+            this.messageSize = messageSize;
+            payloadLength = count - MAX_HEADER_SIZE;
+            int headerSize = varIntSize(payloadLength) + 1;
+            frameStart = MAX_HEADER_SIZE - headerSize;
+            int position = frameStart + writeVarInt(payloadLength, buf, frameStart);
+            buf[position] = typeTag;
+        }
+
+        int getPayloadLength() {
+            return payloadLength;
+        }
+
+        // Size of the uncompressed payload
+        int getMessageSize() {
+            return messageSize;
+        }
+
+        private byte[] array() {
+            return buf;
+        }
+
+        int getFrameLength() {
+            return count - frameStart;
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+
+        void writeFrameTo(OutputStream outputStream) throws IOException {
+            outputStream.write(buf, frameStart, count - frameStart);
+        }
+
+        // Copy for asynchronous writes, as the buffer gets reused by the next message
+        ByteBuffer copyFrame() {
+            return ByteBuffer.wrap(toFrameByteArray());
+        }
+
+        byte[] toFrameByteArray() {
+            return Arrays.copyOfRange(buf, frameStart, count);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package io.brightnet.p2p.network;
+
+import io.brightnet.p2p.Message;
+
+import java.io.*;
+
+/**
+ * Uses default java serialization for the payload. Each frame carries its own stream header so frames can be
+ * decoded independently from each other.
+ */
+public class JavaSerializationCodec implements MessageCodec {
+    public static final byte TYPE_TAG = 1;
+
+    @Override
+    public byte getTypeTag() {
+        return TYPE_TAG;
+    }
+
+    @Override
+    public void encode(Message message, OutputStream outputStream) throws IOException {
+        ObjectOutputStream objectOutputStream = new ObjectOutputStream(outputStream);
+        objectOutputStream.writeObject(message);
+        objectOutputStream.flush();
+    }
+
+    @Override
+    public Object decode(byte[] buffer, int offset, int length) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream objectInputStream = new ObjectInputStream(new ByteArrayInputStream(buffer, offset, length))) {
+            return objectInputStream.readObject();
+        }
+    }
+}
@@ -18,8 +18,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
@@ -66,7 +69,10 @@ public class LocalhostNetworkNode extends NetworkNode {
             createHiddenService(hiddenServiceDescriptor -> {
                 Log.traceCall("hiddenService created");
                 try {
-                    startServer(new ServerSocket(servicePort));
+                    if (getTransportMode() == TransportMode.NIO)
+                        startServer(ServerSocketChannel.open().bind(new InetSocketAddress(servicePort)).socket());
+                    else
+                        startServer(new ServerSocket(servicePort));
                 } catch (IOException e) {
                     e.printStackTrace();
                     log.error("Exception at startServer: " + e.getMessage());
@@ -90,7 +96,10 @@ public class LocalhostNetworkNode extends NetworkNode {
     @Override
     protected Socket createSocket(NodeAddress peerNodeAddress) throws IOException {
         Log.traceCall();
-        return new Socket(peerNodeAddress.hostName, peerNodeAddress.port);
+        if (getTransportMode() == TransportMode.NIO)
+            return SocketChannel.open(new InetSocketAddress(peerNodeAddress.hostName, peerNodeAddress.port)).socket();
+        else
+            return new Socket(peerNodeAddress.hostName, peerNodeAddress.port);
     }
 
 
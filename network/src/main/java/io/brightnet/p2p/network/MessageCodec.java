@@ -0,0 +1,24 @@
+package io.brightnet.p2p.network;
+
+import io.brightnet.p2p.Message;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes the payload part of a frame. The frame header (varint length prefix and type tag) is handled by
+ * FrameWriter and FrameReader, so a codec only needs to deal with the message body.
+ */
+public interface MessageCodec {
+    /**
+     * Identifies the codec on the wire. Must be in the range 0..127.
+     */
+    byte getTypeTag();
+
+    void encode(Message message, OutputStream outputStream) throws IOException;
+
+    /**
+     * @return the decoded object. Callers must check that it is a Message as the peer is not trusted.
+     */
+    Object decode(byte[] buffer, int offset, int length) throws IOException, ClassNotFoundException;
+}
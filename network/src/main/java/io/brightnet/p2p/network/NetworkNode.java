@@ -15,32 +15,52 @@ import java.io.IOException;
 import java.net.ConnectException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashSet;
+import java.util.Collection;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
 // Run in UserThread
 public abstract class NetworkNode implements MessageListener, ConnectionListener {
     private static final Logger log = LoggerFactory.getLogger(NetworkNode.class);
+    private static final Log.CallSite TRACE_SEND_MESSAGE = Log.callSite(NetworkNode.class, "sendMessage");
+    private static final Log.CallSite TRACE_ON_CONNECTION = Log.callSite(NetworkNode.class, "onConnection");
+    private static final Log.CallSite TRACE_ON_DISCONNECT = Log.callSite(NetworkNode.class, "onDisconnect");
+    private static final Log.CallSite TRACE_ON_INBOUND_CONNECTION = Log.callSite(NetworkNode.class, "onInboundConnection");
+    private static final Log.CallSite TRACE_ON_INBOUND_DISCONNECT = Log.callSite(NetworkNode.class, "onInboundDisconnect");
 
     private static final int CREATE_SOCKET_TIMEOUT = 10 * 1000;        // 10 sec.
+    private static final int NUM_EVENT_LOOP_THREADS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private static TransportMode transportMode = TransportMode.BLOCKING;
+
+    // Need to be set before the node is started
+    public static void setTransportMode(TransportMode transportMode) {
+        NetworkNode.transportMode = transportMode;
+    }
+
+    protected static TransportMode getTransportMode() {
+        return transportMode;
+    }
 
     protected final int servicePort;
 
-    private final CopyOnWriteArraySet<Connection> inBoundConnections = new CopyOnWriteArraySet<>();
     private final CopyOnWriteArraySet<MessageListener> messageListeners = new CopyOnWriteArraySet<>();
     private final CopyOnWriteArraySet<ConnectionListener> connectionListeners = new CopyOnWriteArraySet<>();
     protected final CopyOnWriteArraySet<SetupListener> setupListeners = new CopyOnWriteArraySet<>();
     protected ListeningExecutorService executorService;
+    @Nullable
+    private NioEventLoopGroup eventLoopGroup;
     private Server server;
 
     private volatile boolean shutDownInProgress;
     // accessed from different threads
-    private final CopyOnWriteArraySet<Connection> outBoundConnections = new CopyOnWriteArraySet<>();
+    private final ConnectionRegistry connectionRegistry = new ConnectionRegistry();
 
 
     ///////////////////////////////////////////////////////////////////////////////////////////
@@ -64,29 +84,51 @@ public abstract class NetworkNode implements MessageListener, ConnectionListener
     abstract public void start(@Nullable SetupListener setupListener);
 
     public SettableFuture<Connection> sendMessage(@NotNull NodeAddress peerNodeAddress, Message message) {
-        Log.traceCall("peerAddress: " + peerNodeAddress + " / message: " + message);
+        Log.traceCall(TRACE_SEND_MESSAGE, "peerAddress: {} / message: {}", peerNodeAddress, message);
+        return doSendMessage(peerNodeAddress, message, connection -> connection.sendMessage(message));
+    }
+
+    // Used for broadcasts, the message is already encoded and gets written as it is
+    public SettableFuture<Connection> sendMessage(@NotNull NodeAddress peerNodeAddress, EncodedMessage encodedMessage) {
+        Log.traceCall(TRACE_SEND_MESSAGE, "peerAddress: {} / message: {}", peerNodeAddress, encodedMessage);
+        return doSendMessage(peerNodeAddress, encodedMessage.getMessage(),
+                connection -> connection.sendMessage(encodedMessage));
+    }
+
+    public SettableFuture<Connection> sendMessage(Connection connection, Message message) {
+        Log.traceCall(TRACE_SEND_MESSAGE, "message: {} to connection: {}", message, connection);
+        return doSendMessage(connection, c -> c.sendMessage(message));
+    }
+
+    public SettableFuture<Connection> sendMessage(Connection connection, EncodedMessage encodedMessage) {
+        Log.traceCall(TRACE_SEND_MESSAGE, "message: {} to connection: {}", encodedMessage, connection);
+        return doSendMessage(connection, c -> c.sendMessage(encodedMessage));
+    }
+
+    private SettableFuture<Connection> doSendMessage(@NotNull NodeAddress peerNodeAddress, Message message,
+                                                     Consumer<Connection> sendFunction) {
         checkNotNull(peerNodeAddress, "peerAddress must not be null");
 
-        Optional<Connection> outboundConnectionOptional = lookupOutboundConnection(peerNodeAddress);
+        Optional<Connection> outboundConnectionOptional = connectionRegistry.lookupOutBoundConnection(peerNodeAddress);
         Connection connection = outboundConnectionOptional.isPresent() ? outboundConnectionOptional.get() : null;
         if (connection != null)
-            log.trace("We have found a connection in outBoundConnections. Connection.uid=" + connection.getUid());
+            log.trace("We have found a connection in outBoundConnections. Connection.uid={}", connection.getUid());
 
         if (connection != null && connection.isStopped()) {
-            log.trace("We have a connection which is already stopped in outBoundConnections. Connection.uid=" + connection.getUid());
-            outBoundConnections.remove(connection);
+            log.trace("We have a connection which is already stopped in outBoundConnections. Connection.uid={}", connection.getUid());
+            connectionRegistry.remove(connection);
             connection = null;
         }
 
         if (connection == null) {
-            Optional<Connection> inboundConnectionOptional = lookupInboundConnection(peerNodeAddress);
+            Optional<Connection> inboundConnectionOptional = connectionRegistry.lookupInBoundConnection(peerNodeAddress);
             if (inboundConnectionOptional.isPresent()) connection = inboundConnectionOptional.get();
             if (connection != null)
-                log.trace("We have found a connection in inBoundConnections. Connection.uid=" + connection.getUid());
+                log.trace("We have found a connection in inBoundConnections. Connection.uid={}", connection.getUid());
         }
 
         if (connection != null) {
-            return sendMessage(connection, message);
+            return doSendMessage(connection, sendFunction);
         } else {
             log.trace("We have not found any connection for peerAddress {}. " +
                     "We will create a new outbound connection.", peerNodeAddress);
@@ -94,35 +136,42 @@ public abstract class NetworkNode implements MessageListener, ConnectionListener
             final SettableFuture<Connection> resultFuture = SettableFuture.create();
             final boolean[] timeoutOccurred = new boolean[1];
             timeoutOccurred[0] = false;
-            ListenableFuture<Connection> future = executorService.submit(() -> {
-                Thread.currentThread().setName("NetworkNode:SendMessage-to-" + peerNodeAddress);
-                try {
-                    // can take a while when using tor
-                    Socket socket = createSocket(peerNodeAddress);
-                    if (timeoutOccurred[0])
-                        throw new TimeoutException("Timeout occurred when tried to create Socket to peer: " + peerNodeAddress);
-
-
-                    Connection newConnection = new Connection(socket, NetworkNode.this, NetworkNode.this);
-                    newConnection.setPeerAddress(peerNodeAddress);
-                    outBoundConnections.add(newConnection);
-
-                    log.info("\n\n%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%\n" +
-                            "NetworkNode created new outbound connection:"
-                            + "\npeerAddress=" + peerNodeAddress
-                            + "\nconnection.uid=" + newConnection.getUid()
-                            + "\nmessage=" + message
-                            + "\n%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%\n");
-
-                    // can take a while when using tor
-                    newConnection.sendMessage(message);
-                    return newConnection;
-                } catch (Throwable throwable) {
-                    if (!(throwable instanceof ConnectException || throwable instanceof IOException || throwable instanceof TimeoutException)) {
+            final FutureCallback<Connection> resultCallback = new FutureCallback<Connection>() {
+                public void onSuccess(Connection connection) {
+                    UserThread.execute(() -> {
+                        //timer.cancel();
+                        resultFuture.set(connection);
+                    });
+                }
+
+                public void onFailure(@NotNull Throwable throwable) {
+                    UserThread.execute(() -> {
+                        //timer.cancel();
+                        resultFuture.setException(throwable);
+                    });
+                }
+            };
+
+            // can take a while when using tor
+            Futures.addCallback(createSocketAsync(peerNodeAddress), new FutureCallback<Socket>() {
+                public void onSuccess(Socket socket) {
+                    try {
+                        ListenableFuture<Connection> future = executorService.submit(() ->
+                                createOutBoundConnection(socket, peerNodeAddress, message, sendFunction,
+                                        timeoutOccurred));
+                        Futures.addCallback(future, resultCallback);
+                    } catch (RejectedExecutionException e) {
+                        closeQuietly(socket);
+                        resultCallback.onFailure(e);
+                    }
+                }
+
+                public void onFailure(@NotNull Throwable throwable) {
+                    if (!(throwable instanceof IOException || throwable instanceof TimeoutException)) {
                         throwable.printStackTrace();
-                        log.error("Executing task failed. " + throwable.getMessage());
+                        log.error("Creating socket failed. " + throwable.getMessage());
                     }
-                    throw throwable;
+                    resultCallback.onFailure(throwable);
                 }
             });
 
@@ -140,32 +189,50 @@ public abstract class NetworkNode implements MessageListener, ConnectionListener
                 }
             }, CREATE_SOCKET_TIMEOUT);*/
 
-            Futures.addCallback(future, new FutureCallback<Connection>() {
-                public void onSuccess(Connection connection) {
-                    UserThread.execute(() -> {
-                        //timer.cancel();
-                        resultFuture.set(connection);
-                    });
-                }
-
-                public void onFailure(@NotNull Throwable throwable) {
-                    UserThread.execute(() -> {
-                        //timer.cancel();
-                        resultFuture.setException(throwable);
-                    });
-                }
-            });
-
             return resultFuture;
         }
     }
 
-    public SettableFuture<Connection> sendMessage(Connection connection, Message message) {
-        Log.traceCall("message: " + message + " to connection: " + connection);
+    // Runs in executorService
+    private Connection createOutBoundConnection(Socket socket, NodeAddress peerNodeAddress, Message message,
+                                                Consumer<Connection> sendFunction, boolean[] timeoutOccurred)
+            throws Exception {
+        Thread.currentThread().setName("NetworkNode:SendMessage-to-" + peerNodeAddress);
+        try {
+            if (timeoutOccurred[0])
+                throw new TimeoutException("Timeout occurred when tried to create Socket to peer: " + peerNodeAddress);
+
+
+            NioEventLoopGroup eventLoopGroup = NetworkNode.this.eventLoopGroup;
+            Connection newConnection = new Connection(socket, NetworkNode.this, NetworkNode.this,
+                    eventLoopGroup != null ? eventLoopGroup.next() : null);
+            newConnection.setPeerAddress(peerNodeAddress);
+            connectionRegistry.addOutBoundConnection(newConnection);
+
+            log.info("\n\n%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%\n" +
+                    "NetworkNode created new outbound connection:"
+                    + "\npeerAddress=" + peerNodeAddress
+                    + "\nconnection.uid=" + newConnection.getUid()
+                    + "\nmessage=" + message
+                    + "\n%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%\n");
+
+            // can take a while when using tor
+            sendFunction.accept(newConnection);
+            return newConnection;
+        } catch (Throwable throwable) {
+            if (!(throwable instanceof ConnectException || throwable instanceof IOException || throwable instanceof TimeoutException)) {
+                throwable.printStackTrace();
+                log.error("Executing task failed. " + throwable.getMessage());
+            }
+            throw throwable;
+        }
+    }
+
+    private SettableFuture<Connection> doSendMessage(Connection connection, Consumer<Connection> sendFunction) {
         // connection.sendMessage might take a bit (compression, write to stream), so we use a thread to not block
         ListenableFuture<Connection> future = executorService.submit(() -> {
             Thread.currentThread().setName("NetworkNode:SendMessage-to-" + connection.getUid());
-            connection.sendMessage(message);
+            sendFunction.accept(connection);
             return connection;
         });
         final SettableFuture<Connection> resultFuture = SettableFuture.create();
@@ -181,11 +248,21 @@ public abstract class NetworkNode implements MessageListener, ConnectionListener
         return resultFuture;
     }
 
+    // Live and unmodifiable view, iteration is weakly consistent: it never throws a
+    // ConcurrentModificationException, connections added or removed while iterating may or may not be seen.
+    // Copy it if a stable snapshot is needed.
     public Set<Connection> getAllConnections() {
         Log.traceCall();
-        Set<Connection> set = new HashSet<>(inBoundConnections);
-        set.addAll(outBoundConnections);
-        return set;
+        return connectionRegistry.getAllConnections();
+    }
+
+    // Live and unmodifiable view, iteration is weakly consistent
+    public Collection<Connection> getConnections(ConnectionPriority connectionPriority) {
+        return connectionRegistry.getConnections(connectionPriority);
+    }
+
+    public Optional<Connection> getConnection(String uid) {
+        return connectionRegistry.getConnection(uid);
     }
 
     public void shutDown(Runnable shutDownCompleteHandler) {
@@ -198,8 +275,16 @@ public abstract class NetworkNode implements MessageListener, ConnectionListener
                 server = null;
             }
 
+            // The connections remove themselves at shutDown, that is safe while iterating the view
             getAllConnections().stream().forEach(e -> e.shutDown());
 
+            if (eventLoopGroup != null) {
+                // Connections send the CloseConnectionMessage and close their channels asynchronously
+                NioEventLoopGroup eventLoopGroup = this.eventLoopGroup;
+                this.eventLoopGroup = null;
+                UserThread.runAfter(eventLoopGroup::shutDown, 1);
+            }
+
             log.info("NetworkNode shutdown complete");
             if (shutDownCompleteHandler != null) shutDownCompleteHandler.run();
         }
@@ -224,15 +309,14 @@ public abstract class NetworkNode implements MessageListener, ConnectionListener
 
     @Override
     public void onConnection(Connection connection) {
-        Log.traceCall("connection=" + connection);
+        Log.traceCall(TRACE_ON_CONNECTION, connection);
         connectionListeners.stream().forEach(e -> e.onConnection(connection));
     }
 
     @Override
     public void onDisconnect(Reason reason, Connection connection) {
-        Log.traceCall("connection = " + connection);
-        outBoundConnections.remove(connection);
-        inBoundConnections.remove(connection);
+        Log.traceCall(TRACE_ON_DISCONNECT, connection);
+        connectionRegistry.remove(connection);
         connectionListeners.stream().forEach(e -> e.onDisconnect(reason, connection));
     }
 
@@ -296,7 +380,26 @@ public abstract class NetworkNode implements MessageListener, ConnectionListener
 
     protected void createExecutorService() {
         Log.traceCall();
-        executorService = Utilities.getListeningExecutorService("NetworkNode-" + servicePort, 20, 50, 120L);
+        ListeningExecutorService virtualThreadExecutorService = null;
+        if (transportMode == TransportMode.VIRTUAL_THREADS) {
+            virtualThreadExecutorService = Utilities.getVirtualThreadExecutorService("NetworkNode-" + servicePort);
+            if (virtualThreadExecutorService == null)
+                log.warn("Virtual threads are not supported by that JVM. We use the thread pool instead.");
+        }
+
+        if (virtualThreadExecutorService != null)
+            executorService = virtualThreadExecutorService;
+        else
+            executorService = Utilities.getListeningExecutorService("NetworkNode-" + servicePort, 20, 50, 120L);
+
+        if (transportMode == TransportMode.NIO && eventLoopGroup == null) {
+            try {
+                eventLoopGroup = new NioEventLoopGroup("NetworkNode-" + servicePort, NUM_EVENT_LOOP_THREADS);
+            } catch (IOException e) {
+                log.error("Could not create the event loops. We use the blocking transport. " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
     }
 
     protected void startServer(ServerSocket serverSocket) {
@@ -304,16 +407,16 @@ public abstract class NetworkNode implements MessageListener, ConnectionListener
         ConnectionListener startServerConnectionListener = new ConnectionListener() {
             @Override
             public void onConnection(Connection connection) {
-                Log.traceCall("startServerConnectionListener connection=" + connection);
+                Log.traceCall(TRACE_ON_INBOUND_CONNECTION, connection);
                 // we still have not authenticated so put it to the temp list
-                inBoundConnections.add(connection);
+                connectionRegistry.addInBoundConnection(connection);
                 NetworkNode.this.onConnection(connection);
             }
 
             @Override
             public void onDisconnect(Reason reason, Connection connection) {
-                Log.traceCall("onDisconnect at incoming connection = " + connection);
-                inBoundConnections.remove(connection);
+                Log.traceCall(TRACE_ON_INBOUND_DISCONNECT, connection);
+                connectionRegistry.remove(connection);
                 NetworkNode.this.onDisconnect(reason, connection);
             }
 
@@ -325,23 +428,31 @@ public abstract class NetworkNode implements MessageListener, ConnectionListener
         };
         server = new Server(serverSocket,
                 NetworkNode.this,
-                startServerConnectionListener);
+                startServerConnectionListener,
+                eventLoopGroup);
         executorService.submit(server);
     }
 
-    private Optional<Connection> lookupOutboundConnection(NodeAddress peerNodeAddress) {
-        // Log.traceCall("search for " + peerAddress.toString() + " / outBoundConnections " + outBoundConnections);
-        return outBoundConnections.stream()
-                .filter(e -> e.getPeerAddressOptional().isPresent() && peerNodeAddress.equals(e.getPeerAddressOptional().get())).findAny();
+    abstract protected Socket createSocket(NodeAddress peerNodeAddress) throws IOException;
+
+    // Creates the socket in the executor. Nodes which can connect without blocking a thread override it.
+    protected ListenableFuture<Socket> createSocketAsync(NodeAddress peerNodeAddress) {
+        return executorService.submit(() -> {
+            Thread.currentThread().setName("NetworkNode:CreateSocket-to-" + peerNodeAddress);
+            return createSocket(peerNodeAddress);
+        });
     }
 
-    private Optional<Connection> lookupInboundConnection(NodeAddress peerNodeAddress) {
-        // Log.traceCall("search for " + peerAddress.toString() + " / inBoundConnections " + inBoundConnections);
-        return inBoundConnections.stream()
-                .filter(e -> e.getPeerAddressOptional().isPresent() && peerNodeAddress.equals(e.getPeerAddressOptional().get())).findAny();
+    // Hint that we will likely connect to those peers soon. Nodes which can prepare a connection override it.
+    public void prefetch(Collection<NodeAddress> nodeAddresses) {
     }
 
-    abstract protected Socket createSocket(NodeAddress peerNodeAddress) throws IOException;
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignore) {
+        }
+    }
 
     @Nullable
     abstract public NodeAddress getNodeAddress();
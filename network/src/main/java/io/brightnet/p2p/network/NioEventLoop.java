@@ -0,0 +1,166 @@
+package io.brightnet.p2p.network;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Drives any number of non-blocking channels with a single thread.
+ * Handlers are only called from the loop thread, other threads interact with the loop by submitting tasks.
+ */
+final class NioEventLoop implements Runnable {
+    private static final Logger log = LoggerFactory.getLogger(NioEventLoop.class);
+
+    // interval for onTick calls, used for idle timeouts
+    private static final long TICK_INTERVAL = 1000;
+
+    interface Handler {
+        void onRegistered(SelectionKey key);
+
+        void onSelected(SelectionKey key) throws IOException;
+
+        void onTick(long now);
+
+        void onError(Throwable throwable);
+    }
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Guards adding tasks against stopping, so no task is added after the last run of the tasks
+    private final Object stopLock = new Object();
+    private volatile boolean stopped;
+    private long lastTick;
+
+    NioEventLoop(String name) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Runs the task on the loop thread. If the loop is already stopped the task is executed by the caller.
+     */
+    void execute(Runnable task) {
+        synchronized (stopLock) {
+            if (!stopped) {
+                tasks.add(task);
+                selector.wakeup();
+                return;
+            }
+        }
+        task.run();
+    }
+
+    void register(SelectableChannel channel, int interestOps, Handler handler) {
+        execute(() -> {
+            try {
+                SelectionKey key = channel.register(selector, interestOps, handler);
+                handler.onRegistered(key);
+            } catch (Throwable t) {
+                handler.onError(t);
+            }
+        });
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    void shutDown() {
+        if (thread.getState() == Thread.State.NEW) {
+            stop();
+            closeAll();
+        } else {
+            stopped = true;
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!stopped) {
+                selector.select(TICK_INTERVAL);
+                runTasks();
+                processSelectedKeys();
+
+                long now = System.currentTimeMillis();
+                if (now - lastTick >= TICK_INTERVAL) {
+                    lastTick = now;
+                    for (SelectionKey key : selector.keys()) {
+                        if (key.isValid())
+                            ((Handler) key.attachment()).onTick(now);
+                    }
+                }
+            }
+        } catch (Throwable t) {
+            log.error("Event loop failed. " + t.getMessage());
+            t.printStackTrace();
+        } finally {
+            stop();
+            closeAll();
+        }
+    }
+
+    // Tasks which are added before we set stopped are run here, later ones by the caller of execute
+    private void stop() {
+        synchronized (stopLock) {
+            stopped = true;
+        }
+        runTasks();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                log.error("Executing task failed. " + t.getMessage());
+                t.printStackTrace();
+            }
+        }
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+        while (iterator.hasNext()) {
+            SelectionKey key = iterator.next();
+            iterator.remove();
+            Handler handler = (Handler) key.attachment();
+            try {
+                if (key.isValid())
+                    handler.onSelected(key);
+            } catch (Throwable t) {
+                key.cancel();
+                handler.onError(t);
+            }
+        }
+    }
+
+    private void closeAll() {
+        try {
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException ignore) {
+                }
+            }
+            selector.close();
+        } catch (Throwable t) {
+            log.warn("Exception at closing event loop. " + t.getMessage());
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package io.brightnet.p2p.network;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed set of event loops. Channels are assigned round robin.
+ */
+final class NioEventLoopGroup {
+    private final NioEventLoop[] eventLoops;
+    private final AtomicInteger index = new AtomicInteger();
+
+    NioEventLoopGroup(String name, int numThreads) throws IOException {
+        eventLoops = new NioEventLoop[numThreads];
+        try {
+            for (int i = 0; i < numThreads; i++)
+                eventLoops[i] = new NioEventLoop(name + "-EventLoop-" + i);
+        } catch (IOException e) {
+            shutDown();
+            throw e;
+        }
+        for (NioEventLoop eventLoop : eventLoops)
+            eventLoop.start();
+    }
+
+    NioEventLoop next() {
+        return eventLoops[Math.abs(index.getAndIncrement() % eventLoops.length)];
+    }
+
+    void shutDown() {
+        for (NioEventLoop eventLoop : eventLoops) {
+            if (eventLoop != null)
+                eventLoop.shutDown();
+        }
+    }
+}
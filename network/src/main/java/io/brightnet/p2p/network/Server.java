@@ -1,6 +1,7 @@
 package io.brightnet.p2p.network;
 
 import io.brightnet.app.Log;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -8,6 +9,9 @@ import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
 
@@ -17,6 +21,8 @@ class Server implements Runnable {
 
     private final MessageListener messageListener;
     private final ConnectionListener connectionListener;
+    @Nullable
+    private final NioEventLoopGroup eventLoopGroup;
 
     // accessed from different threads
     private final ServerSocket serverSocket;
@@ -25,15 +31,27 @@ class Server implements Runnable {
 
 
     public Server(ServerSocket serverSocket, MessageListener messageListener, ConnectionListener connectionListener) {
+        this(serverSocket, messageListener, connectionListener, null);
+    }
+
+    // If an eventLoopGroup is passed and the serverSocket has a channel we accept in non-blocking mode
+    public Server(ServerSocket serverSocket, MessageListener messageListener, ConnectionListener connectionListener,
+                  @Nullable NioEventLoopGroup eventLoopGroup) {
         Log.traceCall();
         this.serverSocket = serverSocket;
         this.messageListener = messageListener;
         this.connectionListener = connectionListener;
+        this.eventLoopGroup = eventLoopGroup;
     }
 
     @Override
     public void run() {
         Log.traceCall();
+        if (eventLoopGroup != null && serverSocket.getChannel() != null) {
+            startAccepting(serverSocket.getChannel(), eventLoopGroup);
+            return;
+        }
+
         try {
             // Thread created by NetworkNode
             Thread.currentThread().setName("Server-" + serverSocket.getLocalPort());
@@ -66,6 +84,47 @@ class Server implements Runnable {
         }
     }
 
+    private void startAccepting(ServerSocketChannel serverSocketChannel, NioEventLoopGroup eventLoopGroup) {
+        try {
+            serverSocketChannel.configureBlocking(false);
+            log.info("Ready to accept new clients on port " + serverSocket.getLocalPort());
+            eventLoopGroup.next().register(serverSocketChannel, SelectionKey.OP_ACCEPT, new NioEventLoop.Handler() {
+                @Override
+                public void onRegistered(SelectionKey key) {
+                }
+
+                @Override
+                public void onSelected(SelectionKey key) throws IOException {
+                    SocketChannel socketChannel;
+                    while (!stopped && (socketChannel = serverSocketChannel.accept()) != null) {
+                        Socket socket = socketChannel.socket();
+                        log.info("Accepted new client on localPort/port " + socket.getLocalPort() + "/" + socket.getPort());
+                        Connection connection = new Connection(socket, messageListener, connectionListener,
+                                eventLoopGroup.next());
+                        log.info("Server created new inbound connection. localPort/port={}/{}, connection.uid={}",
+                                serverSocket.getLocalPort(), socket.getPort(), connection.getUid());
+                        connections.add(connection);
+                    }
+                }
+
+                @Override
+                public void onTick(long now) {
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    if (!stopped) {
+                        log.error("Accepting connections failed. " + throwable.getMessage());
+                        throwable.printStackTrace();
+                    }
+                }
+            });
+        } catch (IOException e) {
+            log.error("Exception at startAccepting. " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
     public void shutDown() {
         Log.traceCall();
         if (!stopped) {
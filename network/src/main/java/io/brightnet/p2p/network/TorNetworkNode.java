@@ -4,6 +4,7 @@ import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import com.msopentech.thali.java.toronionproxy.JavaOnionProxyContext;
 import com.msopentech.thali.java.toronionproxy.JavaOnionProxyManager;
 import io.brightnet.app.Log;
@@ -22,7 +23,11 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.IOException;
 import java.net.Socket;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.Timer;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
@@ -37,12 +42,14 @@ public class TorNetworkNode extends NetworkNode {
     private static final long SHUT_DOWN_TIMEOUT = 5000;
 
     private final File torDir;
-    private TorNode torNetworkNode;
+    private TorNode<JavaOnionProxyManager, JavaOnionProxyContext> torNetworkNode;
     private HiddenServiceDescriptor hiddenServiceDescriptor;
     private Timer shutDownTimeoutTimer;
     private int restartCounter;
     private Runnable shutDownCompleteHandler;
     private boolean torShutDownComplete, networkNodeShutDownDoneComplete;
+    // Addresses to prefetch once the tor node is created
+    private final Set<String> pendingPrefetches = new HashSet<>();
 
 
     // /////////////////////////////////////////////////////////////////////////////////////////
@@ -72,6 +79,8 @@ public class TorNetworkNode extends NetworkNode {
         createTorNode(torDir, torNode -> {
             Log.traceCall("torNode created");
             TorNetworkNode.this.torNetworkNode = torNode;
+            pendingPrefetches.stream().forEach(torNode::prefetchHiddenService);
+            pendingPrefetches.clear();
 
             setupListeners.stream().forEach(e -> e.onTorNodeReady());
 
@@ -106,6 +115,36 @@ public class TorNetworkNode extends NetworkNode {
         return torNetworkNode.connectToHiddenService(peerNodeAddress.hostName, peerNodeAddress.port);
     }
 
+    // The tor node retries the connect without blocking a thread of our executor
+    @Override
+    protected ListenableFuture<Socket> createSocketAsync(NodeAddress peerNodeAddress) {
+        Log.traceCall();
+        checkArgument(peerNodeAddress.hostName.endsWith(".onion"), "PeerAddress is not an onion address");
+
+        SettableFuture<Socket> future = SettableFuture.create();
+        CompletableFuture<Socket> connectFuture = torNetworkNode.connectToHiddenServiceAsync(peerNodeAddress.hostName,
+                peerNodeAddress.port);
+        connectFuture.whenComplete((socket, throwable) -> {
+            if (throwable != null)
+                future.setException(throwable);
+            else
+                future.set(socket);
+        });
+        return future;
+    }
+
+    @Override
+    public void prefetch(Collection<NodeAddress> nodeAddresses) {
+        nodeAddresses.stream()
+                .filter(nodeAddress -> nodeAddress.hostName.endsWith(".onion"))
+                .forEach(nodeAddress -> {
+                    if (torNetworkNode != null)
+                        torNetworkNode.prefetchHiddenService(nodeAddress.hostName);
+                    else
+                        pendingPrefetches.add(nodeAddress.hostName);
+                });
+    }
+
     //TODO simplify
     public void shutDown(Runnable shutDownCompleteHandler) {
         Log.traceCall();
@@ -200,7 +239,8 @@ public class TorNetworkNode extends NetworkNode {
     // create tor
     ///////////////////////////////////////////////////////////////////////////////////////////
 
-    private void createTorNode(final File torDir, final Consumer<TorNode> resultHandler) {
+    private void createTorNode(final File torDir,
+                               final Consumer<TorNode<JavaOnionProxyManager, JavaOnionProxyContext>> resultHandler) {
         Log.traceCall();
         ListenableFuture<TorNode<JavaOnionProxyManager, JavaOnionProxyContext>> future = executorService.submit(() -> {
             Utilities.setThreadName("TorNetworkNode:CreateTorNode");
@@ -230,8 +270,8 @@ public class TorNetworkNode extends NetworkNode {
         });
     }
 
-    private void createHiddenService(TorNode torNode, int localPort, int servicePort,
-                                     Consumer<HiddenServiceDescriptor> resultHandler) {
+    private void createHiddenService(TorNode<JavaOnionProxyManager, JavaOnionProxyContext> torNode, int localPort,
+                                     int servicePort, Consumer<HiddenServiceDescriptor> resultHandler) {
         Log.traceCall();
         ListenableFuture<Object> future = executorService.submit(() -> {
             Utilities.setThreadName("TorNetworkNode:CreateHiddenService");
@@ -0,0 +1,12 @@
+package io.brightnet.p2p.network;
+
+public enum TransportMode {
+    // One InputHandler thread per connection and a thread blocking in accept()
+    BLOCKING,
+    // Same as BLOCKING but the InputHandlers, send tasks and the accept loop run on virtual threads, so there is
+    // no limit by the thread pools. Needs Java 21, otherwise BLOCKING is used.
+    VIRTUAL_THREADS,
+    // All sockets with a channel are driven by a small fixed set of selector threads.
+    // Sockets without a channel (e.g. SOCKS sockets to tor) fall back to blocking mode.
+    NIO
+}
@@ -31,6 +31,12 @@ import java.util.function.Supplier;
 
 public class AuthenticationHandshake implements MessageListener {
     private static final Logger log = LoggerFactory.getLogger(AuthenticationHandshake.class);
+    private static final Log.CallSite TRACE_CONSTRUCTOR = Log.callSite(AuthenticationHandshake.class, "Constructor");
+    private static final Log.CallSite TRACE_ON_MESSAGE = Log.callSite(AuthenticationHandshake.class, "onMessage");
+    private static final Log.CallSite TRACE_REQUEST_AUTHENTICATION = Log.callSite(AuthenticationHandshake.class, "requestAuthentication");
+    private static final Log.CallSite TRACE_RESPOND_TO_AUTHENTICATION_REQUEST = Log.callSite(AuthenticationHandshake.class, "respondToAuthenticationRequest");
+    private static final Log.CallSite TRACE_FAILED = Log.callSite(AuthenticationHandshake.class, "failed");
+    private static final Log.CallSite TRACE_SHUT_DOWN = Log.callSite(AuthenticationHandshake.class, "shutDown");
 
     private final NetworkNode networkNode;
     private final NodeAddress myNodeAddress;
@@ -41,6 +47,8 @@ public class AuthenticationHandshake implements MessageListener {
     private final long startAuthTs;
     private long nonce = 0;
     private boolean stopped;
+    // Set if we cancelled the handshake and don't want any connection to the peer from it
+    private boolean closeConnections;
     private Optional<SettableFuture<Connection>> resultFutureOptional = Optional.empty();
     private Timer timeoutTimer, shutDownTimer;
 
@@ -54,7 +62,7 @@ public class AuthenticationHandshake implements MessageListener {
                                    NodeAddress peerNodeAddress,
                                    Supplier<Set<ReportedPeer>> authenticatedAndReportedPeersSupplier,
                                    BiConsumer<HashSet<ReportedPeer>, Connection> addReportedPeersConsumer) {
-        Log.traceCall("peerAddress " + peerNodeAddress);
+        Log.traceCall(TRACE_CONSTRUCTOR, peerNodeAddress);
         this.authenticatedAndReportedPeersSupplier = authenticatedAndReportedPeersSupplier;
         this.addReportedPeersConsumer = addReportedPeersConsumer;
         this.networkNode = networkNode;
@@ -80,7 +88,7 @@ public class AuthenticationHandshake implements MessageListener {
             if (message instanceof AuthenticationMessage) {
                 // We are listening on all connections, so we need to filter out only our peer
                 if (((AuthenticationMessage) message).senderNodeAddress.equals(peerNodeAddress)) {
-                    Log.traceCall(message.toString());
+                    Log.traceCall(TRACE_ON_MESSAGE, message);
 
                     if (timeoutTimer != null)
                         timeoutTimer.cancel();
@@ -105,6 +113,13 @@ public class AuthenticationHandshake implements MessageListener {
                                 @Override
                                 public void onSuccess(Connection connection) {
                                     log.trace("Successfully sent AuthenticationFinalResponse to {}", peerNodeAddress);
+                                    if (closeConnections) {
+                                        // The peer takes us as authenticated now, so we must not leave the connection open
+                                        log.info("AuthenticationHandshake to {} got cancelled while sending " +
+                                                "AuthenticationFinalResponse. We close the connection.", peerNodeAddress);
+                                        connection.shutDown();
+                                        return;
+                                    }
 
                                     log.info("AuthenticationComplete: Peer with address " + peerNodeAddress
                                             + " authenticated (" + connection.getUid() + "). Took "
@@ -167,6 +182,12 @@ public class AuthenticationHandshake implements MessageListener {
                     "That can happen because of Thread mapping.", peerNodeAddress);
             log.debug("message={}", message);
             log.debug("connection={}", connection);
+            if (closeConnections && message instanceof AuthenticationMessage
+                    && ((AuthenticationMessage) message).senderNodeAddress.equals(peerNodeAddress)
+                    && !connection.isAuthenticated()) {
+                // A late answer to a cancelled handshake
+                connection.shutDown();
+            }
             return;
         }
     }
@@ -177,7 +198,7 @@ public class AuthenticationHandshake implements MessageListener {
     ///////////////////////////////////////////////////////////////////////////////////////////
 
     public SettableFuture<Connection> requestAuthentication() {
-        Log.traceCall("peerAddress " + peerNodeAddress);
+        Log.traceCall(TRACE_REQUEST_AUTHENTICATION, peerNodeAddress);
         // Requesting peer
 
         if (stopped) {
@@ -193,6 +214,11 @@ public class AuthenticationHandshake implements MessageListener {
             public void onSuccess(Connection connection) {
                 log.trace("send AuthenticationRequest to " + peerNodeAddress + " succeeded.");
 
+                if (closeConnections) {
+                    connection.shutDown();
+                    return;
+                }
+
                 // We protect that connection from getting closed by maintenance cleanup...
                 connection.setConnectionPriority(ConnectionPriority.AUTH_REQUEST);
             }
@@ -223,7 +249,7 @@ public class AuthenticationHandshake implements MessageListener {
 
     public SettableFuture<Connection> respondToAuthenticationRequest(AuthenticationRequest authenticationRequest,
                                                                      Connection connection) {
-        Log.traceCall("peerAddress " + peerNodeAddress);
+        Log.traceCall(TRACE_RESPOND_TO_AUTHENTICATION_REQUEST, peerNodeAddress);
         // Responding peer
 
         if (stopped) {
@@ -301,6 +327,23 @@ public class AuthenticationHandshake implements MessageListener {
                 + " canceled because of a race conditions."));
     }
 
+    // Cancels the handshake and closes the not authenticated connections to the peer, also those which get created
+    // later by the handshake. Used if we don't want the peer any more, so it does not end up with a connection we
+    // don't know of.
+    public void cancelAndCloseConnections() {
+        Log.traceCall();
+        closeConnections = true;
+        failed(new AuthenticationException("Authentication to peer " + peerNodeAddress + " canceled."));
+        networkNode.getAllConnections().stream()
+                .filter(connection -> !connection.isAuthenticated()
+                        && peerNodeAddress.equals(connection.getPeerAddress()))
+                .forEach(connection -> {
+                    log.info("We close the connection {} of the cancelled authentication to {}.",
+                            connection.getUid(), peerNodeAddress);
+                    connection.shutDown();
+                });
+    }
+
 
     ///////////////////////////////////////////////////////////////////////////////////////////
     // Getter
@@ -325,7 +368,7 @@ public class AuthenticationHandshake implements MessageListener {
     }
 
     private void failed(@NotNull Throwable throwable) {
-        Log.traceCall(throwable.toString());
+        Log.traceCall(TRACE_FAILED, throwable);
         shutDown();
         if (resultFutureOptional.isPresent())
             resultFutureOptional.get().setException(throwable);
@@ -343,7 +386,7 @@ public class AuthenticationHandshake implements MessageListener {
     }
 
     private void shutDown() {
-        Log.traceCall("peerAddress = " + peerNodeAddress);
+        Log.traceCall(TRACE_SHUT_DOWN, peerNodeAddress);
         stopped = true;
 
         if (timeoutTimer != null)
@@ -0,0 +1,238 @@
+package io.brightnet.p2p.peers;
+
+import com.google.common.util.concurrent.FutureCallback;
+import io.brightnet.common.UserThread;
+import io.brightnet.p2p.NodeAddress;
+import io.brightnet.p2p.network.Connection;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Authenticates to several peers in parallel, in the style of happy eyeballs. A new attempt is started every
+ * staggerDelay as long as less than maxParallelAttempts are running, a failed attempt starts the next one at once.
+ * <p>
+ * The race ends when numWanted attempts succeeded, when all candidates failed or at the deadline. Attempts which are
+ * still running then get cancelled.
+ */
+// Run in UserThread
+class ConnectionRace {
+    private static final Logger log = LoggerFactory.getLogger(ConnectionRace.class);
+
+    interface Listener {
+        void onAuthenticated(NodeAddress peerNodeAddress, Connection connection);
+
+        void onFailed(NodeAddress peerNodeAddress, Throwable throwable);
+
+        void onCompleted(ConnectionRace connectionRace);
+    }
+
+    private final String name;
+    private final int numWanted;
+    private final int maxParallelAttempts;
+    private final long staggerDelay;
+    private final long deadline;
+    private final Supplier<Optional<NodeAddress>> candidateSupplier;
+    private final BiConsumer<NodeAddress, FutureCallback<Connection>> authenticator;
+    private final Consumer<NodeAddress> canceller;
+    private final Listener listener;
+
+    private final Set<NodeAddress> runningAttempts = new HashSet<>();
+    private Timer staggerTimer, deadlineTimer;
+    private boolean candidatesLeft = true;
+    private boolean completed;
+    private long startTime;
+    private int numAttempts, numAuthenticated, numCancelled;
+    private long timeToFirstAuthenticated = -1;
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Constructor
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @param candidateSupplier Returns the next peer to try, the peer must not be in an authentication handshake.
+     * @param authenticator     Starts the authentication handshake with the peer.
+     * @param canceller         Cancels the authentication handshake with the peer and closes its connection, the
+     *                          handshake must fail then.
+     */
+    ConnectionRace(String name,
+                   int numWanted,
+                   int maxParallelAttempts,
+                   long staggerDelay,
+                   long deadline,
+                   Supplier<Optional<NodeAddress>> candidateSupplier,
+                   BiConsumer<NodeAddress, FutureCallback<Connection>> authenticator,
+                   Consumer<NodeAddress> canceller,
+                   Listener listener) {
+        this.name = name;
+        this.numWanted = numWanted;
+        this.maxParallelAttempts = maxParallelAttempts;
+        this.staggerDelay = staggerDelay;
+        this.deadline = deadline;
+        this.candidateSupplier = candidateSupplier;
+        this.authenticator = authenticator;
+        this.canceller = canceller;
+        this.listener = listener;
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // API
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    void start() {
+        startTime = System.currentTimeMillis();
+        log.info("We start the connection race {}. We want {} peers with max. {} parallel attempts.",
+                name, numWanted, maxParallelAttempts);
+        deadlineTimer = UserThread.runAfter(() -> {
+            log.info("Deadline of connection race {} reached.", name);
+            complete();
+        }, deadline, TimeUnit.MILLISECONDS);
+        startNextAttempt();
+    }
+
+    // Stops the race without notifying the listener about the completion
+    void stop() {
+        if (!completed) {
+            completed = true;
+            cancelTimers();
+            cancelRunningAttempts();
+        }
+    }
+
+    boolean isCompleted() {
+        return completed;
+    }
+
+    int getNumAttempts() {
+        return numAttempts;
+    }
+
+    int getNumAuthenticated() {
+        return numAuthenticated;
+    }
+
+    int getNumCancelled() {
+        return numCancelled;
+    }
+
+    // Time in ms from the start to the first successful attempt, -1 if there was none
+    long getTimeToFirstAuthenticated() {
+        return timeToFirstAuthenticated;
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionRace{" +
+                "name='" + name + '\'' +
+                ", numAttempts=" + numAttempts +
+                ", numAuthenticated=" + numAuthenticated +
+                ", numCancelled=" + numCancelled +
+                ", timeToFirstAuthenticated=" + timeToFirstAuthenticated +
+                ", duration=" + (System.currentTimeMillis() - startTime) +
+                '}';
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Private
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    private void startNextAttempt() {
+        if (staggerTimer != null) {
+            staggerTimer.cancel();
+            staggerTimer = null;
+        }
+        if (completed)
+            return;
+
+        if (candidatesLeft && runningAttempts.size() < maxParallelAttempts) {
+            Optional<NodeAddress> candidate = candidateSupplier.get();
+            if (candidate.isPresent()) {
+                startAttempt(candidate.get());
+            } else {
+                log.debug("No more candidates for connection race {}.", name);
+                candidatesLeft = false;
+            }
+        }
+
+        if (!candidatesLeft && runningAttempts.isEmpty())
+            complete();
+        else if (candidatesLeft && runningAttempts.size() < maxParallelAttempts)
+            staggerTimer = UserThread.runAfter(this::startNextAttempt, staggerDelay, TimeUnit.MILLISECONDS);
+    }
+
+    private void startAttempt(NodeAddress peerNodeAddress) {
+        log.info("Connection race {}: We try to authenticate to {}.", name, peerNodeAddress);
+        numAttempts++;
+        runningAttempts.add(peerNodeAddress);
+        authenticator.accept(peerNodeAddress, new FutureCallback<Connection>() {
+            @Override
+            public void onSuccess(Connection connection) {
+                onAttemptSucceeded(peerNodeAddress, connection);
+            }
+
+            @Override
+            public void onFailure(@NotNull Throwable throwable) {
+                onAttemptFailed(peerNodeAddress, throwable);
+            }
+        });
+    }
+
+    private void onAttemptSucceeded(NodeAddress peerNodeAddress, Connection connection) {
+        runningAttempts.remove(peerNodeAddress);
+        numAuthenticated++;
+        if (timeToFirstAuthenticated == -1)
+            timeToFirstAuthenticated = System.currentTimeMillis() - startTime;
+        listener.onAuthenticated(peerNodeAddress, connection);
+
+        if (numAuthenticated >= numWanted)
+            complete();
+        else
+            startNextAttempt();
+    }
+
+    private void onAttemptFailed(NodeAddress peerNodeAddress, Throwable throwable) {
+        runningAttempts.remove(peerNodeAddress);
+        listener.onFailed(peerNodeAddress, throwable);
+        startNextAttempt();
+    }
+
+    private void complete() {
+        if (!completed) {
+            completed = true;
+            cancelTimers();
+            cancelRunningAttempts();
+            log.info("Connection race completed. {}", this);
+            listener.onCompleted(this);
+        }
+    }
+
+    private void cancelRunningAttempts() {
+        // Cancelling lets the attempt fail, which removes it from runningAttempts
+        new ArrayList<>(runningAttempts).stream().forEach(peerNodeAddress -> {
+            log.debug("Connection race {}: We cancel the attempt to {}.", name, peerNodeAddress);
+            numCancelled++;
+            canceller.accept(peerNodeAddress);
+        });
+        runningAttempts.clear();
+    }
+
+    private void cancelTimers() {
+        if (staggerTimer != null) {
+            staggerTimer.cancel();
+            staggerTimer = null;
+        }
+        if (deadlineTimer != null) {
+            deadlineTimer.cancel();
+            deadlineTimer = null;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package io.brightnet.p2p.peers;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Settings of the connection races of PeerManager, see ConnectionRace. With 1 parallel attempt we don't race but try
+ * one peer after the other, which is the default.
+ */
+public final class ConnectionRaceConfig {
+    public static final ConnectionRaceConfig DISABLED = new ConnectionRaceConfig(1, 1, 0, 0);
+
+    public final int parallelAttempts;
+    // Number of peers we want from the race at startup, further peers are raced for later
+    public final int wantedAtStartup;
+    public final long staggerDelay;
+    public final long deadline;
+
+    public ConnectionRaceConfig(int parallelAttempts, int wantedAtStartup, long staggerDelay, long deadline) {
+        checkArgument(parallelAttempts > 0 && wantedAtStartup > 0, "parallelAttempts and wantedAtStartup must be > 0");
+        checkArgument(staggerDelay >= 0 && deadline >= 0, "staggerDelay and deadline must not be negative");
+        this.parallelAttempts = parallelAttempts;
+        this.wantedAtStartup = wantedAtStartup;
+        this.staggerDelay = staggerDelay;
+        this.deadline = deadline;
+    }
+
+    public boolean isEnabled() {
+        return parallelAttempts > 1;
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionRaceConfig{" +
+                "parallelAttempts=" + parallelAttempts +
+                ", wantedAtStartup=" + wantedAtStartup +
+                ", staggerDelay=" + staggerDelay +
+                ", deadline=" + deadline +
+                '}';
+    }
+}
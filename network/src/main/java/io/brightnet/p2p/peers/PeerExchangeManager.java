@@ -31,6 +31,7 @@ import java.util.function.Supplier;
 
 public class PeerExchangeManager implements MessageListener {
     private static final Logger log = LoggerFactory.getLogger(PeerExchangeManager.class);
+    private static final Log.CallSite TRACE_ON_MESSAGE = Log.callSite(PeerExchangeManager.class, "onMessage");
 
     private final NetworkNode networkNode;
     private final Supplier<Set<ReportedPeer>> authenticatedAndReportedPeersSupplier;
@@ -77,7 +78,7 @@ public class PeerExchangeManager implements MessageListener {
     @Override
     public void onMessage(Message message, Connection connection) {
         if (message instanceof PeerExchangeMessage) {
-            Log.traceCall(message.toString());
+            Log.traceCall(TRACE_ON_MESSAGE, message);
             if (message instanceof GetPeersRequest) {
                 GetPeersRequest getPeersRequestMessage = (GetPeersRequest) message;
                 HashSet<ReportedPeer> reportedPeers = getPeersRequestMessage.reportedPeers;
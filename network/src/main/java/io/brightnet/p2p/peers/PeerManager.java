@@ -20,17 +20,27 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import static com.google.common.base.Preconditions.checkArgument;
 
 public class PeerManager implements MessageListener, ConnectionListener {
     private static final Logger log = LoggerFactory.getLogger(PeerManager.class);
+    private static final Log.CallSite TRACE_BROADCAST = Log.callSite(PeerManager.class, "broadcast");
+    private static final Log.CallSite TRACE_PROCESS_AUTHENTICATION_REQUEST = Log.callSite(PeerManager.class, "processAuthenticationRequest");
+    private static final Log.CallSite TRACE_AUTHENTICATE_TO_DIRECT_MESSAGE_PEER = Log.callSite(PeerManager.class, "authenticateToDirectMessagePeer");
+    private static final Log.CallSite TRACE_AUTHENTICATE = Log.callSite(PeerManager.class, "authenticate");
+    private static final Log.CallSite TRACE_HANDLE_AUTHENTICATION_SUCCESS = Log.callSite(PeerManager.class, "handleAuthenticationSuccess");
+    private static final Log.CallSite TRACE_REMOVE_PEER = Log.callSite(PeerManager.class, "removePeer");
+    private static final Log.CallSite TRACE_ADD_TO_REPORTED_PEERS = Log.callSite(PeerManager.class, "addToReportedPeers");
 
     ///////////////////////////////////////////////////////////////////////////////////////////
     // Static
@@ -51,6 +61,8 @@ public class PeerManager implements MessageListener, ConnectionListener {
     }
 
     private static final int MAX_REPORTED_PEERS = 1000;
+    // Max. number of peers we let the network node prefetch at once
+    private static final int MAX_PREFETCHED_PEERS = 20;
 
 
     ///////////////////////////////////////////////////////////////////////////////////////////
@@ -58,6 +70,7 @@ public class PeerManager implements MessageListener, ConnectionListener {
     ///////////////////////////////////////////////////////////////////////////////////////////
 
     private final NetworkNode networkNode;
+    private final ConnectionRaceConfig connectionRaceConfig;
     private final PeerExchangeManager peerExchangeManager;
     protected final ScheduledThreadPoolExecutor checkSeedNodeConnectionExecutor;
     @Nullable
@@ -71,6 +84,16 @@ public class PeerManager implements MessageListener, ConnectionListener {
     protected final List<NodeAddress> remainingSeedNodes = new ArrayList<>();
     protected Optional<Set<NodeAddress>> seedNodeAddressesOptional = Optional.empty();
     protected Timer authenticateToRemainingSeedNodeTimer, authenticateToRemainingReportedPeerTimer;
+    @Nullable
+    private ConnectionRace connectionRace;
+    private long authenticateToSeedNodeTime;
+
+    // Metrics
+    private final AtomicLong numConnectionRaces = new AtomicLong();
+    private final AtomicLong numRaceAttempts = new AtomicLong();
+    private final AtomicLong numRaceAuthentications = new AtomicLong();
+    private final AtomicLong numRaceCancellations = new AtomicLong();
+    private volatile long timeToFirstAuthenticatedPeer = -1;
 
 
     ///////////////////////////////////////////////////////////////////////////////////////////
@@ -78,9 +101,14 @@ public class PeerManager implements MessageListener, ConnectionListener {
     ///////////////////////////////////////////////////////////////////////////////////////////
 
     public PeerManager(NetworkNode networkNode, File storageDir) {
+        this(networkNode, storageDir, ConnectionRaceConfig.DISABLED);
+    }
+
+    public PeerManager(NetworkNode networkNode, File storageDir, ConnectionRaceConfig connectionRaceConfig) {
         Log.traceCall();
 
         this.networkNode = networkNode;
+        this.connectionRaceConfig = connectionRaceConfig;
         createDbStorage(storageDir);
 
         peerExchangeManager = new PeerExchangeManager(networkNode,
@@ -110,6 +138,7 @@ public class PeerManager implements MessageListener, ConnectionListener {
             log.info("We have persisted reported peers. " +
                     "\npersistedPeers=" + persistedPeers);
             this.persistedPeers.addAll(persistedPeers);
+            prefetch(persistedPeers);
         }
     }
 
@@ -123,7 +152,7 @@ public class PeerManager implements MessageListener, ConnectionListener {
 
     @Override
     public void onDisconnect(Reason reason, Connection connection) {
-        log.debug("onDisconnect reason=" + reason + " / connection=" + connection);
+        log.debug("onDisconnect reason={} / connection={}", reason, connection);
 
         connection.getPeerAddressOptional().ifPresent(peerAddress -> {
             // We only remove the peer from the authenticationHandshakes and the reportedPeers 
@@ -164,20 +193,29 @@ public class PeerManager implements MessageListener, ConnectionListener {
     ///////////////////////////////////////////////////////////////////////////////////////////
 
     public void broadcast(DataBroadcastMessage message, @Nullable NodeAddress sender) {
-        Log.traceCall("Sender " + sender + ". Message " + message.toString());
+        Log.traceCall(TRACE_BROADCAST, "sender: {} / message: {}", sender, message);
         if (authenticatedPeers.values().size() > 0) {
             log.info("Broadcast message to {} peers. Message: {}", authenticatedPeers.values().size(), message);
+            // We serialize and compress only once for all peers
+            EncodedMessage encodedMessage;
+            try {
+                encodedMessage = Connection.encode(message);
+            } catch (IOException e) {
+                log.error("Encoding broadcast message failed. " + e.getMessage());
+                e.printStackTrace();
+                return;
+            }
             authenticatedPeers.values().stream()
                     .filter(e -> !e.nodeAddress.equals(sender))
                     .forEach(peer -> {
                         if (authenticatedPeers.containsValue(peer)) {
                             final NodeAddress nodeAddress = peer.nodeAddress;
-                            log.trace("Broadcast message from " + getMyAddress() + " to " + nodeAddress + ".");
-                            SettableFuture<Connection> future = networkNode.sendMessage(nodeAddress, message);
+                            log.trace("Broadcast message from {} to {}.", getMyAddress(), nodeAddress);
+                            SettableFuture<Connection> future = networkNode.sendMessage(nodeAddress, encodedMessage);
                             Futures.addCallback(future, new FutureCallback<Connection>() {
                                 @Override
                                 public void onSuccess(Connection connection) {
-                                    log.trace("Broadcast from " + getMyAddress() + " to " + nodeAddress + " succeeded.");
+                                    log.trace("Broadcast from {} to {} succeeded.", getMyAddress(), nodeAddress);
                                 }
 
                                 @Override
@@ -211,6 +249,11 @@ public class PeerManager implements MessageListener, ConnectionListener {
         if (authenticateToRemainingSeedNodeTimer != null)
             authenticateToRemainingSeedNodeTimer.cancel();
 
+        if (connectionRace != null) {
+            connectionRace.stop();
+            connectionRace = null;
+        }
+
         MoreExecutors.shutdownAndAwaitTermination(checkSeedNodeConnectionExecutor, 500, TimeUnit.MILLISECONDS);
     }
 
@@ -218,13 +261,35 @@ public class PeerManager implements MessageListener, ConnectionListener {
         authenticationListeners.add(listener);
     }
 
+    public long getNumConnectionRaces() {
+        return numConnectionRaces.get();
+    }
+
+    public long getNumRaceAttempts() {
+        return numRaceAttempts.get();
+    }
+
+    public long getNumRaceAuthentications() {
+        return numRaceAuthentications.get();
+    }
+
+    // Attempts which were cancelled as the race had enough peers or hit the deadline
+    public long getNumRaceCancellations() {
+        return numRaceCancellations.get();
+    }
+
+    // Time in ms from authenticateToSeedNode to our first authenticated peer, -1 if not known yet
+    public long getTimeToFirstAuthenticatedPeer() {
+        return timeToFirstAuthenticatedPeer;
+    }
+
 
     ///////////////////////////////////////////////////////////////////////////////////////////
     // Process incoming authentication messages
     ///////////////////////////////////////////////////////////////////////////////////////////
 
     private void processAuthenticationRequest(AuthenticationRequest message, final Connection connection) {
-        Log.traceCall(message.toString());
+        Log.traceCall(TRACE_PROCESS_AUTHENTICATION_REQUEST, message);
         NodeAddress peerNodeAddress = message.senderNodeAddress;
 
         // We set the address to the connection, otherwise we will not find the connection when sending
@@ -305,13 +370,51 @@ public class PeerManager implements MessageListener, ConnectionListener {
 
         checkArgument(seedNodeAddressesOptional.isPresent(),
                 "seedNodeAddresses must be set before calling authenticateToSeedNode");
+        authenticateToSeedNodeTime = System.currentTimeMillis();
         remainingSeedNodes.remove(peerNodeAddress);
         remainingSeedNodes.addAll(seedNodeAddressesOptional.get());
-        authenticateToFirstSeedNode(peerNodeAddress);
+        if (isConnectionRacingEnabled())
+            raceToFirstPeers(peerNodeAddress);
+        else
+            authenticateToFirstSeedNode(peerNodeAddress);
 
         startCheckSeedNodeConnectionTask();
     }
 
+    // We race the given seed node against the other seed nodes and our reported and persisted peers
+    private void raceToFirstPeers(NodeAddress firstSeedNodeAddress) {
+        Log.traceCall();
+        if (enoughConnections() || connectionRace != null) {
+            log.info("We have already enough connections or a running connection race (at raceToFirstPeers).");
+            return;
+        }
+
+        boolean[] firstCandidateSupplied = new boolean[1];
+        int[] numSupplied = new int[1];
+        startConnectionRace("startup", connectionRaceConfig.wantedAtStartup, () -> {
+            if (!firstCandidateSupplied[0]) {
+                firstCandidateSupplied[0] = true;
+                remainingSeedNodes.remove(firstSeedNodeAddress);
+                if (!authenticationHandshakes.containsKey(firstSeedNodeAddress)
+                        && !authenticatedPeers.containsKey(firstSeedNodeAddress))
+                    return Optional.of(firstSeedNodeAddress);
+            }
+            // We alternate between seed nodes and peers to not only load the seed nodes
+            Optional<NodeAddress> seedNode = Optional.empty();
+            Optional<NodeAddress> peer = Optional.empty();
+            if (numSupplied[0]++ % 2 == 0) {
+                seedNode = getAndRemoveNotAuthenticatingSeedNode();
+                if (!seedNode.isPresent())
+                    peer = getAndRemoveNotAuthenticatingPeer();
+            } else {
+                peer = getAndRemoveNotAuthenticatingPeer();
+                if (!peer.isPresent())
+                    seedNode = getAndRemoveNotAuthenticatingSeedNode();
+            }
+            return seedNode.isPresent() ? seedNode : peer;
+        });
+    }
+
     protected void authenticateToFirstSeedNode(NodeAddress peerNodeAddress) {
         Log.traceCall();
         if (!enoughConnections()) {
@@ -499,8 +602,16 @@ public class PeerManager implements MessageListener, ConnectionListener {
             authenticateToRemainingReportedPeerTimer = null;
         }
 
+        if (isConnectionRacingEnabled() && connectionRace != null) {
+            log.debug("A connection race is running. We continue when it is completed.");
+            return;
+        }
+
         if (!enoughConnections()) {
-            if (reportedPeersAvailable()) {
+            if (reportedPeersAvailable() && isConnectionRacingEnabled()) {
+                startConnectionRace("reportedPeers", MAX_CONNECTIONS_LOW_PRIORITY - authenticatedPeers.size(),
+                        () -> getAndRemoveNotAuthenticatingReportedPeer().map(e -> e.nodeAddress));
+            } else if (reportedPeersAvailable()) {
                 Optional<ReportedPeer> reportedPeer = getAndRemoveNotAuthenticatingReportedPeer();
                 if (reportedPeer.isPresent()) {
                     NodeAddress peerNodeAddress = reportedPeer.get().nodeAddress;
@@ -549,16 +660,7 @@ public class PeerManager implements MessageListener, ConnectionListener {
                         "We will try to add 5 peers from our persistedPeers to our reportedPeers list and " +
                         "try authenticateToRemainingReportedPeer again. All persistedPeers=" + persistedPeers);
 
-                List<ReportedPeer> list = new ArrayList<>(persistedPeers);
-                authenticationHandshakes.keySet().stream().forEach(e -> list.remove(new ReportedPeer(e)));
-                authenticatedPeers.keySet().stream().forEach(e -> list.remove(new ReportedPeer(e)));
-                if (!list.isEmpty()) {
-                    int toRemove = Math.min(list.size(), 5);
-                    for (int i = 0; i < toRemove; i++) {
-                        ReportedPeer reportedPeer = list.get(i);
-                        persistedPeers.remove(reportedPeer);
-                        reportedPeers.add(reportedPeer);
-                    }
+                if (addPersistedPeersToReportedPeers(5)) {
                     log.info("We have added some of our persistedPeers to our reportedPeers. reportedPeers=" + reportedPeers);
                     authenticateToRemainingReportedPeer();
                 } else {
@@ -579,6 +681,80 @@ public class PeerManager implements MessageListener, ConnectionListener {
     }
 
 
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Connection racing
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    private boolean isConnectionRacingEnabled() {
+        return connectionRaceConfig.isEnabled();
+    }
+
+    private void startConnectionRace(String name, int numWanted, Supplier<Optional<NodeAddress>> candidateSupplier) {
+        connectionRace = new ConnectionRace(name,
+                numWanted,
+                connectionRaceConfig.parallelAttempts,
+                connectionRaceConfig.staggerDelay,
+                connectionRaceConfig.deadline,
+                candidateSupplier,
+                (peerNodeAddress, futureCallback) -> authenticate(peerNodeAddress, futureCallback),
+                peerNodeAddress -> {
+                    AuthenticationHandshake authenticationHandshake = authenticationHandshakes.get(peerNodeAddress);
+                    if (authenticationHandshake != null)
+                        authenticationHandshake.cancelAndCloseConnections();
+                },
+                new ConnectionRace.Listener() {
+                    @Override
+                    public void onAuthenticated(NodeAddress peerNodeAddress, Connection connection) {
+                        handleAuthenticationSuccess(connection, peerNodeAddress);
+                    }
+
+                    @Override
+                    public void onFailed(NodeAddress peerNodeAddress, Throwable throwable) {
+                        log.info("Authentication to " + peerNodeAddress + " failed in connection race." +
+                                "\nThat is expected if the peer is offline or if we cancelled the attempt." +
+                                "\nException:" + throwable.toString());
+                        handleAuthenticationFailure(peerNodeAddress, throwable);
+                    }
+
+                    @Override
+                    public void onCompleted(ConnectionRace completedRace) {
+                        numConnectionRaces.incrementAndGet();
+                        numRaceAttempts.addAndGet(completedRace.getNumAttempts());
+                        numRaceAuthentications.addAndGet(completedRace.getNumAuthenticated());
+                        numRaceCancellations.addAndGet(completedRace.getNumCancelled());
+                        if (connectionRace == completedRace)
+                            connectionRace = null;
+
+                        // Like the sequential authentication we continue with the reported peers
+                        authenticateToRemainingReportedPeer();
+                    }
+                });
+        connectionRace.start();
+    }
+
+    // Reported peer or if none available persisted peer
+    private Optional<NodeAddress> getAndRemoveNotAuthenticatingPeer() {
+        Optional<ReportedPeer> reportedPeer = getAndRemoveNotAuthenticatingReportedPeer();
+        if (!reportedPeer.isPresent() && addPersistedPeersToReportedPeers(5))
+            reportedPeer = getAndRemoveNotAuthenticatingReportedPeer();
+        return reportedPeer.map(e -> e.nodeAddress);
+    }
+
+    // Moves up to max persisted peers which are not authenticating or authenticated to the reported peers
+    private boolean addPersistedPeersToReportedPeers(int max) {
+        List<ReportedPeer> list = new ArrayList<>(persistedPeers);
+        authenticationHandshakes.keySet().stream().forEach(e -> list.remove(new ReportedPeer(e)));
+        authenticatedPeers.keySet().stream().forEach(e -> list.remove(new ReportedPeer(e)));
+        int toRemove = Math.min(list.size(), max);
+        for (int i = 0; i < toRemove; i++) {
+            ReportedPeer reportedPeer = list.get(i);
+            persistedPeers.remove(reportedPeer);
+            reportedPeers.add(reportedPeer);
+        }
+        return toRemove > 0;
+    }
+
+
     ///////////////////////////////////////////////////////////////////////////////////////////
     // Authentication to peer used for direct messaging
     ///////////////////////////////////////////////////////////////////////////////////////////
@@ -587,7 +763,7 @@ public class PeerManager implements MessageListener, ConnectionListener {
     public void authenticateToDirectMessagePeer(NodeAddress peerNodeAddress,
                                                 @Nullable Runnable completeHandler,
                                                 @Nullable Runnable faultHandler) {
-        Log.traceCall(peerNodeAddress.getFullAddress());
+        Log.traceCall(TRACE_AUTHENTICATE_TO_DIRECT_MESSAGE_PEER, peerNodeAddress);
 
         if (authenticatedPeers.containsKey(peerNodeAddress)) {
             log.warn("We have that peer already authenticated. That should never happen. peerAddress={}", peerNodeAddress);
@@ -648,7 +824,7 @@ public class PeerManager implements MessageListener, ConnectionListener {
     ///////////////////////////////////////////////////////////////////////////////////////////
 
     private void authenticate(NodeAddress peerNodeAddress, FutureCallback<Connection> futureCallback) {
-        Log.traceCall(peerNodeAddress.getFullAddress());
+        Log.traceCall(TRACE_AUTHENTICATE, peerNodeAddress);
         checkArgument(!authenticationHandshakes.containsKey(peerNodeAddress),
                 "An authentication handshake is already created for that peerAddress (" + peerNodeAddress + ")");
         log.info("We create an AuthenticationHandshake to authenticate to peer {}.", peerNodeAddress);
@@ -664,7 +840,7 @@ public class PeerManager implements MessageListener, ConnectionListener {
     }
 
     private void handleAuthenticationSuccess(Connection connection, NodeAddress peerNodeAddress) {
-        Log.traceCall(peerNodeAddress.getFullAddress());
+        Log.traceCall(TRACE_HANDLE_AUTHENTICATION_SUCCESS, peerNodeAddress);
 
         log.info("\n\n############################################################\n" +
                 "We are authenticated to:" +
@@ -673,6 +849,12 @@ public class PeerManager implements MessageListener, ConnectionListener {
                 + "\npeerAddress= " + peerNodeAddress
                 + "\n############################################################\n");
 
+        if (timeToFirstAuthenticatedPeer == -1 && authenticateToSeedNodeTime > 0) {
+            timeToFirstAuthenticatedPeer = System.currentTimeMillis() - authenticateToSeedNodeTime;
+            log.info("We got our first peer authenticated {} ms after we started to authenticate.",
+                    timeToFirstAuthenticatedPeer);
+        }
+
         removeFromAuthenticationHandshakes(peerNodeAddress);
         connection.setPeerAddress(peerNodeAddress);
         connection.setAuthenticated();
@@ -694,7 +876,7 @@ public class PeerManager implements MessageListener, ConnectionListener {
     }
 
     void removePeer(@Nullable NodeAddress peerNodeAddress) {
-        Log.traceCall("peerAddress=" + peerNodeAddress);
+        Log.traceCall(TRACE_REMOVE_PEER, peerNodeAddress);
         if (peerNodeAddress != null) {
             removeFromAuthenticationHandshakes(peerNodeAddress);
             removeFromReportedPeers(peerNodeAddress);
@@ -724,7 +906,7 @@ public class PeerManager implements MessageListener, ConnectionListener {
             persistedPeers.remove(reportedPeer);
 
             if (dbStorage != null)
-                dbStorage.queueUpForSave(persistedPeers, 5000);
+                dbStorage.queueUpSnapshotForSave(() -> new HashSet<>(persistedPeers), 5000);
         }
     }
 
@@ -762,9 +944,8 @@ public class PeerManager implements MessageListener, ConnectionListener {
             }*/
 
             // We don't remove seed nodes to keep the core network well connected
-            List<Connection> authenticatedConnections = allConnections.stream()
+            List<Connection> authenticatedConnections = networkNode.getConnections(ConnectionPriority.PASSIVE).stream()
                     .filter(e -> e.isAuthenticated())
-                    .filter(e -> e.getConnectionPriority() == ConnectionPriority.PASSIVE)
                     .filter(e -> !isSeedNode(e))
                     .collect(Collectors.toList());
 
@@ -850,7 +1031,7 @@ public class PeerManager implements MessageListener, ConnectionListener {
     ///////////////////////////////////////////////////////////////////////////////////////////
 
     void addToReportedPeers(HashSet<ReportedPeer> reportedPeersToAdd, Connection connection) {
-        Log.traceCall("reportedPeersToAdd = " + reportedPeersToAdd);
+        Log.traceCall(TRACE_ADD_TO_REPORTED_PEERS, reportedPeersToAdd);
         // we disconnect misbehaving nodes trying to send too many peers
         // reported peers include the authenticated peers which is normally max. 8 but we give some headroom 
         // for safety
@@ -879,6 +1060,7 @@ public class PeerManager implements MessageListener, ConnectionListener {
 
             reportedPeers.addAll(adjustedReportedPeers);
             purgeReportedPeersIfExceeds();
+            prefetch(adjustedReportedPeers);
 
             // We add all adjustedReportedPeers to persistedReportedPeers but only save the 500 peers with the most
             // recent lastActivityDate. 
@@ -899,12 +1081,23 @@ public class PeerManager implements MessageListener, ConnectionListener {
             }
 
             if (dbStorage != null)
-                dbStorage.queueUpForSave(persistedPeers);
+                dbStorage.queueUpSnapshotForSave(() -> new HashSet<>(persistedPeers), 600);
         }
 
         printReportedPeers();
     }
 
+    // Lets the network node prepare the connects to the most recently active of the peers
+    private void prefetch(Collection<ReportedPeer> peers) {
+        List<NodeAddress> nodeAddresses = peers.stream()
+                .sorted((o1, o2) -> o2.lastActivityDate.compareTo(o1.lastActivityDate))
+                .limit(MAX_PREFETCHED_PEERS)
+                .map(e -> e.nodeAddress)
+                .collect(Collectors.toList());
+        if (!nodeAddresses.isEmpty())
+            networkNode.prefetch(nodeAddresses);
+    }
+
     private void purgeReportedPeersIfExceeds() {
         Log.traceCall();
         int size = reportedPeers.size();
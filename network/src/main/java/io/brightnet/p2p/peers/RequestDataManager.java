@@ -4,6 +4,7 @@ import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.SettableFuture;
 import io.brightnet.app.Log;
+import io.brightnet.common.ByteArray;
 import io.brightnet.common.UserThread;
 import io.brightnet.p2p.Message;
 import io.brightnet.p2p.NodeAddress;
@@ -29,6 +30,15 @@ import static com.google.common.base.Preconditions.checkNotNull;
 
 public class RequestDataManager implements MessageListener, AuthenticationListener {
     private static final Logger log = LoggerFactory.getLogger(RequestDataManager.class);
+    private static final Log.CallSite TRACE_REQUEST_DATA = Log.callSite(RequestDataManager.class, "requestData");
+    private static final Log.CallSite TRACE_REQUEST_DATA_WITH_PERSISTED_PEERS = Log.callSite(RequestDataManager.class, "requestDataWithPersistedPeers");
+    private static final Log.CallSite TRACE_ON_MESSAGE = Log.callSite(RequestDataManager.class, "onMessage");
+    private static final Log.CallSite TRACE_REQUEST_DATA_FROM_AUTHENTICATED_SEED_NODE = Log.callSite(RequestDataManager.class, "requestDataFromAuthenticatedSeedNode");
+
+    // Entries per DataResponse, keeps the responses well below the max. message size
+    private static final int MAX_ENTRIES_PER_RESPONSE = 200;
+    // Max. time we wait for the next DataResponse of a paged response
+    private static final long PAGE_TIMEOUT = 60 * 1000;
 
 
     ///////////////////////////////////////////////////////////////////////////////////////////
@@ -55,6 +65,11 @@ public class RequestDataManager implements MessageListener, AuthenticationListen
     protected Timer requestDataFromAuthenticatedSeedNodeTimer;
     private Timer requestDataTimer, requestDataWithPersistedPeersTimer;
     private boolean doNotifyNoSeedNodeAvailableListener = true;
+    private final long pageTimeout;
+    // The paged responses of the current request by the uid of the connection they arrive at
+    private final Map<String, Paging> pagingByConnectionUid = new HashMap<>();
+    // We notify the listener only once per request, late pages after a page timeout don't notify again
+    private boolean dataReceivedNotified;
 
 
     ///////////////////////////////////////////////////////////////////////////////////////////
@@ -62,9 +77,15 @@ public class RequestDataManager implements MessageListener, AuthenticationListen
     ///////////////////////////////////////////////////////////////////////////////////////////
 
     public RequestDataManager(NetworkNode networkNode, P2PDataStorage dataStorage, PeerManager peerManager) {
+        this(networkNode, dataStorage, peerManager, PAGE_TIMEOUT);
+    }
+
+    RequestDataManager(NetworkNode networkNode, P2PDataStorage dataStorage, PeerManager peerManager,
+                       long pageTimeout) {
         this.networkNode = networkNode;
         this.dataStorage = dataStorage;
         this.peerManager = peerManager;
+        this.pageTimeout = pageTimeout;
 
         networkNode.addMessageListener(this);
     }
@@ -77,6 +98,7 @@ public class RequestDataManager implements MessageListener, AuthenticationListen
         stopRequestDataTimer();
         stopRequestDataWithPersistedPeersTimer();
         stopRequestDataFromAuthenticatedSeedNodeTimer();
+        stopPageTimeoutTimers();
     }
 
 
@@ -97,7 +119,7 @@ public class RequestDataManager implements MessageListener, AuthenticationListen
     }
 
     private void requestData(Collection<NodeAddress> nodeAddresses) {
-        Log.traceCall(nodeAddresses.toString());
+        Log.traceCall(TRACE_REQUEST_DATA, nodeAddresses);
         checkArgument(!nodeAddresses.isEmpty(), "requestData: addresses must not be empty.");
         stopRequestDataTimer();
         List<NodeAddress> remainingNodeAddresses = new ArrayList<>(nodeAddresses);
@@ -107,7 +129,7 @@ public class RequestDataManager implements MessageListener, AuthenticationListen
             remainingNodeAddresses.remove(candidate);
             log.info("We try to send a GetAllDataMessage request to node. " + candidate);
 
-            SettableFuture<Connection> future = networkNode.sendMessage(candidate, new DataRequest());
+            SettableFuture<Connection> future = networkNode.sendMessage(candidate, createDataRequest());
             Futures.addCallback(future, new FutureCallback<Connection>() {
                 @Override
                 public void onSuccess(@Nullable Connection connection) {
@@ -181,7 +203,7 @@ public class RequestDataManager implements MessageListener, AuthenticationListen
     }
 
     private void requestDataWithPersistedPeers(@Nullable NodeAddress failedPeer) {
-        Log.traceCall("failedPeer=" + failedPeer);
+        Log.traceCall(TRACE_REQUEST_DATA_WITH_PERSISTED_PEERS, failedPeer);
 
         stopRequestDataWithPersistedPeersTimer();
 
@@ -233,20 +255,110 @@ public class RequestDataManager implements MessageListener, AuthenticationListen
     public void onMessage(Message message, Connection connection) {
         if (message instanceof DataRequest) {
             // We are a seed node and receive that msg from a new node
-            Log.traceCall(message.toString());
-            networkNode.sendMessage(connection, new DataResponse(new HashSet<>(dataStorage.getMap().values())));
+            Log.traceCall(TRACE_ON_MESSAGE, message);
+            DataRequest dataRequest = (DataRequest) message;
+            if (dataRequest.isIncremental()) {
+                Set<ByteArray> knownPayloadHashes = dataRequest.getKnownPayloadHashes();
+                List<ProtectedData> missingData = dataStorage.getMap().entrySet().stream()
+                        .filter(e -> !knownPayloadHashes.contains(e.getKey()))
+                        .map(Map.Entry::getValue)
+                        .collect(Collectors.toList());
+                log.info("Peer knows {} entries, we send the {} missing entries of our {} entries.",
+                        knownPayloadHashes.size(), missingData.size(), dataStorage.getMap().size());
+                sendDataResponse(missingData, 0, connection);
+            } else {
+                // A request without hashes gets all data in one response
+                networkNode.sendMessage(connection, new DataResponse(new HashSet<>(dataStorage.getMap().values()), false));
+            }
         } else if (message instanceof DataResponse) {
             // We are the new node which has requested the data
-            Log.traceCall(message.toString());
+            Log.traceCall(TRACE_ON_MESSAGE, message);
             DataResponse dataResponse = (DataResponse) message;
             HashSet<ProtectedData> set = dataResponse.set;
+            // The responder might go offline or stop sending before the last page, then we continue with the
+            // pages we got so far
+            boolean notifyListener = !dataResponse.hasMoreData;
+            if (dataResponse.hasMoreData) {
+                Paging paging = pagingByConnectionUid.get(connection.getUid());
+                if (paging == null) {
+                    paging = new Paging();
+                    pagingByConnectionUid.put(connection.getUid(), paging);
+                }
+                // Once we gave up waiting we add the late pages but don't wait for more
+                if (!paging.timedOut)
+                    startPageTimeoutTimer(paging);
+            } else {
+                Paging paging = pagingByConnectionUid.remove(connection.getUid());
+                if (paging != null)
+                    paging.stopTimer();
+            }
             // we keep that connection open as the bootstrapping peer will use that for the authentication
             // as we are not authenticated yet the data adding will not be broadcasted 
-            connection.getPeerAddressOptional().ifPresent(peerAddress -> set.stream().forEach(e -> dataStorage.add(e, peerAddress)));
-            optionalConnectedSeedNodeAddress.ifPresent(connectedSeedNodeAddress -> listener.onDataReceived(connectedSeedNodeAddress));
+            Runnable dataAddedHandler = () -> {
+                if (notifyListener)
+                    notifyDataReceived();
+            };
+            // The signatures get verified in parallel, the data is added later in UserThread
+            Optional<NodeAddress> peerAddressOptional = connection.getPeerAddressOptional();
+            if (peerAddressOptional.isPresent())
+                dataStorage.addAll(set, peerAddressOptional.get(), dataAddedHandler);
+            else
+                dataAddedHandler.run();
         }
     }
 
+    // We send the next response only after the previous one was written. That keeps the order and we don't
+    // queue up all data at once for slow connections.
+    private void sendDataResponse(List<ProtectedData> data, int fromIndex, Connection connection) {
+        int toIndex = Math.min(fromIndex + MAX_ENTRIES_PER_RESPONSE, data.size());
+        boolean hasMoreData = toIndex < data.size();
+        DataResponse dataResponse = new DataResponse(new HashSet<>(data.subList(fromIndex, toIndex)), hasMoreData);
+        SettableFuture<Connection> future = networkNode.sendMessage(connection, dataResponse);
+        Futures.addCallback(future, new FutureCallback<Connection>() {
+            @Override
+            public void onSuccess(@Nullable Connection result) {
+                if (hasMoreData) {
+                    if (!connection.isStopped())
+                        UserThread.execute(() -> sendDataResponse(data, toIndex, connection));
+                    else
+                        log.info("Connection got closed while sending the DataResponses. We stop sending.");
+                }
+            }
+
+            @Override
+            public void onFailure(@NotNull Throwable throwable) {
+                log.info("Sending DataResponse to " + connection.getPeerAddress() + " failed. " +
+                        "That is expected if the peer went offline. Exception:" + throwable.getMessage());
+            }
+        });
+    }
+
+    private DataRequest createDataRequest() {
+        // A new request, the pages of an earlier one don't matter anymore
+        stopPageTimeoutTimers();
+        dataReceivedNotified = false;
+        return new DataRequest(dataStorage.getMap().keySet());
+    }
+
+    private void notifyDataReceived() {
+        if (dataReceivedNotified)
+            return;
+
+        dataReceivedNotified = true;
+        optionalConnectedSeedNodeAddress.ifPresent(connectedSeedNodeAddress -> listener.onDataReceived(connectedSeedNodeAddress));
+    }
+
+    private void startPageTimeoutTimer(Paging paging) {
+        paging.stopTimer();
+        paging.timer = UserThread.runAfter(() -> {
+            log.warn("We did not receive the next DataResponse within {} ms. " +
+                    "We continue with the data we got so far.", pageTimeout);
+            paging.timer = null;
+            paging.timedOut = true;
+            notifyDataReceived();
+        }, pageTimeout, TimeUnit.MILLISECONDS);
+    }
+
 
     ///////////////////////////////////////////////////////////////////////////////////////////
     // AuthenticationListener implementation
@@ -268,12 +380,12 @@ public class RequestDataManager implements MessageListener, AuthenticationListen
 
     // 5. Step after authentication to first seed node we request again the data
     protected void requestDataFromAuthenticatedSeedNode(NodeAddress peerNodeAddress, Connection connection) {
-        Log.traceCall(peerNodeAddress.toString());
+        Log.traceCall(TRACE_REQUEST_DATA_FROM_AUTHENTICATED_SEED_NODE, peerNodeAddress);
 
         stopRequestDataFromAuthenticatedSeedNodeTimer();
 
         // We have to request the data again as we might have missed pushed data in the meantime
-        SettableFuture<Connection> future = networkNode.sendMessage(connection, new DataRequest());
+        SettableFuture<Connection> future = networkNode.sendMessage(connection, createDataRequest());
         Futures.addCallback(future, new FutureCallback<Connection>() {
             @Override
             public void onSuccess(@Nullable Connection connection) {
@@ -316,4 +428,26 @@ public class RequestDataManager implements MessageListener, AuthenticationListen
             requestDataFromAuthenticatedSeedNodeTimer = null;
         }
     }
+
+    private void stopPageTimeoutTimers() {
+        pagingByConnectionUid.values().stream().forEach(Paging::stopTimer);
+        pagingByConnectionUid.clear();
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Paging
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    private static class Paging {
+        private Timer timer;
+        private boolean timedOut;
+
+        private void stopTimer() {
+            if (timer != null) {
+                timer.cancel();
+                timer = null;
+            }
+        }
+    }
 }
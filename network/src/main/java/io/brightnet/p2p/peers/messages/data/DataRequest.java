@@ -1,15 +1,61 @@
 package io.brightnet.p2p.peers.messages.data;
 
 import io.brightnet.app.Version;
+import io.brightnet.common.ByteArray;
 import io.brightnet.p2p.Message;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
 
 public final class DataRequest implements Message {
     // That object is sent over the wire, so we need to take care of version compatibility.
     private static final long serialVersionUID = Version.NETWORK_PROTOCOL_VERSION;
 
+    // SHA-256 hashes of the payloads
+    public static final int HASH_LENGTH = 32;
+    // 3.2 MB, keeps the request below the max. message size. If we hold more we get a few entries twice.
+    public static final int MAX_KNOWN_HASHES = 100_000;
+
     private final int networkId = Version.getNetworkId();
 
-    public DataRequest() {
+    // Hashes of the payloads the requester already holds, concatenated to keep the message compact.
+    // Null if the request was serialized without that field, then the responder sends all data in one response.
+    @Nullable
+    private final byte[] knownPayloadHashes;
+
+    public DataRequest(Collection<ByteArray> knownPayloadHashes) {
+        int numHashes = Math.min(knownPayloadHashes.size(), MAX_KNOWN_HASHES);
+        byte[] packed = new byte[numHashes * HASH_LENGTH];
+        int offset = 0;
+        for (ByteArray hash : knownPayloadHashes) {
+            if (offset == packed.length)
+                break;
+            if (hash.bytes.length == HASH_LENGTH) {
+                System.arraycopy(hash.bytes, 0, packed, offset, HASH_LENGTH);
+                offset += HASH_LENGTH;
+            }
+        }
+        this.knownPayloadHashes = offset == packed.length ? packed : Arrays.copyOf(packed, offset);
+    }
+
+    // If true the responder sends only the data we don't know and can split it up into several responses
+    public boolean isIncremental() {
+        return knownPayloadHashes != null;
+    }
+
+    public Set<ByteArray> getKnownPayloadHashes() {
+        if (knownPayloadHashes == null)
+            return new HashSet<>();
+
+        int numHashes = knownPayloadHashes.length / HASH_LENGTH;
+        Set<ByteArray> set = new HashSet<>(numHashes * 4 / 3 + 1);
+        for (int i = 0; i < numHashes; i++) {
+            set.add(new ByteArray(Arrays.copyOfRange(knownPayloadHashes, i * HASH_LENGTH, (i + 1) * HASH_LENGTH)));
+        }
+        return set;
     }
 
     @Override
@@ -21,6 +67,7 @@ public final class DataRequest implements Message {
     public String toString() {
         return "GetDataRequest{" +
                 "networkId=" + networkId +
+                ", numKnownPayloadHashes=" + (knownPayloadHashes != null ? knownPayloadHashes.length / HASH_LENGTH : "null") +
                 '}';
     }
 }
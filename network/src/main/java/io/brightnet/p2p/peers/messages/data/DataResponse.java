@@ -12,9 +12,12 @@ public final class DataResponse implements Message {
     private final int networkId = Version.getNetworkId();
 
     public final HashSet<ProtectedData> set;
+    // If true more responses follow for the same request
+    public final boolean hasMoreData;
 
-    public DataResponse(HashSet<ProtectedData> set) {
+    public DataResponse(HashSet<ProtectedData> set, boolean hasMoreData) {
         this.set = set;
+        this.hasMoreData = hasMoreData;
     }
 
     @Override
@@ -29,13 +32,16 @@ public final class DataResponse implements Message {
 
         DataResponse that = (DataResponse) o;
 
+        if (hasMoreData != that.hasMoreData) return false;
         return !(set != null ? !set.equals(that.set) : that.set != null);
 
     }
 
     @Override
     public int hashCode() {
-        return set != null ? set.hashCode() : 0;
+        int result = set != null ? set.hashCode() : 0;
+        result = 31 * result + (hasMoreData ? 1 : 0);
+        return result;
     }
 
     @Override
@@ -43,6 +49,7 @@ public final class DataResponse implements Message {
         return "GetDataResponse{" +
                 "networkId=" + networkId +
                 ", set=" + set +
+                ", hasMoreData=" + hasMoreData +
                 '}';
     }
 }
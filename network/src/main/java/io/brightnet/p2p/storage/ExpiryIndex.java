@@ -0,0 +1,78 @@
+package io.brightnet.p2p.storage;
+
+import io.brightnet.common.ByteArray;
+import io.brightnet.p2p.storage.data.ProtectedData;
+
+import java.util.*;
+
+/**
+ * Orders the entries of the P2PDataStorage map by their absolute expiration time, so removing the expired
+ * entries costs O(expired * log n) instead of a scan of the whole map.
+ * Entries are not removed when the data gets removed or replaced in the map. They are skipped when they
+ * come up as the map does not hold the same object anymore.
+ * Not thread safe, used in UserThread.
+ */
+final class ExpiryIndex {
+    // We rebuild the queue if it holds that many more entries than the map
+    private static final int MAX_STALE_ENTRIES = 1000;
+
+    private static final class Entry {
+        final long expirationTime;
+        final ByteArray hashOfPayload;
+        final ProtectedData protectedData;
+
+        Entry(ByteArray hashOfPayload, ProtectedData protectedData) {
+            this.expirationTime = protectedData.getExpirationTime();
+            this.hashOfPayload = hashOfPayload;
+            this.protectedData = protectedData;
+        }
+    }
+
+    private final Map<ByteArray, ProtectedData> map;
+    private PriorityQueue<Entry> queue = createQueue(11);
+
+    ExpiryIndex(Map<ByteArray, ProtectedData> map) {
+        this.map = map;
+    }
+
+    // Call after the data was put to the map
+    void add(ByteArray hashOfPayload, ProtectedData protectedData) {
+        if (queue.size() > map.size() + MAX_STALE_ENTRIES)
+            rebuild();
+        else
+            queue.add(new Entry(hashOfPayload, protectedData));
+    }
+
+    // Long.MAX_VALUE if there is no entry
+    long getNextExpirationTime() {
+        Entry head = queue.peek();
+        return head != null ? head.expirationTime : Long.MAX_VALUE;
+    }
+
+    // Removes the expired data from the map and returns it
+    List<ProtectedData> removeExpired(long now) {
+        List<ProtectedData> expired = new ArrayList<>();
+        while (!queue.isEmpty() && queue.peek().expirationTime < now) {
+            Entry entry = queue.poll();
+            if (map.get(entry.hashOfPayload) == entry.protectedData) {
+                map.remove(entry.hashOfPayload);
+                expired.add(entry.protectedData);
+            }
+        }
+        return expired;
+    }
+
+    int size() {
+        return queue.size();
+    }
+
+    private void rebuild() {
+        PriorityQueue<Entry> newQueue = createQueue(map.size() + 1);
+        map.entrySet().stream().forEach(e -> newQueue.add(new Entry(e.getKey(), e.getValue())));
+        queue = newQueue;
+    }
+
+    private static PriorityQueue<Entry> createQueue(int initialCapacity) {
+        return new PriorityQueue<>(initialCapacity, (o1, o2) -> Long.compare(o1.expirationTime, o2.expirationTime));
+    }
+}
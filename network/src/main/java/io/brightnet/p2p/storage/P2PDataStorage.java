@@ -1,7 +1,7 @@
 package io.brightnet.p2p.storage;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.*;
 import io.brightnet.app.Log;
 import io.brightnet.common.ByteArray;
 import io.brightnet.common.UserThread;
@@ -21,7 +21,9 @@ import io.brightnet.p2p.storage.messages.AddDataMessage;
 import io.brightnet.p2p.storage.messages.DataBroadcastMessage;
 import io.brightnet.p2p.storage.messages.RemoveDataMessage;
 import io.brightnet.p2p.storage.messages.RemoveMailboxDataMessage;
+import io.brightnet.storage.LogStorage;
 import io.brightnet.storage.Storage;
+import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,22 +33,47 @@ import java.security.KeyPair;
 import java.security.PublicKey;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 // Run in UserThread
 public class P2PDataStorage implements MessageListener {
     private static final Logger log = LoggerFactory.getLogger(P2PDataStorage.class);
+    private static final Log.CallSite TRACE_ON_MESSAGE = Log.callSite(P2PDataStorage.class, "onMessage");
+    private static final Log.CallSite TRACE_ADD_ALL = Log.callSite(P2PDataStorage.class, "addAll");
+    private static final Log.CallSite TRACE_BROADCAST = Log.callSite(P2PDataStorage.class, "broadcast");
 
+    // Max. delay in ms between expiry checks. Usually we check at the expiration time of the next entry.
     @VisibleForTesting
     public static int CHECK_TTL_INTERVAL = new Random().nextInt(1000) + 10 * 60 * 1000; // 10-11 min.
 
+    private static final int NUM_VERIFICATION_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    // Smaller batches are not worth to be split up
+    private static final int MIN_ENTRIES_PER_VERIFICATION_TASK = 50;
+
     private final PeerManager peerManager;
     private final Map<ByteArray, ProtectedData> map = new HashMap<>();
+    private final ExpiryIndex expiryIndex = new ExpiryIndex(map);
     private final CopyOnWriteArraySet<HashMapChangedListener> hashMapChangedListeners = new CopyOnWriteArraySet<>();
-    private HashMap<ByteArray, Integer> sequenceNumberMap = new HashMap<>();
-    private final Storage<HashMap> storage;
+    private final HashMap<ByteArray, Integer> sequenceNumberMap = new HashMap<>();
+    // Only the changed entries get written, the map gets large with many offers
+    private final LogStorage<ByteArray, Integer> sequenceNumberStorage;
+    // The live entries, so after a restart we don't need to wait for the data of the seed nodes
+    private final LogStorage<ByteArray, PersistedProtectedData> protectedDataStorage;
+    private final File storageDir;
     protected final ScheduledThreadPoolExecutor removeExpiredEntriesExecutor;
+    @Nullable
+    private ScheduledFuture<?> removeExpiredEntriesFuture;
+    private long nextExpiryCheckTime = Long.MAX_VALUE;
+    // Signature checks and hashing of batches run in parallel, the results are applied in UserThread
+    private final ListeningExecutorService verificationExecutor;
+    // Batches get applied in the order they have been added, even if a later one is verified first
+    private final Queue<VerificationBatch> pendingVerificationBatches = new ArrayDeque<>();
 
     ///////////////////////////////////////////////////////////////////////////////////////////
     // Constructor
@@ -58,20 +85,109 @@ public class P2PDataStorage implements MessageListener {
 
         networkNode.addMessageListener(this);
 
-        storage = new Storage<>(storageDir);
+        this.storageDir = storageDir;
+        sequenceNumberStorage = new LogStorage<>(storageDir);
+        protectedDataStorage = new LogStorage<>(storageDir);
         removeExpiredEntriesExecutor = Utilities.getScheduledThreadPoolExecutor("removeExpiredEntries", 1, 10, 5);
+        // Not the pool from Utilities as its bounded queue would drop tasks of large batches
+        verificationExecutor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(NUM_VERIFICATION_THREADS,
+                new ThreadFactoryBuilder().setNameFormat("P2PDataStorage-verification-%d").setDaemon(true).build()));
 
         init();
     }
 
     private void init() {
         Log.traceCall();
-        HashMap<ByteArray, Integer> persisted = storage.initAndGetPersisted("SequenceNumberMap");
-        if (persisted != null)
-            sequenceNumberMap = persisted;
+        sequenceNumberMap.putAll(sequenceNumberStorage.initAndGetPersisted("SequenceNumberMap.log"));
+
+        // Earlier versions persisted the whole map with Storage, we move it to the log
+        if (new File(storageDir, "SequenceNumberMap").exists()) {
+            Storage<HashMap<ByteArray, Integer>> storage = new Storage<>(storageDir);
+            HashMap<ByteArray, Integer> persisted = storage.initAndGetPersisted("SequenceNumberMap");
+            if (persisted != null) {
+                persisted.entrySet().stream()
+                        .filter(e -> !sequenceNumberMap.containsKey(e.getKey()))
+                        .forEach(e -> putSequenceNumber(e.getKey(), e.getValue()));
+                sequenceNumberStorage.flush();
+            }
+            storage.remove("SequenceNumberMap");
+        }
 
-        removeExpiredEntriesExecutor.scheduleAtFixedRate(() -> UserThread.execute(()
-                -> removeExpiredEntries()), CHECK_TTL_INTERVAL, CHECK_TTL_INTERVAL, TimeUnit.SECONDS);
+        restorePersistedData();
+        scheduleExpiryCheck();
+    }
+
+    // The signatures of the persisted entries get checked in the background. Only the valid entries are added to
+    // the map and the listeners get notified about them, the invalid ones get removed from the log.
+    private void restorePersistedData() {
+        long ts = System.currentTimeMillis();
+        List<ByteArray> hashes = new ArrayList<>();
+        List<ProtectedData> restored = new ArrayList<>();
+        protectedDataStorage.initAndGetPersisted("ProtectedDataMap.log").entrySet().stream().forEach(e -> {
+            ProtectedData protectedData = e.getValue().protectedData;
+            protectedData.date = new Date(e.getValue().date);
+            if (protectedData.isExpired()) {
+                protectedDataStorage.remove(e.getKey());
+            } else {
+                hashes.add(e.getKey());
+                restored.add(protectedData);
+            }
+        });
+        log.info("Restored {} persisted entries in {} ms", restored.size(), System.currentTimeMillis() - ts);
+
+        if (!restored.isEmpty()) {
+            verifyAll(restored, verifiedDataList -> {
+                int numAdded = 0;
+                int numInvalid = 0;
+                for (int i = 0; i < verifiedDataList.size(); i++) {
+                    ByteArray hashOfPayload = hashes.get(i);
+                    VerifiedData verifiedData = verifiedDataList.get(i);
+                    ProtectedData protectedData = verifiedData.protectedData;
+                    // We got it from the network in the meantime, that one got persisted already
+                    if (map.containsKey(hashOfPayload))
+                        continue;
+
+                    // The verification failed with an exception, we don't know if the entry is invalid and keep it
+                    // in the log
+                    if (verifiedData.hashOfPayload == null)
+                        continue;
+
+                    if (verifiedData.isValid && hashOfPayload.equals(verifiedData.hashOfPayload)
+                            && isSequenceNrValid(protectedData, hashOfPayload)) {
+                        // It might have expired while we verified it, the next expiry check removes it then
+                        map.put(hashOfPayload, protectedData);
+                        expiryIndex.add(hashOfPayload, protectedData);
+                        hashMapChangedListeners.stream().forEach(listener -> listener.onAdded(protectedData));
+                        numAdded++;
+                    } else {
+                        protectedDataStorage.remove(hashOfPayload);
+                        numInvalid++;
+                    }
+                }
+                scheduleExpiryCheck();
+                log.info("Added {} of {} persisted entries.", numAdded, verifiedDataList.size());
+                if (numInvalid > 0)
+                    log.warn("Removed {} persisted entries which failed the verification.", numInvalid);
+            });
+        }
+    }
+
+    // Schedules the next check at the expiration time of the next entry, or at CHECK_TTL_INTERVAL if that is earlier
+    private void scheduleExpiryCheck() {
+        if (removeExpiredEntriesExecutor.isShutdown())
+            return;
+
+        long now = System.currentTimeMillis();
+        long checkTime = Math.min(expiryIndex.getNextExpirationTime(), now + CHECK_TTL_INTERVAL);
+        if (removeExpiredEntriesFuture != null) {
+            if (checkTime >= nextExpiryCheckTime)
+                return;
+            removeExpiredEntriesFuture.cancel(false);
+        }
+        nextExpiryCheckTime = checkTime;
+        // +1 as an entry is expired only after its expiration time
+        removeExpiredEntriesFuture = removeExpiredEntriesExecutor.schedule(() -> UserThread.execute(()
+                -> removeExpiredEntries()), Math.max(0, checkTime - now) + 1, TimeUnit.MILLISECONDS);
     }
 
     private void removeExpiredEntries() {
@@ -81,20 +197,20 @@ public class P2PDataStorage implements MessageListener {
         // object when we get it sent from new peers, we don’t remove the sequence number from the map. 
         // That way an ADD message for an already expired data will fail because the sequence number 
         // is equal and not larger. 
-        Map<ByteArray, ProtectedData> temp = new HashMap<>(map);
-        Set<ProtectedData> protectedDataToRemoveSet = new HashSet<>();
-        temp.entrySet().stream()
-                .filter(entry -> entry.getValue().isExpired())
-                .forEach(entry -> {
-                    ByteArray hashOfPayload = entry.getKey();
-                    ProtectedData protectedDataToRemove = map.get(hashOfPayload);
-                    protectedDataToRemoveSet.add(protectedDataToRemove);
-                    map.remove(hashOfPayload);
-                });
+        removeExpiredEntriesFuture = null;
+        nextExpiryCheckTime = Long.MAX_VALUE;
+        List<ProtectedData> protectedDataToRemoveList = expiryIndex.removeExpired(System.currentTimeMillis());
+        if (!protectedDataToRemoveList.isEmpty())
+            log.info("Removed {} expired entries.", protectedDataToRemoveList.size());
+
+        protectedDataToRemoveList.stream().forEach(
+                protectedDataToRemove -> protectedDataStorage.remove(protectedDataToRemove.getHashOfPayload()));
 
-        protectedDataToRemoveSet.stream().forEach(
+        protectedDataToRemoveList.stream().forEach(
                 protectedDataToRemove -> hashMapChangedListeners.stream().forEach(
                         listener -> listener.onRemoved(protectedDataToRemove)));
+
+        scheduleExpiryCheck();
     }
 
     ///////////////////////////////////////////////////////////////////////////////////////////
@@ -104,9 +220,9 @@ public class P2PDataStorage implements MessageListener {
     @Override
     public void onMessage(Message message, Connection connection) {
         if (message instanceof DataBroadcastMessage) {
-            Log.traceCall(message.toString());
+            Log.traceCall(TRACE_ON_MESSAGE, message);
             if (connection.isAuthenticated()) {
-                log.trace("ProtectedExpirableDataMessage received " + message + " on connection " + connection);
+                log.trace("ProtectedExpirableDataMessage received {} on connection {}", message, connection);
                 connection.getPeerAddressOptional().ifPresent(peerAddress -> {
                     if (message instanceof AddDataMessage) {
                         add(((AddDataMessage) message).data, peerAddress);
@@ -132,6 +248,9 @@ public class P2PDataStorage implements MessageListener {
     public void shutDown() {
         Log.traceCall();
         MoreExecutors.shutdownAndAwaitTermination(removeExpiredEntriesExecutor, 500, TimeUnit.MILLISECONDS);
+        verificationExecutor.shutdownNow();
+        sequenceNumberStorage.shutDown();
+        protectedDataStorage.shutDown();
     }
 
     public boolean add(ProtectedData protectedData, @Nullable NodeAddress sender) {
@@ -144,19 +263,110 @@ public class P2PDataStorage implements MessageListener {
         return doAdd(protectedData, sender, true);
     }
 
+    /**
+     * Adds a larger number of entries like the ones of a DataResponse. The signatures get verified in parallel,
+     * the valid entries are added in the given order in UserThread.
+     *
+     * @param resultHandler Called in UserThread after the entries have been added.
+     */
+    public void addAll(Collection<ProtectedData> collection, @Nullable NodeAddress sender, Runnable resultHandler) {
+        Log.traceCall(TRACE_ADD_ALL, collection.size());
+        VerificationBatch batch = new VerificationBatch(sender, resultHandler);
+        pendingVerificationBatches.add(batch);
+        verifyAll(new ArrayList<>(collection), verifiedDataList -> {
+            batch.verifiedDataList = verifiedDataList;
+            applyVerifiedBatches();
+        });
+    }
+
+    // Verifies the entries in parallel, resultHandler gets called in UserThread with the results in the same order.
+    // If the parallel verification fails we verify the entries in UserThread. After shutDown resultHandler does not
+    // get called.
+    private void verifyAll(List<ProtectedData> list, Consumer<List<VerifiedData>> resultHandler) {
+        int entriesPerTask = Math.max(MIN_ENTRIES_PER_VERIFICATION_TASK,
+                (list.size() + NUM_VERIFICATION_THREADS - 1) / NUM_VERIFICATION_THREADS);
+        List<ListenableFuture<List<VerifiedData>>> futures = new ArrayList<>();
+        try {
+            for (int fromIndex = 0; fromIndex < list.size(); fromIndex += entriesPerTask) {
+                List<ProtectedData> subList = list.subList(fromIndex, Math.min(fromIndex + entriesPerTask, list.size()));
+                futures.add(verificationExecutor.submit(() ->
+                        subList.stream().map(this::verify).collect(Collectors.toList())));
+            }
+        } catch (RejectedExecutionException e) {
+            futures.stream().forEach(future -> future.cancel(false));
+            verifyAllInUserThread(list, resultHandler, e);
+            return;
+        }
+        Futures.addCallback(Futures.allAsList(futures), new FutureCallback<List<List<VerifiedData>>>() {
+            @Override
+            public void onSuccess(List<List<VerifiedData>> result) {
+                List<VerifiedData> verifiedDataList = new ArrayList<>(list.size());
+                result.stream().forEach(verifiedDataList::addAll);
+                UserThread.execute(() -> resultHandler.accept(verifiedDataList));
+            }
+
+            @Override
+            public void onFailure(@NotNull Throwable throwable) {
+                verifyAllInUserThread(list, resultHandler, throwable);
+            }
+        });
+    }
+
+    private void verifyAllInUserThread(List<ProtectedData> list, Consumer<List<VerifiedData>> resultHandler,
+                                       Throwable throwable) {
+        if (verificationExecutor.isShutdown()) {
+            log.info("Verification of data got cancelled at shutDown.");
+            return;
+        }
+
+        log.error("Parallel verification of data failed. We verify the data in UserThread. " + throwable.toString());
+        UserThread.execute(() -> resultHandler.accept(list.stream().map(this::verify).collect(Collectors.toList())));
+    }
+
     private boolean doAdd(ProtectedData protectedData, @Nullable NodeAddress sender, boolean rePublish) {
         Log.traceCall();
-        ByteArray hashOfPayload = getHashAsByteArray(protectedData.expirablePayload);
-        boolean result = checkPublicKeys(protectedData, true)
-                && checkSignature(protectedData)
+        return applyAdd(verify(protectedData), sender, rePublish, true);
+    }
+
+    // Thread safe part of the add checks, does not access the map
+    private VerifiedData verify(ProtectedData protectedData) {
+        try {
+            ByteArray hashOfPayload = protectedData.getHashOfPayload();
+            boolean isValid = checkPublicKeys(protectedData, true) && checkSignature(protectedData);
+            return new VerifiedData(protectedData, hashOfPayload, isValid);
+        } catch (Throwable t) {
+            log.error("Verification of data failed. " + t.getMessage());
+            return new VerifiedData(protectedData, null, false);
+        }
+    }
+
+    private void applyVerifiedBatches() {
+        while (!pendingVerificationBatches.isEmpty() && pendingVerificationBatches.peek().verifiedDataList != null) {
+            VerificationBatch batch = pendingVerificationBatches.poll();
+            long numAdded = batch.verifiedDataList.stream()
+                    .filter(verifiedData -> applyAdd(verifiedData, batch.sender, false, false))
+                    .count();
+            log.info("Added {} of {} entries. We have {} entries now.", numAdded, batch.verifiedDataList.size(), map.size());
+            batch.resultHandler.run();
+        }
+    }
+
+    // Called in UserThread. For batches we skip the log of the whole map per entry.
+    private boolean applyAdd(VerifiedData verifiedData, @Nullable NodeAddress sender, boolean rePublish,
+                             boolean isSingleAdd) {
+        ProtectedData protectedData = verifiedData.protectedData;
+        ByteArray hashOfPayload = verifiedData.hashOfPayload;
+        boolean result = verifiedData.isValid
                 && isSequenceNrValid(protectedData, hashOfPayload);
 
-        boolean containsKey = map.containsKey(hashOfPayload);
+        boolean containsKey = result && map.containsKey(hashOfPayload);
         if (containsKey)
             result &= checkIfStoredDataPubKeyMatchesNewDataPubKey(protectedData, hashOfPayload);
 
         if (result) {
             map.put(hashOfPayload, protectedData);
+            expiryIndex.add(hashOfPayload, protectedData);
+            scheduleExpiryCheck();
 
             // Republished data have a larger sequence number. We set the rePublish flag to enable broadcasting 
             // even we had the data with the old seq nr. already
@@ -164,14 +374,15 @@ public class P2PDataStorage implements MessageListener {
                     protectedData.sequenceNumber > sequenceNumberMap.get(hashOfPayload))
                 rePublish = true;
 
-            sequenceNumberMap.put(hashOfPayload, protectedData.sequenceNumber);
-            storage.queueUpForSave(sequenceNumberMap, 5000);
-
-            StringBuilder sb = new StringBuilder("\n\n------------------------------------------------------------\n");
-            sb.append("Data set after addProtectedExpirableData:");
-            map.values().stream().forEach(e -> sb.append("\n").append(e.toString()).append("\n"));
-            sb.append("\n------------------------------------------------------------\n");
-            log.info(sb.toString());
+            putSequenceNumber(hashOfPayload, protectedData.sequenceNumber);
+            protectedDataStorage.put(hashOfPayload, new PersistedProtectedData(protectedData));
+            if (isSingleAdd && log.isTraceEnabled()) {
+                StringBuilder sb = new StringBuilder("\n\n------------------------------------------------------------\n");
+                sb.append("Data set after addProtectedExpirableData:");
+                map.values().stream().forEach(e -> sb.append("\n").append(e.toString()).append("\n"));
+                sb.append("\n------------------------------------------------------------\n");
+                log.trace(sb.toString());
+            }
 
             if (rePublish || !containsKey)
                 broadcast(new AddDataMessage(protectedData), sender);
@@ -186,7 +397,7 @@ public class P2PDataStorage implements MessageListener {
 
     public boolean remove(ProtectedData protectedData, @Nullable NodeAddress sender) {
         Log.traceCall();
-        ByteArray hashOfPayload = getHashAsByteArray(protectedData.expirablePayload);
+        ByteArray hashOfPayload = protectedData.getHashOfPayload();
         boolean containsKey = map.containsKey(hashOfPayload);
         if (!containsKey) log.debug("Remove data ignored as we don't have an entry for that data.");
         boolean result = containsKey
@@ -201,8 +412,7 @@ public class P2PDataStorage implements MessageListener {
 
             broadcast(new RemoveDataMessage(protectedData), sender);
 
-            sequenceNumberMap.put(hashOfPayload, protectedData.sequenceNumber);
-            storage.queueUpForSave(sequenceNumberMap, 5000);
+            putSequenceNumber(hashOfPayload, protectedData.sequenceNumber);
         } else {
             log.debug("remove failed");
         }
@@ -211,7 +421,7 @@ public class P2PDataStorage implements MessageListener {
 
     public boolean removeMailboxData(ProtectedMailboxData protectedMailboxData, @Nullable NodeAddress sender) {
         Log.traceCall();
-        ByteArray hashOfData = getHashAsByteArray(protectedMailboxData.expirablePayload);
+        ByteArray hashOfData = protectedMailboxData.getHashOfPayload();
         boolean containsKey = map.containsKey(hashOfData);
         if (!containsKey) log.debug("Remove data ignored as we don't have an entry for that data.");
         boolean result = containsKey
@@ -226,8 +436,7 @@ public class P2PDataStorage implements MessageListener {
 
             broadcast(new RemoveMailboxDataMessage(protectedMailboxData), sender);
 
-            sequenceNumberMap.put(hashOfData, protectedMailboxData.sequenceNumber);
-            storage.queueUpForSave(sequenceNumberMap, 5000);
+            putSequenceNumber(hashOfData, protectedMailboxData.sequenceNumber);
         } else {
             log.debug("removeMailboxData failed");
         }
@@ -283,14 +492,23 @@ public class P2PDataStorage implements MessageListener {
     private void doRemoveProtectedExpirableData(ProtectedData protectedData, ByteArray hashOfPayload) {
         Log.traceCall();
         map.remove(hashOfPayload);
+        protectedDataStorage.remove(hashOfPayload);
         log.trace("Data removed from our map. We broadcast the message to our peers.");
         hashMapChangedListeners.stream().forEach(e -> e.onRemoved(protectedData));
 
-        StringBuilder sb = new StringBuilder("\n\n------------------------------------------------------------\n" +
-                "Data set after removeProtectedExpirableData:");
-        map.values().stream().forEach(e -> sb.append("\n").append(e.toString()));
-        sb.append("\n------------------------------------------------------------\n");
-        log.info(sb.toString());
+        // Dumps the whole map, so only with trace enabled
+        if (log.isTraceEnabled()) {
+            StringBuilder sb = new StringBuilder("\n\n------------------------------------------------------------\n" +
+                    "Data set after removeProtectedExpirableData:");
+            map.values().stream().forEach(e -> sb.append("\n").append(e.toString()));
+            sb.append("\n------------------------------------------------------------\n");
+            log.trace(sb.toString());
+        }
+    }
+
+    private void putSequenceNumber(ByteArray hashOfData, int sequenceNumber) {
+        sequenceNumberMap.put(hashOfData, sequenceNumber);
+        sequenceNumberStorage.put(hashOfData, sequenceNumber);
     }
 
     private boolean isSequenceNrValid(ProtectedData data, ByteArray hashOfData) {
@@ -357,7 +575,7 @@ public class P2PDataStorage implements MessageListener {
             ProtectedMailboxData storedMailboxData = (ProtectedMailboxData) storedData;
             // publicKey is not the same (stored: sender, new: receiver)
             boolean result = storedMailboxData.receiversPubKey.equals(data.receiversPubKey)
-                    && getHashAsByteArray(storedMailboxData.expirablePayload).equals(hashOfData);
+                    && storedMailboxData.getHashOfPayload().equals(hashOfData);
             if (!result)
                 log.error("New data entry does not match our stored data. Consider it might be an attempt of fraud");
 
@@ -369,7 +587,7 @@ public class P2PDataStorage implements MessageListener {
     }
 
     private void broadcast(DataBroadcastMessage message, @Nullable NodeAddress sender) {
-        Log.traceCall(message.toString());
+        Log.traceCall(TRACE_BROADCAST, message);
         peerManager.broadcast(message, sender);
     }
 
@@ -377,4 +595,33 @@ public class P2PDataStorage implements MessageListener {
         return new ByteArray(Hash.getHash(payload));
     }
 
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Verification
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    private static final class VerifiedData {
+        final ProtectedData protectedData;
+        final ByteArray hashOfPayload;
+        final boolean isValid;
+
+        VerifiedData(ProtectedData protectedData, ByteArray hashOfPayload, boolean isValid) {
+            this.protectedData = protectedData;
+            this.hashOfPayload = hashOfPayload;
+            this.isValid = isValid;
+        }
+    }
+
+    private static final class VerificationBatch {
+        @Nullable
+        final NodeAddress sender;
+        final Runnable resultHandler;
+        // Set in UserThread when the verification is done
+        List<VerifiedData> verifiedDataList;
+
+        VerificationBatch(@Nullable NodeAddress sender, Runnable resultHandler) {
+            this.sender = sender;
+            this.resultHandler = resultHandler;
+        }
+    }
 }
@@ -0,0 +1,17 @@
+package io.brightnet.p2p.storage.data;
+
+import java.io.Serializable;
+
+// The date of ProtectedData is transient as it is set at reception, so we persist it next to the data. Otherwise
+// persisted data would get a new TTL with each restart.
+public class PersistedProtectedData implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public final ProtectedData protectedData;
+    public final long date;
+
+    public PersistedProtectedData(ProtectedData protectedData) {
+        this.protectedData = protectedData;
+        this.date = protectedData.date.getTime();
+    }
+}
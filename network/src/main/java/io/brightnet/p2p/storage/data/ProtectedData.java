@@ -1,7 +1,10 @@
 package io.brightnet.p2p.storage.data;
 
 import com.google.common.annotations.VisibleForTesting;
+import io.brightnet.common.ByteArray;
+import io.brightnet.common.crypto.Hash;
 import io.brightnet.p2p.storage.P2PDataStorage;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -11,6 +14,9 @@ import java.security.PublicKey;
 import java.util.Date;
 
 public class ProtectedData implements Serializable {
+    // That object is sent over the wire, so we need to take care of version compatibility.
+    // Value of the former default serialVersionUID to stay compatible with nodes on the old version.
+    private static final long serialVersionUID = -730083015954875826L;
     private static final Logger log = LoggerFactory.getLogger(P2PDataStorage.class);
 
     public final ExpirablePayload expirablePayload;
@@ -20,6 +26,9 @@ public class ProtectedData implements Serializable {
     public final byte[] signature;
     @VisibleForTesting
     transient public Date date;
+    // Key in the P2PDataStorage map. Not sent over the wire as we must not trust the hash of the sender.
+    @Nullable
+    transient private volatile ByteArray hashOfPayload;
 
     public ProtectedData(ExpirablePayload expirablePayload, long ttl, PublicKey ownerStoragePubKey, int sequenceNumber, byte[] signature) {
         this.expirablePayload = expirablePayload;
@@ -35,15 +44,32 @@ public class ProtectedData implements Serializable {
             in.defaultReadObject();
             ttl = expirablePayload.getTTL();
             date = new Date();
-
+            // We are on the network thread here, so the UserThread does not need to serialize the payload again
+            hashOfPayload = new ByteArray(Hash.getHash(expirablePayload));
         } catch (Throwable t) {
             log.error("Exception at readObject: " + t.getMessage());
             t.printStackTrace();
         }
     }
 
+    // Hash of the serialized payload, computed only once
+    public ByteArray getHashOfPayload() {
+        ByteArray hashOfPayload = this.hashOfPayload;
+        if (hashOfPayload == null) {
+            hashOfPayload = new ByteArray(Hash.getHash(expirablePayload));
+            this.hashOfPayload = hashOfPayload;
+        }
+        return hashOfPayload;
+    }
+
     public boolean isExpired() {
-        return (new Date().getTime() - date.getTime()) > ttl;
+        return System.currentTimeMillis() > getExpirationTime();
+    }
+
+    // Absolute time in ms, used for the expiry index of P2PDataStorage
+    public long getExpirationTime() {
+        long creationTime = date.getTime();
+        return ttl > Long.MAX_VALUE - creationTime ? Long.MAX_VALUE : creationTime + ttl;
     }
 
     @Override
@@ -9,6 +9,9 @@ import java.security.PublicKey;
 import java.util.Date;
 
 public class ProtectedMailboxData extends ProtectedData {
+    // That object is sent over the wire, so we need to take care of version compatibility.
+    // Value of the former default serialVersionUID to stay compatible with nodes on the old version.
+    private static final long serialVersionUID = -8451406456774361014L;
     private static final Logger log = LoggerFactory.getLogger(P2PDataStorage.class);
 
     public final PublicKey receiversPubKey;
@@ -40,10 +43,6 @@ public class ProtectedMailboxData extends ProtectedData {
         }
     }
 
-    public boolean isExpired() {
-        return (new Date().getTime() - date.getTime()) > ttl;
-    }
-
     @Override
     public String toString() {
         return "MailboxData{" +
@@ -37,10 +37,15 @@ import java.io.File;
 import java.io.IOException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
 import java.security.Security;
 import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class EncryptionServiceTests {
     private static final Logger log = LoggerFactory.getLogger(EncryptionServiceTests.class);
@@ -75,8 +80,63 @@ public class EncryptionServiceTests {
         SealedAndSignedMessage encrypted = new SealedAndSignedMessage(encryptionService.encryptAndSign(pubKeyRing, data), Hash.getHash("aa"));
         DecryptedMsgWithPubKey decrypted = encryptionService.decryptAndVerify(encrypted.sealedAndSigned);
         assertEquals(data.data, ((TestMessage) decrypted.message).data);
+        assertEquals(SealedAndSigned.VERSION_SEALED_BOX, encrypted.sealedAndSigned.version);
     }
 
+    @Test
+    public void testDecryptAndVerifyMessageForOlderVersion() throws CryptoException {
+        EncryptionService encryptionService = new EncryptionService(keyRing);
+        TestMessage data = new TestMessage("test");
+        // Older versions don't send the sealed box key
+        PubKeyRing olderPubKeyRing = new PubKeyRing(pubKeyRing.getSignaturePubKey(), pubKeyRing.getEncryptionPubKey());
+        SealedAndSigned encrypted = encryptionService.encryptAndSign(olderPubKeyRing, data);
+        assertEquals(SealedAndSigned.VERSION_RSA, encrypted.version);
+        DecryptedMsgWithPubKey decrypted = encryptionService.decryptAndVerify(encrypted);
+        assertEquals(data.data, ((TestMessage) decrypted.message).data);
+    }
+
+    @Test
+    public void testDecryptMessageForOtherReceiverFails() throws CryptoException, IOException {
+        File otherDir = File.createTempFile("temp_tests", "");
+        otherDir.delete();
+        otherDir.mkdir();
+        try {
+            KeyRing otherKeyRing = new KeyRing(new KeyStorage(otherDir));
+            SealedAndSigned encrypted = new EncryptionService(keyRing).encryptAndSign(otherKeyRing.getPubKeyRing(),
+                    new TestMessage("test"));
+            thrown.expect(CryptoException.class);
+            new EncryptionService(keyRing).decryptAndVerify(encrypted);
+        } finally {
+            Utilities.deleteDirectory(otherDir);
+        }
+    }
+
+    // Key storages from before the sealed box only get the new key, the other keys are not written again
+    @Test
+    public void testSealedBoxKeyIsAddedToExistingKeyStorage() throws CryptoException {
+        assertTrue(new File(dir, KeyStorage.KeyEntry.MSG_SEALED_BOX.getFileName() + ".key").delete());
+        List<String> savedKeys = new ArrayList<>();
+        KeyStorage keyStorage = new KeyStorage(dir) {
+            @Override
+            public void savePrivateKey(PrivateKey privateKey, String name) {
+                savedKeys.add(name);
+                super.savePrivateKey(privateKey, name);
+            }
+        };
+        KeyRing restoredKeyRing = new KeyRing(keyStorage);
+        assertEquals(Collections.singletonList(KeyStorage.KeyEntry.MSG_SEALED_BOX.getFileName()), savedKeys);
+        assertEquals(keyRing.getSignatureKeyPair().getPublic(), restoredKeyRing.getSignatureKeyPair().getPublic());
+        assertEquals(keyRing.getEncryptionKeyPair().getPublic(), restoredKeyRing.getEncryptionKeyPair().getPublic());
+
+        // The new key gets used for the next messages
+        KeyRing reloadedKeyRing = new KeyRing(new KeyStorage(dir));
+        assertEquals(restoredKeyRing.getSealedBoxKeyPair().getPublic(),
+                reloadedKeyRing.getSealedBoxKeyPair().getPublic());
+        SealedAndSigned encrypted = new EncryptionService(keyRing).encryptAndSign(reloadedKeyRing.getPubKeyRing(),
+                new TestMessage("test"));
+        DecryptedMsgWithPubKey decrypted = new EncryptionService(reloadedKeyRing).decryptAndVerify(encrypted);
+        assertEquals("test", ((TestMessage) decrypted.message).data);
+    }
 }
 
 final class TestMessage implements MailboxMessage {
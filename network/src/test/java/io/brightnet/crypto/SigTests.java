@@ -0,0 +1,104 @@
+/*
+ * This file is part of BrightNet.
+ *
+ * BrightNet is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * BrightNet is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with BrightNet. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.brightnet.crypto;
+
+import com.google.common.base.Charsets;
+import io.brightnet.common.crypto.*;
+import io.brightnet.common.util.Utilities;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.KeyPair;
+import java.security.Security;
+
+import static org.junit.Assert.*;
+
+public class SigTests {
+    private static final byte[] DATA = "test".getBytes(Charsets.UTF_8);
+
+    private File dir;
+
+    @Before
+    public void setup() throws IOException {
+        Security.addProvider(new BouncyCastleProvider());
+        dir = File.createTempFile("temp_tests", "");
+        dir.delete();
+        dir.mkdir();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Sig.setDefaultScheme(SignatureScheme.DSA);
+        Utilities.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testEd25519SignAndVerify() throws CryptoException {
+        KeyPair keyPair = Sig.generateKeyPair(SignatureScheme.ED25519);
+        assertEquals(SignatureScheme.ED25519, SignatureScheme.forKey(keyPair.getPublic()));
+        byte[] signature = Sig.sign(keyPair.getPrivate(), DATA);
+        assertTrue(Sig.verify(keyPair.getPublic(), DATA, signature));
+
+        assertFalse(Sig.verify(keyPair.getPublic(), "other".getBytes(Charsets.UTF_8), signature));
+        KeyPair otherKeyPair = Sig.generateKeyPair(SignatureScheme.ED25519);
+        assertFalse(Sig.verify(otherKeyPair.getPublic(), DATA, signature));
+    }
+
+    // The scheme is selected by the key, so a DSA signature does not need to be marked
+    @Test
+    public void testDsaAndEd25519KeysCanBeMixed() throws CryptoException {
+        KeyPair dsaKeyPair = Sig.generateKeyPair(SignatureScheme.DSA);
+        KeyPair ed25519KeyPair = Sig.generateKeyPair(SignatureScheme.ED25519);
+        String dsaSignature = Sig.sign(dsaKeyPair.getPrivate(), "message");
+        String ed25519Signature = Sig.sign(ed25519KeyPair.getPrivate(), "message");
+        assertTrue(Sig.verify(dsaKeyPair.getPublic(), "message", dsaSignature));
+        assertTrue(Sig.verify(ed25519KeyPair.getPublic(), "message", ed25519Signature));
+        assertFalse(Sig.verify(ed25519KeyPair.getPublic(), "message", dsaSignature));
+    }
+
+    @Test
+    public void testEd25519KeyStorageRoundTrip() throws CryptoException {
+        KeyStorage keyStorage = new KeyStorage(dir);
+        KeyPair keyPair = Sig.generateKeyPair(SignatureScheme.ED25519);
+        keyStorage.savePrivateKey(keyPair.getPrivate(), KeyStorage.KeyEntry.MSG_SIGNATURE.getFileName());
+
+        KeyPair loadedKeyPair = keyStorage.loadKeyPair(KeyStorage.KeyEntry.MSG_SIGNATURE);
+        assertEquals(SignatureScheme.ED25519, SignatureScheme.forKey(loadedKeyPair.getPrivate()));
+        assertArrayEquals(keyPair.getPrivate().getEncoded(), loadedKeyPair.getPrivate().getEncoded());
+        assertArrayEquals(keyPair.getPublic().getEncoded(), loadedKeyPair.getPublic().getEncoded());
+        assertTrue(Sig.verify(keyPair.getPublic(), DATA, Sig.sign(loadedKeyPair.getPrivate(), DATA)));
+    }
+
+    @Test
+    public void testKeyRingKeepsEd25519SignatureKey() throws CryptoException {
+        Sig.setDefaultScheme(SignatureScheme.ED25519);
+        KeyRing keyRing = new KeyRing(new KeyStorage(dir));
+        assertEquals(SignatureScheme.ED25519, SignatureScheme.forKey(keyRing.getSignatureKeyPair().getPublic()));
+
+        // A changed default does not replace a stored key
+        Sig.setDefaultScheme(SignatureScheme.DSA);
+        KeyRing loadedKeyRing = new KeyRing(new KeyStorage(dir));
+        assertEquals(keyRing.getPubKeyRing(), loadedKeyRing.getPubKeyRing());
+        assertEquals(SignatureScheme.ED25519,
+                SignatureScheme.forKey(loadedKeyRing.getSignatureKeyPair().getPrivate()));
+    }
+}
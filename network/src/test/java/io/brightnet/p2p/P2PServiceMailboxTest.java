@@ -0,0 +1,114 @@
+package io.brightnet.p2p;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import io.brightnet.common.UserThread;
+import io.brightnet.common.crypto.KeyRing;
+import io.brightnet.common.crypto.KeyStorage;
+import io.brightnet.crypto.EncryptionService;
+import io.brightnet.crypto.SealedAndSignedMessage;
+import io.brightnet.p2p.mocks.MockMailboxMessage;
+import io.brightnet.p2p.seed.SeedNodesRepository;
+import io.brightnet.p2p.storage.data.ExpirableMailboxPayload;
+import io.brightnet.p2p.storage.data.ProtectedMailboxData;
+import io.brightnet.storage.FileManager;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.security.PublicKey;
+import java.security.Security;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+// The mailbox data of the whole network passes P2PService.onAdded, only the data for us must get decrypted
+public class P2PServiceMailboxTest {
+    private static final NodeAddress MY_ADDRESS = new NodeAddress("localhost:8001");
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private KeyRing keyRing;
+    private KeyRing senderKeyRing;
+    private EncryptionService encryptionService;
+    private P2PService p2PService;
+    private final AtomicInteger numMailboxMessages = new AtomicInteger();
+
+    @Before
+    public void setup() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+        UserThread.setExecutor(MoreExecutors.directExecutor());
+
+        keyRing = new KeyRing(new KeyStorage(tempFolder.newFolder()));
+        senderKeyRing = new KeyRing(new KeyStorage(tempFolder.newFolder()));
+        encryptionService = spy(new EncryptionService(keyRing));
+
+        // The address of our hidden service is known from the last start
+        File storageDir = tempFolder.newFolder();
+        FileManager<NodeAddress> fileManager = new FileManager<>(storageDir, new File(storageDir, "myOnionAddress"), 0);
+        fileManager.saveNow(MY_ADDRESS);
+        fileManager.shutDown();
+
+        p2PService = new P2PService(new SeedNodesRepository(), 8002, tempFolder.newFolder(), true, 2,
+                storageDir, encryptionService, keyRing);
+        p2PService.addDecryptedMailboxListener((decryptedMsgWithPubKey, senderNodeAddress) ->
+                numMailboxMessages.incrementAndGet());
+    }
+
+    @After
+    public void tearDown() {
+        p2PService.shutDown(() -> {
+        });
+    }
+
+    @Test
+    public void testMailboxDataForOtherReceiverIsNotDecrypted() throws Exception {
+        PublicKey otherReceiver = new KeyRing(new KeyStorage(tempFolder.newFolder())).getPubKeyRing().getSignaturePubKey();
+        p2PService.onAdded(createMailboxData("msg", otherReceiver));
+
+        verify(encryptionService, never()).decryptAndVerify(any());
+        assertEquals(0, numMailboxMessages.get());
+    }
+
+    @Test
+    public void testDuplicateMailboxDataIsProcessedOnce() throws Exception {
+        ProtectedMailboxData mailboxData = createMailboxData("msg", keyRing.getPubKeyRing().getSignaturePubKey());
+        p2PService.onAdded(mailboxData);
+        // Added again, e.g. when it gets broadcast by another peer
+        p2PService.onAdded(createMailboxData(mailboxData));
+
+        verify(encryptionService, times(1)).decryptAndVerify(any());
+        assertEquals(1, numMailboxMessages.get());
+
+        // After the removal the same data is new again
+        p2PService.onRemoved(mailboxData);
+        p2PService.onAdded(mailboxData);
+        verify(encryptionService, times(2)).decryptAndVerify(any());
+        assertEquals(2, numMailboxMessages.get());
+    }
+
+    private ProtectedMailboxData createMailboxData(String msg, PublicKey receiverStoragePublicKey) throws Exception {
+        SealedAndSignedMessage sealedAndSignedMessage = new SealedAndSignedMessage(
+                new EncryptionService(senderKeyRing).encryptAndSign(keyRing.getPubKeyRing(),
+                        new MockMailboxMessage(msg, new NodeAddress("localhost:8003"))),
+                MY_ADDRESS.getAddressPrefixHash());
+        PublicKey senderStoragePublicKey = senderKeyRing.getPubKeyRing().getSignaturePubKey();
+        ExpirableMailboxPayload payload = new ExpirableMailboxPayload(sealedAndSignedMessage, senderStoragePublicKey,
+                receiverStoragePublicKey);
+        return new ProtectedMailboxData(payload, payload.getTTL(), senderStoragePublicKey, 1, new byte[0],
+                receiverStoragePublicKey);
+    }
+
+    // A new instance with the same payload, as it is received from the network
+    private static ProtectedMailboxData createMailboxData(ProtectedMailboxData mailboxData) {
+        return new ProtectedMailboxData((ExpirableMailboxPayload) mailboxData.expirablePayload, mailboxData.ttl,
+                mailboxData.ownerStoragePubKey, mailboxData.sequenceNumber + 1, mailboxData.signature,
+                mailboxData.receiversPubKey);
+    }
+}
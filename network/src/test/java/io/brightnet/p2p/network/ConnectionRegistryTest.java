@@ -0,0 +1,145 @@
+package io.brightnet.p2p.network;
+
+import io.brightnet.p2p.Message;
+import io.brightnet.p2p.NodeAddress;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ConnectionRegistryTest {
+    private final List<Socket> sockets = new ArrayList<>();
+    private final List<Connection> connections = new ArrayList<>();
+    private ServerSocket serverSocket;
+    private ConnectionRegistry registry;
+
+    @Before
+    public void setup() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        registry = new ConnectionRegistry();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        connections.stream().forEach(Connection::shutDown);
+        for (Socket socket : sockets)
+            socket.close();
+        serverSocket.close();
+    }
+
+    @Test
+    public void testLookupByPeerAddress() throws IOException {
+        NodeAddress peer1 = new NodeAddress("peer1.onion", 9001);
+        NodeAddress peer2 = new NodeAddress("peer2.onion", 9001);
+
+        Connection outbound = createConnection();
+        outbound.setPeerAddress(peer1);
+        registry.addOutBoundConnection(outbound);
+
+        // Peer address gets set after the connection was added
+        Connection inbound = createConnection();
+        registry.addInBoundConnection(inbound);
+        assertFalse(registry.lookupInBoundConnection(peer2).isPresent());
+        inbound.setPeerAddress(peer2);
+
+        assertSame(outbound, registry.lookupOutBoundConnection(peer1).get());
+        assertFalse(registry.lookupInBoundConnection(peer1).isPresent());
+        assertSame(inbound, registry.lookupInBoundConnection(peer2).get());
+        assertEquals(2, registry.getAllConnections().size());
+        assertSame(inbound, registry.getConnection(inbound.getUid()).get());
+
+        inbound.setPeerAddress(peer1);
+        assertFalse(registry.lookupInBoundConnection(peer2).isPresent());
+        assertSame(inbound, registry.lookupInBoundConnection(peer1).get());
+
+        registry.remove(outbound);
+        assertFalse(registry.lookupOutBoundConnection(peer1).isPresent());
+        assertEquals(1, registry.getAllConnections().size());
+        assertEquals(0, registry.getOutBoundConnections().size());
+    }
+
+    @Test
+    public void testNextConnectionToSamePeerGetsIndexed() throws IOException {
+        NodeAddress peer = new NodeAddress("peer.onion", 9001);
+        Connection first = createConnection();
+        first.setPeerAddress(peer);
+        registry.addOutBoundConnection(first);
+        Connection second = createConnection();
+        second.setPeerAddress(peer);
+        registry.addOutBoundConnection(second);
+
+        registry.remove(second);
+        assertSame(first, registry.lookupOutBoundConnection(peer).get());
+    }
+
+    @Test
+    public void testPriorityView() throws IOException {
+        Connection connection = createConnection();
+        connection.setConnectionPriority(ConnectionPriority.AUTH_REQUEST);
+        registry.addInBoundConnection(connection);
+        assertEquals(1, registry.getConnections(ConnectionPriority.AUTH_REQUEST).size());
+
+        connection.setConnectionPriority(ConnectionPriority.PASSIVE);
+        assertTrue(registry.getConnections(ConnectionPriority.AUTH_REQUEST).isEmpty());
+        assertTrue(registry.getConnections(ConnectionPriority.PASSIVE).contains(connection));
+
+        registry.remove(connection);
+        assertTrue(registry.getConnections(ConnectionPriority.PASSIVE).isEmpty());
+    }
+
+    // The view does not copy, it follows the registry and finds a connection after its peer address changed
+    @Test
+    public void testAllConnectionsView() throws IOException {
+        Set<Connection> allConnections = registry.getAllConnections();
+        Connection connection = createConnection();
+        registry.addInBoundConnection(connection);
+        assertEquals(1, allConnections.size());
+        assertTrue(allConnections.contains(connection));
+
+        connection.setPeerAddress(new NodeAddress("peer.onion", 9001));
+        assertTrue(allConnections.contains(connection));
+
+        // Removing while iterating is fine
+        for (Connection c : allConnections)
+            registry.remove(c);
+        assertTrue(allConnections.isEmpty());
+        assertFalse(allConnections.contains(connection));
+        try {
+            allConnections.add(connection);
+            fail("Expected UnsupportedOperationException");
+        } catch (UnsupportedOperationException ignore) {
+        }
+    }
+
+    private Connection createConnection() throws IOException {
+        Socket socket = new Socket(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+        sockets.add(socket);
+        sockets.add(serverSocket.accept());
+        ConnectionListener connectionListener = new ConnectionListener() {
+            @Override
+            public void onConnection(Connection connection) {
+            }
+
+            @Override
+            public void onDisconnect(Reason reason, Connection connection) {
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+            }
+        };
+        Connection connection = new Connection(socket, (Message message, Connection c) -> {
+        }, connectionListener);
+        connections.add(connection);
+        return connection;
+    }
+}
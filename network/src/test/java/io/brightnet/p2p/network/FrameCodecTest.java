@@ -0,0 +1,180 @@
+package io.brightnet.p2p.network;
+
+import io.brightnet.p2p.Compression;
+import io.brightnet.p2p.mocks.MockMessage;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+public class FrameCodecTest {
+    private final MessageCodec codec = new JavaSerializationCodec();
+
+    @Test
+    public void testRoundTrip() throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        writeFrame(outputStream, new MockMessage("msg1"));
+        writeFrame(outputStream, new MockMessage(new String(new char[100_000])));
+
+        FrameReader frameReader = new FrameReader(new ByteArrayInputStream(outputStream.toByteArray()), 5 * 1024 * 1024);
+        frameReader.readFrame();
+        assertEquals(JavaSerializationCodec.TYPE_TAG, frameReader.getTypeTag());
+        assertEquals(new MockMessage("msg1"), codec.decode(frameReader.getBuffer(), 0, frameReader.getLength()));
+
+        frameReader.readFrame();
+        MockMessage large = (MockMessage) codec.decode(frameReader.getBuffer(), 0, frameReader.getLength());
+        assertEquals(100_000, large.msg.length());
+
+        try {
+            frameReader.readFrame();
+            fail("Expected EOFException");
+        } catch (EOFException expected) {
+        }
+    }
+
+    @Test
+    public void testSizeIsCheckedBeforePayloadIsRead() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        writeFrame(outputStream, new MockMessage(new String(new char[1000])));
+        // We pass only the header, a reader accepting that size would fail with an EOFException
+        byte[] header = new byte[FrameWriter.MAX_HEADER_SIZE];
+        System.arraycopy(outputStream.toByteArray(), 0, header, 0, header.length);
+
+        FrameReader frameReader = new FrameReader(new ByteArrayInputStream(header), 100);
+        try {
+            frameReader.readFrame();
+            fail("Expected FrameTooLargeException");
+        } catch (FrameReader.FrameTooLargeException expected) {
+        }
+    }
+
+    @Test
+    public void testVarInt() {
+        byte[] target = new byte[5];
+        for (int value : new int[]{0, 127, 128, 16_383, 16_384, Integer.MAX_VALUE}) {
+            assertEquals(FrameWriter.varIntSize(value), FrameWriter.writeVarInt(value, target, 0));
+        }
+        assertEquals(5, FrameWriter.varIntSize(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testCompressedRoundTrip() throws IOException, ClassNotFoundException {
+        MockMessage message = new MockMessage(new String(new char[100_000]));
+        FrameWriter.EncodeBuffer frame = FrameWriter.encode(codec, message, Deflater.BEST_SPEED);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        frame.writeFrameTo(outputStream);
+        assertTrue(frame.getPayloadLength() < frame.getMessageSize() / 10);
+        FrameWriter.release(frame);
+
+        FrameReader frameReader = new FrameReader(new ByteArrayInputStream(outputStream.toByteArray()), 5 * 1024 * 1024);
+        frameReader.readFrame();
+        assertEquals(JavaSerializationCodec.TYPE_TAG | FrameWriter.COMPRESSED_FLAG, frameReader.getTypeTag());
+        FrameReader.InflateBuffer inflated = FrameReader.inflate(frameReader.getBuffer(), 0, frameReader.getLength(),
+                5 * 1024 * 1024);
+        assertEquals(message, codec.decode(inflated.array(), 0, inflated.size()));
+        FrameReader.release(inflated);
+    }
+
+    @Test
+    public void testInflateBuffersAreReusedByOtherThreads() throws Exception {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        Compression.deflate(new byte[10_000], 0, 10_000, Deflater.BEST_SPEED, compressed);
+        Set<FrameReader.InflateBuffer> buffers = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = 0; i < 20; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    FrameReader.InflateBuffer inflated = FrameReader.inflate(compressed.toByteArray(), 0,
+                            compressed.size(), 10_000);
+                    assertEquals(10_000, inflated.size());
+                    buffers.add(inflated);
+                    FrameReader.release(inflated);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            thread.start();
+            thread.join();
+        }
+        assertTrue(buffers.size() < 20);
+    }
+
+    @Test
+    public void testSmallMessageIsNotCompressed() throws IOException {
+        FrameWriter.EncodeBuffer frame = FrameWriter.encode(codec, new MockMessage("msg1"), Deflater.BEST_SPEED);
+        assertEquals(frame.getMessageSize(), frame.getPayloadLength());
+        FrameWriter.release(frame);
+    }
+
+    @Test
+    public void testIncompressibleData() {
+        byte[] random = new byte[100_000];
+        new Random().nextBytes(random);
+        assertTrue(Compression.isLikelyIncompressible(random, 0, random.length));
+        assertFalse(Compression.isLikelyIncompressible(new byte[100_000], 0, 100_000));
+    }
+
+    @Test
+    public void testDecompressedSizeIsLimited() throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        Compression.deflate(new byte[100_000], 0, 100_000, Deflater.BEST_SPEED, compressed);
+        try {
+            FrameReader.inflate(compressed.toByteArray(), 0, compressed.size(), 10_000);
+            fail("Expected SizeLimitExceededException");
+        } catch (Compression.SizeLimitExceededException expected) {
+        }
+    }
+
+    @Test
+    public void testEncodedMessageCanBeWrittenRepeatedly() throws IOException, ClassNotFoundException {
+        MockMessage message = new MockMessage(new String(new char[100_000]));
+        EncodedMessage encodedMessage = Connection.encode(message);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        encodedMessage.writeTo(outputStream);
+        encodedMessage.writeTo(outputStream);
+        assertEquals(2 * encodedMessage.getFrameLength(), outputStream.size());
+        assertEquals(encodedMessage.getFrameLength(), encodedMessage.getFrame().remaining());
+
+        FrameReader frameReader = new FrameReader(new ByteArrayInputStream(outputStream.toByteArray()), 5 * 1024 * 1024);
+        for (int i = 0; i < 2; i++) {
+            frameReader.readFrame();
+            // Compression is off by default
+            assertEquals(JavaSerializationCodec.TYPE_TAG, frameReader.getTypeTag());
+            assertEquals(message, codec.decode(frameReader.getBuffer(), 0, frameReader.getLength()));
+        }
+    }
+
+    // With virtual threads every message might be encoded by a new thread
+    @Test
+    public void testEncodeBuffersAreReusedByOtherThreads() throws Exception {
+        Set<FrameWriter.EncodeBuffer> buffers = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = 0; i < 20; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    FrameWriter.EncodeBuffer frame = FrameWriter.encode(codec, new MockMessage("msg1"));
+                    buffers.add(frame);
+                    FrameWriter.release(frame);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            thread.start();
+            thread.join();
+        }
+        assertTrue(buffers.size() < 20);
+    }
+
+    private void writeFrame(ByteArrayOutputStream outputStream, MockMessage message) throws IOException {
+        FrameWriter.EncodeBuffer frame = FrameWriter.encode(codec, message);
+        frame.writeFrameTo(outputStream);
+        FrameWriter.release(frame);
+    }
+}
@@ -0,0 +1,76 @@
+package io.brightnet.p2p.network;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NioEventLoopTest {
+
+    @Test
+    public void testExecuteRunsTaskInLoopThread() throws IOException, InterruptedException {
+        NioEventLoop eventLoop = new NioEventLoop("test");
+        eventLoop.start();
+        CountDownLatch latch = new CountDownLatch(1);
+        boolean[] inEventLoop = new boolean[1];
+        eventLoop.execute(() -> {
+            inEventLoop[0] = eventLoop.inEventLoop();
+            latch.countDown();
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(inEventLoop[0]);
+        eventLoop.shutDown();
+    }
+
+    // Tasks posted while the loop stops must run either in the loop or by the caller
+    @Test
+    public void testNoTaskGetsLostAtShutDown() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            NioEventLoop eventLoop = new NioEventLoop("test");
+            eventLoop.start();
+            AtomicInteger numExecuted = new AtomicInteger();
+            int numThreads = 4;
+            int numTasks = 2000;
+            CountDownLatch startLatch = new CountDownLatch(1);
+            Thread[] threads = new Thread[numThreads];
+            for (int i = 0; i < numThreads; i++) {
+                threads[i] = new Thread(() -> {
+                    try {
+                        startLatch.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < numTasks; j++)
+                        eventLoop.execute(numExecuted::incrementAndGet);
+                });
+                threads[i].start();
+            }
+            startLatch.countDown();
+            eventLoop.shutDown();
+            for (Thread thread : threads)
+                thread.join(5000);
+
+            // The loop thread runs the tasks which were added before it stopped
+            long deadline = System.currentTimeMillis() + 5000;
+            while (numExecuted.get() < numThreads * numTasks && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            assertEquals(numThreads * numTasks, numExecuted.get());
+        }
+    }
+
+    @Test
+    public void testShutDownBeforeStartRunsTasks() throws IOException {
+        NioEventLoop eventLoop = new NioEventLoop("test");
+        AtomicInteger numExecuted = new AtomicInteger();
+        eventLoop.execute(numExecuted::incrementAndGet);
+        eventLoop.shutDown();
+        assertEquals(1, numExecuted.get());
+        eventLoop.execute(numExecuted::incrementAndGet);
+        assertEquals(2, numExecuted.get());
+    }
+}
@@ -0,0 +1,94 @@
+package io.brightnet.p2p.network;
+
+import io.brightnet.p2p.NodeAddress;
+import io.brightnet.p2p.peers.messages.auth.AuthenticationRequest;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+// Exchanges messages between two LocalhostNetworkNodes with the transport modes besides BLOCKING
+public class TransportModeTest {
+    private final List<NetworkNode> nodes = new ArrayList<>();
+
+    @Before
+    public void setup() {
+        Security.addProvider(new BouncyCastleProvider());
+        LocalhostNetworkNode.setSimulateTorDelayTorNode(0);
+        LocalhostNetworkNode.setSimulateTorDelayHiddenService(0);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        CountDownLatch shutDownLatch = new CountDownLatch(nodes.size());
+        nodes.stream().forEach(node -> node.shutDown(shutDownLatch::countDown));
+        shutDownLatch.await(10, TimeUnit.SECONDS);
+        NetworkNode.setTransportMode(TransportMode.BLOCKING);
+        LocalhostNetworkNode.setSimulateTorDelayTorNode(100);
+        LocalhostNetworkNode.setSimulateTorDelayHiddenService(500);
+    }
+
+    @Test
+    public void testMessageWithNioTransport() throws InterruptedException, IOException {
+        NetworkNode.setTransportMode(TransportMode.NIO);
+        assertMessagesExchanged();
+    }
+
+    // Falls back to the thread pools if the JVM does not support virtual threads
+    @Test
+    public void testMessageWithVirtualThreads() throws InterruptedException, IOException {
+        NetworkNode.setTransportMode(TransportMode.VIRTUAL_THREADS);
+        assertMessagesExchanged();
+    }
+
+    private void assertMessagesExchanged() throws InterruptedException, IOException {
+        int port1 = getFreePort();
+        int port2 = getFreePort();
+        CountDownLatch msgLatch = new CountDownLatch(2);
+        CountDownLatch startupLatch = new CountDownLatch(2);
+        startNode(port1, msgLatch, startupLatch);
+        startNode(port2, msgLatch, startupLatch);
+        assertTrue(startupLatch.await(10, TimeUnit.SECONDS));
+
+        nodes.get(1).sendMessage(new NodeAddress("localhost", port1), new AuthenticationRequest(new NodeAddress("localhost", port2), 1));
+        nodes.get(0).sendMessage(new NodeAddress("localhost", port2), new AuthenticationRequest(new NodeAddress("localhost", port1), 1));
+        assertTrue(msgLatch.await(10, TimeUnit.SECONDS));
+    }
+
+    private void startNode(int port, CountDownLatch msgLatch, CountDownLatch startupLatch) {
+        LocalhostNetworkNode node = new LocalhostNetworkNode(port);
+        nodes.add(node);
+        node.addMessageListener((message, connection) -> msgLatch.countDown());
+        node.start(new SetupListener() {
+            @Override
+            public void onTorNodeReady() {
+            }
+
+            @Override
+            public void onHiddenServicePublished() {
+                startupLatch.countDown();
+            }
+
+            @Override
+            public void onSetupFailed(Throwable throwable) {
+            }
+        });
+    }
+
+    private static int getFreePort() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            return serverSocket.getLocalPort();
+        }
+    }
+}
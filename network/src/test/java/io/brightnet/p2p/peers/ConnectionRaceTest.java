@@ -0,0 +1,173 @@
+package io.brightnet.p2p.peers;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.brightnet.common.UserThread;
+import io.brightnet.p2p.NodeAddress;
+import io.brightnet.p2p.network.Connection;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class ConnectionRaceTest {
+    private static final long LONG_DELAY = 60 * 1000;
+
+    private ExecutorService userThread;
+    // Only accessed in the user thread
+    private final Deque<NodeAddress> candidates = new ArrayDeque<>();
+    private final Map<NodeAddress, FutureCallback<Connection>> attempts = new LinkedHashMap<>();
+    private final List<NodeAddress> cancelled = new ArrayList<>();
+    private final List<NodeAddress> authenticated = new ArrayList<>();
+    private final List<NodeAddress> failed = new ArrayList<>();
+    private final CountDownLatch completedLatch = new CountDownLatch(1);
+
+    @Before
+    public void setup() {
+        userThread = Executors.newSingleThreadExecutor();
+        UserThread.setExecutor(userThread);
+        for (int i = 1; i <= 5; i++)
+            candidates.add(new NodeAddress("localhost", 1000 + i));
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        userThread.shutdownNow();
+        userThread.awaitTermination(1, TimeUnit.SECONDS);
+        UserThread.setExecutor(MoreExecutors.directExecutor());
+    }
+
+    @Test
+    public void testStartsAttemptsWithStaggerDelay() throws Exception {
+        ConnectionRace race = createRace(2, 3, 50, LONG_DELAY);
+        run(race::start);
+        assertEquals(1, call(attempts::size).intValue());
+
+        // Further attempts up to maxParallelAttempts
+        Thread.sleep(500);
+        assertEquals(3, call(attempts::size).intValue());
+        assertEquals(3, call(race::getNumAttempts).intValue());
+        run(race::stop);
+    }
+
+    @Test
+    public void testFailedAttemptStartsNextAttempt() throws Exception {
+        ConnectionRace race = createRace(1, 3, LONG_DELAY, LONG_DELAY);
+        run(race::start);
+        run(() -> attempts.get(address(1)).onFailure(new Exception("test")));
+        assertEquals(Collections.singletonList(address(1)), call(() -> failed));
+        assertEquals(2, call(attempts::size).intValue());
+        assertTrue(call(() -> attempts.containsKey(address(2))));
+        assertFalse(call(race::isCompleted));
+        run(race::stop);
+    }
+
+    @Test
+    public void testCancelsLosersWhenEnoughAuthenticated() throws Exception {
+        ConnectionRace race = createRace(2, 3, 10, LONG_DELAY);
+        run(race::start);
+        awaitAttempts(3);
+
+        run(() -> attempts.get(address(2)).onSuccess(null));
+        assertFalse(call(race::isCompleted));
+        // The free slot gets the next candidate
+        awaitAttempts(4);
+        run(() -> attempts.get(address(4)).onSuccess(null));
+
+        assertTrue(completedLatch.await(1, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(address(2), address(4)), call(() -> authenticated));
+        assertEquals(new HashSet<>(Arrays.asList(address(1), address(3))), call(() -> new HashSet<>(cancelled)));
+        assertEquals(2, call(race::getNumAuthenticated).intValue());
+        assertEquals(2, call(race::getNumCancelled).intValue());
+        assertTrue(call(race::getTimeToFirstAuthenticated) >= 0);
+
+        // No attempts after the completion
+        Thread.sleep(100);
+        assertEquals(4, call(attempts::size).intValue());
+    }
+
+    @Test
+    public void testCompletesAtDeadline() throws Exception {
+        ConnectionRace race = createRace(1, 2, 10, 200);
+        run(race::start);
+        assertTrue(completedLatch.await(2, TimeUnit.SECONDS));
+        assertEquals(2, call(race::getNumCancelled).intValue());
+        assertEquals(0, call(race::getNumAuthenticated).intValue());
+        assertEquals(-1, call(race::getTimeToFirstAuthenticated).longValue());
+        assertEquals(call(() -> attempts.keySet()), call(() -> new LinkedHashSet<>(cancelled)));
+    }
+
+    @Test
+    public void testCompletesWhenAllCandidatesFailed() throws Exception {
+        run(() -> {
+            candidates.clear();
+            candidates.add(address(1));
+        });
+        ConnectionRace race = createRace(1, 3, LONG_DELAY, LONG_DELAY);
+        run(race::start);
+        run(() -> attempts.get(address(1)).onFailure(new Exception("test")));
+        assertTrue(completedLatch.await(1, TimeUnit.SECONDS));
+        assertTrue(call(cancelled::isEmpty));
+    }
+
+    @Test
+    public void testStopDoesNotNotifyCompletion() throws Exception {
+        ConnectionRace race = createRace(1, 2, LONG_DELAY, LONG_DELAY);
+        run(race::start);
+        run(race::stop);
+        assertTrue(call(race::isCompleted));
+        assertEquals(Collections.singletonList(address(1)), call(() -> cancelled));
+        assertEquals(1, completedLatch.getCount());
+    }
+
+    private ConnectionRace createRace(int numWanted, int maxParallelAttempts, long staggerDelay, long deadline) {
+        return new ConnectionRace("test", numWanted, maxParallelAttempts, staggerDelay, deadline,
+                () -> Optional.ofNullable(candidates.poll()),
+                attempts::put,
+                peerNodeAddress -> {
+                    cancelled.add(peerNodeAddress);
+                    // A cancelled handshake fails
+                    attempts.get(peerNodeAddress).onFailure(new Exception("cancelled"));
+                },
+                new ConnectionRace.Listener() {
+                    @Override
+                    public void onAuthenticated(NodeAddress peerNodeAddress, Connection connection) {
+                        authenticated.add(peerNodeAddress);
+                    }
+
+                    @Override
+                    public void onFailed(NodeAddress peerNodeAddress, Throwable throwable) {
+                        failed.add(peerNodeAddress);
+                    }
+
+                    @Override
+                    public void onCompleted(ConnectionRace connectionRace) {
+                        completedLatch.countDown();
+                    }
+                });
+    }
+
+    private void awaitAttempts(int numAttempts) throws Exception {
+        long deadline = System.currentTimeMillis() + 1000;
+        while (call(attempts::size) < numAttempts) {
+            assertTrue("Timeout waiting for " + numAttempts + " attempts", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static NodeAddress address(int i) {
+        return new NodeAddress("localhost", 1000 + i);
+    }
+
+    private void run(Runnable runnable) throws Exception {
+        userThread.submit(runnable).get(1, TimeUnit.SECONDS);
+    }
+
+    private <T> T call(Callable<T> callable) throws Exception {
+        return userThread.submit(callable).get(1, TimeUnit.SECONDS);
+    }
+}
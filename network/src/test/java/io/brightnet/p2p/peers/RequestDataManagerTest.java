@@ -0,0 +1,249 @@
+package io.brightnet.p2p.peers;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import io.brightnet.common.ByteArray;
+import io.brightnet.common.UserThread;
+import io.brightnet.common.crypto.Sig;
+import io.brightnet.p2p.Message;
+import io.brightnet.p2p.NodeAddress;
+import io.brightnet.p2p.network.Connection;
+import io.brightnet.p2p.network.LocalhostNetworkNode;
+import io.brightnet.p2p.peers.messages.data.DataRequest;
+import io.brightnet.p2p.peers.messages.data.DataResponse;
+import io.brightnet.p2p.storage.P2PDataStorage;
+import io.brightnet.p2p.storage.data.ProtectedData;
+import io.brightnet.p2p.storage.mocks.MockData;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.security.KeyPair;
+import java.security.Security;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+// Uses a network node which is not started, the messages get passed to onMessage directly
+public class RequestDataManagerTest {
+    private static final NodeAddress SEED_NODE = new NodeAddress("localhost", 2002);
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private ExecutorService userThread;
+    private final List<Message> sentMessages = new CopyOnWriteArrayList<>();
+    private final AtomicInteger numDataReceived = new AtomicInteger();
+    private final Semaphore dataReceived = new Semaphore(0);
+    private TestNetworkNode networkNode;
+    private PeerManager peerManager;
+    private P2PDataStorage dataStorage;
+    private KeyPair signatureKeyPair;
+    private Connection connection;
+
+    @Before
+    public void setup() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+        userThread = Executors.newSingleThreadExecutor();
+        UserThread.setExecutor(userThread);
+        File storageDir = tempFolder.newFolder();
+        networkNode = new TestNetworkNode();
+        peerManager = new PeerManager(networkNode, storageDir);
+        dataStorage = new P2PDataStorage(peerManager, networkNode, storageDir);
+        signatureKeyPair = Sig.generateKeyPair();
+        connection = mock(Connection.class);
+        when(connection.getPeerAddressOptional()).thenReturn(Optional.of(SEED_NODE));
+        when(connection.getPeerAddress()).thenReturn(SEED_NODE);
+        when(connection.getUid()).thenReturn("connection");
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        userThread.submit(() -> {
+            dataStorage.shutDown();
+            peerManager.shutDown();
+        });
+        userThread.shutdown();
+        userThread.awaitTermination(5, TimeUnit.SECONDS);
+        UserThread.setExecutor(MoreExecutors.directExecutor());
+    }
+
+    @Test
+    public void testRespondsWithMissingDataInPages() throws Exception {
+        List<ProtectedData> data = createData(450);
+        run(() -> data.forEach(protectedData -> dataStorage.add(protectedData, null)));
+        RequestDataManager requestDataManager = createRequestDataManager(60 * 1000);
+        Set<ByteArray> knownHashes = new HashSet<>();
+        for (int i = 0; i < 50; i++)
+            knownHashes.add(data.get(i).getHashOfPayload());
+
+        run(() -> requestDataManager.onMessage(new DataRequest(knownHashes), connection));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (getDataResponses().size() < 2 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        Thread.sleep(100);
+        List<DataResponse> dataResponses = getDataResponses();
+        assertEquals(2, dataResponses.size());
+        DataResponse first = dataResponses.get(0);
+        DataResponse last = dataResponses.get(1);
+        assertTrue(first.hasMoreData);
+        assertFalse(last.hasMoreData);
+        Set<ProtectedData> received = new HashSet<>(first.set);
+        received.addAll(last.set);
+        assertEquals(new HashSet<>(data.subList(50, 450)), received);
+    }
+
+    @Test
+    public void testNotifiesAfterLastPage() throws Exception {
+        RequestDataManager requestDataManager = createRequestDataManager(60 * 1000);
+        List<ProtectedData> data = createData(20);
+
+        run(() -> requestDataManager.onMessage(new DataResponse(new HashSet<>(data.subList(0, 10)), true), connection));
+        assertFalse(dataReceived.tryAcquire(200, TimeUnit.MILLISECONDS));
+
+        run(() -> requestDataManager.onMessage(new DataResponse(new HashSet<>(data.subList(10, 20)), false), connection));
+        assertTrue(dataReceived.tryAcquire(5, TimeUnit.SECONDS));
+        assertEquals(20, call(() -> dataStorage.getMap().size()).intValue());
+        assertEquals(1, numDataReceived.get());
+    }
+
+    // The responder stops sending before the last page
+    @Test
+    public void testPageTimeoutUsesReceivedPages() throws Exception {
+        RequestDataManager requestDataManager = createRequestDataManager(300);
+        List<ProtectedData> data = createData(20);
+
+        run(() -> requestDataManager.onMessage(new DataResponse(new HashSet<>(data.subList(0, 10)), true), connection));
+        assertTrue(dataReceived.tryAcquire(5, TimeUnit.SECONDS));
+        assertEquals(10, call(() -> dataStorage.getMap().size()).intValue());
+
+        // A late last page gets added but does not notify again
+        run(() -> requestDataManager.onMessage(new DataResponse(new HashSet<>(data.subList(10, 20)), false), connection));
+        assertFalse(dataReceived.tryAcquire(500, TimeUnit.MILLISECONDS));
+        assertEquals(20, call(() -> dataStorage.getMap().size()).intValue());
+        assertEquals(1, numDataReceived.get());
+    }
+
+    @Test
+    public void testPageAfterTimeoutNotifiesOnce() throws Exception {
+        RequestDataManager requestDataManager = createRequestDataManager(300);
+        List<ProtectedData> data = createData(20);
+
+        run(() -> requestDataManager.onMessage(new DataResponse(new HashSet<>(data.subList(0, 10)), true), connection));
+        assertTrue(dataReceived.tryAcquire(5, TimeUnit.SECONDS));
+
+        // A late page with more data does not start waiting again
+        run(() -> requestDataManager.onMessage(new DataResponse(new HashSet<>(data.subList(10, 20)), true), connection));
+        assertFalse(dataReceived.tryAcquire(1000, TimeUnit.MILLISECONDS));
+        assertEquals(20, call(() -> dataStorage.getMap().size()).intValue());
+        assertEquals(1, numDataReceived.get());
+    }
+
+    // The pages of another responder don't delay the timeout of the first one
+    @Test
+    public void testPageTimeoutPerConnection() throws Exception {
+        RequestDataManager requestDataManager = createRequestDataManager(300);
+        List<ProtectedData> data = createData(20);
+        Connection otherConnection = mock(Connection.class);
+        when(otherConnection.getPeerAddressOptional()).thenReturn(Optional.of(SEED_NODE));
+        when(otherConnection.getPeerAddress()).thenReturn(SEED_NODE);
+        when(otherConnection.getUid()).thenReturn("otherConnection");
+
+        run(() -> requestDataManager.onMessage(new DataResponse(new HashSet<>(data.subList(0, 10)), true), connection));
+        for (int i = 10; i < 19; i++) {
+            int index = i;
+            run(() -> requestDataManager.onMessage(new DataResponse(new HashSet<>(data.subList(index, index + 1)), true),
+                    otherConnection));
+            Thread.sleep(100);
+        }
+        assertTrue(dataReceived.tryAcquire());
+
+        run(() -> requestDataManager.onMessage(new DataResponse(new HashSet<>(data.subList(19, 20)), false), otherConnection));
+        assertFalse(dataReceived.tryAcquire(500, TimeUnit.MILLISECONDS));
+        assertEquals(20, call(() -> dataStorage.getMap().size()).intValue());
+        assertEquals(1, numDataReceived.get());
+    }
+
+    private RequestDataManager createRequestDataManager(long pageTimeout) throws Exception {
+        return call(() -> {
+            RequestDataManager requestDataManager = new RequestDataManager(networkNode, dataStorage, peerManager,
+                    pageTimeout);
+            requestDataManager.setRequestDataManagerListener(new RequestDataManager.Listener() {
+                @Override
+                public void onNoSeedNodeAvailable() {
+                }
+
+                @Override
+                public void onNoPeersAvailable() {
+                }
+
+                @Override
+                public void onDataReceived(NodeAddress seedNode) {
+                    numDataReceived.incrementAndGet();
+                    dataReceived.release();
+                }
+            });
+            // The request to the seed node succeeds, then we wait for the DataResponses
+            requestDataManager.requestDataFromSeedNodes(Collections.singletonList(SEED_NODE));
+            return requestDataManager;
+        });
+    }
+
+    private List<ProtectedData> createData(int numEntries) throws Exception {
+        List<ProtectedData> list = new ArrayList<>();
+        for (int i = 0; i < numEntries; i++) {
+            MockData mockData = new MockData("msg" + i, signatureKeyPair.getPublic());
+            mockData.ttl = 10 * 60 * 1000;
+            list.add(dataStorage.getDataWithSignedSeqNr(mockData, signatureKeyPair));
+        }
+        return list;
+    }
+
+    private List<DataResponse> getDataResponses() {
+        List<DataResponse> dataResponses = new ArrayList<>();
+        sentMessages.stream()
+                .filter(message -> message instanceof DataResponse)
+                .forEach(message -> dataResponses.add((DataResponse) message));
+        return dataResponses;
+    }
+
+    private void run(Runnable runnable) throws Exception {
+        userThread.submit(runnable).get(5, TimeUnit.SECONDS);
+    }
+
+    private <T> T call(Callable<T> callable) throws Exception {
+        return userThread.submit(callable).get(5, TimeUnit.SECONDS);
+    }
+
+    // Sending succeeds without a connection
+    private class TestNetworkNode extends LocalhostNetworkNode {
+        TestNetworkNode() {
+            super(0);
+        }
+
+        @Override
+        public SettableFuture<Connection> sendMessage(NodeAddress peerNodeAddress, Message message) {
+            sentMessages.add(message);
+            SettableFuture<Connection> future = SettableFuture.create();
+            future.set(connection);
+            return future;
+        }
+
+        @Override
+        public SettableFuture<Connection> sendMessage(Connection connection, Message message) {
+            sentMessages.add(message);
+            SettableFuture<Connection> future = SettableFuture.create();
+            future.set(connection);
+            return future;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package io.brightnet.p2p.storage;
+
+import io.brightnet.common.ByteArray;
+import io.brightnet.p2p.storage.data.ProtectedData;
+import io.brightnet.p2p.storage.mocks.MockData;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ExpiryIndexTest {
+    private final Map<ByteArray, ProtectedData> map = new HashMap<>();
+    private final ExpiryIndex expiryIndex = new ExpiryIndex(map);
+
+    @Test
+    public void testRemoveExpired() {
+        long now = System.currentTimeMillis();
+        ProtectedData data1 = add("msg1", now, 100);
+        ProtectedData data2 = add("msg2", now, 50);
+        add("msg3", now, 200);
+        assertEquals(now + 50, expiryIndex.getNextExpirationTime());
+
+        assertTrue(expiryIndex.removeExpired(now + 50).isEmpty());
+
+        List<ProtectedData> expired = expiryIndex.removeExpired(now + 101);
+        assertEquals(2, expired.size());
+        assertSame(data2, expired.get(0));
+        assertSame(data1, expired.get(1));
+        assertEquals(1, map.size());
+        assertEquals(now + 200, expiryIndex.getNextExpirationTime());
+    }
+
+    @Test
+    public void testReplacedAndRemovedDataIsSkipped() {
+        long now = System.currentTimeMillis();
+        add("msg1", now, 50);
+        // Republished with a later date
+        ProtectedData republished = add("msg1", now + 100, 50);
+        add("msg2", now, 50);
+        map.remove(new ByteArray("msg2".getBytes()));
+
+        assertTrue(expiryIndex.removeExpired(now + 51).isEmpty());
+        assertSame(republished, map.get(new ByteArray("msg1".getBytes())));
+
+        List<ProtectedData> expired = expiryIndex.removeExpired(now + 151);
+        assertEquals(1, expired.size());
+        assertSame(republished, expired.get(0));
+        assertTrue(map.isEmpty());
+        assertEquals(Long.MAX_VALUE, expiryIndex.getNextExpirationTime());
+    }
+
+    private ProtectedData add(String msg, long date, long ttl) {
+        ProtectedData protectedData = new ProtectedData(new MockData(msg, null), ttl, null, 1, new byte[0]);
+        protectedData.date = new Date(date);
+        ByteArray hashOfPayload = new ByteArray(msg.getBytes());
+        map.put(hashOfPayload, protectedData);
+        expiryIndex.add(hashOfPayload, protectedData);
+        return protectedData;
+    }
+}
@@ -0,0 +1,136 @@
+package io.brightnet.p2p.storage;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import io.brightnet.common.UserThread;
+import io.brightnet.common.crypto.CryptoException;
+import io.brightnet.common.crypto.Hash;
+import io.brightnet.common.crypto.Sig;
+import io.brightnet.p2p.network.LocalhostNetworkNode;
+import io.brightnet.p2p.network.NetworkNode;
+import io.brightnet.p2p.peers.PeerManager;
+import io.brightnet.p2p.storage.data.DataAndSeqNr;
+import io.brightnet.p2p.storage.data.ProtectedData;
+import io.brightnet.p2p.storage.mocks.MockData;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.KeyPair;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+// Uses a network node which is not started, so it tests only the local storage
+public class P2PDataStorageTest {
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private File storageDir;
+    private NetworkNode networkNode;
+    private PeerManager peerManager;
+    private P2PDataStorage dataStorage;
+    private KeyPair signatureKeyPair;
+
+    @Before
+    public void setup() throws IOException {
+        Security.addProvider(new BouncyCastleProvider());
+        UserThread.setExecutor(MoreExecutors.directExecutor());
+        storageDir = tempFolder.newFolder();
+        networkNode = new LocalhostNetworkNode(0);
+        peerManager = new PeerManager(networkNode, storageDir);
+        dataStorage = new P2PDataStorage(peerManager, networkNode, storageDir);
+        signatureKeyPair = Sig.generateKeyPair();
+    }
+
+    @After
+    public void tearDown() {
+        dataStorage.shutDown();
+        peerManager.shutDown();
+    }
+
+    @Test
+    public void testRestoreKeepsDateAndDropsExpiredData() throws CryptoException, InterruptedException {
+        ProtectedData shortLived = add("shortLived", 200);
+        ProtectedData longLived = add("longLived", 10 * 60 * 1000);
+        assertEquals(2, dataStorage.getMap().size());
+        dataStorage.shutDown();
+
+        Thread.sleep(300);
+        dataStorage = new P2PDataStorage(peerManager, networkNode, storageDir);
+        // Added after the verification
+        long deadline = System.currentTimeMillis() + 10000;
+        while (dataStorage.getMap().isEmpty() && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(1, dataStorage.getMap().size());
+        assertFalse(dataStorage.getMap().containsKey(shortLived.getHashOfPayload()));
+        ProtectedData restored = dataStorage.getMap().get(longLived.getHashOfPayload());
+        assertNotNull(restored);
+        // A restart must not grant a new TTL
+        assertEquals(longLived.date, restored.date);
+        assertEquals(longLived.getExpirationTime(), restored.getExpirationTime());
+    }
+
+    // Unverified entries must not be sent to peers, so they get into the map only after the verification
+    @Test
+    public void testRestoredDataIsAddedAfterVerification() throws CryptoException, InterruptedException {
+        ProtectedData protectedData = add("msg", 10 * 60 * 1000);
+        dataStorage.shutDown();
+
+        BlockingQueue<Runnable> userThreadTasks = new LinkedBlockingQueue<>();
+        UserThread.setExecutor(userThreadTasks::add);
+        dataStorage = new P2PDataStorage(peerManager, networkNode, storageDir);
+        assertTrue(dataStorage.getMap().isEmpty());
+
+        while (dataStorage.getMap().isEmpty()) {
+            Runnable task = userThreadTasks.poll(10, TimeUnit.SECONDS);
+            assertNotNull(task);
+            task.run();
+        }
+        assertTrue(dataStorage.getMap().containsKey(protectedData.getHashOfPayload()));
+    }
+
+    @Test
+    public void testAddAll() throws InterruptedException, CryptoException {
+        List<ProtectedData> list = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            MockData mockData = new MockData("msg" + i, signatureKeyPair.getPublic());
+            mockData.ttl = 10 * 60 * 1000;
+            list.add(dataStorage.getDataWithSignedSeqNr(mockData, signatureKeyPair));
+        }
+        // A newer version of the first entry after the old one, the order must be kept
+        ProtectedData data = list.get(0);
+        int newSequenceNumber = data.sequenceNumber + 1;
+        byte[] hashOfDataAndSeqNr = Hash.getHash(new DataAndSeqNr(data.expirablePayload, newSequenceNumber));
+        byte[] signature = Sig.sign(signatureKeyPair.getPrivate(), hashOfDataAndSeqNr);
+        ProtectedData newerData = new ProtectedData(data.expirablePayload, data.ttl, data.ownerStoragePubKey, newSequenceNumber, signature);
+        list.add(newerData);
+        // Invalid signature
+        list.add(new ProtectedData(new MockData("invalid", signatureKeyPair.getPublic()), data.ttl,
+                data.ownerStoragePubKey, 1, signature));
+
+        CountDownLatch latch = new CountDownLatch(1);
+        dataStorage.addAll(list, null, latch::countDown);
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(200, dataStorage.getMap().size());
+        assertTrue(dataStorage.getMap().containsValue(newerData));
+    }
+
+    private ProtectedData add(String msg, long ttl) throws CryptoException {
+        MockData mockData = new MockData(msg, signatureKeyPair.getPublic());
+        mockData.ttl = ttl;
+        ProtectedData protectedData = dataStorage.getDataWithSignedSeqNr(mockData, signatureKeyPair);
+        assertTrue(dataStorage.add(protectedData, null));
+        return protectedData;
+    }
+}
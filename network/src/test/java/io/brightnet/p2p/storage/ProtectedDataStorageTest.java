@@ -17,6 +17,7 @@ import io.brightnet.p2p.storage.data.ProtectedMailboxData;
 import io.brightnet.p2p.storage.mocks.MockData;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.junit.*;
+import org.junit.rules.TemporaryFolder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -46,6 +47,10 @@ public class ProtectedDataStorageTest {
     private final int sleepTime = 100;
     private File dir1;
     private File dir2;
+    private File storageDir;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
 
     @Before
     public void setup() throws InterruptedException, NoSuchAlgorithmException, CertificateException, KeyStoreException, IOException, CryptoException, SignatureException, InvalidKeyException {
@@ -64,9 +69,11 @@ public class ProtectedDataStorageTest {
 
         storageSignatureKeyPair1 = keyRing1.getSignatureKeyPair();
         encryptionService1 = new EncryptionService(keyRing1);
+        // A fresh dir per test, otherwise the persisted sequence numbers and data of former tests get restored
+        storageDir = tempFolder.newFolder();
         networkNode1 = TestUtils.getAndStartSeedNode(8001, useClearNet, seedNodes).getSeedNodeP2PService().getNetworkNode();
-        peerManager1 = new PeerManager(networkNode1, new File("dummy"));
-        dataStorage1 = new P2PDataStorage(peerManager1, networkNode1, new File("dummy"));
+        peerManager1 = new PeerManager(networkNode1, storageDir);
+        dataStorage1 = new P2PDataStorage(peerManager1, networkNode1, storageDir);
 
         // for mailbox
         keyRing2 = new KeyRing(new KeyStorage(dir2));
@@ -108,7 +115,8 @@ public class ProtectedDataStorageTest {
     public void testExpirableData() throws InterruptedException, NoSuchAlgorithmException, CertificateException, KeyStoreException, IOException, CryptoException, SignatureException, InvalidKeyException, NoSuchProviderException {
         P2PDataStorage.CHECK_TTL_INTERVAL = 10;
         // CHECK_TTL_INTERVAL is used in constructor of ProtectedExpirableDataStorage so we recreate it here
-        dataStorage1 = new P2PDataStorage(peerManager1, networkNode1, new File("dummy"));
+        dataStorage1.shutDown();
+        dataStorage1 = new P2PDataStorage(peerManager1, networkNode1, tempFolder.newFolder());
         mockData.ttl = 50;
 
         ProtectedData data = dataStorage1.getDataWithSignedSeqNr(mockData, storageSignatureKeyPair1);